@@ -60,6 +60,7 @@
 #include "base/globals.h"
 #include "base/logging.h"
 #include "base/os.h"
+#include "batch_query.h"
 #include "cmdline_types.h"
 #include "exec_utils.h"
 #include "file_utils.h"
@@ -300,6 +301,36 @@ Result<FileVisibility> GetFileVisibility(const std::string& file) {
              FileVisibility::NOT_OTHER_READABLE;
 }
 
+// Mixes the value into the FNV-1a hash.
+void HashCombine(uint64_t* hash, std::string_view value) {
+  for (char c : value) {
+    *hash ^= static_cast<uint8_t>(c);
+    *hash *= 0x100000001b3;
+  }
+}
+
+void HashCombine(uint64_t* hash, int64_t value) {
+  HashCombine(hash, std::string_view(reinterpret_cast<const char*>(&value), sizeof(value)));
+}
+
+// Mixes the identity of the file into the hash, without reading the file.
+Result<void> HashFileStat(uint64_t* hash, const std::string& path) {
+  HashCombine(hash, path);
+  struct stat st;
+  if (stat(path.c_str(), &st) != 0) {
+    if (errno != ENOENT) {
+      return ErrnoErrorf("Failed to stat '{}'", path);
+    }
+    HashCombine(hash, int64_t{-1});
+    return {};
+  }
+  HashCombine(hash, static_cast<int64_t>(st.st_ino));
+  HashCombine(hash, static_cast<int64_t>(st.st_size));
+  HashCombine(hash, static_cast<int64_t>(st.st_mtim.tv_sec));
+  HashCombine(hash, static_cast<int64_t>(st.st_mtim.tv_nsec));
+  return {};
+}
+
 Result<ArtdCancellationSignal*> ToArtdCancellationSignal(IArtdCancellationSignal* input) {
   if (input == nullptr) {
     return Error() << "Cancellation signal must not be nullptr";
@@ -445,6 +476,18 @@ ScopedAStatus Artd::getDexoptStatus(const std::string& in_dexFile,
   return ScopedAStatus::ok();
 }
 
+ScopedAStatus Artd::batchGetDexoptStatus(
+    const std::vector<GetDexoptStatusResult::Query>& in_queries,
+    std::vector<GetDexoptStatusResult>* _aidl_return) {
+  return BatchQuery<GetDexoptStatusResult::Query, GetDexoptStatusResult>(
+      in_queries,
+      [&](const GetDexoptStatusResult::Query& query, GetDexoptStatusResult* result) {
+        return getDexoptStatus(
+            query.dexFile, query.instructionSet, query.classLoaderContext, result);
+      },
+      _aidl_return);
+}
+
 ndk::ScopedAStatus Artd::isProfileUsable(const ProfilePath& in_profile,
                                          const std::string& in_dexFile,
                                          bool* _aidl_return) {
@@ -593,6 +636,42 @@ ndk::ScopedAStatus Artd::getProfileVisibility(const ProfilePath& in_profile,
   return ScopedAStatus::ok();
 }
 
+ndk::ScopedAStatus Artd::getProfileMergeFingerprint(
+    const std::vector<ProfilePath>& in_profiles,
+    const std::optional<ProfilePath>& in_referenceProfile,
+    const std::string& in_dexFile,
+    int64_t* _aidl_return) {
+  std::vector<std::string> profile_paths;
+  for (const ProfilePath& profile : in_profiles) {
+    std::string profile_path = OR_RETURN_FATAL(BuildProfileOrDmPath(profile));
+    if (profile.getTag() == ProfilePath::dexMetadataPath) {
+      return Fatal("Does not support DM file, got '{}'"_format(profile_path));
+    }
+    profile_paths.push_back(std::move(profile_path));
+  }
+  std::optional<std::string> reference_profile_path;
+  if (in_referenceProfile.has_value()) {
+    reference_profile_path = OR_RETURN_FATAL(BuildProfileOrDmPath(*in_referenceProfile));
+    if (in_referenceProfile->getTag() == ProfilePath::dexMetadataPath) {
+      return Fatal("Does not support DM file, got '{}'"_format(*reference_profile_path));
+    }
+  }
+  OR_RETURN_FATAL(ValidateDexPath(in_dexFile));
+
+  uint64_t hash = 0xcbf29ce484222325;
+  for (const std::string& profile_path : profile_paths) {
+    OR_RETURN_NON_FATAL(HashFileStat(&hash, profile_path));
+  }
+  // Make the reference profile distinguishable from the other profiles.
+  HashCombine(&hash, int64_t{reference_profile_path.has_value()});
+  if (reference_profile_path.has_value()) {
+    OR_RETURN_NON_FATAL(HashFileStat(&hash, *reference_profile_path));
+  }
+  OR_RETURN_NON_FATAL(HashFileStat(&hash, in_dexFile));
+  *_aidl_return = static_cast<int64_t>(hash);
+  return ScopedAStatus::ok();
+}
+
 ndk::ScopedAStatus Artd::getArtifactsVisibility(const ArtifactsPath& in_artifactsPath,
                                                 FileVisibility* _aidl_return) {
   std::string oat_path = OR_RETURN_FATAL(BuildOatPath(in_artifactsPath));
@@ -780,6 +859,22 @@ ndk::ScopedAStatus Artd::getDexoptNeeded(const std::string& in_dexFile,
   return ScopedAStatus::ok();
 }
 
+ndk::ScopedAStatus Artd::batchGetDexoptNeeded(
+    const std::vector<GetDexoptNeededResult::Query>& in_queries,
+    std::vector<GetDexoptNeededResult>* _aidl_return) {
+  return BatchQuery<GetDexoptNeededResult::Query, GetDexoptNeededResult>(
+      in_queries,
+      [&](const GetDexoptNeededResult::Query& query, GetDexoptNeededResult* result) {
+        return getDexoptNeeded(query.dexFile,
+                               query.instructionSet,
+                               query.classLoaderContext,
+                               query.compilerFilter,
+                               query.dexoptTrigger,
+                               result);
+      },
+      _aidl_return);
+}
+
 ndk::ScopedAStatus Artd::dexopt(
     const OutputArtifacts& in_outputArtifacts,
     const std::string& in_dexFile,
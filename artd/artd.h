@@ -91,6 +91,10 @@ class Artd : public aidl::com::android::server::art::BnArtd {
       const std::optional<std::string>& in_classLoaderContext,
       aidl::com::android::server::art::GetDexoptStatusResult* _aidl_return) override;
 
+  ndk::ScopedAStatus batchGetDexoptStatus(
+      const std::vector<aidl::com::android::server::art::GetDexoptStatusResult::Query>& in_queries,
+      std::vector<aidl::com::android::server::art::GetDexoptStatusResult>* _aidl_return) override;
+
   ndk::ScopedAStatus isProfileUsable(const aidl::com::android::server::art::ProfilePath& in_profile,
                                      const std::string& in_dexFile,
                                      bool* _aidl_return) override;
@@ -119,6 +123,12 @@ class Artd : public aidl::com::android::server::art::BnArtd {
       const aidl::com::android::server::art::MergeProfileOptions& in_options,
       bool* _aidl_return) override;
 
+  ndk::ScopedAStatus getProfileMergeFingerprint(
+      const std::vector<aidl::com::android::server::art::ProfilePath>& in_profiles,
+      const std::optional<aidl::com::android::server::art::ProfilePath>& in_referenceProfile,
+      const std::string& in_dexFile,
+      int64_t* _aidl_return) override;
+
   ndk::ScopedAStatus getArtifactsVisibility(
       const aidl::com::android::server::art::ArtifactsPath& in_artifactsPath,
       aidl::com::android::server::art::FileVisibility* _aidl_return) override;
@@ -139,6 +149,10 @@ class Artd : public aidl::com::android::server::art::BnArtd {
       int32_t in_dexoptTrigger,
       aidl::com::android::server::art::GetDexoptNeededResult* _aidl_return) override;
 
+  ndk::ScopedAStatus batchGetDexoptNeeded(
+      const std::vector<aidl::com::android::server::art::GetDexoptNeededResult::Query>& in_queries,
+      std::vector<aidl::com::android::server::art::GetDexoptNeededResult>* _aidl_return) override;
+
   ndk::ScopedAStatus dexopt(
       const aidl::com::android::server::art::OutputArtifacts& in_outputArtifacts,
       const std::string& in_dexFile,
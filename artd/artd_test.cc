@@ -39,6 +39,7 @@
 
 #include "aidl/com/android/server/art/ArtConstants.h"
 #include "aidl/com/android/server/art/BnArtd.h"
+#include "aidl/com/android/server/art/DexoptTrigger.h"
 #include "android-base/collections.h"
 #include "android-base/errors.h"
 #include "android-base/file.h"
@@ -51,6 +52,7 @@
 #include "android/binder_status.h"
 #include "base/array_ref.h"
 #include "base/common_art_test.h"
+#include "batch_query.h"
 #include "exec_utils.h"
 #include "fmt/format.h"
 #include "gmock/gmock.h"
@@ -70,8 +72,10 @@ using ::aidl::com::android::server::art::ArtdDexoptResult;
 using ::aidl::com::android::server::art::ArtifactsPath;
 using ::aidl::com::android::server::art::DexMetadataPath;
 using ::aidl::com::android::server::art::DexoptOptions;
+using ::aidl::com::android::server::art::DexoptTrigger;
 using ::aidl::com::android::server::art::FileVisibility;
 using ::aidl::com::android::server::art::FsPermission;
+using ::aidl::com::android::server::art::GetDexoptNeededResult;
 using ::aidl::com::android::server::art::GetDexoptStatusResult;
 using ::aidl::com::android::server::art::IArtdCancellationSignal;
 using ::aidl::com::android::server::art::OutputArtifacts;
@@ -104,6 +108,7 @@ using ::testing::IsEmpty;
 using ::testing::Matcher;
 using ::testing::MockFunction;
 using ::testing::Not;
+using ::testing::Optional;
 using ::testing::Property;
 using ::testing::ResultOf;
 using ::testing::Return;
@@ -1841,6 +1846,81 @@ TEST_F(ArtdTest, mergeProfilesWithOptionsDumpClassesAndMethods) {
   CheckContent(output_profile.profilePath.tmpPath, "dump");
 }
 
+TEST_F(ArtdTest, getProfileMergeFingerprint) {
+  const TmpProfilePath& reference_profile_path = profile_path_->get<ProfilePath::tmpProfilePath>();
+  std::string reference_profile_file = OR_FATAL(BuildTmpProfilePath(reference_profile_path));
+  CreateFile(reference_profile_file, "abc");
+
+  // Doesn't exist.
+  PrimaryCurProfilePath profile_0_path{
+      .userId = 0, .packageName = "com.android.foo", .profileName = "primary"};
+  std::string profile_0_file = OR_FATAL(BuildPrimaryCurProfilePath(profile_0_path));
+
+  PrimaryCurProfilePath profile_1_path{
+      .userId = 1, .packageName = "com.android.foo", .profileName = "primary"};
+  std::string profile_1_file = OR_FATAL(BuildPrimaryCurProfilePath(profile_1_path));
+  CreateFile(profile_1_file, "def");
+
+  CreateFile(dex_file_);
+
+  auto get_fingerprint = [&]() {
+    int64_t result;
+    EXPECT_TRUE(artd_
+                    ->getProfileMergeFingerprint(
+                        {profile_0_path, profile_1_path}, reference_profile_path, dex_file_, &result)
+                    .isOk());
+    return result;
+  };
+
+  int64_t fingerprint = get_fingerprint();
+  EXPECT_EQ(get_fingerprint(), fingerprint);
+
+  // Profman is never invoked.
+  EXPECT_CALL(*mock_exec_utils_, DoExecAndReturnCode).Times(0);
+
+  // A new profile.
+  CreateFile(profile_0_file, "ghi");
+  int64_t new_fingerprint = get_fingerprint();
+  EXPECT_NE(new_fingerprint, fingerprint);
+  fingerprint = new_fingerprint;
+
+  // A profile is written.
+  CreateFile(profile_1_file, "defg");
+  new_fingerprint = get_fingerprint();
+  EXPECT_NE(new_fingerprint, fingerprint);
+  fingerprint = new_fingerprint;
+
+  // A profile is deleted.
+  std::filesystem::remove(profile_0_file);
+  new_fingerprint = get_fingerprint();
+  EXPECT_NE(new_fingerprint, fingerprint);
+  fingerprint = new_fingerprint;
+
+  // Without the reference profile.
+  int64_t result;
+  EXPECT_TRUE(
+      artd_
+          ->getProfileMergeFingerprint(
+              {profile_0_path, profile_1_path}, /*in_referenceProfile=*/std::nullopt, dex_file_,
+              &result)
+          .isOk());
+  EXPECT_NE(result, fingerprint);
+}
+
+TEST_F(ArtdTest, getProfileMergeFingerprintDexFileNotFound) {
+  PrimaryCurProfilePath profile_path{
+      .userId = 0, .packageName = "com.android.foo", .profileName = "primary"};
+
+  // A dex file that doesn't exist is not an error, just like a profile that doesn't exist.
+  int64_t result;
+  EXPECT_TRUE(artd_
+                  ->getProfileMergeFingerprint({profile_path},
+                                               /*in_referenceProfile=*/std::nullopt,
+                                               dex_file_,
+                                               &result)
+                  .isOk());
+}
+
 TEST_F(ArtdTest, cleanup) {
   // TODO(b/289037540): Fix this.
   if (getuid() != kRootUid) {
@@ -1963,6 +2043,240 @@ TEST_F(ArtdTest, cleanup) {
   }
 }
 
+TEST_F(ArtdTest, batchGetDexoptStatus) {
+  CreateFile(dex_file_);
+
+  // More queries than the threads that answer them, with a mix of valid ones and invalid ones.
+  std::vector<GetDexoptStatusResult::Query> queries;
+  for (size_t i = 0; i < kMaxBatchQueryThreads * kMinQueriesPerBatchQueryThread * 2; i++) {
+    queries.push_back(GetDexoptStatusResult::Query{
+        .dexFile = dex_file_,
+        .instructionSet = i % 2 == 0 ? isa_ : "invalid-isa-{}"_format(i),
+        .classLoaderContext = class_loader_context_,
+    });
+  }
+
+  // Make sure that the runtime options are loaded, so that all the calls below see the same ones.
+  GetDexoptStatusResult ignored_result;
+  artd_->getDexoptStatus(dex_file_, isa_, class_loader_context_, &ignored_result);
+
+  std::vector<GetDexoptStatusResult> results;
+  ndk::ScopedAStatus status = artd_->batchGetDexoptStatus(queries, &results);
+  ASSERT_TRUE(status.isOk()) << status.getMessage();
+
+  // Each query is answered as if it were queried alone, in the same order as the queries.
+  ASSERT_EQ(results.size(), queries.size());
+  for (size_t i = 0; i < queries.size(); i++) {
+    GetDexoptStatusResult expected_result;
+    ndk::ScopedAStatus expected_status = artd_->getDexoptStatus(queries[i].dexFile,
+                                                                queries[i].instructionSet,
+                                                                queries[i].classLoaderContext,
+                                                                &expected_result);
+    if (!expected_status.isOk()) {
+      ASSERT_EQ(expected_status.getExceptionCode(), EX_SERVICE_SPECIFIC);
+      expected_result = GetDexoptStatusResult{.errorMessage = expected_status.getMessage()};
+    }
+    EXPECT_EQ(results[i], expected_result) << "at index " << i;
+  }
+
+  // The queries with an invalid ISA fail individually.
+  EXPECT_THAT(results[1].errorMessage, Optional(Not(IsEmpty())));
+}
+
+TEST_F(ArtdTest, batchGetDexoptStatusEmpty) {
+  std::vector<GetDexoptStatusResult> results{GetDexoptStatusResult()};
+  ASSERT_TRUE(artd_->batchGetDexoptStatus({}, &results).isOk());
+  EXPECT_THAT(results, IsEmpty());
+}
+
+TEST_F(ArtdTest, batchGetDexoptNeeded) {
+  CreateFile(dex_file_);
+
+  // More queries than the threads that answer them, with a mix of valid ones and invalid ones.
+  std::vector<GetDexoptNeededResult::Query> queries;
+  for (size_t i = 0; i < kMaxBatchQueryThreads * kMinQueriesPerBatchQueryThread * 2; i++) {
+    queries.push_back(GetDexoptNeededResult::Query{
+        .dexFile = dex_file_,
+        .instructionSet = i % 2 == 0 ? isa_ : "invalid-isa-{}"_format(i),
+        .classLoaderContext = class_loader_context_,
+        .compilerFilter = compiler_filter_,
+        .dexoptTrigger = static_cast<int32_t>(DexoptTrigger::COMPILER_FILTER_IS_BETTER),
+    });
+  }
+
+  // Make sure that the runtime options are loaded, so that all the calls below see the same ones.
+  GetDexoptNeededResult ignored_result;
+  artd_->getDexoptNeeded(dex_file_,
+                         isa_,
+                         class_loader_context_,
+                         compiler_filter_,
+                         static_cast<int32_t>(DexoptTrigger::COMPILER_FILTER_IS_BETTER),
+                         &ignored_result);
+
+  std::vector<GetDexoptNeededResult> results;
+  ndk::ScopedAStatus status = artd_->batchGetDexoptNeeded(queries, &results);
+  ASSERT_TRUE(status.isOk()) << status.getMessage();
+
+  // Each query is answered as if it were queried alone, in the same order as the queries.
+  ASSERT_EQ(results.size(), queries.size());
+  for (size_t i = 0; i < queries.size(); i++) {
+    GetDexoptNeededResult expected_result;
+    ndk::ScopedAStatus expected_status = artd_->getDexoptNeeded(queries[i].dexFile,
+                                                                queries[i].instructionSet,
+                                                                queries[i].classLoaderContext,
+                                                                queries[i].compilerFilter,
+                                                                queries[i].dexoptTrigger,
+                                                                &expected_result);
+    if (!expected_status.isOk()) {
+      ASSERT_EQ(expected_status.getExceptionCode(), EX_SERVICE_SPECIFIC);
+      expected_result = GetDexoptNeededResult{.errorMessage = expected_status.getMessage()};
+    }
+    EXPECT_EQ(results[i], expected_result) << "at index " << i;
+  }
+
+  // The queries with an invalid ISA fail individually.
+  EXPECT_THAT(results[1].errorMessage, Optional(Not(IsEmpty())));
+}
+
+TEST_F(ArtdTest, batchGetDexoptNeededEmpty) {
+  std::vector<GetDexoptNeededResult> results{GetDexoptNeededResult()};
+  ASSERT_TRUE(artd_->batchGetDexoptNeeded({}, &results).isOk());
+  EXPECT_THAT(results, IsEmpty());
+}
+
+struct TestQueryResult {
+  int value = 0;
+  std::optional<std::string> errorMessage;
+};
+
+ndk::ScopedAStatus RunTestBatchQuery(const std::vector<int>& queries,
+                                     const std::function<ndk::ScopedAStatus(int)>& fn,
+                                     std::vector<TestQueryResult>* results) {
+  return BatchQuery<int, TestQueryResult>(
+      queries,
+      [&](const int& query, TestQueryResult* result) {
+        result->value = query * 10;
+        return fn(query);
+      },
+      results);
+}
+
+TEST(BatchQueryTest, LargeBatch) {
+  std::vector<int> queries;
+  for (int i = 0; i < static_cast<int>(kMaxBatchQueryThreads * kMinQueriesPerBatchQueryThread * 4);
+       i++) {
+    queries.push_back(i);
+  }
+
+  std::mutex mu;
+  std::unordered_set<std::thread::id> thread_ids;
+  std::vector<TestQueryResult> results;
+  ASSERT_TRUE(RunTestBatchQuery(
+                  queries,
+                  [&](int) {
+                    {
+                      std::lock_guard<std::mutex> lock(mu);
+                      thread_ids.insert(std::this_thread::get_id());
+                    }
+                    std::this_thread::sleep_for(std::chrono::milliseconds(1));
+                    return ndk::ScopedAStatus::ok();
+                  },
+                  &results)
+                  .isOk());
+
+  ASSERT_EQ(results.size(), queries.size());
+  for (size_t i = 0; i < queries.size(); i++) {
+    EXPECT_EQ(results[i].value, queries[i] * 10) << "at index " << i;
+    EXPECT_EQ(results[i].errorMessage, std::nullopt) << "at index " << i;
+  }
+  EXPECT_LE(thread_ids.size(), kMaxBatchQueryThreads);
+}
+
+TEST(BatchQueryTest, SmallBatchOnCallingThread) {
+  std::vector<int> queries;
+  for (int i = 0; i < static_cast<int>(kMinQueriesPerBatchQueryThread * 2 - 1); i++) {
+    queries.push_back(i);
+  }
+
+  std::thread::id calling_thread_id = std::this_thread::get_id();
+  std::vector<TestQueryResult> results;
+  ASSERT_TRUE(RunTestBatchQuery(
+                  queries,
+                  [&](int) {
+                    EXPECT_EQ(std::this_thread::get_id(), calling_thread_id);
+                    return ndk::ScopedAStatus::ok();
+                  },
+                  &results)
+                  .isOk());
+
+  ASSERT_EQ(results.size(), queries.size());
+  for (size_t i = 0; i < queries.size(); i++) {
+    EXPECT_EQ(results[i].value, queries[i] * 10) << "at index " << i;
+  }
+}
+
+TEST(BatchQueryTest, Empty) {
+  std::vector<TestQueryResult> results{TestQueryResult{.value = 1}};
+  ASSERT_TRUE(
+      RunTestBatchQuery({}, [](int) { return ndk::ScopedAStatus::ok(); }, &results).isOk());
+  EXPECT_THAT(results, IsEmpty());
+}
+
+TEST(BatchQueryTest, NonFatalErrors) {
+  std::vector<int> queries;
+  for (int i = 0; i < static_cast<int>(kMaxBatchQueryThreads * kMinQueriesPerBatchQueryThread);
+       i++) {
+    queries.push_back(i);
+  }
+
+  std::vector<TestQueryResult> results;
+  ASSERT_TRUE(RunTestBatchQuery(
+                  queries,
+                  [](int query) {
+                    return query % 3 == 0 ? ndk::ScopedAStatus::fromServiceSpecificErrorWithMessage(
+                                                /*serviceSpecific=*/-1,
+                                                "error {}"_format(query).c_str()) :
+                                            ndk::ScopedAStatus::ok();
+                  },
+                  &results)
+                  .isOk());
+
+  // A failed query doesn't affect the others, and its result only has the error message.
+  ASSERT_EQ(results.size(), queries.size());
+  for (size_t i = 0; i < queries.size(); i++) {
+    if (queries[i] % 3 == 0) {
+      EXPECT_EQ(results[i].value, 0) << "at index " << i;
+      EXPECT_THAT(results[i].errorMessage, Optional("error {}"_format(queries[i])))
+          << "at index " << i;
+    } else {
+      EXPECT_EQ(results[i].value, queries[i] * 10) << "at index " << i;
+      EXPECT_EQ(results[i].errorMessage, std::nullopt) << "at index " << i;
+    }
+  }
+}
+
+TEST(BatchQueryTest, FatalError) {
+  std::vector<int> queries;
+  for (int i = 0; i < static_cast<int>(kMaxBatchQueryThreads * kMinQueriesPerBatchQueryThread);
+       i++) {
+    queries.push_back(i);
+  }
+
+  std::vector<TestQueryResult> results;
+  ndk::ScopedAStatus status = RunTestBatchQuery(
+      queries,
+      [](int query) {
+        return query == 5 ? ndk::ScopedAStatus::fromExceptionCodeWithMessage(EX_ILLEGAL_STATE,
+                                                                             "fatal error") :
+                            ndk::ScopedAStatus::ok();
+      },
+      &results);
+
+  // A fatal error fails the whole batch.
+  EXPECT_EQ(status.getExceptionCode(), EX_ILLEGAL_STATE);
+  EXPECT_EQ(status.getMessage(), std::string("fatal error"));
+}
+
 }  // namespace
 }  // namespace artd
 }  // namespace art
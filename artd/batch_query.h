@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef ART_ARTD_BATCH_QUERY_H_
+#define ART_ARTD_BATCH_QUERY_H_
+
+#include <algorithm>
+#include <atomic>
+#include <condition_variable>
+#include <cstddef>
+#include <deque>
+#include <functional>
+#include <memory>
+#include <mutex>
+#include <thread>
+#include <utility>
+#include <vector>
+
+#include "android-base/thread_annotations.h"
+#include "android/binder_auto_utils.h"
+#include "android/binder_status.h"
+
+namespace art {
+namespace artd {
+
+// The maximum number of threads that a batched query uses. The queries mostly wait for file I/O, so
+// a few threads are enough to hide the latency without competing with the foreground.
+constexpr size_t kMaxBatchQueryThreads = 4;
+
+// The minimum number of queries per thread of a batched query. Smaller batches are answered on the
+// calling thread only, as handing them over to other threads would cost more than it saves.
+constexpr size_t kMinQueriesPerBatchQueryThread = 8;
+
+// The threads that help answering batched queries. They are created on first use and kept for the
+// lifetime of the process, so that a batched query doesn't pay for creating threads.
+class BatchQueryThreadPool {
+ public:
+  static BatchQueryThreadPool& GetInstance() {
+    // Intentionally leaked, as the threads never exit.
+    static BatchQueryThreadPool* instance = new BatchQueryThreadPool(
+        std::min(kMaxBatchQueryThreads, size_t{std::max(1u, std::thread::hardware_concurrency())}) -
+        1);
+    return *instance;
+  }
+
+  size_t NumThreads() const { return num_threads_; }
+
+  // Runs `task` on one of the threads, once one is available.
+  void Post(std::function<void()>&& task) {
+    {
+      std::lock_guard<std::mutex> lock(mu_);
+      tasks_.push_back(std::move(task));
+    }
+    cv_.notify_one();
+  }
+
+ private:
+  explicit BatchQueryThreadPool(size_t num_threads) : num_threads_(num_threads) {
+    for (size_t i = 0; i < num_threads; i++) {
+      std::thread([this]() { Loop(); }).detach();
+    }
+  }
+
+  [[noreturn]] void Loop() {
+    while (true) {
+      std::function<void()> task;
+      {
+        std::unique_lock<std::mutex> lock(mu_);
+        while (tasks_.empty()) {
+          cv_.wait(lock);
+        }
+        task = std::move(tasks_.front());
+        tasks_.pop_front();
+      }
+      task();
+    }
+  }
+
+  const size_t num_threads_;
+  std::mutex mu_;
+  std::condition_variable cv_;
+  std::deque<std::function<void()>> tasks_ GUARDED_BY(mu_);
+};
+
+// Answers the queries by calling `query_fn` on each of them, and returns the results in the same
+// order as the queries. Small batches are answered on the calling thread. Larger ones are also
+// answered by up to `kMaxBatchQueryThreads - 1` threads of `BatchQueryThreadPool`. Returns the
+// first fatal error, if any. Non-fatal (service-specific) errors are reported by `errorMessage` in
+// the corresponding results.
+template <typename Query, typename QueryResult>
+ndk::ScopedAStatus BatchQuery(
+    const std::vector<Query>& queries,
+    const std::function<ndk::ScopedAStatus(const Query&, QueryResult*)>& query_fn,
+    std::vector<QueryResult>* results) {
+  results->clear();
+  results->resize(queries.size());
+  std::vector<ndk::ScopedAStatus> statuses(queries.size());
+
+  std::atomic<size_t> next_index = 0;
+  auto worker = [&]() {
+    for (size_t i = next_index++; i < queries.size(); i = next_index++) {
+      statuses[i] = query_fn(queries[i], &(*results)[i]);
+    }
+  };
+
+  BatchQueryThreadPool& pool = BatchQueryThreadPool::GetInstance();
+  size_t num_threads = queries.size() / kMinQueriesPerBatchQueryThread;
+  size_t num_helpers = num_threads > 1 ? std::min(pool.NumThreads(), num_threads - 1) : 0;
+  if (num_helpers == 0) {
+    worker();
+  } else {
+    // The helpers may start after the calling thread has answered all the queries, e.g., if the
+    // pool is busy with another batch. Once `done` is set, they must not touch anything on this
+    // stack, so the calling thread only waits for the helpers that have started.
+    struct HelperState {
+      std::mutex mu;
+      std::condition_variable cv;
+      size_t running GUARDED_BY(mu) = 0;
+      bool done GUARDED_BY(mu) = false;
+    };
+    auto state = std::make_shared<HelperState>();
+    for (size_t i = 0; i < num_helpers; i++) {
+      pool.Post([state, &worker]() {
+        {
+          std::lock_guard<std::mutex> lock(state->mu);
+          if (state->done) {
+            return;
+          }
+          state->running++;
+        }
+        worker();
+        {
+          std::lock_guard<std::mutex> lock(state->mu);
+          state->running--;
+        }
+        state->cv.notify_all();
+      });
+    }
+    worker();
+    std::unique_lock<std::mutex> lock(state->mu);
+    state->done = true;
+    while (state->running > 0) {
+      state->cv.wait(lock);
+    }
+  }
+
+  for (size_t i = 0; i < queries.size(); i++) {
+    if (statuses[i].isOk()) {
+      continue;
+    }
+    if (statuses[i].getExceptionCode() != EX_SERVICE_SPECIFIC) {
+      return std::move(statuses[i]);
+    }
+    (*results)[i] = QueryResult();
+    (*results)[i].errorMessage = statuses[i].getMessage();
+  }
+  return ndk::ScopedAStatus::ok();
+}
+
+}  // namespace artd
+}  // namespace art
+
+#endif  // ART_ARTD_BATCH_QUERY_H_
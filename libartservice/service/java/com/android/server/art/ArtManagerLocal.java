@@ -93,6 +93,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -275,22 +276,33 @@ public final class ArtManagerLocal {
         }
 
         try {
-            List<DexContainerFileDexoptStatus> statuses = new ArrayList<>();
-
+            // Query all the files in one call, so that artd checks them in parallel.
+            List<GetDexoptStatusResult.Query> queries = new ArrayList<>();
             for (Pair<DetailedDexInfo, Abi> pair : dexAndAbis) {
-                DetailedDexInfo dexInfo = pair.first;
-                Abi abi = pair.second;
-                try {
-                    GetDexoptStatusResult result = mInjector.getArtd().getDexoptStatus(
-                            dexInfo.dexPath(), abi.isa(), dexInfo.classLoaderContext());
+                var query = new GetDexoptStatusResult.Query();
+                query.dexFile = pair.first.dexPath();
+                query.instructionSet = pair.second.isa();
+                query.classLoaderContext = pair.first.classLoaderContext();
+                queries.add(query);
+            }
+            List<GetDexoptStatusResult> results = queries.isEmpty()
+                    ? List.of()
+                    : mInjector.getArtd().batchGetDexoptStatus(queries);
+
+            List<DexContainerFileDexoptStatus> statuses = new ArrayList<>();
+            for (int i = 0; i < dexAndAbis.size(); i++) {
+                DetailedDexInfo dexInfo = dexAndAbis.get(i).first;
+                Abi abi = dexAndAbis.get(i).second;
+                GetDexoptStatusResult result = results.get(i);
+                if (result.errorMessage == null) {
                     statuses.add(DexContainerFileDexoptStatus.create(dexInfo.dexPath(),
                             dexInfo instanceof DetailedPrimaryDexInfo, abi.isPrimaryAbi(),
                             abi.name(), result.compilerFilter, result.compilationReason,
                             result.locationDebugString));
-                } catch (ServiceSpecificException e) {
+                } else {
                     statuses.add(DexContainerFileDexoptStatus.create(dexInfo.dexPath(),
                             dexInfo instanceof DetailedPrimaryDexInfo, abi.isPrimaryAbi(),
-                            abi.name(), "error", "error", e.getMessage()));
+                            abi.name(), "error", "error", result.errorMessage));
                 }
             }
 
@@ -470,6 +482,26 @@ public final class ArtManagerLocal {
             @NonNull CancellationSignal cancellationSignal,
             @Nullable @CallbackExecutor Executor progressCallbackExecutor,
             @Nullable Consumer<OperationProgress> progressCallback) {
+        return dexoptPackages(snapshot, reason, cancellationSignal, progressCallbackExecutor,
+                progressCallback, null /* packageSelector */);
+    }
+
+    /**
+     * Same as above, but only dexopts the packages returned by {@code packageSelector}, if
+     * provided. The selector is given the final list of packages, after {@link
+     * BatchDexoptStartCallback} is called. The packages that are not selected are still excluded
+     * from downgrading.
+     *
+     * @hide
+     */
+    @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+    @NonNull
+    DexoptResult dexoptPackages(@NonNull PackageManagerLocal.FilteredSnapshot snapshot,
+            @NonNull @BatchDexoptReason String reason,
+            @NonNull CancellationSignal cancellationSignal,
+            @Nullable @CallbackExecutor Executor progressCallbackExecutor,
+            @Nullable Consumer<OperationProgress> progressCallback,
+            @Nullable UnaryOperator<List<String>> packageSelector) {
         List<String> defaultPackages =
                 Collections.unmodifiableList(getDefaultPackages(snapshot, reason));
         DexoptParams defaultDexoptParams = new DexoptParams.Builder(reason).build();
@@ -493,8 +525,11 @@ public final class ArtManagerLocal {
                         new HashSet<>(params.getPackages()) /* excludedPackages */,
                         cancellationSignal, dexoptExecutor);
             }
+            List<String> packages = packageSelector != null
+                    ? packageSelector.apply(params.getPackages())
+                    : params.getPackages();
             Log.i(TAG, "Dexopting packages");
-            return mInjector.getDexoptHelper().dexopt(snapshot, params.getPackages(),
+            return mInjector.getDexoptHelper().dexopt(snapshot, packages,
                     params.getDexoptParams(), cancellationSignal, dexoptExecutor,
                     progressCallbackExecutor, progressCallback);
         } finally {
@@ -1229,6 +1264,7 @@ public final class ArtManagerLocal {
         @Nullable private final Context mContext;
         @Nullable private final PackageManagerLocal mPackageManagerLocal;
         @Nullable private final Config mConfig;
+        @Nullable private final DexoptScheduler.CostHistory mDexoptCostHistory;
         @Nullable private BackgroundDexoptJob mBgDexoptJob = null;
 
         // TODO(jiakaiz): Remove @SuppressLint and check `Build.VERSION.SDK_INT >=
@@ -1242,6 +1278,7 @@ public final class ArtManagerLocal {
                 mPackageManagerLocal = Objects.requireNonNull(
                         LocalManagerRegistry.getManager(PackageManagerLocal.class));
                 mConfig = new Config();
+                mDexoptCostHistory = DexoptScheduler.CostHistory.getInstance();
 
                 // Call the getters for the dependencies that aren't optional, to ensure correct
                 // initialization order.
@@ -1253,6 +1290,7 @@ public final class ArtManagerLocal {
             } else {
                 mPackageManagerLocal = null;
                 mConfig = null;
+                mDexoptCostHistory = null;
             }
         }
 
@@ -1278,7 +1316,8 @@ public final class ArtManagerLocal {
         @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
         @NonNull
         public DexoptHelper getDexoptHelper() {
-            return new DexoptHelper(getContext(), getConfig());
+            return new DexoptHelper(
+                    getContext(), getConfig(), Objects.requireNonNull(mDexoptCostHistory));
         }
 
         @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
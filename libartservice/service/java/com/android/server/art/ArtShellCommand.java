@@ -145,6 +145,9 @@ public final class ArtShellCommand extends BasicShellCommandHandler {
             case "dexopt-packages": {
                 return handleBatchDexopt(pw, snapshot);
             }
+            case "dexopt-latency": {
+                return handleDexoptLatency(pw);
+            }
             case "cancel": {
                 String jobId = getNextArgRequired();
                 CancellationSignal signal;
@@ -439,6 +442,22 @@ public final class ArtShellCommand extends BasicShellCommandHandler {
         return 0;
     }
 
+    private int handleDexoptLatency(@NonNull PrintWriter pw) {
+        DexoptLatencyStats latencyStats = DexoptLatencyStats.getInstance();
+        String opt = getNextOption();
+        if (opt == null) {
+            latencyStats.dumpStats(pw);
+            return 0;
+        }
+        if (opt.equals("--reset")) {
+            latencyStats.reset();
+            pw.println("Dexopt latency stats reset");
+            return 0;
+        }
+        pw.println("Error: Unknown option: " + opt);
+        return 1;
+    }
+
     private int handleDeleteDexopt(
             @NonNull PrintWriter pw, @NonNull PackageManagerLocal.FilteredSnapshot snapshot) {
         DeleteResult result =
@@ -748,6 +767,13 @@ public final class ArtShellCommand extends BasicShellCommandHandler {
         pw.println("    This command is different from 'pm compile -r REASON -a'. For example, it");
         pw.println("    only dexopts a subset of apps, and it runs dexopt in parallel. See the");
         pw.println("    API documentation for 'ArtManagerLocal.dexoptPackages' for details.");
+        pw.println();
+        pw.println("  dexopt-latency [--reset]");
+        pw.println("    Print the latency histograms of the phases of dexopt, such as profile");
+        pw.println("    merge, the dexopt-needed check, and dex2oat, since the system server");
+        pw.println("    started.");
+        pw.println("    Options:");
+        pw.println("      --reset Clear the histograms instead of printing them.");
     }
 
     private void enforceRootOrShell() {
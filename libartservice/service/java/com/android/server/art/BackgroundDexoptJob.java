@@ -45,10 +45,12 @@ import com.android.server.pm.PackageManagerLocal;
 
 import com.google.auto.value.AutoValue;
 
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
 
 /** @hide */
 @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
@@ -84,16 +86,19 @@ public class BackgroundDexoptJob {
     /** Handles {@link BackgroundDexoptJobService#onStartJob(JobParameters)}. */
     public boolean onStartJob(
             @NonNull BackgroundDexoptJobService jobService, @NonNull JobParameters params) {
-        start().thenAcceptAsync(result -> {
+        start(true /* isScheduled */).thenAcceptAsync(result -> {
             writeStats(result);
             // This is a periodic job, where the interval is specified in the `JobInfo`. "true"
             // means to execute again during a future idle maintenance window in the same
             // interval, while "false" means not to execute again during a future idle maintenance
             // window in the same interval but to execute again in the next interval.
             // This call will be ignored if `onStopJob` is called.
+            // We also want to execute again if the job only dexopted part of the pending packages
+            // because they were not expected to fit in this window.
             boolean wantsReschedule = result instanceof CompletedResult
-                    && ((CompletedResult) result).dexoptResult().getFinalStatus()
-                            == DexoptResult.DEXOPT_CANCELLED;
+                    && (((CompletedResult) result).dexoptResult().getFinalStatus()
+                                    == DexoptResult.DEXOPT_CANCELLED
+                            || ((CompletedResult) result).hasPendingPackages());
             jobService.jobFinished(params, wantsReschedule);
         });
         // "true" means the job will continue running until `jobFinished` is called.
@@ -160,8 +165,23 @@ public class BackgroundDexoptJob {
         mInjector.getJobScheduler().cancel(JOB_ID);
     }
 
+    /**
+     * Starts the job, on all the packages. Unlike a run started by the job scheduler, this doesn't
+     * resume the progress of the scheduled runs, and it isn't limited to what fits in an idle
+     * window.
+     */
     @NonNull
-    public synchronized CompletableFuture<Result> start() {
+    public CompletableFuture<Result> start() {
+        return start(false /* isScheduled */);
+    }
+
+    /**
+     * @param isScheduled whether the job is run by the job scheduler, in which case it only
+     *         dexopts the packages that fit in the window, resuming where the last window stopped.
+     *         See {@link BackgroundDexoptProgress}.
+     */
+    @NonNull
+    private synchronized CompletableFuture<Result> start(boolean isScheduled) {
         if (mRunningJob != null) {
             Log.i(TAG, "Job is already running");
             return mRunningJob;
@@ -171,7 +191,7 @@ public class BackgroundDexoptJob {
         mLastStopReason = Optional.empty();
         mRunningJob = new CompletableFuture().supplyAsync(() -> {
             try (var tracing = new Utils.TracingWithTimingLogging(TAG, "jobExecution")) {
-                return run(mCancellationSignal);
+                return run(mCancellationSignal, isScheduled);
             } catch (RuntimeException e) {
                 Log.e(TAG, "Fatal error", e);
                 return new FatalErrorResult();
@@ -201,13 +221,22 @@ public class BackgroundDexoptJob {
     }
 
     @NonNull
-    private CompletedResult run(@NonNull CancellationSignal cancellationSignal) {
+    private CompletedResult run(
+            @NonNull CancellationSignal cancellationSignal, boolean isScheduled) {
         long startTimeMs = SystemClock.uptimeMillis();
+        BackgroundDexoptProgress progress =
+                isScheduled ? mInjector.getBackgroundDexoptProgress() : null;
+        UnaryOperator<List<String>> packageSelector =
+                progress != null ? progress::selectPackages : null;
+        DexoptLatencyStats latencyStats = mInjector.getDexoptLatencyStats();
         DexoptResult dexoptResult;
         try (var snapshot = mInjector.getPackageManagerLocal().withFilteredSnapshot()) {
-            dexoptResult = mInjector.getArtManagerLocal().dexoptPackages(snapshot,
-                    ReasonMapping.REASON_BG_DEXOPT, cancellationSignal,
-                    null /* processCallbackExecutor */, null /* processCallback */);
+            try (var span = latencyStats.startSpan(DexoptLatencyStats.PHASE_BG_DEXOPT)) {
+                dexoptResult = mInjector.getArtManagerLocal().dexoptPackages(snapshot,
+                        ReasonMapping.REASON_BG_DEXOPT, cancellationSignal,
+                        null /* processCallbackExecutor */, null /* processCallback */,
+                        packageSelector);
+            }
 
             // For simplicity, we don't support cancelling the following operation in the middle.
             // This is fine because it typically takes only a few seconds.
@@ -216,11 +245,22 @@ public class BackgroundDexoptJob {
                 // field in the result that we send to callbacks. Admittedly, this will cause us to
                 // lose some chance to dexopt when the storage is very low, but it's fine because we
                 // can still dexopt in the next run.
-                long freedBytes = mInjector.getArtManagerLocal().cleanup(snapshot);
-                Log.i(TAG, String.format("Freed %d bytes", freedBytes));
+                try (var span = latencyStats.startSpan(DexoptLatencyStats.PHASE_BG_CLEANUP)) {
+                    long freedBytes = mInjector.getArtManagerLocal().cleanup(snapshot);
+                    Log.i(TAG, String.format("Freed %d bytes", freedBytes));
+                }
             }
         }
-        return CompletedResult.create(dexoptResult, SystemClock.uptimeMillis() - startTimeMs);
+        long durationMs = SystemClock.uptimeMillis() - startTimeMs;
+        boolean hasPendingPackages = false;
+        if (progress != null) {
+            boolean stopped;
+            synchronized (this) {
+                stopped = mLastStopReason.isPresent();
+            }
+            hasPendingPackages = progress.recordWindow(dexoptResult, durationMs, stopped);
+        }
+        return CompletedResult.create(dexoptResult, durationMs, hasPendingPackages);
     }
 
     private void writeStats(@NonNull Result result) {
@@ -272,10 +312,14 @@ public class BackgroundDexoptJob {
     static abstract class CompletedResult extends Result {
         abstract @NonNull DexoptResult dexoptResult();
         abstract long durationMs();
+        /** Whether some packages are yet to be dexopted in a future window. */
+        abstract boolean hasPendingPackages();
 
         @NonNull
-        static CompletedResult create(@NonNull DexoptResult dexoptResult, long durationMs) {
-            return new AutoValue_BackgroundDexoptJob_CompletedResult(dexoptResult, durationMs);
+        static CompletedResult create(
+                @NonNull DexoptResult dexoptResult, long durationMs, boolean hasPendingPackages) {
+            return new AutoValue_BackgroundDexoptJob_CompletedResult(
+                    dexoptResult, durationMs, hasPendingPackages);
         }
     }
 
@@ -321,5 +365,15 @@ public class BackgroundDexoptJob {
         public JobScheduler getJobScheduler() {
             return Objects.requireNonNull(mContext.getSystemService(JobScheduler.class));
         }
+
+        @NonNull
+        public BackgroundDexoptProgress getBackgroundDexoptProgress() {
+            return BackgroundDexoptProgress.getInstance();
+        }
+
+        @NonNull
+        public DexoptLatencyStats getDexoptLatencyStats() {
+            return DexoptLatencyStats.getInstance();
+        }
     }
 }
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.art;
+
+import static com.android.server.art.model.DexoptResult.DexContainerFileDexoptResult;
+import static com.android.server.art.model.DexoptResult.PackageDexoptResult;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.art.model.DexoptResult;
+import com.android.server.art.proto.BackgroundDexoptProgressProto;
+import com.android.server.art.proto.DexoptWindowProto;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the progress of background dexopt across job runs (windows), so that a window
+ * that is stopped by the job scheduler doesn't waste the work done and the next window resumes
+ * where it stopped. This class is thread-safe.
+ *
+ * The packages are dexopted in cycles. A cycle covers all the packages of background dexopt and
+ * spans as many windows as needed. In each window, the packages that are not done in the current
+ * cycle are considered in the given order (most valuable first), and as many of them as the
+ * predicted length of the window allows are selected, based on the dex2oat wall time that each
+ * package took last time, as recorded by {@link DexoptScheduler.CostHistory}. The length of a
+ * window is predicted from the lengths of the recent windows that were stopped by the job
+ * scheduler.
+ *
+ * The progress is persisted, so that it survives reboots.
+ *
+ * @hide
+ */
+@RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+public class BackgroundDexoptProgress {
+    private static final String TAG = ArtManagerLocal.TAG;
+    private static final String FILENAME = "/data/system/background-dexopt-progress.pb";
+
+    /** The maximum number of windows to keep the stats for. */
+    @VisibleForTesting public static final int MAX_WINDOWS = 10;
+
+    /**
+     * The maximum duration of a cycle. A cycle that takes longer is restarted, so that the
+     * packages that were dexopted long ago are checked again.
+     */
+    @VisibleForTesting public static final long MAX_CYCLE_DURATION_MS = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * The fraction of the predicted window length that is filled with dex2oat work. The rest is
+     * left for the work that is not accounted for, such as the cleanup at the end of the job.
+     */
+    @VisibleForTesting public static final double BUDGET_FRACTION = 0.8;
+
+    private static final Object sLock = new Object();
+    @GuardedBy("sLock") private static BackgroundDexoptProgress sInstance = null;
+
+    @NonNull private final Injector mInjector;
+
+    /** The wall time when the current cycle started, or 0 if no cycle is in progress. */
+    @GuardedBy("this") private long mCycleStartTimeMs = 0;
+    @GuardedBy("this") @NonNull private final Set<String> mDonePackages = new HashSet<>();
+    @GuardedBy("this") private int mPendingPackageCount = 0;
+    /** The most recent windows, oldest first. */
+    @GuardedBy("this")
+    @NonNull
+    private final ArrayDeque<DexoptWindowProto> mWindows = new ArrayDeque<>();
+
+    /**
+     * The packages that were not done in the current cycle when the current window started, or
+     * null if no window is in progress.
+     */
+    @GuardedBy("this") @Nullable private Set<String> mWindowPendingPackages = null;
+    @GuardedBy("this") private long mWindowStartTimeMs = 0;
+    @GuardedBy("this") private int mWindowSelectedPackageCount = 0;
+
+    /** Returns the process-wide instance, creating it on first use. */
+    @NonNull
+    public static BackgroundDexoptProgress getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new BackgroundDexoptProgress(new Injector());
+            }
+            return sInstance;
+        }
+    }
+
+    /** @hide */
+    @VisibleForTesting
+    public BackgroundDexoptProgress(@NonNull Injector injector) {
+        mInjector = injector;
+        load();
+    }
+
+    /**
+     * Starts a window and returns the packages to dexopt in it, in the given order.
+     *
+     * @param packages all the packages to dexopt, most valuable first
+     */
+    @NonNull
+    public synchronized List<String> selectPackages(@NonNull List<String> packages) {
+        long nowMs = mInjector.getCurrentTimeMillis();
+        if (mCycleStartTimeMs == 0 || nowMs < mCycleStartTimeMs
+                || nowMs - mCycleStartTimeMs > MAX_CYCLE_DURATION_MS) {
+            startCycle(nowMs);
+        }
+
+        List<String> pendingPackages = new ArrayList<>();
+        for (String packageName : packages) {
+            if (!mDonePackages.contains(packageName)) {
+                pendingPackages.add(packageName);
+            }
+        }
+        if (pendingPackages.isEmpty()) {
+            // The packages of the current cycle are all done, which can only happen if the
+            // package list has shrunk since the last window. Start a new cycle.
+            startCycle(nowMs);
+            pendingPackages.addAll(packages);
+        }
+
+        List<String> selectedPackages = pack(pendingPackages);
+        mWindowPendingPackages = new HashSet<>(pendingPackages);
+        mWindowStartTimeMs = nowMs;
+        mWindowSelectedPackageCount = selectedPackages.size();
+        if (selectedPackages.size() < pendingPackages.size()) {
+            Log.i(TAG,
+                    String.format("Selected %d of %d pending packages for background dexopt",
+                            selectedPackages.size(), pendingPackages.size()));
+        }
+        return selectedPackages;
+    }
+
+    /**
+     * Ends the window started by {@link #selectPackages} and persists the progress.
+     *
+     * @param result the result of dexopting the selected packages
+     * @param durationMs the duration of the window
+     * @param stopped whether the window was ended by the job scheduler
+     * @return true if there are packages that are yet to be dexopted in the current cycle
+     */
+    public synchronized boolean recordWindow(
+            @NonNull DexoptResult result, long durationMs, boolean stopped) {
+        Utils.check(mWindowPendingPackages != null);
+
+        int donePackageCount = 0;
+        long dex2oatWallTimeMs = 0;
+        for (PackageDexoptResult packageResult : result.getPackageDexoptResults()) {
+            if (packageResult.getStatus() == DexoptResult.DEXOPT_CANCELLED) {
+                continue;
+            }
+            for (DexContainerFileDexoptResult fileResult :
+                    packageResult.getDexContainerFileDexoptResults()) {
+                dex2oatWallTimeMs += fileResult.getDex2oatWallTimeMillis();
+            }
+            String packageName = packageResult.getPackageName();
+            mDonePackages.add(packageName);
+            mWindowPendingPackages.remove(packageName);
+            donePackageCount++;
+        }
+
+        mPendingPackageCount = mWindowPendingPackages.size();
+        if (mPendingPackageCount == 0) {
+            // The cycle is complete. The next window starts a new one.
+            mCycleStartTimeMs = 0;
+            mDonePackages.clear();
+        }
+
+        mWindows.addLast(DexoptWindowProto.newBuilder()
+                                 .setStartTimeMs(mWindowStartTimeMs)
+                                 .setDurationMs(durationMs)
+                                 .setSelectedPackageCount(mWindowSelectedPackageCount)
+                                 .setDonePackageCount(donePackageCount)
+                                 .setDex2OatWallTimeMs(dex2oatWallTimeMs)
+                                 .setStopped(stopped)
+                                 .build());
+        while (mWindows.size() > MAX_WINDOWS) {
+            mWindows.removeFirst();
+        }
+        mWindowPendingPackages = null;
+
+        save();
+        return mPendingPackageCount > 0;
+    }
+
+    /** Dumps the progress and the throughput of the recent windows, for dumpsys. */
+    public synchronized void dumpStats(@NonNull PrintWriter pw) {
+        pw.println("Background dexopt stats:");
+        pw.printf("  current cycle: %d done, %d pending\n", mDonePackages.size(),
+                mPendingPackageCount);
+        long budgetMs = getBudgetMs();
+        pw.printf("  dex2oat budget per window: %s\n",
+                budgetMs == Long.MAX_VALUE ? "unlimited" : budgetMs + " ms");
+        pw.println("  recent windows:");
+        for (DexoptWindowProto window : mWindows) {
+            pw.printf("    %d ms, %d/%d packages, %d ms dex2oat, %.1f packages/min%s\n",
+                    window.getDurationMs(), window.getDonePackageCount(),
+                    window.getSelectedPackageCount(), window.getDex2OatWallTimeMs(),
+                    window.getDurationMs() > 0
+                            ? window.getDonePackageCount() * 60_000.0 / window.getDurationMs()
+                            : 0.0,
+                    window.getStopped() ? ", stopped" : "");
+        }
+    }
+
+    @GuardedBy("this")
+    private void startCycle(long nowMs) {
+        mCycleStartTimeMs = nowMs;
+        mDonePackages.clear();
+    }
+
+    /**
+     * Greedily selects packages in the given order that fit in the budget. The first package is
+     * always selected, so that every window makes progress. Packages that have never been
+     * dexopted are assumed to cost the average.
+     */
+    @GuardedBy("this")
+    @NonNull
+    private List<String> pack(@NonNull List<String> pendingPackages) {
+        long budgetMs = getBudgetMs();
+        if (budgetMs == Long.MAX_VALUE) {
+            return pendingPackages;
+        }
+        DexoptScheduler.CostHistory costHistory = mInjector.getCostHistory();
+        long averageCostMs = costHistory.getAverageCostMs();
+        List<String> selectedPackages = new ArrayList<>();
+        long remainingBudgetMs = budgetMs;
+        for (String packageName : pendingPackages) {
+            Long costMs = costHistory.getCostMs(packageName);
+            if (costMs == null) {
+                costMs = averageCostMs;
+            }
+            if (selectedPackages.isEmpty() || costMs <= remainingBudgetMs) {
+                selectedPackages.add(packageName);
+                remainingBudgetMs = Math.max(0, remainingBudgetMs - costMs);
+            }
+        }
+        return selectedPackages;
+    }
+
+    /**
+     * Returns the sum of dex2oat wall time that is expected to fit in the next window, or {@link
+     * Long#MAX_VALUE} if no recent window was stopped by the job scheduler.
+     */
+    @GuardedBy("this")
+    private long getBudgetMs() {
+        long stoppedWindowCount = 0;
+        long stoppedDurationMs = 0;
+        for (DexoptWindowProto window : mWindows) {
+            if (window.getStopped()) {
+                stoppedWindowCount++;
+                stoppedDurationMs += window.getDurationMs();
+            }
+        }
+        if (stoppedWindowCount == 0) {
+            return Long.MAX_VALUE;
+        }
+        // Packages are dexopted concurrently, so more dex2oat wall time fits in a window.
+        return (long) (stoppedDurationMs / stoppedWindowCount * BUDGET_FRACTION
+                * Math.max(1, mInjector.getConcurrency()));
+    }
+
+    @GuardedBy("this")
+    private void save() {
+        var builder = BackgroundDexoptProgressProto.newBuilder()
+                              .setCycleStartTimeMs(mCycleStartTimeMs)
+                              .addAllDonePackage(mDonePackages)
+                              .setPendingPackageCount(mPendingPackageCount)
+                              .addAllWindow(mWindows);
+        var file = new File(mInjector.getFilename());
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(file.getName(), null /* suffix */, file.getParentFile());
+            try (OutputStream out = new FileOutputStream(tempFile.getPath())) {
+                builder.build().writeTo(out);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save background dexopt progress", e);
+        } finally {
+            Utils.deleteIfExistsSafe(tempFile);
+        }
+    }
+
+    private synchronized void load() {
+        try (InputStream in = new FileInputStream(mInjector.getFilename())) {
+            var proto = BackgroundDexoptProgressProto.parseFrom(in);
+            mCycleStartTimeMs = proto.getCycleStartTimeMs();
+            mDonePackages.addAll(proto.getDonePackageList());
+            mPendingPackageCount = proto.getPendingPackageCount();
+            mWindows.addAll(proto.getWindowList());
+        } catch (FileNotFoundException e) {
+            // Nothing has been saved yet.
+        } catch (IOException e) {
+            // The worst case is that some packages are dexopted again. Start from scratch.
+            Log.e(TAG, "Failed to load background dexopt progress", e);
+            mCycleStartTimeMs = 0;
+            mDonePackages.clear();
+            mPendingPackageCount = 0;
+            mWindows.clear();
+        }
+    }
+
+    /**
+     * Injector pattern for testing purpose.
+     *
+     * @hide
+     */
+    @VisibleForTesting
+    public static class Injector {
+        Injector() {}
+
+        @NonNull
+        public String getFilename() {
+            return FILENAME;
+        }
+
+        public long getCurrentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        public int getConcurrency() {
+            return ReasonMapping.getConcurrencyForReason(ReasonMapping.REASON_BG_DEXOPT);
+        }
+
+        @NonNull
+        public DexoptScheduler.CostHistory getCostHistory() {
+            return DexoptScheduler.CostHistory.getInstance();
+        }
+    }
+}
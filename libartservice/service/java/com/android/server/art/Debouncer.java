@@ -19,37 +19,98 @@ package com.android.server.art;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 
+import com.android.internal.annotations.GuardedBy;
+
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Supplier;
 
 /**
  * A class that executes commands with a minimum interval.
  *
+ * All the commands are scheduled on the same executor, which is expected to outlive this object.
+ * Unless there is a reason not to, it should be the one returned by {@link #getSharedExecutor}.
+ *
  * @hide
  */
 public class Debouncer {
-    @NonNull private Supplier<ScheduledExecutorService> mScheduledExecutorFactory;
+    private static final Object sLock = new Object();
+    @GuardedBy("sLock") @Nullable private static ScheduledExecutorService sSharedExecutor = null;
+
+    @NonNull private final ScheduledExecutorService mScheduledExecutor;
     private final long mIntervalMs;
-    @Nullable private ScheduledFuture<?> mCurrentTask = null;
+    private final long mMaxDelayMs;
+    @GuardedBy("this") @Nullable private Runnable mPendingCommand = null;
+    @GuardedBy("this") @Nullable private ScheduledFuture<?> mCurrentTask = null;
+    @GuardedBy("this") @Nullable private ScheduledFuture<?> mDeadlineTask = null;
 
-    public Debouncer(
-            long intervalMs, @NonNull Supplier<ScheduledExecutorService> scheduledExecutorFactory) {
-        mScheduledExecutorFactory = scheduledExecutorFactory;
+    /**
+     * @param intervalMs the time to wait after the last command before running it
+     * @param maxDelayMs the maximum time to wait after the first command that hasn't run yet, so
+     *         that a steady stream of commands cannot postpone the run indefinitely
+     */
+    public Debouncer(long intervalMs, long maxDelayMs,
+            @NonNull ScheduledExecutorService scheduledExecutor) {
+        mScheduledExecutor = scheduledExecutor;
         mIntervalMs = intervalMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Returns the executor shared by the debouncers of the process, creating it on first use. It
+     * has a single thread, which goes away when there is nothing to do.
+     */
+    @NonNull
+    public static ScheduledExecutorService getSharedExecutor() {
+        synchronized (sLock) {
+            if (sSharedExecutor == null) {
+                var executor = new ScheduledThreadPoolExecutor(1 /* corePoolSize */);
+                executor.setKeepAliveTime(1, TimeUnit.MINUTES);
+                executor.allowCoreThreadTimeOut(true);
+                executor.setRemoveOnCancelPolicy(true);
+                sSharedExecutor = executor;
+            }
+            return sSharedExecutor;
+        }
     }
 
     /**
      * Runs the given command after the interval has passed. If another command comes in during
-     * this interval, the previous one will never run.
+     * this interval, the previous one will never run. However, the latest command runs no later
+     * than the max delay after the first command that hasn't run.
      */
     synchronized public void maybeRunAsync(@NonNull Runnable command) {
+        mPendingCommand = command;
         if (mCurrentTask != null) {
             mCurrentTask.cancel(false /* mayInterruptIfRunning */);
         }
-        ScheduledExecutorService executor = mScheduledExecutorFactory.get();
-        mCurrentTask = executor.schedule(command, mIntervalMs, TimeUnit.MILLISECONDS);
-        executor.shutdown();
+        mCurrentTask = mScheduledExecutor.schedule(
+                this::runPendingCommand, mIntervalMs, TimeUnit.MILLISECONDS);
+        if (mDeadlineTask == null && mMaxDelayMs > mIntervalMs) {
+            mDeadlineTask = mScheduledExecutor.schedule(
+                    this::runPendingCommand, mMaxDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void runPendingCommand() {
+        Runnable command;
+        synchronized (this) {
+            command = mPendingCommand;
+            mPendingCommand = null;
+            if (mCurrentTask != null) {
+                mCurrentTask.cancel(false /* mayInterruptIfRunning */);
+                mCurrentTask = null;
+            }
+            if (mDeadlineTask != null) {
+                mDeadlineTask.cancel(false /* mayInterruptIfRunning */);
+                mDeadlineTask = null;
+            }
+        }
+        // Run the command without holding the lock, so that new commands can be scheduled in the
+        // meantime.
+        if (command != null) {
+            command.run();
+        }
     }
 }
@@ -54,12 +54,14 @@ import com.android.server.pm.pkg.PackageState;
 
 import com.google.auto.value.AutoValue;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -75,8 +77,12 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -86,6 +92,10 @@ import java.util.stream.Collectors;
  * This class collects data sent directly by apps, and hence the data should be trusted as little as
  * possible.
  *
+ * The data is persisted as a snapshot, plus a journal of the changes made since the snapshot was
+ * written. Each save appends the changed dex files to the journal, and the snapshot is only
+ * rewritten (compacted) when the journal grows larger than it, or when entries are removed.
+ *
  * To avoid overwriting data, {@link #load()} must be called exactly once, during initialization.
  *
  * @hide
@@ -95,34 +105,73 @@ import java.util.stream.Collectors;
 public class DexUseManagerLocal {
     private static final String TAG = ArtManagerLocal.TAG;
     private static final String FILENAME = "/data/system/package-dex-usage.pb";
+    private static final String JOURNAL_SUFFIX = ".journal";
 
     /**
      * The minimum interval between disk writes.
      *
      * In practice, the interval will be much longer because we use a debouncer to postpone the disk
-     * write to the end of a series of changes. Note that in theory we could postpone the disk write
-     * indefinitely, and therefore we could lose data if the device isn't shut down in the normal
-     * way, but that's fine because the data isn't crucial and is recoverable.
+     * write to the end of a series of changes, up to {@link #MAX_DELAY_MS}. Note that we could lose
+     * data if the device isn't shut down in the normal way, but that's fine because the data isn't
+     * crucial and is recoverable.
      *
      * @hide
      */
     @VisibleForTesting public static final long INTERVAL_MS = 15_000;
 
+    /** The maximum time that the debouncer can postpone a disk write for. */
+    private static final long MAX_DELAY_MS = 120_000;
+
+    /**
+     * The journal size below which the snapshot is not rewritten, even if the journal is larger
+     * than the snapshot.
+     */
+    private static final long MIN_JOURNAL_SIZE_TO_COMPACT = 64 * 1024;
+
+    /** The maximum number of entries in {@link #mKnownDexUses}. */
+    private static final int MAX_KNOWN_DEX_USES = 10_000;
+
     private static final Object sLock = new Object();
     @GuardedBy("sLock") @Nullable private static DexUseManagerLocal sInstance = null;
 
     @NonNull private final Injector mInjector;
     @NonNull private final Debouncer mDebouncer;
 
+    /**
+     * The data is striped by owning package: each {@link PackageDexUse} is guarded by its own lock,
+     * so that apps loading dex files of different packages don't wait for each other.
+     */
+    @NonNull private final DexUse mDexUse;
+    @NonNull private final AtomicInteger mRevision = new AtomicInteger(0);
+    @NonNull private final AtomicBoolean mSavePending = new AtomicBoolean(false);
+
     private final Object mLock = new Object();
-    @GuardedBy("mLock") @NonNull private DexUse mDexUse; // Initialized by `load`.
-    @GuardedBy("mLock") private int mRevision = 0;
     @GuardedBy("mLock") private int mLastCommittedRevision = 0;
-    @GuardedBy("mLock")
+    @GuardedBy("mLock") private long mSnapshotSizeBytes = 0;
+    @GuardedBy("mLock") private long mJournalSizeBytes = 0;
+    /** True if the next save must rewrite the snapshot rather than append to the journal. */
+    @GuardedBy("mLock") private boolean mCompactionNeeded = false;
+    @GuardedBy("mLock") private int mJournalAppendCount = 0;
+    @GuardedBy("mLock") private int mCompactionCount = 0;
+
     @NonNull
-    private SecondaryDexLocationManager mSecondaryDexLocationManager =
+    private final SecondaryDexLocationManager mSecondaryDexLocationManager =
             new SecondaryDexLocationManager();
 
+    /**
+     * The dex uses reported before, for {@link #notifyDexContainersLoaded} to skip resolving and
+     * recording the ones that haven't changed. Cleared by {@link #cleanup}.
+     */
+    @NonNull
+    private final ConcurrentHashMap<DexUseKey, KnownDexUse> mKnownDexUses =
+            new ConcurrentHashMap<>();
+
+    private final long mCreatedAtMs;
+    @NonNull private final LongAdder mNotifiedCount = new LongAdder();
+    @NonNull private final LongAdder mUnchangedCount = new LongAdder();
+    @NonNull private final LongAdder mUpdatedCount = new LongAdder();
+    @NonNull private final LongAdder mContendedCount = new LongAdder();
+
     /**
      * Creates the singleton instance.
      *
@@ -157,8 +206,10 @@ public class DexUseManagerLocal {
     @VisibleForTesting
     public DexUseManagerLocal(@NonNull Injector injector) {
         mInjector = injector;
-        mDebouncer = new Debouncer(INTERVAL_MS, mInjector::createScheduledExecutor);
-        load();
+        mDebouncer =
+                new Debouncer(INTERVAL_MS, MAX_DELAY_MS, mInjector.getScheduledExecutor());
+        mDexUse = load();
+        mCreatedAtMs = mInjector.getCurrentTimeMillis();
     }
 
     /** Notifies dex use manager that {@link Context#registerReceiver} is ready for use. */
@@ -200,17 +251,19 @@ public class DexUseManagerLocal {
     @NonNull
     public Set<DexLoader> getPrimaryDexLoaders(
             @NonNull String packageName, @NonNull String dexPath) {
-        synchronized (mLock) {
-            PackageDexUse packageDexUse =
-                    mDexUse.mPackageDexUseByOwningPackageName.get(packageName);
-            if (packageDexUse == null) {
-                return Set.of();
-            }
+        PackageDexUse packageDexUse = mDexUse.mPackageDexUseByOwningPackageName.get(packageName);
+        if (packageDexUse == null) {
+            return Set.of();
+        }
+        lock(packageDexUse);
+        try {
             PrimaryDexUse primaryDexUse = packageDexUse.mPrimaryDexUseByDexFile.get(dexPath);
             if (primaryDexUse == null) {
                 return Set.of();
             }
             return Set.copyOf(primaryDexUse.mRecordByLoader.keySet());
+        } finally {
+            packageDexUse.mLock.unlock();
         }
     }
 
@@ -254,12 +307,12 @@ public class DexUseManagerLocal {
      * @hide
      */
     public long getPackageLastUsedAtMs(@NonNull String packageName) {
-        synchronized (mLock) {
-            PackageDexUse packageDexUse =
-                    mDexUse.mPackageDexUseByOwningPackageName.get(packageName);
-            if (packageDexUse == null) {
-                return 0;
-            }
+        PackageDexUse packageDexUse = mDexUse.mPackageDexUseByOwningPackageName.get(packageName);
+        if (packageDexUse == null) {
+            return 0;
+        }
+        lock(packageDexUse);
+        try {
             long primaryLastUsedAtMs =
                     packageDexUse.mPrimaryDexUseByDexFile.values()
                             .stream()
@@ -277,6 +330,8 @@ public class DexUseManagerLocal {
                             .max(Long::compare)
                             .orElse(0l);
             return Math.max(primaryLastUsedAtMs, secondaryLastUsedAtMs);
+        } finally {
+            packageDexUse.mLock.unlock();
         }
     }
 
@@ -288,71 +343,79 @@ public class DexUseManagerLocal {
      */
     private @NonNull List<DetailedSecondaryDexInfo> getSecondaryDexInfoImpl(
             @NonNull String packageName, boolean checkDexFile) {
-        synchronized (mLock) {
-            PackageDexUse packageDexUse =
-                    mDexUse.mPackageDexUseByOwningPackageName.get(packageName);
-            if (packageDexUse == null) {
-                return List.of();
-            }
-            var results = new ArrayList<DetailedSecondaryDexInfo>();
+        PackageDexUse packageDexUse = mDexUse.mPackageDexUseByOwningPackageName.get(packageName);
+        if (packageDexUse == null) {
+            return List.of();
+        }
+        // Copy the data so that the lock is not held during disk IO.
+        var secondaryDexUseByDexFile = new HashMap<String, SecondaryDexUse>();
+        lock(packageDexUse);
+        try {
             for (var entry : packageDexUse.mSecondaryDexUseByDexFile.entrySet()) {
-                String dexPath = entry.getKey();
-                SecondaryDexUse secondaryDexUse = entry.getValue();
+                secondaryDexUseByDexFile.put(entry.getKey(), entry.getValue().copy());
+            }
+        } finally {
+            packageDexUse.mLock.unlock();
+        }
 
-                @FileVisibility
-                int visibility = checkDexFile ? getDexFileVisibility(dexPath)
-                                              : FileVisibility.OTHER_READABLE;
-                if (visibility == FileVisibility.NOT_FOUND) {
-                    continue;
-                }
+        var results = new ArrayList<DetailedSecondaryDexInfo>();
+        for (var entry : secondaryDexUseByDexFile.entrySet()) {
+            String dexPath = entry.getKey();
+            SecondaryDexUse secondaryDexUse = entry.getValue();
 
-                Map<DexLoader, SecondaryDexUseRecord> filteredRecordByLoader;
-                if (visibility == FileVisibility.OTHER_READABLE) {
-                    filteredRecordByLoader = secondaryDexUse.mRecordByLoader;
-                } else {
-                    // Only keep the entry that belongs to the same app.
-                    DexLoader sameApp = DexLoader.create(packageName, false /* isolatedProcess */);
-                    SecondaryDexUseRecord record = secondaryDexUse.mRecordByLoader.get(sameApp);
-                    filteredRecordByLoader = record != null ? Map.of(sameApp, record) : Map.of();
-                }
-                if (filteredRecordByLoader.isEmpty()) {
-                    continue;
-                }
-                List<String> distinctClcList =
-                        filteredRecordByLoader.values()
-                                .stream()
-                                .map(record -> Utils.assertNonEmpty(record.mClassLoaderContext))
-                                .filter(clc
-                                        -> !clc.equals(
-                                                SecondaryDexInfo.UNSUPPORTED_CLASS_LOADER_CONTEXT))
-                                .distinct()
-                                .collect(Collectors.toList());
-                String clc;
-                if (distinctClcList.size() == 0) {
-                    clc = SecondaryDexInfo.UNSUPPORTED_CLASS_LOADER_CONTEXT;
-                } else if (distinctClcList.size() == 1) {
-                    clc = distinctClcList.get(0);
-                } else {
-                    // If there are more than one class loader contexts, we can't dexopt the dex
-                    // file.
-                    clc = SecondaryDexInfo.VARYING_CLASS_LOADER_CONTEXTS;
-                }
-                // Although we filter out unsupported CLCs above, `distinctAbiNames` and `loaders`
-                // still need to take apps with unsupported CLCs into account because the vdex file
-                // is still usable to them.
-                Set<String> distinctAbiNames =
-                        filteredRecordByLoader.values()
-                                .stream()
-                                .map(record -> Utils.assertNonEmpty(record.mAbiName))
-                                .collect(Collectors.toSet());
-                Set<DexLoader> loaders = Set.copyOf(filteredRecordByLoader.keySet());
-                results.add(DetailedSecondaryDexInfo.create(dexPath,
-                        Objects.requireNonNull(secondaryDexUse.mUserHandle), clc, distinctAbiNames,
-                        loaders, isUsedByOtherApps(loaders, packageName),
-                        visibility == FileVisibility.OTHER_READABLE));
+            @FileVisibility
+            int visibility = checkDexFile ? getDexFileVisibility(dexPath)
+                                          : FileVisibility.OTHER_READABLE;
+            if (visibility == FileVisibility.NOT_FOUND) {
+                continue;
+            }
+
+            Map<DexLoader, SecondaryDexUseRecord> filteredRecordByLoader;
+            if (visibility == FileVisibility.OTHER_READABLE) {
+                filteredRecordByLoader = secondaryDexUse.mRecordByLoader;
+            } else {
+                // Only keep the entry that belongs to the same app.
+                DexLoader sameApp = DexLoader.create(packageName, false /* isolatedProcess */);
+                SecondaryDexUseRecord record = secondaryDexUse.mRecordByLoader.get(sameApp);
+                filteredRecordByLoader = record != null ? Map.of(sameApp, record) : Map.of();
+            }
+            if (filteredRecordByLoader.isEmpty()) {
+                continue;
             }
-            return Collections.unmodifiableList(results);
+            List<String> distinctClcList =
+                    filteredRecordByLoader.values()
+                            .stream()
+                            .map(record -> Utils.assertNonEmpty(record.mClassLoaderContext))
+                            .filter(clc
+                                    -> !clc.equals(
+                                            SecondaryDexInfo.UNSUPPORTED_CLASS_LOADER_CONTEXT))
+                            .distinct()
+                            .collect(Collectors.toList());
+            String clc;
+            if (distinctClcList.size() == 0) {
+                clc = SecondaryDexInfo.UNSUPPORTED_CLASS_LOADER_CONTEXT;
+            } else if (distinctClcList.size() == 1) {
+                clc = distinctClcList.get(0);
+            } else {
+                // If there are more than one class loader contexts, we can't dexopt the dex
+                // file.
+                clc = SecondaryDexInfo.VARYING_CLASS_LOADER_CONTEXTS;
+            }
+            // Although we filter out unsupported CLCs above, `distinctAbiNames` and `loaders`
+            // still need to take apps with unsupported CLCs into account because the vdex file
+            // is still usable to them.
+            Set<String> distinctAbiNames =
+                    filteredRecordByLoader.values()
+                            .stream()
+                            .map(record -> Utils.assertNonEmpty(record.mAbiName))
+                            .collect(Collectors.toSet());
+            Set<DexLoader> loaders = Set.copyOf(filteredRecordByLoader.keySet());
+            results.add(DetailedSecondaryDexInfo.create(dexPath,
+                    Objects.requireNonNull(secondaryDexUse.mUserHandle), clc, distinctAbiNames,
+                    loaders, isUsedByOtherApps(loaders, packageName),
+                    visibility == FileVisibility.OTHER_READABLE));
         }
+        return Collections.unmodifiableList(results);
     }
 
     /**
@@ -387,30 +450,40 @@ public class DexUseManagerLocal {
         // TODO(jiakaiz): Investigate whether it should also be considered as isolated process if
         // `Process.isSdkSandboxUid` returns true.
         boolean isolatedProcess = Process.isIsolatedUid(Binder.getCallingUid());
+        DexLoader loader = DexLoader.create(loadingPackageName, isolatedProcess);
+        UserHandle userHandle = Binder.getCallingUserHandle();
+        PackageState loadingPkgState = Utils.getPackageStateOrThrow(snapshot, loadingPackageName);
+        // An app is always launched with its primary ABI.
+        String abiName = Utils.getPrimaryAbi(loadingPkgState).name();
         long lastUsedAtMs = mInjector.getCurrentTimeMillis();
 
         for (var entry : classLoaderContextByDexContainerFile.entrySet()) {
             String dexPath = Utils.assertNonEmpty(entry.getKey());
             String classLoaderContext = Utils.assertNonEmpty(entry.getValue());
-            String owningPackageName = findOwningPackage(snapshot, loadingPackageName,
+            mNotifiedCount.increment();
+
+            // Most of the time, an app loads the same dex files in the same way as before. In that
+            // case, only the last used time changes.
+            var key = DexUseKey.create(loader, dexPath, classLoaderContext, abiName, userHandle);
+            if (updateKnownDexUse(key, lastUsedAtMs)) {
+                mUnchangedCount.increment();
+                continue;
+            }
+
+            String owningPackageName = findOwningPackage(snapshot, loadingPkgState,
                     (pkgState) -> isOwningPackageForPrimaryDex(pkgState, dexPath));
             if (owningPackageName != null) {
-                addPrimaryDexUse(owningPackageName, dexPath, loadingPackageName, isolatedProcess,
-                        lastUsedAtMs);
+                rememberDexUse(key,
+                        addPrimaryDexUse(owningPackageName, dexPath, loader, lastUsedAtMs));
                 continue;
             }
             Path path = Paths.get(dexPath);
-            synchronized (mLock) {
-                owningPackageName = findOwningPackage(snapshot, loadingPackageName,
-                        (pkgState) -> isOwningPackageForSecondaryDexLocked(pkgState, path));
-            }
+            owningPackageName = findOwningPackage(snapshot, loadingPkgState,
+                    (pkgState) -> isOwningPackageForSecondaryDex(pkgState, userHandle, path));
             if (owningPackageName != null) {
-                PackageState loadingPkgState =
-                        Utils.getPackageStateOrThrow(snapshot, loadingPackageName);
-                // An app is always launched with its primary ABI.
-                Utils.Abi abi = Utils.getPrimaryAbi(loadingPkgState);
-                addSecondaryDexUse(owningPackageName, dexPath, loadingPackageName, isolatedProcess,
-                        classLoaderContext, abi.name(), lastUsedAtMs);
+                rememberDexUse(key,
+                        addSecondaryDexUse(owningPackageName, dexPath, loader, userHandle,
+                                classLoaderContext, abiName, lastUsedAtMs));
                 continue;
             }
             // It is expected that a dex file isn't owned by any package. For example, the dex
@@ -418,13 +491,79 @@ public class DexUseManagerLocal {
         }
     }
 
+    /**
+     * Updates the last used time of a dex use that has been recorded before in exactly the same
+     * way, without resolving the owning package again.
+     *
+     * @return false if the dex use is unknown or has changed since it was recorded
+     */
+    private boolean updateKnownDexUse(@NonNull DexUseKey key, long lastUsedAtMs) {
+        KnownDexUse knownDexUse = mKnownDexUses.get(key);
+        if (knownDexUse == null) {
+            return false;
+        }
+        PackageDexUse packageDexUse = knownDexUse.mPackageDexUse;
+        lock(packageDexUse);
+        try {
+            if (packageDexUse.mRemoved || !knownDexUse.isUpToDate(key)) {
+                return false;
+            }
+            knownDexUse.mRecord.mLastUsedAtMs = lastUsedAtMs;
+            if (knownDexUse.mRecord instanceof PrimaryDexUseRecord) {
+                packageDexUse.mChangedPrimaryDexFiles.add(key.dexPath());
+            } else {
+                packageDexUse.mChangedSecondaryDexFiles.add(key.dexPath());
+            }
+        } finally {
+            packageDexUse.mLock.unlock();
+        }
+        mRevision.incrementAndGet();
+        // A pending save will pick up the change anyway, so there is no need to postpone it.
+        if (!mSavePending.get()) {
+            maybeSaveAsync();
+        }
+        return true;
+    }
+
+    private void rememberDexUse(@NonNull DexUseKey key, @NonNull KnownDexUse knownDexUse) {
+        if (mKnownDexUses.size() >= MAX_KNOWN_DEX_USES) {
+            mKnownDexUses.clear();
+        }
+        mKnownDexUses.put(key, knownDexUse);
+    }
+
+    /**
+     * Returns the {@link PackageDexUse} of the given package, creating it if needed, with its lock
+     * held. The caller must release the lock.
+     */
+    @NonNull
+    private PackageDexUse lockPackageDexUseForUpdate(@NonNull String owningPackageName) {
+        while (true) {
+            PackageDexUse packageDexUse =
+                    mDexUse.mPackageDexUseByOwningPackageName.computeIfAbsent(
+                            owningPackageName, k -> new PackageDexUse());
+            lock(packageDexUse);
+            if (!packageDexUse.mRemoved) {
+                return packageDexUse;
+            }
+            // `cleanup` has just removed it. Try again with a new one.
+            packageDexUse.mLock.unlock();
+        }
+    }
+
+    private void lock(@NonNull PackageDexUse packageDexUse) {
+        if (!packageDexUse.mLock.tryLock()) {
+            mContendedCount.increment();
+            packageDexUse.mLock.lock();
+        }
+    }
+
     @Nullable
     private static String findOwningPackage(@NonNull PackageManagerLocal.FilteredSnapshot snapshot,
-            @NonNull String loadingPackageName,
+            @NonNull PackageState loadingPkgState,
             @NonNull Function<PackageState, Boolean> predicate) {
         // Most likely, the package is loading its own dex file, so we check this first as an
         // optimization.
-        PackageState loadingPkgState = Utils.getPackageStateOrThrow(snapshot, loadingPackageName);
         if (predicate.apply(loadingPkgState)) {
             return loadingPkgState.getPackageName();
         }
@@ -450,10 +589,8 @@ public class DexUseManagerLocal {
         return false;
     }
 
-    @GuardedBy("mLock")
-    private boolean isOwningPackageForSecondaryDexLocked(
-            @NonNull PackageState pkgState, @NonNull Path dexPath) {
-        UserHandle userHandle = Binder.getCallingUserHandle();
+    private boolean isOwningPackageForSecondaryDex(@NonNull PackageState pkgState,
+            @NonNull UserHandle userHandle, @NonNull Path dexPath) {
         List<Path> locations = mSecondaryDexLocationManager.getLocations(pkgState, userHandle);
         for (int i = 0; i < locations.size(); i++) {
             if (dexPath.startsWith(locations.get(i))) {
@@ -463,63 +600,134 @@ public class DexUseManagerLocal {
         return false;
     }
 
-    private void addPrimaryDexUse(@NonNull String owningPackageName, @NonNull String dexPath,
-            @NonNull String loadingPackageName, boolean isolatedProcess, long lastUsedAtMs) {
-        synchronized (mLock) {
-            PrimaryDexUseRecord record =
-                    mDexUse.mPackageDexUseByOwningPackageName
-                            .computeIfAbsent(owningPackageName, k -> new PackageDexUse())
-                            .mPrimaryDexUseByDexFile
-                            .computeIfAbsent(dexPath, k -> new PrimaryDexUse())
-                            .mRecordByLoader.computeIfAbsent(
-                                    DexLoader.create(loadingPackageName, isolatedProcess),
-                                    k -> new PrimaryDexUseRecord());
+    @NonNull
+    private KnownDexUse addPrimaryDexUse(@NonNull String owningPackageName,
+            @NonNull String dexPath, @NonNull DexLoader loader, long lastUsedAtMs) {
+        PackageDexUse packageDexUse = lockPackageDexUseForUpdate(owningPackageName);
+        PrimaryDexUseRecord record;
+        try {
+            record = packageDexUse.mPrimaryDexUseByDexFile
+                             .computeIfAbsent(dexPath, k -> new PrimaryDexUse())
+                             .mRecordByLoader.computeIfAbsent(
+                                     loader, k -> new PrimaryDexUseRecord());
             record.mLastUsedAtMs = lastUsedAtMs;
-            mRevision++;
+            packageDexUse.mChangedPrimaryDexFiles.add(dexPath);
+        } finally {
+            packageDexUse.mLock.unlock();
         }
+        mRevision.incrementAndGet();
+        mUpdatedCount.increment();
         maybeSaveAsync();
+        return new KnownDexUse(packageDexUse, record);
     }
 
-    private void addSecondaryDexUse(@NonNull String owningPackageName, @NonNull String dexPath,
-            @NonNull String loadingPackageName, boolean isolatedProcess,
+    @NonNull
+    private KnownDexUse addSecondaryDexUse(@NonNull String owningPackageName,
+            @NonNull String dexPath, @NonNull DexLoader loader, @NonNull UserHandle userHandle,
             @NonNull String classLoaderContext, @NonNull String abiName, long lastUsedAtMs) {
-        synchronized (mLock) {
+        PackageDexUse packageDexUse = lockPackageDexUseForUpdate(owningPackageName);
+        SecondaryDexUseRecord record;
+        try {
             SecondaryDexUse secondaryDexUse =
-                    mDexUse.mPackageDexUseByOwningPackageName
-                            .computeIfAbsent(owningPackageName, k -> new PackageDexUse())
-                            .mSecondaryDexUseByDexFile.computeIfAbsent(
-                                    dexPath, k -> new SecondaryDexUse());
-            secondaryDexUse.mUserHandle = Binder.getCallingUserHandle();
-            SecondaryDexUseRecord record = secondaryDexUse.mRecordByLoader.computeIfAbsent(
-                    DexLoader.create(loadingPackageName, isolatedProcess),
-                    k -> new SecondaryDexUseRecord());
+                    packageDexUse.mSecondaryDexUseByDexFile.computeIfAbsent(
+                            dexPath, k -> new SecondaryDexUse());
+            secondaryDexUse.mUserHandle = userHandle;
+            record = secondaryDexUse.mRecordByLoader.computeIfAbsent(
+                    loader, k -> new SecondaryDexUseRecord());
             record.mClassLoaderContext = classLoaderContext;
             record.mAbiName = abiName;
             record.mLastUsedAtMs = lastUsedAtMs;
-            mRevision++;
+            packageDexUse.mChangedSecondaryDexFiles.add(dexPath);
+        } finally {
+            packageDexUse.mLock.unlock();
         }
+        mRevision.incrementAndGet();
+        mUpdatedCount.increment();
         maybeSaveAsync();
+        return new KnownDexUse(packageDexUse, record);
     }
 
     /** @hide */
     public @NonNull String dump() {
         var builder = DexUseProto.newBuilder();
+        mDexUse.toProto(builder);
+        return builder.build().toString();
+    }
+
+    /**
+     * Dumps the counters of {@link #notifyDexContainersLoaded}, for dumpsys.
+     *
+     * @hide
+     */
+    public void dumpStats(@NonNull PrintWriter pw) {
+        long notifiedCount = mNotifiedCount.sum();
+        long unchangedCount = mUnchangedCount.sum();
+        double minutes =
+                Math.max(mInjector.getCurrentTimeMillis() - mCreatedAtMs, 1) / (double) 60_000;
+        pw.println("Dex use stats:");
+        pw.printf("  notified dex files: %d (%.1f/min)\n", notifiedCount, notifiedCount / minutes);
+        pw.printf("  unchanged: %d (%.1f%%)\n", unchangedCount,
+                notifiedCount > 0 ? unchangedCount * 100.0 / notifiedCount : 0.0);
+        pw.printf("  updated: %d (%.1f/min)\n", mUpdatedCount.sum(),
+                mUpdatedCount.sum() / minutes);
+        pw.printf("  lock contentions: %d\n", mContendedCount.sum());
         synchronized (mLock) {
-            mDexUse.toProto(builder);
+            pw.printf("  snapshot: %d bytes, journal: %d bytes\n", mSnapshotSizeBytes,
+                    mJournalSizeBytes);
+            pw.printf("  journal appends: %d, compactions: %d\n", mJournalAppendCount,
+                    mCompactionCount);
         }
-        return builder.build().toString();
     }
 
     private void save() {
-        var builder = DexUseProto.newBuilder();
-        int thisRevision;
+        mSavePending.set(false);
+        // Saves are serialized, so that the changes are appended to the journal in order.
         synchronized (mLock) {
-            if (mRevision <= mLastCommittedRevision) {
+            int thisRevision = mRevision.get();
+            if (thisRevision <= mLastCommittedRevision && !mCompactionNeeded) {
                 return;
             }
-            mDexUse.toProto(builder);
-            thisRevision = mRevision;
+            try {
+                if (mCompactionNeeded
+                        || mJournalSizeBytes
+                                > Math.max(mSnapshotSizeBytes, MIN_JOURNAL_SIZE_TO_COMPACT)) {
+                    compactLocked();
+                } else {
+                    appendToJournalLocked();
+                }
+                mLastCommittedRevision = thisRevision;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save dex use data", e);
+                // The changes taken for this save may not be in the journal. Rewrite everything
+                // next time.
+                mCompactionNeeded = true;
+            }
+        }
+    }
+
+    /** Appends the dex files that have changed since the last save to the journal. */
+    @GuardedBy("mLock")
+    private void appendToJournalLocked() throws IOException {
+        var builder = DexUseProto.newBuilder();
+        if (!mDexUse.changesToProto(builder)) {
+            return;
+        }
+        var journalFile = new File(getJournalFilename());
+        try (OutputStream out = new FileOutputStream(journalFile, true /* append */)) {
+            builder.build().writeDelimitedTo(out);
         }
+        mJournalSizeBytes = journalFile.length();
+        mJournalAppendCount++;
+    }
+
+    /** Rewrites the snapshot with all the data, and discards the journal. */
+    @GuardedBy("mLock")
+    private void compactLocked() throws IOException {
+        // Everything is going to be in the snapshot. Changes made from now on will be appended to
+        // the journal by the next save, even if they also make it into the snapshot.
+        mDexUse.clearChanges();
+        var builder = DexUseProto.newBuilder();
+        mDexUse.toProto(builder);
         var file = new File(mInjector.getFilename());
         File tempFile = null;
         try {
@@ -527,44 +735,66 @@ public class DexUseManagerLocal {
             try (OutputStream out = new FileOutputStream(tempFile.getPath())) {
                 builder.build().writeTo(out);
             }
-            synchronized (mLock) {
-                // Check revision again in case `mLastCommittedRevision` has changed since the check
-                // above, to avoid ABA race.
-                if (thisRevision > mLastCommittedRevision) {
-                    Files.move(tempFile.toPath(), file.toPath(),
-                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-                    mLastCommittedRevision = thisRevision;
-                }
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to save dex use data", e);
+            // Delete the journal before replacing the snapshot. If the device goes down in
+            // between, we lose the recent changes, rather than replaying the old journal on top of
+            // the new snapshot, which could bring back removed entries.
+            Files.deleteIfExists(Paths.get(getJournalFilename()));
+            mJournalSizeBytes = 0;
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            mSnapshotSizeBytes = file.length();
+            mCompactionNeeded = false;
+            mCompactionCount++;
         } finally {
             Utils.deleteIfExistsSafe(tempFile);
         }
     }
 
     private void maybeSaveAsync() {
+        mSavePending.set(true);
         mDebouncer.maybeRunAsync(this::save);
     }
 
     /** This should only be called during initialization. */
-    private void load() {
-        DexUseProto proto = null;
-        try (InputStream in = new FileInputStream(mInjector.getFilename())) {
-            proto = DexUseProto.parseFrom(in);
+    @NonNull
+    private DexUse load() {
+        var dexUse = new DexUse();
+        var file = new File(mInjector.getFilename());
+        try (InputStream in = new FileInputStream(file)) {
+            dexUse.fromProto(DexUseProto.parseFrom(in));
         } catch (IOException e) {
             // Nothing else we can do but to start from scratch.
             Log.e(TAG, "Failed to load dex use data", e);
         }
-        synchronized (mLock) {
-            if (mDexUse != null) {
-                throw new IllegalStateException("Load has already been attempted");
-            }
-            mDexUse = new DexUse();
-            if (proto != null) {
-                mDexUse.fromProto(proto);
+
+        var journalFile = new File(getJournalFilename());
+        boolean journalCorrupted = false;
+        if (journalFile.exists()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(journalFile))) {
+                DexUseProto changes;
+                while ((changes = DexUseProto.parseDelimitedFrom(in)) != null) {
+                    dexUse.fromProto(changes);
+                }
+            } catch (IOException e) {
+                // Most likely, the device went down in the middle of an append. Keep the changes
+                // before that.
+                Log.e(TAG, "Failed to load dex use journal", e);
+                journalCorrupted = true;
             }
         }
+
+        synchronized (mLock) {
+            mSnapshotSizeBytes = file.length();
+            mJournalSizeBytes = journalFile.length();
+            // Don't append to a corrupted journal.
+            mCompactionNeeded = journalCorrupted;
+        }
+        return dexUse;
+    }
+
+    @NonNull
+    private String getJournalFilename() {
+        return mInjector.getFilename() + JOURNAL_SUFFIX;
     }
 
     private static boolean isUsedByOtherApps(
@@ -619,13 +849,19 @@ public class DexUseManagerLocal {
     @Nullable
     public String getSecondaryClassLoaderContext(
             @NonNull String owningPackageName, @NonNull String dexFile, @NonNull DexLoader loader) {
-        synchronized (mLock) {
-            return Optional
-                    .ofNullable(mDexUse.mPackageDexUseByOwningPackageName.get(owningPackageName))
-                    .map(packageDexUse -> packageDexUse.mSecondaryDexUseByDexFile.get(dexFile))
+        PackageDexUse packageDexUse =
+                mDexUse.mPackageDexUseByOwningPackageName.get(owningPackageName);
+        if (packageDexUse == null) {
+            return null;
+        }
+        lock(packageDexUse);
+        try {
+            return Optional.ofNullable(packageDexUse.mSecondaryDexUseByDexFile.get(dexFile))
                     .map(secondaryDexUse -> secondaryDexUse.mRecordByLoader.get(loader))
                     .map(record -> record.mClassLoaderContext)
                     .orElse(null);
+        } finally {
+            packageDexUse.mLock.unlock();
         }
     }
 
@@ -635,18 +871,22 @@ public class DexUseManagerLocal {
      * @hide
      */
     public void cleanup() {
+        int revisionAtStart = mRevision.get();
         Set<String> packageNames = mInjector.getAllPackageNames();
         Map<String, Integer> dexFileVisibilityByName = new HashMap<>();
 
-        // Scan the data in two passes to avoid holding the lock during I/O.
-        synchronized (mLock) {
-            for (PackageDexUse packageDexUse : mDexUse.mPackageDexUseByOwningPackageName.values()) {
+        // Scan the data in two passes to avoid holding the locks during I/O.
+        for (PackageDexUse packageDexUse : mDexUse.mPackageDexUseByOwningPackageName.values()) {
+            lock(packageDexUse);
+            try {
                 for (String dexFile : packageDexUse.mPrimaryDexUseByDexFile.keySet()) {
                     dexFileVisibilityByName.put(dexFile, FileVisibility.NOT_FOUND);
                 }
                 for (String dexFile : packageDexUse.mSecondaryDexUseByDexFile.keySet()) {
                     dexFileVisibilityByName.put(dexFile, FileVisibility.NOT_FOUND);
                 }
+            } finally {
+                packageDexUse.mLock.unlock();
             }
         }
 
@@ -654,43 +894,58 @@ public class DexUseManagerLocal {
             entry.setValue(getDexFileVisibility(entry.getKey()));
         }
 
-        synchronized (mLock) {
-            for (var it = mDexUse.mPackageDexUseByOwningPackageName.entrySet().iterator();
-                    it.hasNext();) {
-                Map.Entry<String, PackageDexUse> entry = it.next();
-                String owningPackageName = entry.getKey();
-                PackageDexUse packageDexUse = entry.getValue();
-
-                if (!packageNames.contains(owningPackageName)) {
-                    // Remove information about the non-existing owning package.
-                    it.remove();
-                    mRevision++;
+        for (var entry : mDexUse.mPackageDexUseByOwningPackageName.entrySet()) {
+            String owningPackageName = entry.getKey();
+            PackageDexUse packageDexUse = entry.getValue();
+            lock(packageDexUse);
+            try {
+                if (packageDexUse.mRemoved) {
                     continue;
                 }
 
-                cleanupPrimaryDexUsesLocked(packageDexUse.mPrimaryDexUseByDexFile, packageNames,
-                        dexFileVisibilityByName, owningPackageName);
-
-                cleanupSecondaryDexUsesLocked(packageDexUse.mSecondaryDexUseByDexFile, packageNames,
-                        dexFileVisibilityByName, owningPackageName);
+                if (packageNames.contains(owningPackageName)) {
+                    cleanupPrimaryDexUsesLocked(packageDexUse, packageNames,
+                            dexFileVisibilityByName, owningPackageName);
+                    cleanupSecondaryDexUsesLocked(packageDexUse, packageNames,
+                            dexFileVisibilityByName, owningPackageName);
+                }
 
-                if (packageDexUse.mPrimaryDexUseByDexFile.isEmpty()
-                        && packageDexUse.mSecondaryDexUseByDexFile.isEmpty()) {
-                    it.remove();
-                    mRevision++;
+                // Remove information about the non-existing owning package, or the package that
+                // doesn't have any dex use anymore.
+                if (!packageNames.contains(owningPackageName)
+                        || (packageDexUse.mPrimaryDexUseByDexFile.isEmpty()
+                                && packageDexUse.mSecondaryDexUseByDexFile.isEmpty())) {
+                    packageDexUse.mRemoved = true;
+                    mDexUse.mPackageDexUseByOwningPackageName.remove(
+                            owningPackageName, packageDexUse);
+                    mRevision.incrementAndGet();
                 }
+            } finally {
+                packageDexUse.mLock.unlock();
+            }
+        }
+
+        // Some of the known dex uses may have been removed.
+        mKnownDexUses.clear();
+
+        // The journal can only record additions and updates, so removals need a new snapshot. This
+        // may also be caused by concurrent additions, which is fine.
+        if (mRevision.get() != revisionAtStart) {
+            synchronized (mLock) {
+                mCompactionNeeded = true;
             }
         }
 
         maybeSaveAsync();
     }
 
-    @GuardedBy("mLock")
-    private void cleanupPrimaryDexUsesLocked(@NonNull Map<String, PrimaryDexUse> primaryDexUses,
+    /** The caller must hold the lock of {@code packageDexUse}. */
+    private void cleanupPrimaryDexUsesLocked(@NonNull PackageDexUse packageDexUse,
             @NonNull Set<String> packageNames,
             @NonNull Map<String, Integer> dexFileVisibilityByName,
             @NonNull String owningPackageName) {
-        for (var it = primaryDexUses.entrySet().iterator(); it.hasNext();) {
+        for (var it = packageDexUse.mPrimaryDexUseByDexFile.entrySet().iterator();
+                it.hasNext();) {
             Map.Entry<String, PrimaryDexUse> entry = it.next();
             String dexFile = entry.getKey();
             PrimaryDexUse primaryDexUse = entry.getValue();
@@ -706,7 +961,7 @@ public class DexUseManagerLocal {
             if (visibility == FileVisibility.NOT_FOUND) {
                 // Remove information about the non-existing dex files.
                 it.remove();
-                mRevision++;
+                mRevision.incrementAndGet();
                 continue;
             }
 
@@ -715,18 +970,18 @@ public class DexUseManagerLocal {
 
             if (primaryDexUse.mRecordByLoader.isEmpty()) {
                 it.remove();
-                mRevision++;
+                mRevision.incrementAndGet();
             }
         }
     }
 
-    @GuardedBy("mLock")
-    private void cleanupSecondaryDexUsesLocked(
-            @NonNull Map<String, SecondaryDexUse> secondaryDexUses,
+    /** The caller must hold the lock of {@code packageDexUse}. */
+    private void cleanupSecondaryDexUsesLocked(@NonNull PackageDexUse packageDexUse,
             @NonNull Set<String> packageNames,
             @NonNull Map<String, Integer> dexFileVisibilityByName,
             @NonNull String owningPackageName) {
-        for (var it = secondaryDexUses.entrySet().iterator(); it.hasNext();) {
+        for (var it = packageDexUse.mSecondaryDexUseByDexFile.entrySet().iterator();
+                it.hasNext();) {
             Map.Entry<String, SecondaryDexUse> entry = it.next();
             String dexFile = entry.getKey();
             SecondaryDexUse secondaryDexUse = entry.getValue();
@@ -742,7 +997,7 @@ public class DexUseManagerLocal {
             // Remove information about non-existing dex files.
             if (visibility == FileVisibility.NOT_FOUND) {
                 it.remove();
-                mRevision++;
+                mRevision.incrementAndGet();
                 continue;
             }
 
@@ -751,12 +1006,12 @@ public class DexUseManagerLocal {
 
             if (secondaryDexUse.mRecordByLoader.isEmpty()) {
                 it.remove();
-                mRevision++;
+                mRevision.incrementAndGet();
             }
         }
     }
 
-    @GuardedBy("mLock")
+    /** The caller must hold the lock of the {@link PackageDexUse} that the records belong to. */
     private void cleanupRecordsLocked(@NonNull Map<DexLoader, ?> records,
             @NonNull Set<String> packageNames, @FileVisibility int visibility,
             @NonNull String owningPackageName) {
@@ -767,7 +1022,7 @@ public class DexUseManagerLocal {
             if (!packageNames.contains(loader.loadingPackageName())) {
                 // Remove information about the non-existing loading package.
                 it.remove();
-                mRevision++;
+                mRevision.incrementAndGet();
                 continue;
             }
 
@@ -776,7 +1031,7 @@ public class DexUseManagerLocal {
                 // The visibility must have changed since the last load. The loader cannot load this
                 // dex file anymore.
                 it.remove();
-                mRevision++;
+                mRevision.incrementAndGet();
                 continue;
             }
         }
@@ -867,28 +1122,87 @@ public class DexUseManagerLocal {
     }
 
     private static class DexUse {
-        @NonNull Map<String, PackageDexUse> mPackageDexUseByOwningPackageName = new HashMap<>();
+        @NonNull
+        Map<String, PackageDexUse> mPackageDexUseByOwningPackageName = new ConcurrentHashMap<>();
 
         void toProto(@NonNull DexUseProto.Builder builder) {
             for (var entry : mPackageDexUseByOwningPackageName.entrySet()) {
+                PackageDexUse packageDexUse = entry.getValue();
                 var packageBuilder =
                         PackageDexUseProto.newBuilder().setOwningPackageName(entry.getKey());
-                entry.getValue().toProto(packageBuilder);
+                packageDexUse.mLock.lock();
+                try {
+                    if (packageDexUse.mRemoved) {
+                        continue;
+                    }
+                    packageDexUse.toProto(packageBuilder);
+                } finally {
+                    packageDexUse.mLock.unlock();
+                }
                 builder.addPackageDexUse(packageBuilder);
             }
         }
 
+        /**
+         * Writes the dex files that have changed since the last call, or since the last {@link
+         * #clearChanges} call.
+         *
+         * @return false if nothing has changed
+         */
+        boolean changesToProto(@NonNull DexUseProto.Builder builder) {
+            for (var entry : mPackageDexUseByOwningPackageName.entrySet()) {
+                PackageDexUse packageDexUse = entry.getValue();
+                var packageBuilder =
+                        PackageDexUseProto.newBuilder().setOwningPackageName(entry.getKey());
+                packageDexUse.mLock.lock();
+                try {
+                    if (packageDexUse.mRemoved || !packageDexUse.changesToProto(packageBuilder)) {
+                        continue;
+                    }
+                } finally {
+                    packageDexUse.mLock.unlock();
+                }
+                builder.addPackageDexUse(packageBuilder);
+            }
+            return builder.getPackageDexUseCount() > 0;
+        }
+
+        void clearChanges() {
+            for (PackageDexUse packageDexUse : mPackageDexUseByOwningPackageName.values()) {
+                packageDexUse.mLock.lock();
+                try {
+                    packageDexUse.mChangedPrimaryDexFiles.clear();
+                    packageDexUse.mChangedSecondaryDexFiles.clear();
+                } finally {
+                    packageDexUse.mLock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Adds the data in the proto, overwriting existing records of the same loaders. This is
+         * used for both the snapshot and the changes in the journal.
+         */
         void fromProto(@NonNull DexUseProto proto) {
             for (PackageDexUseProto packageProto : proto.getPackageDexUseList()) {
-                var packageDexUse = new PackageDexUse();
-                packageDexUse.fromProto(packageProto);
-                mPackageDexUseByOwningPackageName.put(
-                        Utils.assertNonEmpty(packageProto.getOwningPackageName()), packageDexUse);
+                mPackageDexUseByOwningPackageName
+                        .computeIfAbsent(Utils.assertNonEmpty(packageProto.getOwningPackageName()),
+                                k -> new PackageDexUse())
+                        .fromProto(packageProto);
             }
         }
     }
 
     private static class PackageDexUse {
+        /**
+         * Guards everything in this object, including the records, once the object is added to
+         * {@link DexUse}.
+         */
+        @NonNull final ReentrantLock mLock = new ReentrantLock();
+
+        /** True if this object has been removed from {@link DexUse}. */
+        boolean mRemoved = false;
+
         /**
          * The keys are absolute paths to primary dex files of the owning package (the base APK and
          * split APKs).
@@ -901,6 +1215,12 @@ public class DexUseManagerLocal {
          */
         @NonNull Map<String, SecondaryDexUse> mSecondaryDexUseByDexFile = new HashMap<>();
 
+        /** The primary dex files whose records have changed since the last save. */
+        @NonNull Set<String> mChangedPrimaryDexFiles = new HashSet<>();
+
+        /** The secondary dex files whose records have changed since the last save. */
+        @NonNull Set<String> mChangedSecondaryDexFiles = new HashSet<>();
+
         void toProto(@NonNull PackageDexUseProto.Builder builder) {
             for (var entry : mPrimaryDexUseByDexFile.entrySet()) {
                 var primaryBuilder = PrimaryDexUseProto.newBuilder().setDexFile(entry.getKey());
@@ -914,18 +1234,45 @@ public class DexUseManagerLocal {
             }
         }
 
+        /**
+         * Writes the changed dex files that still exist, and clears the changes.
+         *
+         * @return false if nothing has changed
+         */
+        boolean changesToProto(@NonNull PackageDexUseProto.Builder builder) {
+            for (String dexFile : mChangedPrimaryDexFiles) {
+                PrimaryDexUse primaryDexUse = mPrimaryDexUseByDexFile.get(dexFile);
+                if (primaryDexUse != null) {
+                    var primaryBuilder = PrimaryDexUseProto.newBuilder().setDexFile(dexFile);
+                    primaryDexUse.toProto(primaryBuilder);
+                    builder.addPrimaryDexUse(primaryBuilder);
+                }
+            }
+            for (String dexFile : mChangedSecondaryDexFiles) {
+                SecondaryDexUse secondaryDexUse = mSecondaryDexUseByDexFile.get(dexFile);
+                if (secondaryDexUse != null) {
+                    var secondaryBuilder = SecondaryDexUseProto.newBuilder().setDexFile(dexFile);
+                    secondaryDexUse.toProto(secondaryBuilder);
+                    builder.addSecondaryDexUse(secondaryBuilder);
+                }
+            }
+            mChangedPrimaryDexFiles.clear();
+            mChangedSecondaryDexFiles.clear();
+            return builder.getPrimaryDexUseCount() > 0 || builder.getSecondaryDexUseCount() > 0;
+        }
+
         void fromProto(@NonNull PackageDexUseProto proto) {
             for (PrimaryDexUseProto primaryProto : proto.getPrimaryDexUseList()) {
-                var primaryDexUse = new PrimaryDexUse();
-                primaryDexUse.fromProto(primaryProto);
-                mPrimaryDexUseByDexFile.put(
-                        Utils.assertNonEmpty(primaryProto.getDexFile()), primaryDexUse);
+                mPrimaryDexUseByDexFile
+                        .computeIfAbsent(Utils.assertNonEmpty(primaryProto.getDexFile()),
+                                k -> new PrimaryDexUse())
+                        .fromProto(primaryProto);
             }
             for (SecondaryDexUseProto secondaryProto : proto.getSecondaryDexUseList()) {
-                var secondaryDexUse = new SecondaryDexUse();
-                secondaryDexUse.fromProto(secondaryProto);
-                mSecondaryDexUseByDexFile.put(
-                        Utils.assertNonEmpty(secondaryProto.getDexFile()), secondaryDexUse);
+                mSecondaryDexUseByDexFile
+                        .computeIfAbsent(Utils.assertNonEmpty(secondaryProto.getDexFile()),
+                                k -> new SecondaryDexUse())
+                        .fromProto(secondaryProto);
             }
         }
     }
@@ -960,6 +1307,16 @@ public class DexUseManagerLocal {
         @Nullable UserHandle mUserHandle = null;
         @NonNull Map<DexLoader, SecondaryDexUseRecord> mRecordByLoader = new HashMap<>();
 
+        @NonNull
+        SecondaryDexUse copy() {
+            var copy = new SecondaryDexUse();
+            copy.mUserHandle = mUserHandle;
+            for (var entry : mRecordByLoader.entrySet()) {
+                copy.mRecordByLoader.put(entry.getKey(), entry.getValue().copy());
+            }
+            return copy;
+        }
+
         void toProto(@NonNull SecondaryDexUseProto.Builder builder) {
             builder.setUserId(Int32Value.newBuilder().setValue(mUserHandle.getIdentifier()));
             for (var entry : mRecordByLoader.entrySet()) {
@@ -1017,9 +1374,11 @@ public class DexUseManagerLocal {
         }
     }
 
-    private static class PrimaryDexUseRecord {
+    private abstract static class DexUseRecord {
         @Nullable long mLastUsedAtMs = 0;
+    }
 
+    private static class PrimaryDexUseRecord extends DexUseRecord {
         void toProto(@NonNull PrimaryDexUseRecordProto.Builder builder) {
             builder.setLastUsedAtMs(mLastUsedAtMs);
         }
@@ -1030,13 +1389,21 @@ public class DexUseManagerLocal {
         }
     }
 
-    private static class SecondaryDexUseRecord {
+    private static class SecondaryDexUseRecord extends DexUseRecord {
         // An app constructs their own class loader to load a secondary dex file, so only itself
         // knows the class loader context. Therefore, we need to record the class loader context
         // reported by the app.
         @Nullable String mClassLoaderContext = null;
         @Nullable String mAbiName = null;
-        @Nullable long mLastUsedAtMs = 0;
+
+        @NonNull
+        SecondaryDexUseRecord copy() {
+            var copy = new SecondaryDexUseRecord();
+            copy.mClassLoaderContext = mClassLoaderContext;
+            copy.mAbiName = mAbiName;
+            copy.mLastUsedAtMs = mLastUsedAtMs;
+            return copy;
+        }
 
         void toProto(@NonNull SecondaryDexUseRecordProto.Builder builder) {
             builder.setClassLoaderContext(mClassLoaderContext)
@@ -1052,9 +1419,64 @@ public class DexUseManagerLocal {
         }
     }
 
+    /** How an app loaded a dex file, as reported to {@link #notifyDexContainersLoaded}. */
+    @Immutable
+    @AutoValue
+    abstract static class DexUseKey {
+        static DexUseKey create(@NonNull DexLoader loader, @NonNull String dexPath,
+                @NonNull String classLoaderContext, @NonNull String abiName,
+                @NonNull UserHandle userHandle) {
+            return new AutoValue_DexUseManagerLocal_DexUseKey(
+                    loader, dexPath, classLoaderContext, abiName, userHandle);
+        }
+
+        abstract @NonNull DexLoader loader();
+
+        abstract @NonNull String dexPath();
+
+        abstract @NonNull String classLoaderContext();
+
+        abstract @NonNull String abiName();
+
+        abstract @NonNull UserHandle userHandle();
+    }
+
+    /** A record of a dex use, as recorded for a {@link DexUseKey}. */
+    private static class KnownDexUse {
+        @NonNull final PackageDexUse mPackageDexUse;
+        @NonNull final DexUseRecord mRecord;
+
+        KnownDexUse(@NonNull PackageDexUse packageDexUse, @NonNull DexUseRecord record) {
+            mPackageDexUse = packageDexUse;
+            mRecord = record;
+        }
+
+        /**
+         * Returns true if the record is still in {@link #mPackageDexUse} and recording the dex use
+         * again would only change its last used time. The caller must hold the lock of {@link
+         * #mPackageDexUse}.
+         */
+        boolean isUpToDate(@NonNull DexUseKey key) {
+            if (mRecord instanceof PrimaryDexUseRecord) {
+                PrimaryDexUse primaryDexUse =
+                        mPackageDexUse.mPrimaryDexUseByDexFile.get(key.dexPath());
+                return primaryDexUse != null
+                        && primaryDexUse.mRecordByLoader.get(key.loader()) == mRecord;
+            }
+            SecondaryDexUse secondaryDexUse =
+                    mPackageDexUse.mSecondaryDexUseByDexFile.get(key.dexPath());
+            var record = (SecondaryDexUseRecord) mRecord;
+            return secondaryDexUse != null
+                    && secondaryDexUse.mRecordByLoader.get(key.loader()) == record
+                    && key.userHandle().equals(secondaryDexUse.mUserHandle)
+                    && key.classLoaderContext().equals(record.mClassLoaderContext)
+                    && key.abiName().equals(record.mAbiName);
+        }
+    }
+
     // TODO(b/278697552): Consider removing the cache or moving it to `Environment`.
     static class SecondaryDexLocationManager {
-        private @NonNull Map<CacheKey, CacheValue> mCache = new HashMap<>();
+        private @NonNull Map<CacheKey, CacheValue> mCache = new ConcurrentHashMap<>();
 
         public @NonNull List<Path> getLocations(
                 @NonNull PackageState pkgState, @NonNull UserHandle userHandle) {
@@ -1136,8 +1558,8 @@ public class DexUseManagerLocal {
         }
 
         @NonNull
-        public ScheduledExecutorService createScheduledExecutor() {
-            return Executors.newSingleThreadScheduledExecutor();
+        public ScheduledExecutorService getScheduledExecutor() {
+            return Debouncer.getSharedExecutor();
         }
 
         @NonNull
@@ -55,6 +55,8 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
@@ -80,8 +82,9 @@ public class DexoptHelper {
 
     @NonNull private final Injector mInjector;
 
-    public DexoptHelper(@NonNull Context context, @NonNull Config config) {
-        this(new Injector(context, config));
+    public DexoptHelper(@NonNull Context context, @NonNull Config config,
+            @NonNull DexoptScheduler.CostHistory costHistory) {
+        this(new Injector(context, config, costHistory));
     }
 
     @VisibleForTesting
@@ -130,16 +133,15 @@ public class DexoptHelper {
         int callingUid = Binder.getCallingUid();
         long identityToken = Binder.clearCallingIdentity();
         PowerManager.WakeLock wakeLock = null;
+        DexoptLatencyStats latencyStats = mInjector.getDexoptLatencyStats();
 
-        try {
+        try (var span = latencyStats.startSpan(DexoptLatencyStats.PHASE_BATCH)) {
             // Acquire a wake lock.
             PowerManager powerManager = mInjector.getPowerManager();
             wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
             wakeLock.setWorkSource(new WorkSource(callingUid));
             wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
 
-            List<CompletableFuture<PackageDexoptResult>> futures = new ArrayList<>();
-
             // Child threads will set their own listeners on the cancellation signal, so we must
             // create a separate cancellation signal for each of them so that the listeners don't
             // overwrite each other.
@@ -153,13 +155,20 @@ public class DexoptHelper {
                 }
             });
 
-            for (int i = 0; i < pkgStates.size(); i++) {
-                PackageState pkgState = pkgStates.get(i);
-                CancellationSignal childCancellationSignal = childCancellationSignals.get(i);
-                futures.add(CompletableFuture.supplyAsync(() -> {
-                    return dexoptPackage(pkgState, params, childCancellationSignal);
-                }, dexoptExecutor));
-            }
+            DexoptScheduler scheduler = mInjector.getDexoptScheduler();
+            List<CompletableFuture<PackageDexoptResult>> futures = scheduler.schedule(pkgStates,
+                    i -> {
+                        PackageState pkgState = pkgStates.get(i);
+                        PackageDexoptResult result;
+                        try (var packageSpan =
+                                        latencyStats.startSpan(DexoptLatencyStats.PHASE_PACKAGE)) {
+                            result = dexoptPackage(
+                                    pkgState, params, childCancellationSignals.get(i));
+                        }
+                        scheduler.recordResult(pkgState, result);
+                        return result;
+                    },
+                    dexoptExecutor, getMaxConcurrency(dexoptExecutor));
 
             if (progressCallback != null) {
                 CompletableFuture.runAsync(() -> {
@@ -214,6 +223,20 @@ public class DexoptHelper {
         }
     }
 
+    /**
+     * Returns the number of tasks that {@code executor} runs at a time, or {@link
+     * Integer#MAX_VALUE} if it is unknown.
+     */
+    private static int getMaxConcurrency(@NonNull Executor executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+        }
+        if (executor instanceof ForkJoinPool) {
+            return ((ForkJoinPool) executor).getParallelism();
+        }
+        return Integer.MAX_VALUE;
+    }
+
     /**
      * DO NOT use this method directly. Use {@link ArtManagerLocal#dexoptPackage} or {@link
      * ArtManagerLocal#dexoptPackages}.
@@ -332,10 +355,13 @@ public class DexoptHelper {
     public static class Injector {
         @NonNull private final Context mContext;
         @NonNull private final Config mConfig;
+        @NonNull private final DexoptScheduler.CostHistory mCostHistory;
 
-        Injector(@NonNull Context context, @NonNull Config config) {
+        Injector(@NonNull Context context, @NonNull Config config,
+                @NonNull DexoptScheduler.CostHistory costHistory) {
             mContext = context;
             mConfig = config;
+            mCostHistory = costHistory;
 
             // Call the getters for the dependencies that aren't optional, to ensure correct
             // initialization order.
@@ -371,5 +397,15 @@ public class DexoptHelper {
         public Config getConfig() {
             return mConfig;
         }
+
+        @NonNull
+        public DexoptScheduler getDexoptScheduler() {
+            return new DexoptScheduler(getPowerManager(), mCostHistory);
+        }
+
+        @NonNull
+        public DexoptLatencyStats getDexoptLatencyStats() {
+            return DexoptLatencyStats.getInstance();
+        }
     }
 }
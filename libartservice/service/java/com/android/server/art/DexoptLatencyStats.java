@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.art;
+
+import android.annotation.IntDef;
+import android.annotation.NonNull;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the latency of each phase of dexopt, so that it's possible to tell where the time
+ * goes. The latency of each phase is aggregated into a histogram with exponential buckets. This
+ * class is thread-safe and lock-free, so that it's cheap to record from concurrent dexopt threads.
+ *
+ * Typical usage:
+ * <pre>
+ * try (var span = stats.startSpan(DexoptLatencyStats.PHASE_DEX2OAT)) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * The stats are kept in memory only, since the last boot or the last {@link #reset()}.
+ *
+ * @hide
+ */
+@RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+public class DexoptLatencyStats {
+    /** Creating or copying the reference profile. */
+    public static final int PHASE_PROFILE_INIT = 0;
+    /** Merging the current profiles into the reference profile. */
+    public static final int PHASE_PROFILE_MERGE = 1;
+    /** Checking whether dexopt is needed for the targets of a dex file. */
+    public static final int PHASE_GET_DEXOPT_NEEDED = 2;
+    /** Checking whether the storage is low, before running dex2oat. */
+    public static final int PHASE_STORAGE_CHECK = 3;
+    /** Running dex2oat through artd, including committing the artifacts. */
+    public static final int PHASE_DEX2OAT = 4;
+    /** Committing the merged profile and cleaning up the current profiles after dexopt. */
+    public static final int PHASE_PROFILE_COMMIT = 5;
+    /** Dexopting a package, from start to end. */
+    public static final int PHASE_PACKAGE = 6;
+    /** Dexopting a list of packages, from start to end. */
+    public static final int PHASE_BATCH = 7;
+    /** The dexopt part of a background dexopt job run, including downgrading. */
+    public static final int PHASE_BG_DEXOPT = 8;
+    /** The cleanup part of a background dexopt job run. */
+    public static final int PHASE_BG_CLEANUP = 9;
+
+    private static final int NUM_PHASES = 10;
+
+    /** @hide */
+    // clang-format off
+    @IntDef(prefix = "PHASE_", value = {
+        PHASE_PROFILE_INIT,
+        PHASE_PROFILE_MERGE,
+        PHASE_GET_DEXOPT_NEEDED,
+        PHASE_STORAGE_CHECK,
+        PHASE_DEX2OAT,
+        PHASE_PROFILE_COMMIT,
+        PHASE_PACKAGE,
+        PHASE_BATCH,
+        PHASE_BG_DEXOPT,
+        PHASE_BG_CLEANUP,
+    })
+    // clang-format on
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Phase {}
+
+    private static final String[] PHASE_NAMES = {
+            "profile init",
+            "profile merge",
+            "get dexopt needed",
+            "storage check",
+            "dex2oat",
+            "profile commit",
+            "package",
+            "batch",
+            "bg-dexopt job dexopt",
+            "bg-dexopt job cleanup",
+    };
+
+    private static final Object sLock = new Object();
+    @GuardedBy("sLock") private static DexoptLatencyStats sInstance = null;
+
+    @NonNull private final Histogram[] mHistograms = new Histogram[NUM_PHASES];
+
+    /** Returns the process-wide instance, creating it on first use. */
+    @NonNull
+    public static DexoptLatencyStats getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new DexoptLatencyStats();
+            }
+            return sInstance;
+        }
+    }
+
+    /** @hide */
+    @VisibleForTesting
+    public DexoptLatencyStats() {
+        for (int i = 0; i < NUM_PHASES; i++) {
+            mHistograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Starts timing a phase. The latency is recorded when the returned span is closed, regardless
+     * of whether the phase succeeds.
+     */
+    @NonNull
+    public Span startSpan(@Phase int phase) {
+        return new Span(mHistograms[phase]);
+    }
+
+    /** Records the latency of a phase. */
+    public void record(@Phase int phase, long durationUs) {
+        mHistograms[phase].record(durationUs);
+    }
+
+    /** Clears all the stats. */
+    public void reset() {
+        for (Histogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    /** Dumps the stats, for dumpsys and the shell command. */
+    public void dumpStats(@NonNull PrintWriter pw) {
+        pw.println("Dexopt latency stats:");
+        for (int i = 0; i < NUM_PHASES; i++) {
+            Histogram histogram = mHistograms[i];
+            long count = histogram.getCount();
+            if (count == 0) {
+                pw.printf("  %s: count=0\n", PHASE_NAMES[i]);
+                continue;
+            }
+            long sumUs = histogram.getSumUs();
+            pw.printf("  %s: count=%d, total=%.1f ms, mean=%.1f ms, p50<=%.1f ms, p90<=%.1f ms, "
+                            + "p99<=%.1f ms, max=%.1f ms\n",
+                    PHASE_NAMES[i], count, sumUs / 1000.0, sumUs / 1000.0 / count,
+                    histogram.getPercentileUs(0.5) / 1000.0,
+                    histogram.getPercentileUs(0.9) / 1000.0,
+                    histogram.getPercentileUs(0.99) / 1000.0, histogram.getMaxUs() / 1000.0);
+        }
+    }
+
+    /** Measures the latency of a phase. Not thread-safe. */
+    public static class Span implements AutoCloseable {
+        @NonNull private final Histogram mHistogram;
+        private final long mStartTimeNs;
+        private boolean mClosed = false;
+
+        private Span(@NonNull Histogram histogram) {
+            mHistogram = histogram;
+            mStartTimeNs = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mHistogram.record((System.nanoTime() - mStartTimeNs) / 1000);
+            }
+        }
+    }
+
+    /**
+     * A lock-free histogram of durations in microseconds. Bucket 0 holds 0us, and bucket i > 0
+     * holds [2^(i-1), 2^i) us, except that the last bucket is unbounded.
+     */
+    @VisibleForTesting
+    static class Histogram {
+        @VisibleForTesting static final int NUM_BUCKETS = 32;
+
+        @NonNull private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+        @NonNull private final LongAdder mCount = new LongAdder();
+        @NonNull private final LongAdder mSumUs = new LongAdder();
+        @NonNull private final AtomicLong mMaxUs = new AtomicLong(0);
+
+        void record(long durationUs) {
+            durationUs = Math.max(0, durationUs);
+            mBuckets.incrementAndGet(getBucket(durationUs));
+            mCount.increment();
+            mSumUs.add(durationUs);
+            mMaxUs.accumulateAndGet(durationUs, Math::max);
+        }
+
+        void reset() {
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.reset();
+            mSumUs.reset();
+            mMaxUs.set(0);
+        }
+
+        long getCount() {
+            return mCount.sum();
+        }
+
+        long getSumUs() {
+            return mSumUs.sum();
+        }
+
+        long getMaxUs() {
+            return mMaxUs.get();
+        }
+
+        /**
+         * Returns an upper bound of the given percentile, which is the upper bound of the bucket
+         * that contains it, capped at the max.
+         */
+        long getPercentileUs(double percentile) {
+            // Take a snapshot, as the buckets may change concurrently.
+            long[] buckets = new long[NUM_BUCKETS];
+            long total = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                buckets[i] = mBuckets.get(i);
+                total += buckets[i];
+            }
+            long maxUs = getMaxUs();
+            long rank = Math.max(1, (long) Math.ceil(percentile * total));
+            long cumulative = 0;
+            for (int i = 0; i < NUM_BUCKETS - 1; i++) {
+                cumulative += buckets[i];
+                if (cumulative >= rank) {
+                    return Math.min(getBucketUpperBoundUs(i), maxUs);
+                }
+            }
+            return maxUs;
+        }
+
+        @VisibleForTesting
+        static int getBucket(long durationUs) {
+            return Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(durationUs));
+        }
+
+        private static long getBucketUpperBoundUs(int bucket) {
+            return (1L << bucket) - 1;
+        }
+    }
+}
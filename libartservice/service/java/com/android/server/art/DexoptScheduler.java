@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.art;
+
+import static com.android.server.art.model.DexoptResult.DexContainerFileDexoptResult;
+import static com.android.server.art.model.DexoptResult.PackageDexoptResult;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.art.proto.DexoptCostHistoryProto;
+import com.android.server.art.proto.DexoptCostProto;
+import com.android.server.pm.pkg.AndroidPackage;
+import com.android.server.pm.pkg.PackageState;
+import com.android.server.pm.pkg.SharedLibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+
+/**
+ * Dispatches the packages of a dexopt batch to an executor.
+ *
+ * Packages are dispatched in the order of decreasing estimated cost, so that the most expensive
+ * packages don't end up running alone at the end of the batch, except that a shared library is
+ * dispatched before the packages in the batch that depend on it. The number of packages in flight
+ * is re-evaluated whenever a package is done, and is reduced under thermal pressure or when the
+ * CPUs are already busy. It is never more than the executor allows.
+ *
+ * @hide
+ */
+@RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+public class DexoptScheduler {
+    private static final String TAG = ArtManagerLocal.TAG;
+
+    @NonNull private final Injector mInjector;
+
+    public DexoptScheduler(@NonNull PowerManager powerManager, @NonNull CostHistory costHistory) {
+        this(new Injector(powerManager, costHistory));
+    }
+
+    @VisibleForTesting
+    public DexoptScheduler(@NonNull Injector injector) {
+        mInjector = injector;
+    }
+
+    /**
+     * Runs {@code task} on {@code executor} for each of {@code pkgStates}, with the index of the
+     * package as the argument.
+     *
+     * @param maxConcurrency the number of tasks that {@code executor} runs at a time. No more
+     *         packages than that are dispatched at a time, so that the packages not dispatched yet
+     *         are still subject to the concurrency limit when threads become available, instead of
+     *         waiting in the queue of the executor
+     * @return the futures of the tasks, in the same order as {@code pkgStates}
+     */
+    @NonNull
+    public <T> List<CompletableFuture<T>> schedule(@NonNull List<PackageState> pkgStates,
+            @NonNull IntFunction<T> task, @NonNull Executor executor, int maxConcurrency) {
+        var batch = new Batch<T>(getDispatchOrder(pkgStates), task, executor, maxConcurrency);
+        batch.dispatch();
+        return batch.mFutures;
+    }
+
+    /**
+     * Returns the indexes of {@code pkgStates} in the order in which they should be dispatched.
+     *
+     * Without any cost history (e.g., on first boot), this is the given order, as there is nothing
+     * better to go on than the caller's order.
+     */
+    @VisibleForTesting
+    @NonNull
+    public int[] getDispatchOrder(@NonNull List<PackageState> pkgStates) {
+        int size = pkgStates.size();
+        if (mInjector.getCostHistory().isEmpty()) {
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            return order;
+        }
+
+        Map<String, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            indexes.put(pkgStates.get(i).getPackageName(), i);
+        }
+
+        // For each package, the packages in the batch that it depends on, the number of them that
+        // are not dispatched yet, and the packages in the batch that depend on it.
+        List<Set<Integer>> deps = new ArrayList<>();
+        int[] numDeps = new int[size];
+        List<List<Integer>> dependents = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            deps.add(new LinkedHashSet<>());
+            dependents.add(new ArrayList<>());
+        }
+        for (int i = 0; i < size; i++) {
+            for (SharedLibrary library : pkgStates.get(i).getSharedLibraryDependencies()) {
+                Integer dep = library.getPackageName() != null
+                        ? indexes.get(library.getPackageName())
+                        : null;
+                if (dep != null && dep != i && deps.get(i).add(dep)) {
+                    dependents.get(dep).add(i);
+                    numDeps[i]++;
+                }
+            }
+        }
+
+        long[] costs = new long[size];
+        for (int i = 0; i < size; i++) {
+            PackageState pkgState = pkgStates.get(i);
+            costs[i] = mInjector.getCostHistory().estimateCostMs(
+                    pkgState.getPackageName(), getDexSizeBytes(pkgState));
+        }
+
+        // Most expensive first, then in the given order.
+        var ready = new PriorityQueue<Integer>(Math.max(1, size), (a, b) -> {
+            int result = Long.compare(costs[b], costs[a]);
+            return result != 0 ? result : Integer.compare(a, b);
+        });
+        for (int i = 0; i < size; i++) {
+            if (numDeps[i] == 0) {
+                ready.add(i);
+            }
+        }
+
+        int[] order = new int[size];
+        boolean[] done = new boolean[size];
+        for (int n = 0; n < size; n++) {
+            if (ready.isEmpty()) {
+                // Every remaining package depends on another remaining package, so there is a
+                // dependency cycle. Follow the dependencies until a package repeats, and break the
+                // cycle there by dispatching that package as if its dependencies were done.
+                boolean[] visited = new boolean[size];
+                int i = 0;
+                while (done[i]) {
+                    i++;
+                }
+                while (!visited[i]) {
+                    visited[i] = true;
+                    for (int dep : deps.get(i)) {
+                        if (!done[dep]) {
+                            i = dep;
+                            break;
+                        }
+                    }
+                }
+                ready.add(i);
+            }
+            int i = ready.poll();
+            order[n] = i;
+            done[i] = true;
+            for (int dependent : dependents.get(i)) {
+                if (!done[dependent] && --numDeps[dependent] == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Returns the maximum number of packages to have in flight, given the number of packages
+     * currently in flight and the number of tasks that the executor runs at a time.
+     */
+    @VisibleForTesting
+    public int getConcurrencyLimit(int inFlight, int maxConcurrency) {
+        int limit = maxConcurrency;
+
+        int thermalStatus = mInjector.getCurrentThermalStatus();
+        int numCpus = mInjector.getAvailableProcessors();
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            limit = 1;
+        } else if (thermalStatus == PowerManager.THERMAL_STATUS_LIGHT) {
+            limit = Math.min(limit, Math.max(1, numCpus / 2));
+        }
+
+        // The load average includes the packages that we have in flight, so only the idle CPUs can
+        // take more.
+        double loadAverage = mInjector.getLoadAverage();
+        if (loadAverage >= 0 && numCpus > 0) {
+            int idleCpus = (int) Math.floor(numCpus - loadAverage);
+            limit = Math.min(limit, inFlight + Math.max(0, idleCpus));
+        }
+
+        // Always make progress.
+        return Math.max(1, limit);
+    }
+
+    /** Records the result of dexopting a package, for estimating the cost of the next dexopt. */
+    public void recordResult(@NonNull PackageState pkgState, @NonNull PackageDexoptResult result) {
+        mInjector.getCostHistory().record(getDexSizeBytes(pkgState), result);
+    }
+
+    private long getDexSizeBytes(@NonNull PackageState pkgState) {
+        AndroidPackage pkg = pkgState.getAndroidPackage();
+        if (pkg == null) {
+            return 0;
+        }
+        long sizeBytes = 0;
+        for (PrimaryDexUtils.PrimaryDexInfo dexInfo : PrimaryDexUtils.getDexInfo(pkg)) {
+            if (dexInfo.hasCode()) {
+                sizeBytes += mInjector.getFileSize(dexInfo.dexPath());
+            }
+        }
+        return sizeBytes;
+    }
+
+    private class Batch<T> {
+        @NonNull private final int[] mOrder;
+        @NonNull private final IntFunction<T> mTask;
+        @NonNull private final Executor mExecutor;
+        private final int mMaxConcurrency;
+        @NonNull private final List<CompletableFuture<T>> mFutures = new ArrayList<>();
+
+        @GuardedBy("this") private int mNext = 0;
+        @GuardedBy("this") private int mInFlight = 0;
+        /**
+         * Whether a thread is in the loop of {@link #dispatch}. When a package is done while
+         * another thread is dispatching, that thread picks up the freed slot, so that {@link
+         * #dispatch} never recurses, even if the executor runs the tasks on the calling thread.
+         */
+        @GuardedBy("this") private boolean mDispatching = false;
+
+        Batch(@NonNull int[] order, @NonNull IntFunction<T> task, @NonNull Executor executor,
+                int maxConcurrency) {
+            mOrder = order;
+            mTask = task;
+            mExecutor = executor;
+            mMaxConcurrency = maxConcurrency;
+            for (int i = 0; i < order.length; i++) {
+                mFutures.add(new CompletableFuture<>());
+            }
+        }
+
+        /** Dispatches as many packages as the current concurrency limit allows. */
+        void dispatch() {
+            synchronized (this) {
+                if (mDispatching) {
+                    return;
+                }
+                mDispatching = true;
+            }
+            while (true) {
+                int inFlight;
+                synchronized (this) {
+                    if (mNext >= mOrder.length) {
+                        mDispatching = false;
+                        return;
+                    }
+                    inFlight = mInFlight;
+                }
+
+                // Sample the thermal status and the load average without holding the lock, as they
+                // involve a binder call and file I/O. Packages that are done in the meantime only
+                // leave more room, and their threads leave the dispatching to this one.
+                int limit = getConcurrencyLimit(inFlight, mMaxConcurrency);
+
+                int index;
+                synchronized (this) {
+                    if (mInFlight >= limit) {
+                        mDispatching = false;
+                        return;
+                    }
+                    index = mOrder[mNext++];
+                    mInFlight++;
+                }
+
+                CompletableFuture<T> future = mFutures.get(index);
+                try {
+                    CompletableFuture.supplyAsync(() -> mTask.apply(index), mExecutor)
+                            .whenComplete((result, e) -> {
+                                synchronized (this) {
+                                    mInFlight--;
+                                }
+                                if (e != null) {
+                                    future.completeExceptionally(e);
+                                } else {
+                                    future.complete(result);
+                                }
+                                dispatch();
+                            });
+                } catch (RejectedExecutionException e) {
+                    synchronized (this) {
+                        mInFlight--;
+                    }
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remembers how long dexopt took for each package, to estimate the cost of the next dexopt.
+     * This class is thread-safe.
+     *
+     * The data is persisted, so that the estimates are available to the first dexopt after a
+     * reboot, notably boot-time dexopt.
+     *
+     * @hide
+     */
+    public static class CostHistory {
+        private static final String FILENAME = "/data/system/package-dexopt-cost.pb";
+
+        /** The estimated cost per MB of dex files, used until there is any history. */
+        private static final long DEFAULT_COST_MS_PER_MB = 1000;
+
+        /** The minimum interval between disk writes. */
+        @VisibleForTesting public static final long INTERVAL_MS = 15_000;
+
+        /** The maximum time that the debouncer can postpone a disk write for. */
+        private static final long MAX_DELAY_MS = 120_000;
+
+        /**
+         * The maximum number of entries. Entries are not removed when packages are, so this bounds
+         * the memory and the file size.
+         */
+        private static final int MAX_ENTRIES = 10_000;
+
+        private static final Object sLock = new Object();
+        @GuardedBy("sLock") private static CostHistory sInstance = null;
+
+        @NonNull private final CostHistory.Injector mInjector;
+        @NonNull private final ProtoFile<DexoptCostHistoryProto> mFile;
+
+        @GuardedBy("this")
+        @NonNull
+        private final Map<String, DexoptCostProto> mCosts = new HashMap<>();
+        /** The sums of the costs and the sizes of the entries whose size is known. */
+        @GuardedBy("this") private long mTotalCostMs = 0;
+        @GuardedBy("this") private long mTotalSizeBytes = 0;
+
+        /** Returns the process-wide instance, creating it on first use. */
+        @NonNull
+        public static CostHistory getInstance() {
+            synchronized (sLock) {
+                if (sInstance == null) {
+                    sInstance = new CostHistory(new CostHistory.Injector());
+                }
+                return sInstance;
+            }
+        }
+
+        /** @hide */
+        @VisibleForTesting
+        public CostHistory(@NonNull CostHistory.Injector injector) {
+            mInjector = injector;
+            mFile = new ProtoFile<>(mInjector.getFilename(), DexoptCostHistoryProto.parser(),
+                    this::toProto, INTERVAL_MS, MAX_DELAY_MS, mInjector.getScheduledExecutor());
+            load();
+        }
+
+        /**
+         * Returns the estimated wall time of dexopting the given package, in milliseconds. This is
+         * the dex2oat wall time of the last dexopt of the package if it is known, or an estimate
+         * based on the size of its dex files otherwise.
+         */
+        public synchronized long estimateCostMs(@NonNull String packageName, long dexSizeBytes) {
+            DexoptCostProto cost = mCosts.get(packageName);
+            if (cost != null) {
+                return cost.getCostMs();
+            }
+            if (mTotalSizeBytes > 0) {
+                return (long) ((double) dexSizeBytes * mTotalCostMs / mTotalSizeBytes);
+            }
+            return dexSizeBytes * DEFAULT_COST_MS_PER_MB / (1024 * 1024);
+        }
+
+        /** Returns true if no dexopt that ran dex2oat has been recorded. */
+        public synchronized boolean isEmpty() {
+            return mCosts.isEmpty();
+        }
+
+        /**
+         * Returns the dex2oat wall time of the last dexopt of the given package that ran dex2oat,
+         * in milliseconds, or null if it is unknown.
+         */
+        @Nullable
+        public synchronized Long getCostMs(@NonNull String packageName) {
+            DexoptCostProto cost = mCosts.get(packageName);
+            return cost != null ? cost.getCostMs() : null;
+        }
+
+        /**
+         * Returns the average of the costs of the packages whose cost is known, in milliseconds,
+         * or 0 if there is none. Dexopt runs that didn't run dex2oat are not recorded, so they
+         * don't pull the average down.
+         */
+        public synchronized long getAverageCostMs() {
+            if (mCosts.isEmpty()) {
+                return 0;
+            }
+            long sumMs = 0;
+            for (DexoptCostProto cost : mCosts.values()) {
+                sumMs += cost.getCostMs();
+            }
+            return sumMs / mCosts.size();
+        }
+
+        /** Records the result of dexopting a package. */
+        public void record(long dexSizeBytes, @NonNull PackageDexoptResult result) {
+            long costMs = 0;
+            for (DexContainerFileDexoptResult fileResult :
+                    result.getDexContainerFileDexoptResults()) {
+                costMs += fileResult.getDex2oatWallTimeMillis();
+            }
+            // Nothing was compiled (e.g., the artifacts were up-to-date, or dexopt was cancelled),
+            // so this tells nothing about the cost.
+            if (costMs == 0) {
+                return;
+            }
+            synchronized (this) {
+                if (mCosts.size() >= MAX_ENTRIES) {
+                    clearLocked();
+                }
+                putLocked(DexoptCostProto.newBuilder()
+                                  .setPackageName(result.getPackageName())
+                                  .setCostMs(costMs)
+                                  .setDexSizeBytes(Math.max(0, dexSizeBytes))
+                                  .build());
+            }
+            mFile.saveAsync();
+        }
+
+        @GuardedBy("this")
+        private void putLocked(@NonNull DexoptCostProto cost) {
+            DexoptCostProto oldCost = mCosts.put(cost.getPackageName(), cost);
+            if (oldCost != null && oldCost.getDexSizeBytes() > 0) {
+                mTotalCostMs -= oldCost.getCostMs();
+                mTotalSizeBytes -= oldCost.getDexSizeBytes();
+            }
+            if (cost.getDexSizeBytes() > 0) {
+                mTotalCostMs += cost.getCostMs();
+                mTotalSizeBytes += cost.getDexSizeBytes();
+            }
+        }
+
+        @GuardedBy("this")
+        private void clearLocked() {
+            mCosts.clear();
+            mTotalCostMs = 0;
+            mTotalSizeBytes = 0;
+        }
+
+        @NonNull
+        private synchronized DexoptCostHistoryProto toProto() {
+            return DexoptCostHistoryProto.newBuilder().addAllCost(mCosts.values()).build();
+        }
+
+        private synchronized void load() {
+            DexoptCostHistoryProto proto = mFile.load();
+            if (proto == null) {
+                return;
+            }
+            for (DexoptCostProto cost : proto.getCostList()) {
+                Utils.assertNonEmpty(cost.getPackageName());
+                putLocked(cost);
+            }
+        }
+
+        /**
+         * Injector pattern for testing purpose.
+         *
+         * @hide
+         */
+        @VisibleForTesting
+        public static class Injector {
+            Injector() {}
+
+            @NonNull
+            public String getFilename() {
+                return FILENAME;
+            }
+
+            @NonNull
+            public ScheduledExecutorService getScheduledExecutor() {
+                return Debouncer.getSharedExecutor();
+            }
+        }
+    }
+
+    /**
+     * Injector pattern for testing purpose.
+     *
+     * @hide
+     */
+    @VisibleForTesting
+    public static class Injector {
+        /**
+         * Whether a failure to read the load average has been logged. The failure is most likely
+         * permanent (e.g., SELinux denial), and the load average is read every time a package is
+         * done, so it is only logged once per process.
+         */
+        @NonNull private static final AtomicBoolean sLoadAverageErrorLogged = new AtomicBoolean();
+
+        @NonNull private final PowerManager mPowerManager;
+        @NonNull private final CostHistory mCostHistory;
+
+        Injector(@NonNull PowerManager powerManager, @NonNull CostHistory costHistory) {
+            mPowerManager = powerManager;
+            mCostHistory = costHistory;
+        }
+
+        @NonNull
+        public CostHistory getCostHistory() {
+            return mCostHistory;
+        }
+
+        public long getFileSize(@NonNull String path) {
+            return new File(path).length();
+        }
+
+        public int getCurrentThermalStatus() {
+            return mPowerManager.getCurrentThermalStatus();
+        }
+
+        public int getAvailableProcessors() {
+            return Runtime.getRuntime().availableProcessors();
+        }
+
+        /** Returns the 1-minute load average, or -1 if it is unavailable. */
+        public double getLoadAverage() {
+            try {
+                String line = Files.readAllLines(Paths.get("/proc/loadavg")).get(0);
+                return Double.parseDouble(line.split(" ", 2)[0]);
+            } catch (IOException | RuntimeException e) {
+                if (!sLoadAverageErrorLogged.getAndSet(true)) {
+                    Log.w(TAG, "Failed to read load average", e);
+                }
+                return -1;
+            }
+        }
+    }
+}
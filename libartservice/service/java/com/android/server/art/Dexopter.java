@@ -42,6 +42,7 @@ import android.util.Pair;
 
 import androidx.annotation.RequiresApi;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.LocalManagerRegistry;
 import com.android.server.art.model.ArtFlags;
@@ -57,10 +58,21 @@ import dalvik.system.DexFile;
 import com.google.auto.value.AutoValue;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /** @hide */
 @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
@@ -101,177 +113,212 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
 
         boolean isInDalvikCache = isInDalvikCache();
 
-        for (DexInfoType dexInfo : getDexInfoList()) {
-            ProfilePath profile = null;
-            boolean succeeded = true;
-            try {
-                if (!isDexoptable(dexInfo)) {
-                    continue;
-                }
+        // Profiles are prepared and committed one dex file at a time, in order, but the targets
+        // (dex file, ABI) may be compiled concurrently, within the budget for the reason.
+        var targetRunner = new TargetRunner(
+                ReasonMapping.getIntraPackageConcurrencyForReason(mParams.getReason()));
+        mCancellationSignal.setOnCancelListener(targetRunner::cancel);
+        // The dex files whose targets have been submitted, but whose results have not been
+        // collected yet, in order.
+        Queue<DexJob> pendingJobs = new ArrayDeque<>();
 
-                String compilerFilter = adjustCompilerFilter(mParams.getCompilerFilter(), dexInfo);
-                if (compilerFilter.equals(DexoptParams.COMPILER_FILTER_NOOP)) {
-                    continue;
+        try {
+            for (DexInfoType dexInfo : getDexInfoList()) {
+                if (targetRunner.isStopped()) {
+                    break;
                 }
 
-                boolean needsToBeShared = needsToBeShared(dexInfo);
-                boolean isOtherReadable = true;
-                // If true, implies that the profile has changed since the last compilation.
-                boolean profileMerged = false;
-                if (DexFile.isProfileGuidedCompilerFilter(compilerFilter)) {
-                    if (needsToBeShared) {
-                        profile = initReferenceProfile(dexInfo);
-                    } else {
-                        Pair<ProfilePath, Boolean> pair = getOrInitReferenceProfile(dexInfo);
-                        if (pair != null) {
-                            profile = pair.first;
-                            isOtherReadable = pair.second;
-                        }
-                        ProfilePath mergedProfile = mergeProfiles(dexInfo, profile);
-                        if (mergedProfile != null) {
-                            if (profile != null && profile.getTag() == ProfilePath.tmpProfilePath) {
-                                mInjector.getArtd().deleteProfile(profile);
-                            }
-                            profile = mergedProfile;
-                            isOtherReadable = false;
-                            profileMerged = true;
-                        }
+                ProfilePath profile = null;
+                DexJob job = null;
+                try {
+                    if (!isDexoptable(dexInfo)) {
+                        continue;
                     }
-                    if (profile == null) {
-                        // A profile guided dexopt with no profile is essentially 'verify',
-                        // and dex2oat already makes this transformation. However, we need to
-                        // explicitly make this transformation here to guide the later decisions
-                        // such as whether the artifacts can be public and whether dexopt is needed.
-                        compilerFilter = needsToBeShared
-                                ? ReasonMapping.getCompilerFilterForShared()
-                                : "verify";
+
+                    String compilerFilter =
+                            adjustCompilerFilter(mParams.getCompilerFilter(), dexInfo);
+                    if (compilerFilter.equals(DexoptParams.COMPILER_FILTER_NOOP)) {
+                        continue;
                     }
-                }
-                boolean isProfileGuidedCompilerFilter =
-                        DexFile.isProfileGuidedCompilerFilter(compilerFilter);
-                Utils.check(isProfileGuidedCompilerFilter == (profile != null));
-
-                boolean canBePublic = (!isProfileGuidedCompilerFilter || isOtherReadable)
-                        && isDexFilePublic(dexInfo);
-                Utils.check(Utils.implies(needsToBeShared, canBePublic));
-                PermissionSettings permissionSettings = getPermissionSettings(dexInfo, canBePublic);
-
-                DexoptOptions dexoptOptions =
-                        getDexoptOptions(dexInfo, isProfileGuidedCompilerFilter);
-
-                for (Abi abi : getAllAbis(dexInfo)) {
-                    @DexoptResult.DexoptResultStatus int status = DexoptResult.DEXOPT_SKIPPED;
-                    long wallTimeMs = 0;
-                    long cpuTimeMs = 0;
-                    long sizeBytes = 0;
-                    long sizeBeforeBytes = 0;
-                    boolean isSkippedDueToStorageLow = false;
-                    try {
-                        var target = DexoptTarget.<DexInfoType>builder()
-                                             .setDexInfo(dexInfo)
-                                             .setIsa(abi.isa())
-                                             .setIsInDalvikCache(isInDalvikCache)
-                                             .setCompilerFilter(compilerFilter)
-                                             .build();
-                        var options = GetDexoptNeededOptions.builder()
-                                              .setProfileMerged(profileMerged)
-                                              .setFlags(mParams.getFlags())
-                                              .setNeedsToBePublic(needsToBeShared)
-                                              .build();
-
-                        GetDexoptNeededResult getDexoptNeededResult =
-                                getDexoptNeeded(target, options);
-
-                        if (!getDexoptNeededResult.isDexoptNeeded) {
-                            continue;
-                        }
 
-                        try {
-                            // `StorageManager.getAllocatableBytes` returns (free space + space used
-                            // by clearable cache - low storage threshold). Since we only compare
-                            // the result with 0, the clearable cache doesn't make a difference.
-                            // When the free space is below the threshold, there should be no
-                            // clearable cache left because system cleans up cache every minute.
-                            if ((mParams.getFlags() & ArtFlags.FLAG_SKIP_IF_STORAGE_LOW) != 0
-                                    && mInjector.getStorageManager().getAllocatableBytes(
-                                               mPkg.getStorageUuid())
-                                            <= 0) {
-                                isSkippedDueToStorageLow = true;
-                                continue;
+                    boolean needsToBeShared = needsToBeShared(dexInfo);
+                    boolean isOtherReadable = true;
+                    // If true, implies that the profile has changed since the last compilation.
+                    boolean profileMerged = false;
+                    if (DexFile.isProfileGuidedCompilerFilter(compilerFilter)) {
+                        if (needsToBeShared) {
+                            profile = initReferenceProfile(dexInfo);
+                        } else {
+                            Pair<ProfilePath, Boolean> pair = getOrInitReferenceProfile(dexInfo);
+                            if (pair != null) {
+                                profile = pair.first;
+                                isOtherReadable = pair.second;
                             }
-                        } catch (IOException e) {
-                            Log.e(TAG, "Failed to check storage. Assuming storage not low", e);
-                        }
-
-                        IArtdCancellationSignal artdCancellationSignal =
-                                mInjector.getArtd().createCancellationSignal();
-                        mCancellationSignal.setOnCancelListener(() -> {
-                            try {
-                                artdCancellationSignal.cancel();
-                            } catch (RemoteException e) {
-                                Log.e(TAG, "An error occurred when sending a cancellation signal",
-                                        e);
+                            ProfilePath mergedProfile;
+                            try (var span = mInjector.getDexoptLatencyStats().startSpan(
+                                         DexoptLatencyStats.PHASE_PROFILE_MERGE)) {
+                                mergedProfile = mergeProfiles(dexInfo, profile);
+                            }
+                            if (mergedProfile != null) {
+                                if (profile != null
+                                        && profile.getTag() == ProfilePath.tmpProfilePath) {
+                                    mInjector.getArtd().deleteProfile(profile);
+                                }
+                                profile = mergedProfile;
+                                isOtherReadable = false;
+                                profileMerged = true;
                             }
-                        });
-
-                        ArtdDexoptResult dexoptResult = dexoptFile(target, profile,
-                                getDexoptNeededResult, permissionSettings,
-                                mParams.getPriorityClass(), dexoptOptions, artdCancellationSignal);
-                        status = dexoptResult.cancelled ? DexoptResult.DEXOPT_CANCELLED
-                                                        : DexoptResult.DEXOPT_PERFORMED;
-                        wallTimeMs = dexoptResult.wallTimeMs;
-                        cpuTimeMs = dexoptResult.cpuTimeMs;
-                        sizeBytes = dexoptResult.sizeBytes;
-                        sizeBeforeBytes = dexoptResult.sizeBeforeBytes;
-
-                        if (status == DexoptResult.DEXOPT_CANCELLED) {
-                            return results;
                         }
-                    } catch (ServiceSpecificException e) {
-                        // Log the error and continue.
-                        Log.e(TAG,
-                                String.format("Failed to dexopt [packageName = %s, dexPath = %s, "
-                                                + "isa = %s, classLoaderContext = %s]",
-                                        mPkgState.getPackageName(), dexInfo.dexPath(), abi.isa(),
-                                        dexInfo.classLoaderContext()),
-                                e);
-                        status = DexoptResult.DEXOPT_FAILED;
-                    } finally {
-                        var result = DexContainerFileDexoptResult.create(dexInfo.dexPath(),
-                                abi.isPrimaryAbi(), abi.name(), compilerFilter, status, wallTimeMs,
-                                cpuTimeMs, sizeBytes, sizeBeforeBytes, isSkippedDueToStorageLow);
-                        Log.i(TAG,
-                                String.format("Dexopt result: [packageName = %s] %s",
-                                        mPkgState.getPackageName(), result));
-                        results.add(result);
-                        if (status != DexoptResult.DEXOPT_SKIPPED
-                                && status != DexoptResult.DEXOPT_PERFORMED) {
-                            succeeded = false;
+                        if (profile == null) {
+                            // A profile guided dexopt with no profile is essentially 'verify',
+                            // and dex2oat already makes this transformation. However, we need to
+                            // explicitly make this transformation here to guide the later
+                            // decisions such as whether the artifacts can be public and whether
+                            // dexopt is needed.
+                            compilerFilter = needsToBeShared
+                                    ? ReasonMapping.getCompilerFilterForShared()
+                                    : "verify";
                         }
-                        // Make sure artd does not leak even if the caller holds
-                        // `mCancellationSignal` forever.
-                        mCancellationSignal.setOnCancelListener(null);
                     }
+                    boolean isProfileGuidedCompilerFilter =
+                            DexFile.isProfileGuidedCompilerFilter(compilerFilter);
+                    Utils.check(isProfileGuidedCompilerFilter == (profile != null));
+
+                    boolean canBePublic = (!isProfileGuidedCompilerFilter || isOtherReadable)
+                            && isDexFilePublic(dexInfo);
+                    Utils.check(Utils.implies(needsToBeShared, canBePublic));
+                    PermissionSettings permissionSettings =
+                            getPermissionSettings(dexInfo, canBePublic);
+
+                    // From here on, the job owns the profile.
+                    job = new DexJob(dexInfo, profile, profileMerged);
+                    pendingJobs.add(job);
+                    List<Abi> abis = getAllAbis(dexInfo);
+                    List<DexoptTarget<DexInfoType>> targets = new ArrayList<>();
+                    for (Abi abi : abis) {
+                        targets.add(DexoptTarget.<DexInfoType>builder()
+                                            .setDexInfo(dexInfo)
+                                            .setIsa(abi.isa())
+                                            .setIsInDalvikCache(isInDalvikCache)
+                                            .setCompilerFilter(compilerFilter)
+                                            .build());
+                    }
+                    var options = GetDexoptNeededOptions.builder()
+                                          .setProfileMerged(profileMerged)
+                                          .setFlags(mParams.getFlags())
+                                          .setNeedsToBePublic(needsToBeShared)
+                                          .build();
+                    // The ABIs of the dex file are checked in one call. The dex files are not
+                    // batched together because whether dexopt is needed depends on the result of
+                    // merging the profile of each dex file, which happens right before the check,
+                    // and the profile of a dex file isn't merged until the previous dex file is
+                    // dispatched (and, when the targets run on this thread, done).
+                    List<GetDexoptNeededResult> getDexoptNeededResults;
+                    try (var span = mInjector.getDexoptLatencyStats().startSpan(
+                                 DexoptLatencyStats.PHASE_GET_DEXOPT_NEEDED)) {
+                        getDexoptNeededResults = getDexoptNeeded(targets, options);
+                    }
+                    for (int i = 0; i < abis.size(); i++) {
+                        DexoptTarget<DexInfoType> target = targets.get(i);
+                        Abi abi = abis.get(i);
+                        GetDexoptNeededResult getDexoptNeededResult = getDexoptNeededResults.get(i);
+                        ProfilePath targetProfile = profile;
+                        job.mTargetResults.add(targetRunner.submit(
+                                ()
+                                        -> dexoptTarget(target, abi, getDexoptNeededResult,
+                                                targetProfile, permissionSettings, targetRunner)));
+                    }
+                } finally {
+                    if (job == null && profile != null
+                            && profile.getTag() == ProfilePath.tmpProfilePath) {
+                        mInjector.getArtd().deleteProfile(profile);
+                    }
+                }
+
+                // When the targets run on the current thread, this finishes the job right away, so
+                // that the profile is committed before the next dex file is processed.
+                if (finishJobs(pendingJobs, results, false /* wait */)) {
+                    return results;
+                }
+            }
+
+            finishJobs(pendingJobs, results, true /* wait */);
+            return results;
+        } finally {
+            // Don't leave any dex2oat invocation behind, and don't delete a temporary profile while
+            // dex2oat is still reading it.
+            targetRunner.stop();
+            for (DexJob job : pendingJobs) {
+                job.awaitTargets();
+                if (job.mProfile != null && job.mProfile.getTag() == ProfilePath.tmpProfilePath) {
+                    mInjector.getArtd().deleteProfile(job.mProfile);
+                }
+            }
+            targetRunner.shutdown();
+            // Make sure artd does not leak even if the caller holds `mCancellationSignal` forever.
+            mCancellationSignal.setOnCancelListener(null);
+        }
+    }
+
+    /**
+     * Collects the results of the jobs at the head of {@code pendingJobs} whose targets are all
+     * done, or of all the jobs if {@code wait} is true, and commits their profiles if dexopt
+     * succeeded.
+     *
+     * @return true if dexopt was cancelled, in which case the remaining jobs are left in {@code
+     *         pendingJobs}, for the caller to clean up
+     */
+    private boolean finishJobs(@NonNull Queue<DexJob> pendingJobs,
+            @NonNull List<DexContainerFileDexoptResult> results, boolean wait)
+            throws RemoteException {
+        DexJob job;
+        while ((job = pendingJobs.peek()) != null && (wait || job.areTargetsDone())) {
+            boolean succeeded = true;
+            boolean cancelled = false;
+            for (CompletableFuture<DexContainerFileDexoptResult> future : job.mTargetResults) {
+                DexContainerFileDexoptResult result = getTargetResult(future);
+                if (result == null) {
+                    // The target was never started because dexopt was stopped.
+                    continue;
+                }
+                results.add(result);
+                if (result.getStatus() == DexoptResult.DEXOPT_CANCELLED) {
+                    cancelled = true;
                 }
+                if (result.getStatus() != DexoptResult.DEXOPT_SKIPPED
+                        && result.getStatus() != DexoptResult.DEXOPT_PERFORMED) {
+                    succeeded = false;
+                }
+            }
 
+            if (cancelled) {
+                return true;
+            }
+
+            pendingJobs.remove();
+            ProfilePath profile = job.mProfile;
+            try {
                 if (profile != null && succeeded) {
-                    if (profile.getTag() == ProfilePath.tmpProfilePath) {
-                        // Commit the profile only if dexopt succeeds.
-                        if (commitProfileChanges(profile.getTmpProfilePath())) {
-                            profile = null;
+                    try (var span = mInjector.getDexoptLatencyStats().startSpan(
+                                 DexoptLatencyStats.PHASE_PROFILE_COMMIT)) {
+                        if (profile.getTag() == ProfilePath.tmpProfilePath) {
+                            // Commit the profile only if dexopt succeeds.
+                            if (commitProfileChanges(profile.getTmpProfilePath())) {
+                                profile = null;
+                            }
+                        }
+                        if (job.mProfileMerged) {
+                            // Note that this is just an optimization, to reduce the amount of
+                            // data that the runtime writes on every profile save. The profile
+                            // merge result on the next run won't change regardless of whether the
+                            // cleanup is done or not because profman only looks at the diff.
+                            // A caveat is that it may delete more than what has been merged, if
+                            // the runtime writes additional entries between the merge and the
+                            // cleanup, but this is fine because the runtime writes all JITed
+                            // classes and methods on every save and the additional entries will
+                            // likely be written back on the next save.
+                            cleanupCurProfiles(job.mDexInfo);
                         }
-                    }
-                    if (profileMerged) {
-                        // Note that this is just an optimization, to reduce the amount of data that
-                        // the runtime writes on every profile save. The profile merge result on the
-                        // next run won't change regardless of whether the cleanup is done or not
-                        // because profman only looks at the diff.
-                        // A caveat is that it may delete more than what has been merged, if the
-                        // runtime writes additional entries between the merge and the cleanup, but
-                        // this is fine because the runtime writes all JITed classes and methods on
-                        // every save and the additional entries will likely be written back on the
-                        // next save.
-                        cleanupCurProfiles(dexInfo);
                     }
                 }
             } finally {
@@ -280,8 +327,112 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
                 }
             }
         }
+        return false;
+    }
 
-        return results;
+    @Nullable
+    private DexContainerFileDexoptResult getTargetResult(
+            @NonNull CompletableFuture<DexContainerFileDexoptResult> future)
+            throws RemoteException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Dexopts one target (dex file, ABI). This may run on any thread. */
+    @NonNull
+    private DexContainerFileDexoptResult dexoptTarget(@NonNull DexoptTarget<DexInfoType> target,
+            @NonNull Abi abi, @NonNull GetDexoptNeededResult getDexoptNeededResult,
+            @Nullable ProfilePath profile, @NonNull PermissionSettings permissionSettings,
+            @NonNull TargetRunner targetRunner) throws RemoteException {
+        DexInfoType dexInfo = target.dexInfo();
+        @DexoptResult.DexoptResultStatus int status = DexoptResult.DEXOPT_SKIPPED;
+        long wallTimeMs = 0;
+        long cpuTimeMs = 0;
+        long sizeBytes = 0;
+        long sizeBeforeBytes = 0;
+        boolean isSkippedDueToStorageLow = false;
+        try {
+            if (getDexoptNeededResult.errorMessage != null) {
+                Log.e(TAG,
+                        String.format("Failed to check if dexopt is needed [packageName = %s, "
+                                        + "dexPath = %s, isa = %s, classLoaderContext = %s]: %s",
+                                mPkgState.getPackageName(), dexInfo.dexPath(), abi.isa(),
+                                dexInfo.classLoaderContext(), getDexoptNeededResult.errorMessage));
+                status = DexoptResult.DEXOPT_FAILED;
+            } else if (getDexoptNeededResult.isDexoptNeeded) {
+                if (isStorageLow()) {
+                    isSkippedDueToStorageLow = true;
+                } else {
+                    // `dexoptFile` mutates the options, so each target needs its own.
+                    DexoptOptions dexoptOptions = getDexoptOptions(dexInfo,
+                            DexFile.isProfileGuidedCompilerFilter(target.compilerFilter()));
+                    IArtdCancellationSignal artdCancellationSignal =
+                            targetRunner.createArtdCancellationSignal();
+                    ArtdDexoptResult dexoptResult;
+                    try (var span = mInjector.getDexoptLatencyStats().startSpan(
+                                 DexoptLatencyStats.PHASE_DEX2OAT)) {
+                        dexoptResult = dexoptFile(target, profile, getDexoptNeededResult,
+                                permissionSettings, mParams.getPriorityClass(), dexoptOptions,
+                                artdCancellationSignal);
+                    } finally {
+                        targetRunner.releaseArtdCancellationSignal(artdCancellationSignal);
+                    }
+                    status = dexoptResult.cancelled ? DexoptResult.DEXOPT_CANCELLED
+                                                    : DexoptResult.DEXOPT_PERFORMED;
+                    wallTimeMs = dexoptResult.wallTimeMs;
+                    cpuTimeMs = dexoptResult.cpuTimeMs;
+                    sizeBytes = dexoptResult.sizeBytes;
+                    sizeBeforeBytes = dexoptResult.sizeBeforeBytes;
+                }
+            }
+        } catch (ServiceSpecificException e) {
+            // Log the error and continue.
+            Log.e(TAG,
+                    String.format("Failed to dexopt [packageName = %s, dexPath = %s, "
+                                    + "isa = %s, classLoaderContext = %s]",
+                            mPkgState.getPackageName(), dexInfo.dexPath(), abi.isa(),
+                            dexInfo.classLoaderContext()),
+                    e);
+            status = DexoptResult.DEXOPT_FAILED;
+        }
+
+        var result = DexContainerFileDexoptResult.create(dexInfo.dexPath(), abi.isPrimaryAbi(),
+                abi.name(), target.compilerFilter(), status, wallTimeMs, cpuTimeMs, sizeBytes,
+                sizeBeforeBytes, isSkippedDueToStorageLow);
+        Log.i(TAG,
+                String.format("Dexopt result: [packageName = %s] %s", mPkgState.getPackageName(),
+                        result));
+        return result;
+    }
+
+    private boolean isStorageLow() {
+        if ((mParams.getFlags() & ArtFlags.FLAG_SKIP_IF_STORAGE_LOW) == 0) {
+            return false;
+        }
+        try (var span = mInjector.getDexoptLatencyStats().startSpan(
+                     DexoptLatencyStats.PHASE_STORAGE_CHECK)) {
+            // `StorageManager.getAllocatableBytes` returns (free space + space used by clearable
+            // cache - low storage threshold). Since we only compare the result with 0, the
+            // clearable cache doesn't make a difference. When the free space is below the
+            // threshold, there should be no clearable cache left because system cleans up cache
+            // every minute.
+            return mInjector.getStorageManager().getAllocatableBytes(mPkg.getStorageUuid()) <= 0;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to check storage. Assuming storage not low", e);
+            return false;
+        }
     }
 
     @NonNull
@@ -342,15 +493,22 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
     @Nullable
     private Pair<ProfilePath, Boolean> getOrInitReferenceProfile(@NonNull DexInfoType dexInfo)
             throws RemoteException {
-        return Utils.getOrInitReferenceProfile(mInjector.getArtd(), dexInfo.dexPath(),
-                buildRefProfilePath(dexInfo), getExternalProfiles(dexInfo),
-                buildOutputProfile(dexInfo, true /* isPublic */));
+        try (var span = mInjector.getDexoptLatencyStats().startSpan(
+                     DexoptLatencyStats.PHASE_PROFILE_INIT)) {
+            return Utils.getOrInitReferenceProfile(mInjector.getArtd(), dexInfo.dexPath(),
+                    buildRefProfilePath(dexInfo), getExternalProfiles(dexInfo),
+                    buildOutputProfile(dexInfo, true /* isPublic */));
+        }
     }
 
     @Nullable
     private ProfilePath initReferenceProfile(@NonNull DexInfoType dexInfo) throws RemoteException {
-        return Utils.initReferenceProfile(mInjector.getArtd(), dexInfo.dexPath(),
-                getExternalProfiles(dexInfo), buildOutputProfile(dexInfo, true /* isPublic */));
+        try (var span = mInjector.getDexoptLatencyStats().startSpan(
+                     DexoptLatencyStats.PHASE_PROFILE_INIT)) {
+            return Utils.initReferenceProfile(mInjector.getArtd(), dexInfo.dexPath(),
+                    getExternalProfiles(dexInfo),
+                    buildOutputProfile(dexInfo, true /* isPublic */));
+        }
     }
 
     @NonNull
@@ -384,21 +542,50 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
                 != ApplicationInfo.HIDDEN_API_ENFORCEMENT_DISABLED;
     }
 
+    /**
+     * Checks if dexopt is needed for the targets, with a single call to artd, which checks them in
+     * parallel. A failure to check a target is reported by {@code errorMessage} in its result.
+     */
     @NonNull
-    GetDexoptNeededResult getDexoptNeeded(@NonNull DexoptTarget<DexInfoType> target,
+    List<GetDexoptNeededResult> getDexoptNeeded(@NonNull List<DexoptTarget<DexInfoType>> targets,
             @NonNull GetDexoptNeededOptions options) throws RemoteException {
-        int dexoptTrigger = getDexoptTrigger(target, options);
+        var results = new GetDexoptNeededResult[targets.size()];
+        List<GetDexoptNeededResult.Query> queries = new ArrayList<>();
+        List<Integer> queryIndexes = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            DexoptTarget<DexInfoType> target = targets.get(i);
+            var query = new GetDexoptNeededResult.Query();
+            try {
+                query.dexoptTrigger = getDexoptTrigger(target, options);
+            } catch (ServiceSpecificException e) {
+                results[i] = new GetDexoptNeededResult();
+                results[i].errorMessage = "Failed to get dexopt trigger: " + e.getMessage();
+                continue;
+            }
+
+            // The result should come from artd even if all the bits of `dexoptTrigger` are set
+            // because the result also contains information about the usable VDEX file.
+            // Note that the class loader context can be null. In that case, we intentionally pass
+            // the null value down to lower levels to indicate that the class loader context check
+            // should be skipped because we are only going to verify the dex code (see
+            // `adjustCompilerFilter`).
+            query.dexFile = target.dexInfo().dexPath();
+            query.instructionSet = target.isa();
+            query.classLoaderContext = target.dexInfo().classLoaderContext();
+            query.compilerFilter = target.compilerFilter();
+            queries.add(query);
+            queryIndexes.add(i);
+        }
 
-        // The result should come from artd even if all the bits of `dexoptTrigger` are set
-        // because the result also contains information about the usable VDEX file.
-        // Note that the class loader context can be null. In that case, we intentionally pass the
-        // null value down to lower levels to indicate that the class loader context check should be
-        // skipped because we are only going to verify the dex code (see `adjustCompilerFilter`).
-        GetDexoptNeededResult result = mInjector.getArtd().getDexoptNeeded(
-                target.dexInfo().dexPath(), target.isa(), target.dexInfo().classLoaderContext(),
-                target.compilerFilter(), dexoptTrigger);
+        if (!queries.isEmpty()) {
+            List<GetDexoptNeededResult> queryResults =
+                    mInjector.getArtd().batchGetDexoptNeeded(queries);
+            for (int i = 0; i < queryIndexes.size(); i++) {
+                results[queryIndexes.get(i)] = queryResults.get(i);
+            }
+        }
 
-        return result;
+        return Arrays.asList(results);
     }
 
     int getDexoptTrigger(@NonNull DexoptTarget<DexInfoType> target,
@@ -522,12 +709,29 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
     private ProfilePath mergeProfiles(@NonNull DexInfoType dexInfo,
             @Nullable ProfilePath referenceProfile) throws RemoteException {
         OutputProfile output = buildOutputProfile(dexInfo, false /* isPublic */);
+        List<ProfilePath> curProfiles = getCurProfiles(dexInfo);
+        ProfileMergeCache profileMergeCache = mInjector.getProfileMergeCache();
+
+        // Skip the merge if nothing has changed since the last merge that didn't change anything.
+        // A temporary reference profile is new every time, so it never matches.
+        Long fingerprint = null;
+        if (referenceProfile == null || referenceProfile.getTag() != ProfilePath.tmpProfilePath) {
+            fingerprint = getProfileMergeFingerprint(curProfiles, referenceProfile, dexInfo);
+            if (fingerprint != null
+                    && profileMergeCache.isNoOpMerge(dexInfo.dexPath(), fingerprint)) {
+                return null;
+            }
+        }
 
         try {
-            if (mInjector.getArtd().mergeProfiles(getCurProfiles(dexInfo), referenceProfile, output,
+            if (mInjector.getArtd().mergeProfiles(curProfiles, referenceProfile, output,
                         List.of(dexInfo.dexPath()), new MergeProfileOptions())) {
+                profileMergeCache.recordMerge(dexInfo.dexPath());
                 return ProfilePath.tmpProfilePath(output.profilePath);
             }
+            if (fingerprint != null) {
+                profileMergeCache.recordNoOpMerge(dexInfo.dexPath(), fingerprint);
+            }
         } catch (ServiceSpecificException e) {
             Log.e(TAG,
                     "Failed to merge profiles " + AidlUtils.toString(output.profilePath.finalPath),
@@ -537,6 +741,19 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
         return null;
     }
 
+    @Nullable
+    private Long getProfileMergeFingerprint(@NonNull List<ProfilePath> curProfiles,
+            @Nullable ProfilePath referenceProfile, @NonNull DexInfoType dexInfo)
+            throws RemoteException {
+        try {
+            return mInjector.getArtd().getProfileMergeFingerprint(
+                    curProfiles, referenceProfile, dexInfo.dexPath());
+        } catch (ServiceSpecificException e) {
+            Log.e(TAG, "Failed to get profile merge fingerprint for " + dexInfo.dexPath(), e);
+            return null;
+        }
+    }
+
     private void cleanupCurProfiles(@NonNull DexInfoType dexInfo) throws RemoteException {
         for (ProfilePath profile : getCurProfiles(dexInfo)) {
             mInjector.getArtd().deleteProfile(profile);
@@ -602,6 +819,136 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
      */
     @Nullable protected abstract DexMetadataPath buildDmPath(@NonNull DexInfoType dexInfo);
 
+    /** A dex file whose targets have been submitted. */
+    private class DexJob {
+        @NonNull final DexInfoType mDexInfo;
+        /** The profile to commit or clean up once all the targets are done. */
+        @Nullable final ProfilePath mProfile;
+        final boolean mProfileMerged;
+        /** The results of the targets, in the order of {@link #getAllAbis}. */
+        @NonNull
+        final List<CompletableFuture<DexContainerFileDexoptResult>> mTargetResults =
+                new ArrayList<>();
+
+        DexJob(@NonNull DexInfoType dexInfo, @Nullable ProfilePath profile,
+                boolean profileMerged) {
+            mDexInfo = dexInfo;
+            mProfile = profile;
+            mProfileMerged = profileMerged;
+        }
+
+        boolean areTargetsDone() {
+            return mTargetResults.stream().allMatch(CompletableFuture::isDone);
+        }
+
+        void awaitTargets() {
+            for (CompletableFuture<DexContainerFileDexoptResult> future : mTargetResults) {
+                try {
+                    future.join();
+                } catch (CompletionException | CancellationException e) {
+                    // The failure is reported elsewhere, if at all.
+                }
+            }
+        }
+    }
+
+    private interface TargetTask {
+        @NonNull DexContainerFileDexoptResult run() throws RemoteException;
+    }
+
+    /**
+     * Runs targets, on the current thread if the concurrency is 1, or on a pool of threads
+     * otherwise, and forwards cancellation to the artd invocations in flight. Once a target is
+     * cancelled or fails with an exception, the targets that haven't started are not run.
+     */
+    private class TargetRunner {
+        @Nullable private final ExecutorService mExecutor;
+        private volatile boolean mStopped = false;
+
+        @GuardedBy("this")
+        @NonNull
+        private final Set<IArtdCancellationSignal> mArtdCancellationSignals = new HashSet<>();
+        @GuardedBy("this") private boolean mCancelled = false;
+
+        TargetRunner(int concurrency) {
+            mExecutor = concurrency > 1 ? Executors.newFixedThreadPool(concurrency) : null;
+        }
+
+        /**
+         * Returns the future result of the task, or a future null if the task was not run because
+         * dexopt was stopped.
+         */
+        @NonNull
+        CompletableFuture<DexContainerFileDexoptResult> submit(@NonNull TargetTask task) {
+            return CompletableFuture.supplyAsync(() -> {
+                if (mStopped) {
+                    return null;
+                }
+                try {
+                    DexContainerFileDexoptResult result = task.run();
+                    if (result.getStatus() == DexoptResult.DEXOPT_CANCELLED) {
+                        mStopped = true;
+                    }
+                    return result;
+                } catch (RemoteException e) {
+                    mStopped = true;
+                    throw new CompletionException(e);
+                } catch (RuntimeException e) {
+                    mStopped = true;
+                    throw e;
+                }
+            }, mExecutor != null ? mExecutor : Runnable::run);
+        }
+
+        boolean isStopped() {
+            return mStopped;
+        }
+
+        /** Makes the targets that haven't started return null. */
+        void stop() {
+            mStopped = true;
+        }
+
+        void shutdown() {
+            if (mExecutor != null) {
+                mExecutor.shutdown();
+            }
+        }
+
+        @NonNull
+        IArtdCancellationSignal createArtdCancellationSignal() throws RemoteException {
+            IArtdCancellationSignal signal = mInjector.getArtd().createCancellationSignal();
+            synchronized (this) {
+                if (mCancelled) {
+                    cancelArtd(signal);
+                } else {
+                    mArtdCancellationSignals.add(signal);
+                }
+            }
+            return signal;
+        }
+
+        synchronized void releaseArtdCancellationSignal(@NonNull IArtdCancellationSignal signal) {
+            mArtdCancellationSignals.remove(signal);
+        }
+
+        /** Cancels the artd invocations in flight and the ones to come. */
+        synchronized void cancel() {
+            mCancelled = true;
+            for (IArtdCancellationSignal signal : mArtdCancellationSignals) {
+                cancelArtd(signal);
+            }
+        }
+
+        private void cancelArtd(@NonNull IArtdCancellationSignal signal) {
+            try {
+                signal.cancel();
+            } catch (RemoteException e) {
+                Log.e(TAG, "An error occurred when sending a cancellation signal", e);
+            }
+        }
+    }
+
     @AutoValue
     abstract static class DexoptTarget<DexInfoType extends DetailedDexInfo> {
         abstract @NonNull DexInfoType dexInfo();
@@ -690,6 +1037,16 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
             return Objects.requireNonNull(mContext.getSystemService(StorageManager.class));
         }
 
+        @NonNull
+        public ProfileMergeCache getProfileMergeCache() {
+            return ProfileMergeCache.getInstance();
+        }
+
+        @NonNull
+        public DexoptLatencyStats getDexoptLatencyStats() {
+            return DexoptLatencyStats.getInstance();
+        }
+
         @NonNull
         private PackageManagerLocal getPackageManagerLocal() {
             return Objects.requireNonNull(
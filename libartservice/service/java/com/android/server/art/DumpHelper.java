@@ -75,6 +75,10 @@ public class DumpHelper {
                 .stream()
                 .sorted(Comparator.comparing(PackageState::getPackageName))
                 .forEach(pkgState -> dumpPackage(pw, snapshot, pkgState));
+        mInjector.getDexUseManager().dumpStats(pw);
+        mInjector.getProfileMergeCache().dumpStats(pw);
+        mInjector.getBackgroundDexoptProgress().dumpStats(pw);
+        mInjector.getDexoptLatencyStats().dumpStats(pw);
     }
 
     /**
@@ -269,5 +273,20 @@ public class DumpHelper {
         public IArtd getArtd() {
             return Utils.getArtd();
         }
+
+        @NonNull
+        public ProfileMergeCache getProfileMergeCache() {
+            return ProfileMergeCache.getInstance();
+        }
+
+        @NonNull
+        public BackgroundDexoptProgress getBackgroundDexoptProgress() {
+            return BackgroundDexoptProgress.getInstance();
+        }
+
+        @NonNull
+        public DexoptLatencyStats getDexoptLatencyStats() {
+            return DexoptLatencyStats.getInstance();
+        }
     }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.art;
+
+import android.annotation.NonNull;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.art.proto.NoOpMergeProto;
+import com.android.server.art.proto.ProfileMergeCacheProto;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the profile merges that turned out to be no-ops, so that merging exactly the same
+ * inputs again can be skipped without running profman. This class is thread-safe.
+ *
+ * The inputs of a merge (the current profiles, the reference profile, and the dex file) are
+ * identified by a fingerprint from {@link IArtd#getProfileMergeFingerprint}, which artd computes
+ * from file metadata only. The data is persisted, so that dexopt right after a reboot benefits
+ * as well.
+ *
+ * @hide
+ */
+@RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+public class ProfileMergeCache {
+    private static final String FILENAME = "/data/system/package-profile-merge.pb";
+
+    /** The minimum interval between disk writes. */
+    @VisibleForTesting public static final long INTERVAL_MS = 15_000;
+
+    /** The maximum time that the debouncer can postpone a disk write for. */
+    private static final long MAX_DELAY_MS = 120_000;
+
+    /**
+     * The maximum number of entries. Entries are not removed when dex files are, so this bounds
+     * the memory and the file size.
+     */
+    private static final int MAX_ENTRIES = 10_000;
+
+    private static final Object sLock = new Object();
+    @GuardedBy("sLock") private static ProfileMergeCache sInstance = null;
+
+    @NonNull private final Injector mInjector;
+    @NonNull private final ProtoFile<ProfileMergeCacheProto> mFile;
+
+    /** The fingerprint of the last no-op merge, keyed by dex file. */
+    @NonNull private final Map<String, Long> mNoOpMergeFingerprints = new ConcurrentHashMap<>();
+
+    @NonNull private final LongAdder mCheckedCount = new LongAdder();
+    @NonNull private final LongAdder mSkippedCount = new LongAdder();
+    @NonNull private final LongAdder mMergedCount = new LongAdder();
+    @NonNull private final LongAdder mNoOpMergedCount = new LongAdder();
+
+    /** Returns the process-wide instance, creating it on first use. */
+    @NonNull
+    public static ProfileMergeCache getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new ProfileMergeCache(new Injector());
+            }
+            return sInstance;
+        }
+    }
+
+    /** @hide */
+    @VisibleForTesting
+    public ProfileMergeCache(@NonNull Injector injector) {
+        mInjector = injector;
+        mFile = new ProtoFile<>(mInjector.getFilename(), ProfileMergeCacheProto.parser(),
+                this::toProto, INTERVAL_MS, MAX_DELAY_MS, mInjector.getScheduledExecutor());
+        load();
+    }
+
+    /**
+     * Returns true if merging the inputs with the given fingerprint is known to be a no-op, in
+     * which case the caller should skip the merge.
+     */
+    public boolean isNoOpMerge(@NonNull String dexPath, long fingerprint) {
+        mCheckedCount.increment();
+        Long noOpMergeFingerprint = mNoOpMergeFingerprints.get(dexPath);
+        if (noOpMergeFingerprint != null && noOpMergeFingerprint == fingerprint) {
+            mSkippedCount.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records that merging the inputs with the given fingerprint was a no-op. The fingerprint must
+     * be taken before the merge, so that any change made during the merge invalidates it.
+     */
+    public void recordNoOpMerge(@NonNull String dexPath, long fingerprint) {
+        mNoOpMergedCount.increment();
+        if (mNoOpMergeFingerprints.size() >= MAX_ENTRIES) {
+            mNoOpMergeFingerprints.clear();
+        }
+        Long oldFingerprint = mNoOpMergeFingerprints.put(dexPath, fingerprint);
+        if (oldFingerprint == null || oldFingerprint != fingerprint) {
+            mFile.saveAsync();
+        }
+    }
+
+    /** Records that a merge has produced a new profile. */
+    public void recordMerge(@NonNull String dexPath) {
+        mMergedCount.increment();
+        if (mNoOpMergeFingerprints.remove(dexPath) != null) {
+            mFile.saveAsync();
+        }
+    }
+
+    /** Dumps the counters, for dumpsys. */
+    public void dumpStats(@NonNull PrintWriter pw) {
+        long checkedCount = mCheckedCount.sum();
+        long skippedCount = mSkippedCount.sum();
+        pw.println("Profile merge stats:");
+        pw.printf("  checked: %d\n", checkedCount);
+        pw.printf("  skipped: %d (%.1f%%)\n", skippedCount,
+                checkedCount > 0 ? skippedCount * 100.0 / checkedCount : 0.0);
+        pw.printf("  merged: %d\n", mMergedCount.sum());
+        pw.printf("  merged without changes: %d\n", mNoOpMergedCount.sum());
+    }
+
+    @NonNull
+    private ProfileMergeCacheProto toProto() {
+        var builder = ProfileMergeCacheProto.newBuilder();
+        for (var entry : mNoOpMergeFingerprints.entrySet()) {
+            builder.addNoOpMerge(NoOpMergeProto.newBuilder()
+                                         .setDexFile(entry.getKey())
+                                         .setFingerprint(entry.getValue()));
+        }
+        return builder.build();
+    }
+
+    private void load() {
+        ProfileMergeCacheProto proto = mFile.load();
+        if (proto == null) {
+            return;
+        }
+        for (NoOpMergeProto noOpMerge : proto.getNoOpMergeList()) {
+            mNoOpMergeFingerprints.put(
+                    Utils.assertNonEmpty(noOpMerge.getDexFile()), noOpMerge.getFingerprint());
+        }
+    }
+
+    /**
+     * Injector pattern for testing purpose.
+     *
+     * @hide
+     */
+    @VisibleForTesting
+    public static class Injector {
+        Injector() {}
+
+        @NonNull
+        public String getFilename() {
+            return FILENAME;
+        }
+
+        @NonNull
+        public ScheduledExecutorService getScheduledExecutor() {
+            return Debouncer.getSharedExecutor();
+        }
+    }
+}
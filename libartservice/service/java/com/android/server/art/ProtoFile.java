@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.art;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A file holding a proto that can be lost without harm, such as a cache.
+ *
+ * Writes are debounced, so that a burst of changes results in a single write. The file is replaced
+ * atomically, so that the device going down in the middle of a write leaves the previous content.
+ * This class is thread-safe.
+ *
+ * @hide
+ */
+public class ProtoFile<T extends MessageLite> {
+    private static final String TAG = ArtManagerLocal.TAG;
+
+    @NonNull private final String mFilename;
+    @NonNull private final Parser<T> mParser;
+    @NonNull private final Supplier<T> mContent;
+    @NonNull private final Debouncer mDebouncer;
+
+    @NonNull private final AtomicInteger mRevision = new AtomicInteger(0);
+    private final Object mLock = new Object();
+    @GuardedBy("mLock") private int mLastCommittedRevision = 0;
+
+    /**
+     * @param content returns the proto to write. It is called on the thread of {@code
+     *         scheduledExecutor}
+     * @param intervalMs see {@link Debouncer}
+     * @param maxDelayMs see {@link Debouncer}
+     */
+    public ProtoFile(@NonNull String filename, @NonNull Parser<T> parser,
+            @NonNull Supplier<T> content, long intervalMs, long maxDelayMs,
+            @NonNull ScheduledExecutorService scheduledExecutor) {
+        mFilename = filename;
+        mParser = parser;
+        mContent = content;
+        mDebouncer = new Debouncer(intervalMs, maxDelayMs, scheduledExecutor);
+    }
+
+    /** Returns the proto in the file, or null if nothing has been saved or it cannot be read. */
+    @Nullable
+    public T load() {
+        try (InputStream in = new FileInputStream(mFilename)) {
+            return mParser.parseFrom(in);
+        } catch (FileNotFoundException e) {
+            // Nothing has been saved yet.
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load " + mFilename, e);
+            return null;
+        }
+    }
+
+    /** Saves the content in the background, once changes stop coming in for a while. */
+    public void saveAsync() {
+        mRevision.incrementAndGet();
+        mDebouncer.maybeRunAsync(this::save);
+    }
+
+    private void save() {
+        synchronized (mLock) {
+            int thisRevision = mRevision.get();
+            if (thisRevision <= mLastCommittedRevision) {
+                return;
+            }
+            T content = mContent.get();
+            var file = new File(mFilename);
+            File tempFile = null;
+            try {
+                tempFile =
+                        File.createTempFile(file.getName(), null /* suffix */, file.getParentFile());
+                try (OutputStream out = new FileOutputStream(tempFile.getPath())) {
+                    content.writeTo(out);
+                }
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                mLastCommittedRevision = thisRevision;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save " + mFilename, e);
+            } finally {
+                Utils.deleteIfExistsSafe(tempFile);
+            }
+        }
+    }
+}
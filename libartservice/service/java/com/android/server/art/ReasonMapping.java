@@ -187,13 +187,28 @@ public class ReasonMapping {
     }
 
     /**
-     * Loads the concurrency from the system property, for batch dexopt ({@link
+     * Loads the maximum concurrency from the system property, for batch dexopt ({@link
      * ArtManagerLocal#dexoptPackages}), or 1 if the system property is not found or cannot be
      * parsed.
      *
+     * The actual concurrency may be lower at runtime, depending on the CPU load and the thermal
+     * status (see {@link DexoptScheduler}).
+     *
      * @hide
      */
     public static int getConcurrencyForReason(@NonNull @BatchDexoptReason String reason) {
         return SystemProperties.getInt("pm.dexopt." + reason + ".concurrency", 1 /* def */);
     }
+
+    /**
+     * Loads from the system property the number of targets (dex file, ABI) of the same package
+     * that can be dexopted concurrently for the given reason, or returns 1 if the system property
+     * is not found or cannot be parsed.
+     *
+     * @hide
+     */
+    public static int getIntraPackageConcurrencyForReason(@NonNull String reason) {
+        return SystemProperties.getInt(
+                "pm.dexopt." + reason + ".intra_package_concurrency", 1 /* def */);
+    }
 }
@@ -23,12 +23,16 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyBoolean;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.isNull;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.notNull;
 import static org.mockito.Mockito.same;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import android.app.job.JobInfo;
@@ -56,9 +60,11 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
+import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
 
 @SmallTest
 @RunWith(AndroidJUnit4.class)
@@ -77,6 +83,7 @@ public class BackgroundDexoptJobTest {
     @Mock private DexoptResult mDexoptResult;
     @Mock private BackgroundDexoptJobService mJobService;
     @Mock private JobParameters mJobParameters;
+    @Mock private BackgroundDexoptProgress mBackgroundDexoptProgress;
     private Config mConfig;
     private BackgroundDexoptJob mBackgroundDexoptJob;
     private Semaphore mJobFinishedCalled = new Semaphore(0);
@@ -95,6 +102,10 @@ public class BackgroundDexoptJobTest {
         lenient().when(mInjector.getPackageManagerLocal()).thenReturn(mPackageManagerLocal);
         lenient().when(mInjector.getConfig()).thenReturn(mConfig);
         lenient().when(mInjector.getJobScheduler()).thenReturn(mJobScheduler);
+        lenient()
+                .when(mInjector.getBackgroundDexoptProgress())
+                .thenReturn(mBackgroundDexoptProgress);
+        lenient().when(mInjector.getDexoptLatencyStats()).thenReturn(new DexoptLatencyStats());
 
         mBackgroundDexoptJob = new BackgroundDexoptJob(mInjector);
         lenient().when(BackgroundDexoptJobService.getJob()).thenReturn(mBackgroundDexoptJob);
@@ -114,8 +125,8 @@ public class BackgroundDexoptJobTest {
 
     @Test
     public void testStart() {
-        when(mArtManagerLocal.dexoptPackages(
-                     same(mSnapshot), eq(ReasonMapping.REASON_BG_DEXOPT), any(), any(), any()))
+        when(mArtManagerLocal.dexoptPackages(same(mSnapshot),
+                     eq(ReasonMapping.REASON_BG_DEXOPT), any(), any(), any(), any()))
                 .thenReturn(mDexoptResult);
 
         Result result = Utils.getFuture(mBackgroundDexoptJob.start());
@@ -123,12 +134,38 @@ public class BackgroundDexoptJobTest {
         assertThat(((CompletedResult) result).dexoptResult()).isSameInstanceAs(mDexoptResult);
 
         verify(mArtManagerLocal).cleanup(same(mSnapshot));
+
+        // An explicit start dexopts all packages and doesn't touch the progress of the scheduled
+        // runs.
+        verify(mArtManagerLocal)
+                .dexoptPackages(any(), any(), any(), any(), any(), isNull() /* packageSelector */);
+        verifyNoMoreInteractions(mBackgroundDexoptProgress);
+    }
+
+    @Test
+    public void testStartScheduled() throws Exception {
+        List<String> packages = List.of("foo", "bar");
+        when(mBackgroundDexoptProgress.selectPackages(packages)).thenReturn(List.of("foo"));
+        when(mArtManagerLocal.dexoptPackages(same(mSnapshot),
+                     eq(ReasonMapping.REASON_BG_DEXOPT), any(), any(), any(), notNull()))
+                .thenAnswer(invocation -> {
+                    UnaryOperator<List<String>> packageSelector = invocation.getArgument(5);
+                    assertThat(packageSelector.apply(packages)).containsExactly("foo");
+                    return mDexoptResult;
+                });
+
+        mBackgroundDexoptJob.onStartJob(mJobService, mJobParameters);
+        assertThat(mJobFinishedCalled.tryAcquire(TIMEOUT_SEC, TimeUnit.SECONDS)).isTrue();
+
+        verify(mBackgroundDexoptProgress).selectPackages(packages);
+        verify(mBackgroundDexoptProgress)
+                .recordWindow(same(mDexoptResult), anyLong(), eq(false) /* stopped */);
     }
 
     @Test
     public void testStartAlreadyRunning() {
         Semaphore dexoptDone = new Semaphore(0);
-        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any()))
+        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any(), any()))
                 .thenAnswer(invocation -> {
                     assertThat(dexoptDone.tryAcquire(TIMEOUT_SEC, TimeUnit.SECONDS)).isTrue();
                     return mDexoptResult;
@@ -141,12 +178,12 @@ public class BackgroundDexoptJobTest {
         dexoptDone.release();
         Utils.getFuture(future1);
 
-        verify(mArtManagerLocal, times(1)).dexoptPackages(any(), any(), any(), any(), any());
+        verify(mArtManagerLocal, times(1)).dexoptPackages(any(), any(), any(), any(), any(), any());
     }
 
     @Test
     public void testStartAnother() {
-        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any()))
+        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any(), any()))
                 .thenReturn(mDexoptResult);
 
         Future<Result> future1 = mBackgroundDexoptJob.start();
@@ -158,7 +195,7 @@ public class BackgroundDexoptJobTest {
 
     @Test
     public void testStartFatalError() {
-        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any()))
+        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any(), any()))
                 .thenThrow(IllegalStateException.class);
 
         Result result = Utils.getFuture(mBackgroundDexoptJob.start());
@@ -171,7 +208,7 @@ public class BackgroundDexoptJobTest {
                 .when(SystemProperties.getBoolean(eq("pm.dexopt.disable_bg_dexopt"), anyBoolean()))
                 .thenReturn(true);
 
-        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any()))
+        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any(), any()))
                 .thenReturn(mDexoptResult);
 
         // The `start` method should ignore the system property. The system property is for
@@ -182,7 +219,7 @@ public class BackgroundDexoptJobTest {
     @Test
     public void testCancel() {
         Semaphore dexoptCancelled = new Semaphore(0);
-        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any()))
+        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any(), any()))
                 .thenAnswer(invocation -> {
                     assertThat(dexoptCancelled.tryAcquire(TIMEOUT_SEC, TimeUnit.SECONDS)).isTrue();
                     var cancellationSignal = invocation.<CancellationSignal>getArgument(2);
@@ -274,7 +311,7 @@ public class BackgroundDexoptJobTest {
     @Test
     public void testWantsRescheduleFalsePerformed() throws Exception {
         when(mDexoptResult.getFinalStatus()).thenReturn(DexoptResult.DEXOPT_PERFORMED);
-        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any()))
+        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any(), any()))
                 .thenReturn(mDexoptResult);
 
         mBackgroundDexoptJob.onStartJob(mJobService, mJobParameters);
@@ -285,7 +322,7 @@ public class BackgroundDexoptJobTest {
 
     @Test
     public void testWantsRescheduleFalseFatalError() throws Exception {
-        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any()))
+        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any(), any()))
                 .thenThrow(RuntimeException.class);
 
         mBackgroundDexoptJob.onStartJob(mJobService, mJobParameters);
@@ -297,7 +334,7 @@ public class BackgroundDexoptJobTest {
     @Test
     public void testWantsRescheduleTrue() throws Exception {
         when(mDexoptResult.getFinalStatus()).thenReturn(DexoptResult.DEXOPT_CANCELLED);
-        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any()))
+        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any(), any()))
                 .thenReturn(mDexoptResult);
 
         mBackgroundDexoptJob.onStartJob(mJobService, mJobParameters);
@@ -305,4 +342,38 @@ public class BackgroundDexoptJobTest {
 
         verify(mJobService).jobFinished(any(), eq(true) /* wantsReschedule */);
     }
+
+    @Test
+    public void testWantsRescheduleTruePendingPackages() throws Exception {
+        when(mDexoptResult.getFinalStatus()).thenReturn(DexoptResult.DEXOPT_PERFORMED);
+        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any(), any()))
+                .thenReturn(mDexoptResult);
+        when(mBackgroundDexoptProgress.recordWindow(any(), anyLong(), anyBoolean()))
+                .thenReturn(true);
+
+        mBackgroundDexoptJob.onStartJob(mJobService, mJobParameters);
+        assertThat(mJobFinishedCalled.tryAcquire(TIMEOUT_SEC, TimeUnit.SECONDS)).isTrue();
+
+        verify(mJobService).jobFinished(any(), eq(true) /* wantsReschedule */);
+    }
+
+    @Test
+    public void testRecordStoppedWindow() throws Exception {
+        Semaphore dexoptCancelled = new Semaphore(0);
+        when(mDexoptResult.getFinalStatus()).thenReturn(DexoptResult.DEXOPT_CANCELLED);
+        when(mArtManagerLocal.dexoptPackages(any(), any(), any(), any(), any(), any()))
+                .thenAnswer(invocation -> {
+                    assertThat(dexoptCancelled.tryAcquire(TIMEOUT_SEC, TimeUnit.SECONDS)).isTrue();
+                    return mDexoptResult;
+                });
+
+        mBackgroundDexoptJob.onStartJob(mJobService, mJobParameters);
+        Future<Result> future = mBackgroundDexoptJob.get();
+        mBackgroundDexoptJob.onStopJob(mJobParameters);
+        dexoptCancelled.release();
+        Utils.getFuture(future);
+
+        verify(mBackgroundDexoptProgress)
+                .recordWindow(same(mDexoptResult), anyLong(), eq(true) /* stopped */);
+    }
 }
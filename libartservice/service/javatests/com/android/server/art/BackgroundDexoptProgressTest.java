@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.art;
+
+import static com.android.server.art.model.DexoptResult.DexContainerFileDexoptResult;
+import static com.android.server.art.model.DexoptResult.PackageDexoptResult;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.lenient;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.art.model.DexoptResult;
+import com.android.server.art.testing.MockClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+@SmallTest
+@RunWith(MockitoJUnitRunner.StrictStubs.class)
+public class BackgroundDexoptProgressTest {
+    private static final List<String> PACKAGES = List.of("a", "b", "c");
+
+    @Mock private BackgroundDexoptProgress.Injector mInjector;
+    @Mock private DexoptScheduler.CostHistory.Injector mCostHistoryInjector;
+    private long mCurrentTimeMs = 1_000_000;
+    private File mTempFile;
+    private File mCostHistoryFile;
+    private DexoptScheduler.CostHistory mCostHistory;
+    private BackgroundDexoptProgress mProgress;
+
+    @Before
+    public void setUp() throws Exception {
+        mTempFile = File.createTempFile("background-dexopt-progress", ".pb");
+        mTempFile.deleteOnExit();
+        // Start without any saved progress.
+        mTempFile.delete();
+
+        lenient().when(mInjector.getFilename()).thenReturn(mTempFile.getPath());
+        lenient()
+                .when(mInjector.getCurrentTimeMillis())
+                .thenAnswer(invocation -> mCurrentTimeMs);
+        lenient().when(mInjector.getConcurrency()).thenReturn(1);
+
+        mCostHistoryFile = File.createTempFile("package-dexopt-cost", ".pb");
+        mCostHistoryFile.deleteOnExit();
+        mCostHistoryFile.delete();
+        lenient()
+                .when(mCostHistoryInjector.getFilename())
+                .thenReturn(mCostHistoryFile.getPath());
+        lenient()
+                .when(mCostHistoryInjector.getScheduledExecutor())
+                .thenAnswer(invocation -> new MockClock().createScheduledExecutor());
+        mCostHistory = new DexoptScheduler.CostHistory(mCostHistoryInjector);
+        lenient().when(mInjector.getCostHistory()).thenReturn(mCostHistory);
+
+        mProgress = new BackgroundDexoptProgress(mInjector);
+    }
+
+    @Test
+    public void testSelectAllWithoutHistory() {
+        assertThat(mProgress.selectPackages(PACKAGES)).containsExactly("a", "b", "c").inOrder();
+    }
+
+    @Test
+    public void testResume() {
+        assertThat(mProgress.selectPackages(PACKAGES)).containsExactly("a", "b", "c").inOrder();
+        DexoptResult result =
+                createResult(createPackageResult("a", DexoptResult.DEXOPT_PERFORMED, 500),
+                        createPackageResult("b", DexoptResult.DEXOPT_CANCELLED, 0),
+                        createPackageResult("c", DexoptResult.DEXOPT_CANCELLED, 0));
+        assertThat(recordWindow(result, 1000 /* durationMs */, true /* stopped */))
+                .isTrue();
+
+        // Reload to verify that the progress is persisted.
+        mProgress = new BackgroundDexoptProgress(mInjector);
+
+        // The budget is 800ms (80% of the stopped window). "b" is always selected, as the first
+        // pending package. Its cost is unknown and assumed to be the average (500ms), so "c",
+        // whose cost is also unknown, doesn't fit.
+        assertThat(mProgress.selectPackages(PACKAGES)).containsExactly("b");
+        result = createResult(createPackageResult("b", DexoptResult.DEXOPT_PERFORMED, 100));
+        assertThat(recordWindow(result, 200 /* durationMs */, false /* stopped */))
+                .isTrue();
+
+        assertThat(mProgress.selectPackages(PACKAGES)).containsExactly("c");
+        result = createResult(createPackageResult("c", DexoptResult.DEXOPT_SKIPPED, 0));
+        assertThat(recordWindow(result, 10 /* durationMs */, false /* stopped */))
+                .isFalse();
+
+        // The cycle is complete, so a new one starts. "c" didn't run dex2oat, so its cost is still
+        // unknown and assumed to be the average of "a" and "b" (300ms), which doesn't fit in what
+        // is left of the budget after "a" and "b".
+        assertThat(mProgress.selectPackages(PACKAGES)).containsExactly("a", "b").inOrder();
+    }
+
+    @Test
+    public void testPackWithConcurrency() {
+        lenient().when(mInjector.getConcurrency()).thenReturn(2);
+
+        mProgress.selectPackages(PACKAGES);
+        recordWindow(
+                createResult(createPackageResult("a", DexoptResult.DEXOPT_PERFORMED, 1000),
+                        createPackageResult("b", DexoptResult.DEXOPT_PERFORMED, 1000),
+                        createPackageResult("c", DexoptResult.DEXOPT_PERFORMED, 1000)),
+                1000 /* durationMs */, false /* stopped */);
+        mProgress.selectPackages(PACKAGES);
+        recordWindow(
+                createResult(createPackageResult("a", DexoptResult.DEXOPT_CANCELLED, 0),
+                        createPackageResult("b", DexoptResult.DEXOPT_CANCELLED, 0),
+                        createPackageResult("c", DexoptResult.DEXOPT_CANCELLED, 0)),
+                1000 /* durationMs */, true /* stopped */);
+
+        // The budget is 1600ms (80% of the stopped window, times 2).
+        assertThat(mProgress.selectPackages(PACKAGES)).containsExactly("a");
+    }
+
+    @Test
+    public void testCycleExpired() {
+        mProgress.selectPackages(PACKAGES);
+        recordWindow(
+                createResult(createPackageResult("a", DexoptResult.DEXOPT_PERFORMED, 500)),
+                1000 /* durationMs */, false /* stopped */);
+        assertThat(mProgress.selectPackages(PACKAGES)).containsExactly("b", "c").inOrder();
+
+        mCurrentTimeMs += BackgroundDexoptProgress.MAX_CYCLE_DURATION_MS + 1;
+        assertThat(mProgress.selectPackages(PACKAGES)).containsExactly("a", "b", "c").inOrder();
+    }
+
+    @Test
+    public void testDumpStats() {
+        mProgress.selectPackages(PACKAGES);
+        recordWindow(
+                createResult(createPackageResult("a", DexoptResult.DEXOPT_PERFORMED, 500),
+                        createPackageResult("b", DexoptResult.DEXOPT_CANCELLED, 0),
+                        createPackageResult("c", DexoptResult.DEXOPT_CANCELLED, 0)),
+                1000 /* durationMs */, true /* stopped */);
+
+        var stringWriter = new StringWriter();
+        mProgress.dumpStats(new PrintWriter(stringWriter));
+        assertThat(stringWriter.toString())
+                .isEqualTo("Background dexopt stats:\n"
+                        + "  current cycle: 1 done, 2 pending\n"
+                        + "  dex2oat budget per window: 800 ms\n"
+                        + "  recent windows:\n"
+                        + "    1000 ms, 1/3 packages, 500 ms dex2oat, 60.0 packages/min,"
+                        + " stopped\n");
+    }
+
+    /**
+     * Records the costs in the cost history, as {@link DexoptScheduler} does when dexopting each
+     * package, and then ends the window.
+     */
+    private boolean recordWindow(DexoptResult result, long durationMs, boolean stopped) {
+        for (PackageDexoptResult packageResult : result.getPackageDexoptResults()) {
+            mCostHistory.record(0 /* dexSizeBytes */, packageResult);
+        }
+        return mProgress.recordWindow(result, durationMs, stopped);
+    }
+
+    private DexoptResult createResult(PackageDexoptResult... packageResults) {
+        return DexoptResult.create(
+                "speed-profile", ReasonMapping.REASON_BG_DEXOPT, List.of(packageResults));
+    }
+
+    private PackageDexoptResult createPackageResult(
+            String packageName, int status, long dex2oatWallTimeMillis) {
+        return PackageDexoptResult.create(packageName,
+                List.of(DexContainerFileDexoptResult.create(
+                        "/data/app/" + packageName + "/base.apk", true /* isPrimaryAbi */,
+                        "arm64-v8a", "speed-profile", status, dex2oatWallTimeMillis,
+                        dex2oatWallTimeMillis /* dex2oatCpuTimeMillis */, 0 /* sizeBytes */,
+                        0 /* sizeBeforeBytes */, false /* isSkippedDueToStorageLow */)),
+                null /* packageLevelStatus */);
+    }
+}
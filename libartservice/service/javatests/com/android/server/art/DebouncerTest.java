@@ -42,8 +42,8 @@ public class DebouncerTest {
     @Before
     public void setUp() throws Exception {
         mMockClock = new MockClock();
-        mDebouncer =
-                new Debouncer(100 /* intervalMs */, () -> mMockClock.createScheduledExecutor());
+        mDebouncer = new Debouncer(100 /* intervalMs */, 1000 /* maxDelayMs */,
+                mMockClock.createScheduledExecutor());
     }
 
     @Test
@@ -62,4 +62,22 @@ public class DebouncerTest {
 
         assertThat(list).containsExactly(2, 5).inOrder();
     }
+
+    @Test
+    public void testMaxDelay() throws Exception {
+        List<Integer> list = new ArrayList<>();
+
+        // Keep postponing the command.
+        for (int i = 0; i < 20; i++) {
+            int value = i;
+            mDebouncer.maybeRunAsync(() -> list.add(value));
+            mMockClock.advanceTime(99);
+        }
+
+        // The latest command at the deadline has run, and the deadline is reset afterwards.
+        assertThat(list).containsExactly(10);
+
+        mMockClock.advanceTime(1000);
+        assertThat(list).containsExactly(10, 19).inOrder();
+    }
 }
@@ -28,6 +28,8 @@ import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.BroadcastReceiver;
@@ -63,13 +65,19 @@ import org.mockito.Mock;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @SmallTest
 @RunWith(AndroidJUnit4.class)
@@ -102,6 +110,7 @@ public class DexUseManagerTest {
     private MockClock mMockClock;
     private ArgumentCaptor<BroadcastReceiver> mBroadcastReceiverCaptor;
     private File mTempFile;
+    private File mJournalFile;
     private Map<String, PackageState> mPackageStates;
 
     @Before
@@ -146,12 +155,14 @@ public class DexUseManagerTest {
 
         mTempFile = File.createTempFile("package-dex-usage", ".pb");
         mTempFile.deleteOnExit();
+        mJournalFile = new File(mTempFile.getPath() + ".journal");
+        mJournalFile.deleteOnExit();
 
         lenient().when(mInjector.getArtd()).thenReturn(mArtd);
         lenient().when(mInjector.getCurrentTimeMillis()).thenReturn(0l);
         lenient().when(mInjector.getFilename()).thenReturn(mTempFile.getPath());
         lenient()
-                .when(mInjector.createScheduledExecutor())
+                .when(mInjector.getScheduledExecutor())
                 .thenAnswer(invocation -> mMockClock.createScheduledExecutor());
         lenient().when(mInjector.getContext()).thenReturn(mContext);
         lenient().when(mInjector.getAllPackageNames()).thenReturn(mPackageStates.keySet());
@@ -728,6 +739,161 @@ public class DexUseManagerTest {
                         true /* isUsedByOtherApps */, mDefaultIsDexFilePublic));
     }
 
+    @Test
+    public void testJournal() throws Exception {
+        when(mInjector.getCurrentTimeMillis()).thenReturn(1000l);
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(BASE_APK, "CLC", mCeDir + "/foo.apk", "CLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+
+        when(mInjector.getCurrentTimeMillis()).thenReturn(2000l);
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, LOADING_PKG_NAME, Map.of(mCeDir + "/foo.apk", "CLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+
+        // The changes are only appended to the journal. The snapshot is not rewritten.
+        assertThat(mTempFile.length()).isEqualTo(0);
+        long journalSize = mJournalFile.length();
+        assertThat(journalSize).isGreaterThan(0);
+
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, LOADING_PKG_NAME, Map.of(mCeDir + "/foo.apk", "UpdatedCLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+        assertThat(mJournalFile.length()).isGreaterThan(journalSize);
+
+        mDexUseManager = new DexUseManagerLocal(mInjector);
+
+        assertThat(mDexUseManager.getPrimaryDexLoaders(OWNING_PKG_NAME, BASE_APK))
+                .containsExactly(DexLoader.create(OWNING_PKG_NAME, false /* isolatedProcess */));
+        assertThat(mDexUseManager.getSecondaryClassLoaderContext(OWNING_PKG_NAME,
+                           mCeDir + "/foo.apk",
+                           DexLoader.create(OWNING_PKG_NAME, false /* isolatedProcess */)))
+                .isEqualTo("CLC");
+        assertThat(mDexUseManager.getSecondaryClassLoaderContext(OWNING_PKG_NAME,
+                           mCeDir + "/foo.apk",
+                           DexLoader.create(LOADING_PKG_NAME, false /* isolatedProcess */)))
+                .isEqualTo("UpdatedCLC");
+        assertThat(mDexUseManager.getPackageLastUsedAtMs(OWNING_PKG_NAME)).isEqualTo(2000l);
+    }
+
+    @Test
+    public void testJournalCorrupted() throws Exception {
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(mCeDir + "/foo.apk", "CLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+
+        // Simulate a partial write at the end of the journal.
+        try (var out = new FileOutputStream(mJournalFile, true /* append */)) {
+            out.write(new byte[] {100, 1, 2, 3});
+        }
+
+        mDexUseManager = new DexUseManagerLocal(mInjector);
+        assertThat(mDexUseManager.getSecondaryDexInfo(OWNING_PKG_NAME)).hasSize(1);
+
+        // The next save rewrites the snapshot instead of appending to the corrupted journal.
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(mCeDir + "/bar.apk", "CLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+        assertThat(mJournalFile.exists()).isFalse();
+        assertThat(mTempFile.length()).isGreaterThan(0);
+
+        mDexUseManager = new DexUseManagerLocal(mInjector);
+        assertThat(mDexUseManager.getSecondaryDexInfo(OWNING_PKG_NAME)).hasSize(2);
+    }
+
+    @Test
+    public void testUnchangedDexUse() throws Exception {
+        when(mInjector.getCurrentTimeMillis()).thenReturn(1000l);
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, LOADING_PKG_NAME, Map.of(BASE_APK, "CLC"));
+        when(mInjector.getCurrentTimeMillis()).thenReturn(2000l);
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, LOADING_PKG_NAME, Map.of(BASE_APK, "CLC"));
+
+        // The owning package is only looked up the first time.
+        verify(mSnapshot, times(1)).getPackageStates();
+        assertThat(mDexUseManager.getPrimaryDexLoaders(OWNING_PKG_NAME, BASE_APK))
+                .containsExactly(DexLoader.create(LOADING_PKG_NAME, false /* isolatedProcess */));
+        assertThat(mDexUseManager.getPackageLastUsedAtMs(OWNING_PKG_NAME)).isEqualTo(2000l);
+
+        // The change of the last used time is still saved.
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+        mDexUseManager = new DexUseManagerLocal(mInjector);
+        assertThat(mDexUseManager.getPackageLastUsedAtMs(OWNING_PKG_NAME)).isEqualTo(2000l);
+    }
+
+    @Test
+    public void testUnchangedDexUseStats() throws Exception {
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(BASE_APK, "CLC", SPLIT_APK, "CLC"));
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(BASE_APK, "CLC"));
+
+        var stringWriter = new StringWriter();
+        mDexUseManager.dumpStats(new PrintWriter(stringWriter));
+        assertThat(stringWriter.toString()).contains("notified dex files: 3");
+        assertThat(stringWriter.toString()).contains("unchanged: 1 (33.3%)");
+        assertThat(stringWriter.toString()).contains("updated: 2");
+    }
+
+    @Test
+    public void testSecondaryDexClassLoaderContextChangedBack() throws Exception {
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(mCeDir + "/foo.apk", "CLC"));
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(mCeDir + "/foo.apk", "UpdatedCLC"));
+        // This is no longer the same as the record, even though it was reported before.
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(mCeDir + "/foo.apk", "CLC"));
+
+        assertThat(mDexUseManager.getSecondaryClassLoaderContext(OWNING_PKG_NAME,
+                           mCeDir + "/foo.apk",
+                           DexLoader.create(OWNING_PKG_NAME, false /* isolatedProcess */)))
+                .isEqualTo("CLC");
+    }
+
+    @Test
+    public void testConcurrentNotify() throws Exception {
+        List<String> packageNames = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String packageName = "com.example.package" + i;
+            addPackage(packageName, createPackageState(packageName, "arm64-v8a"));
+            packageNames.add(packageName);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                // Each package loads its own base APK and the owning package's base APK.
+                String packageName = packageNames.get(i % packageNames.size());
+                futures.add(executor.submit(
+                        ()
+                                -> mDexUseManager.notifyDexContainersLoaded(mSnapshot,
+                                        packageName,
+                                        Map.of("/data/app/" + packageName + "/base.apk", "CLC",
+                                                BASE_APK, "CLC"))));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (String packageName : packageNames) {
+            assertThat(mDexUseManager.getPrimaryDexLoaders(
+                               packageName, "/data/app/" + packageName + "/base.apk"))
+                    .containsExactly(DexLoader.create(packageName, false /* isolatedProcess */));
+        }
+        assertThat(mDexUseManager.getPrimaryDexLoaders(OWNING_PKG_NAME, BASE_APK))
+                .containsExactlyElementsIn(packageNames.stream()
+                                                   .map(packageName
+                                                           -> DexLoader.create(packageName,
+                                                                   false /* isolatedProcess */))
+                                                   .toArray());
+    }
+
     private AndroidPackage createPackage(String packageName) {
         AndroidPackage pkg = mock(AndroidPackage.class);
         lenient().when(pkg.getStorageUuid()).thenReturn(StorageManager.UUID_DEFAULT);
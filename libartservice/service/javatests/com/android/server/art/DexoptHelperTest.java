@@ -50,6 +50,7 @@ import com.android.server.art.model.Config;
 import com.android.server.art.model.DexoptParams;
 import com.android.server.art.model.DexoptResult;
 import com.android.server.art.model.OperationProgress;
+import com.android.server.art.testing.MockClock;
 import com.android.server.art.testing.StaticMockitoRule;
 import com.android.server.pm.PackageManagerLocal;
 import com.android.server.pm.pkg.AndroidPackage;
@@ -65,6 +66,9 @@ import org.junit.runner.RunWith;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
@@ -93,6 +97,8 @@ public class DexoptHelperTest {
     public StaticMockitoRule mockitoRule = new StaticMockitoRule(PackageStateModulesUtils.class);
 
     @Mock private DexoptHelper.Injector mInjector;
+    @Mock private DexoptScheduler.Injector mSchedulerInjector;
+    @Mock private DexoptScheduler.CostHistory.Injector mCostHistoryInjector;
     @Mock private PrimaryDexopter mPrimaryDexopter;
     @Mock private SecondaryDexopter mSecondaryDexopter;
     @Mock private AppHibernationManager mAhm;
@@ -118,6 +124,7 @@ public class DexoptHelperTest {
     private Config mConfig;
     private DexoptParams mParams;
     private List<String> mRequestedPackages;
+    private DexoptLatencyStats mLatencyStats;
     private DexoptHelper mDexoptHelper;
 
     @Before
@@ -163,6 +170,25 @@ public class DexoptHelperTest {
         lenient().when(mInjector.getAppHibernationManager()).thenReturn(mAhm);
         lenient().when(mInjector.getPowerManager()).thenReturn(mPowerManager);
         lenient().when(mInjector.getConfig()).thenReturn(mConfig);
+        lenient()
+                .when(mInjector.getDexoptScheduler())
+                .thenAnswer(invocation -> new DexoptScheduler(mSchedulerInjector));
+        mLatencyStats = new DexoptLatencyStats();
+        lenient().when(mInjector.getDexoptLatencyStats()).thenReturn(mLatencyStats);
+
+        File costHistoryFile = File.createTempFile("package-dexopt-cost", ".pb");
+        costHistoryFile.deleteOnExit();
+        costHistoryFile.delete();
+        lenient()
+                .when(mCostHistoryInjector.getFilename())
+                .thenReturn(costHistoryFile.getPath());
+        lenient()
+                .when(mCostHistoryInjector.getScheduledExecutor())
+                .thenAnswer(invocation -> new MockClock().createScheduledExecutor());
+        lenient()
+                .when(mSchedulerInjector.getCostHistory())
+                .thenReturn(new DexoptScheduler.CostHistory(mCostHistoryInjector));
+        lenient().when(mSchedulerInjector.getLoadAverage()).thenReturn(-1.0);
 
         mDexoptHelper = new DexoptHelper(mInjector);
     }
@@ -243,6 +269,17 @@ public class DexoptHelperTest {
         verifyNoMoreInteractions(mWakeLock);
     }
 
+    @Test
+    public void testDexoptRecordsLatency() throws Exception {
+        mDexoptHelper.dexopt(
+                mSnapshot, mRequestedPackages, mParams, mCancellationSignal, mExecutor);
+
+        var stringWriter = new StringWriter();
+        mLatencyStats.dumpStats(new PrintWriter(stringWriter));
+        assertThat(stringWriter.toString()).contains("  package: count=6,");
+        assertThat(stringWriter.toString()).contains("  batch: count=1,");
+    }
+
     @Test
     public void testDexoptNoDependencies() throws Exception {
         mParams = new DexoptParams.Builder("install")
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.art;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.art.DexoptLatencyStats.Histogram;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@SmallTest
+@RunWith(MockitoJUnitRunner.StrictStubs.class)
+public class DexoptLatencyStatsTest {
+    private DexoptLatencyStats mLatencyStats;
+
+    @Before
+    public void setUp() throws Exception {
+        mLatencyStats = new DexoptLatencyStats();
+    }
+
+    @Test
+    public void testGetBucket() {
+        assertThat(Histogram.getBucket(0)).isEqualTo(0);
+        assertThat(Histogram.getBucket(1)).isEqualTo(1);
+        assertThat(Histogram.getBucket(2)).isEqualTo(2);
+        assertThat(Histogram.getBucket(3)).isEqualTo(2);
+        assertThat(Histogram.getBucket(1000)).isEqualTo(10);
+        assertThat(Histogram.getBucket(1024)).isEqualTo(11);
+        assertThat(Histogram.getBucket(Long.MAX_VALUE)).isEqualTo(Histogram.NUM_BUCKETS - 1);
+    }
+
+    @Test
+    public void testGetPercentile() {
+        var histogram = new Histogram();
+        histogram.record(1000);
+        histogram.record(2000);
+        histogram.record(3000);
+        histogram.record(100000);
+
+        // The upper bound of the bucket, capped at the max.
+        assertThat(histogram.getPercentileUs(0.25)).isEqualTo(1023);
+        assertThat(histogram.getPercentileUs(0.5)).isEqualTo(2047);
+        assertThat(histogram.getPercentileUs(0.75)).isEqualTo(4095);
+        assertThat(histogram.getPercentileUs(0.9)).isEqualTo(100000);
+        assertThat(histogram.getMaxUs()).isEqualTo(100000);
+    }
+
+    @Test
+    public void testSpan() {
+        try (var span = mLatencyStats.startSpan(DexoptLatencyStats.PHASE_DEX2OAT)) {
+            // Do nothing.
+        }
+
+        assertThat(dumpStats()).contains("  dex2oat: count=1,");
+    }
+
+    @Test
+    public void testDumpStats() {
+        mLatencyStats.record(DexoptLatencyStats.PHASE_PROFILE_MERGE, 1000);
+        mLatencyStats.record(DexoptLatencyStats.PHASE_PROFILE_MERGE, 2000);
+        mLatencyStats.record(DexoptLatencyStats.PHASE_PROFILE_MERGE, 3000);
+        mLatencyStats.record(DexoptLatencyStats.PHASE_PROFILE_MERGE, 100000);
+
+        assertThat(dumpStats())
+                .isEqualTo("Dexopt latency stats:\n"
+                        + "  profile init: count=0\n"
+                        + "  profile merge: count=4, total=106.0 ms, mean=26.5 ms, p50<=2.0 ms,"
+                        + " p90<=100.0 ms, p99<=100.0 ms, max=100.0 ms\n"
+                        + "  get dexopt needed: count=0\n"
+                        + "  storage check: count=0\n"
+                        + "  dex2oat: count=0\n"
+                        + "  profile commit: count=0\n"
+                        + "  package: count=0\n"
+                        + "  batch: count=0\n"
+                        + "  bg-dexopt job dexopt: count=0\n"
+                        + "  bg-dexopt job cleanup: count=0\n");
+    }
+
+    @Test
+    public void testReset() {
+        mLatencyStats.record(DexoptLatencyStats.PHASE_DEX2OAT, 1000);
+        mLatencyStats.reset();
+
+        assertThat(dumpStats()).contains("  dex2oat: count=0\n");
+    }
+
+    @Test
+    public void testConcurrentRecord() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        mLatencyStats.record(DexoptLatencyStats.PHASE_PACKAGE, j);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(dumpStats()).contains("  package: count=8000,");
+    }
+
+    private String dumpStats() {
+        var stringWriter = new StringWriter();
+        mLatencyStats.dumpStats(new PrintWriter(stringWriter));
+        return stringWriter.toString();
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.art;
+
+import static com.android.server.art.model.DexoptResult.DexContainerFileDexoptResult;
+import static com.android.server.art.model.DexoptResult.PackageDexoptResult;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+
+import android.os.PowerManager;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.art.model.DexoptResult;
+import com.android.server.art.testing.MockClock;
+import com.android.server.pm.pkg.AndroidPackage;
+import com.android.server.pm.pkg.AndroidPackageSplit;
+import com.android.server.pm.pkg.PackageState;
+import com.android.server.pm.pkg.SharedLibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+@SmallTest
+@RunWith(MockitoJUnitRunner.StrictStubs.class)
+public class DexoptSchedulerTest {
+    private static final long MB = 1024 * 1024;
+
+    @Mock private DexoptScheduler.Injector mInjector;
+    @Mock private DexoptScheduler.CostHistory.Injector mCostHistoryInjector;
+    private MockClock mMockClock;
+    private File mCostHistoryFile;
+    private DexoptScheduler.CostHistory mCostHistory;
+    private ExecutorService mExecutor;
+    private DexoptScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mMockClock = new MockClock();
+        mCostHistoryFile = File.createTempFile("package-dexopt-cost", ".pb");
+        mCostHistoryFile.deleteOnExit();
+        // Start without any saved history.
+        mCostHistoryFile.delete();
+        lenient()
+                .when(mCostHistoryInjector.getFilename())
+                .thenReturn(mCostHistoryFile.getPath());
+        lenient()
+                .when(mCostHistoryInjector.getScheduledExecutor())
+                .thenAnswer(invocation -> mMockClock.createScheduledExecutor());
+        mCostHistory = new DexoptScheduler.CostHistory(mCostHistoryInjector);
+        lenient().when(mInjector.getCostHistory()).thenReturn(mCostHistory);
+        lenient()
+                .when(mInjector.getCurrentThermalStatus())
+                .thenReturn(PowerManager.THERMAL_STATUS_NONE);
+        lenient().when(mInjector.getAvailableProcessors()).thenReturn(8);
+        lenient().when(mInjector.getLoadAverage()).thenReturn(-1.0);
+
+        mExecutor = Executors.newFixedThreadPool(4);
+        mScheduler = new DexoptScheduler(mInjector);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void testDispatchOrderWithoutHistory() {
+        PackageState lib = createPackageState("lib", 1 * MB);
+        PackageState app = createPackageState("app", 5 * MB, createLibrary("lib"));
+        PackageState other = createPackageState("other", 2 * MB);
+
+        assertThat(getDispatchOrder(List.of(other, app, lib)))
+                .containsExactly("other", "app", "lib")
+                .inOrder();
+    }
+
+    @Test
+    public void testDispatchOrderByDexSize() {
+        recordUnrelatedHistory();
+        List<PackageState> pkgStates = List.of(createPackageState("a", 1 * MB),
+                createPackageState("b", 3 * MB), createPackageState("c", 2 * MB));
+
+        assertThat(getDispatchOrder(pkgStates)).containsExactly("b", "c", "a").inOrder();
+    }
+
+    @Test
+    public void testDispatchOrderByHistory() {
+        PackageState a = createPackageState("a", 1 * MB);
+        PackageState b = createPackageState("b", 3 * MB);
+        PackageState c = createPackageState("c", 2 * MB);
+        mScheduler.recordResult(a, createResult("a", 10000 /* dex2oatWallTimeMillis */));
+        mScheduler.recordResult(b, createResult("b", 1000 /* dex2oatWallTimeMillis */));
+
+        // "a" and "b" cost what they cost last time. "c" has no history, so its cost is estimated
+        // from its size, at the average cost per byte of "a" and "b".
+        assertThat(mCostHistory.estimateCostMs("a", 1 * MB)).isEqualTo(10000);
+        assertThat(mCostHistory.estimateCostMs("b", 3 * MB)).isEqualTo(1000);
+        assertThat(mCostHistory.estimateCostMs("c", 2 * MB)).isEqualTo(5500);
+        assertThat(getDispatchOrder(List.of(a, b, c))).containsExactly("a", "c", "b").inOrder();
+    }
+
+    @Test
+    public void testCostHistoryPersisted() {
+        PackageState a = createPackageState("a", 1 * MB);
+        PackageState b = createPackageState("b", 3 * MB);
+        mScheduler.recordResult(a, createResult("a", 10000 /* dex2oatWallTimeMillis */));
+        mScheduler.recordResult(b, createResult("b", 1000 /* dex2oatWallTimeMillis */));
+        mMockClock.advanceTime(DexoptScheduler.CostHistory.INTERVAL_MS);
+
+        var costHistory = new DexoptScheduler.CostHistory(mCostHistoryInjector);
+        assertThat(costHistory.estimateCostMs("a", 1 * MB)).isEqualTo(10000);
+        assertThat(costHistory.estimateCostMs("b", 3 * MB)).isEqualTo(1000);
+        assertThat(costHistory.estimateCostMs("c", 2 * MB)).isEqualTo(5500);
+    }
+
+    @Test
+    public void testCostHistoryLatestResult() {
+        PackageState a = createPackageState("a", 1 * MB);
+        mScheduler.recordResult(a, createResult("a", 10000 /* dex2oatWallTimeMillis */));
+        mScheduler.recordResult(a, createResult("a", 2000 /* dex2oatWallTimeMillis */));
+
+        // Only the latest result of each package counts, for the package itself and for the
+        // average.
+        assertThat(mCostHistory.estimateCostMs("a", 1 * MB)).isEqualTo(2000);
+        assertThat(mCostHistory.estimateCostMs("c", 2 * MB)).isEqualTo(4000);
+    }
+
+    @Test
+    public void testCostHistoryAverage() {
+        PackageState a = createPackageState("a", 1 * MB);
+        PackageState b = createPackageState("b", 3 * MB);
+        PackageState c = createPackageState("c", 2 * MB);
+        mScheduler.recordResult(a, createResult("a", 1000 /* dex2oatWallTimeMillis */));
+        mScheduler.recordResult(b, createResult("b", 3000 /* dex2oatWallTimeMillis */));
+        mScheduler.recordResult(c, createResult("c", 0 /* dex2oatWallTimeMillis */));
+
+        // "c" didn't run dex2oat, so it doesn't count.
+        assertThat(mCostHistory.getCostMs("a")).isEqualTo(1000);
+        assertThat(mCostHistory.getCostMs("c")).isNull();
+        assertThat(mCostHistory.getAverageCostMs()).isEqualTo(2000);
+    }
+
+    @Test
+    public void testDispatchOrderIgnoresNoOpResults() {
+        PackageState a = createPackageState("a", 1 * MB);
+        PackageState b = createPackageState("b", 3 * MB);
+        recordUnrelatedHistory();
+        mScheduler.recordResult(b, createResult("b", 0 /* dex2oatWallTimeMillis */));
+
+        assertThat(getDispatchOrder(List.of(a, b))).containsExactly("b", "a").inOrder();
+    }
+
+    @Test
+    public void testDispatchOrderWithDependencies() {
+        PackageState lib = createPackageState("lib", 1 * MB);
+        PackageState app = createPackageState("app", 5 * MB, createLibrary("lib"));
+        PackageState other = createPackageState("other", 2 * MB);
+        recordUnrelatedHistory();
+
+        // "app" is the most expensive, but it has to wait for "lib".
+        assertThat(getDispatchOrder(List.of(app, other, lib)))
+                .containsExactly("other", "lib", "app")
+                .inOrder();
+    }
+
+    @Test
+    public void testDispatchOrderWithDependencyCycle() {
+        PackageState a = createPackageState("a", 1 * MB, createLibrary("b"));
+        PackageState b = createPackageState("b", 2 * MB, createLibrary("a"));
+        PackageState c = createPackageState("c", 3 * MB, createLibrary("a"));
+        recordUnrelatedHistory();
+
+        // The cycle is broken at "a", which then unblocks the others.
+        assertThat(getDispatchOrder(List.of(a, b, c))).containsExactly("a", "c", "b").inOrder();
+    }
+
+    @Test
+    public void testGetConcurrencyLimit() {
+        assertThat(mScheduler.getConcurrencyLimit(
+                           0 /* inFlight */, Integer.MAX_VALUE /* maxConcurrency */))
+                .isEqualTo(Integer.MAX_VALUE);
+
+        lenient()
+                .when(mInjector.getCurrentThermalStatus())
+                .thenReturn(PowerManager.THERMAL_STATUS_LIGHT);
+        assertThat(mScheduler.getConcurrencyLimit(
+                           0 /* inFlight */, Integer.MAX_VALUE /* maxConcurrency */))
+                .isEqualTo(4);
+
+        lenient()
+                .when(mInjector.getCurrentThermalStatus())
+                .thenReturn(PowerManager.THERMAL_STATUS_MODERATE);
+        assertThat(mScheduler.getConcurrencyLimit(
+                           0 /* inFlight */, Integer.MAX_VALUE /* maxConcurrency */))
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void testGetConcurrencyLimitCappedByMaxConcurrency() {
+        assertThat(mScheduler.getConcurrencyLimit(0 /* inFlight */, 3 /* maxConcurrency */))
+                .isEqualTo(3);
+
+        lenient().when(mInjector.getLoadAverage()).thenReturn(1.0);
+        assertThat(mScheduler.getConcurrencyLimit(2 /* inFlight */, 3 /* maxConcurrency */))
+                .isEqualTo(3);
+
+        lenient()
+                .when(mInjector.getCurrentThermalStatus())
+                .thenReturn(PowerManager.THERMAL_STATUS_LIGHT);
+        assertThat(mScheduler.getConcurrencyLimit(0 /* inFlight */, 3 /* maxConcurrency */))
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void testGetConcurrencyLimitWithLoad() {
+        lenient().when(mInjector.getLoadAverage()).thenReturn(5.5);
+        assertThat(mScheduler.getConcurrencyLimit(
+                           2 /* inFlight */, Integer.MAX_VALUE /* maxConcurrency */))
+                .isEqualTo(4);
+
+        lenient().when(mInjector.getLoadAverage()).thenReturn(12.0);
+        assertThat(mScheduler.getConcurrencyLimit(
+                           2 /* inFlight */, Integer.MAX_VALUE /* maxConcurrency */))
+                .isEqualTo(2);
+        assertThat(mScheduler.getConcurrencyLimit(
+                           0 /* inFlight */, Integer.MAX_VALUE /* maxConcurrency */))
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void testSchedule() throws Exception {
+        List<PackageState> pkgStates = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            pkgStates.add(createPackageState("pkg" + i, i * MB));
+        }
+
+        List<CompletableFuture<String>> futures = mScheduler.schedule(pkgStates,
+                i -> pkgStates.get(i).getPackageName(), mExecutor, 4 /* maxConcurrency */);
+
+        // The results are in the given order, regardless of the dispatch order.
+        assertThat(futures.stream().map(Utils::getFuture).collect(Collectors.toList()))
+                .containsExactly("pkg0", "pkg1", "pkg2", "pkg3", "pkg4", "pkg5", "pkg6", "pkg7")
+                .inOrder();
+    }
+
+    @Test
+    public void testScheduleUnderThermalPressure() throws Exception {
+        lenient()
+                .when(mInjector.getCurrentThermalStatus())
+                .thenReturn(PowerManager.THERMAL_STATUS_SEVERE);
+
+        List<PackageState> pkgStates = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            pkgStates.add(createPackageState("pkg" + i, MB));
+        }
+
+        var inFlight = new AtomicInteger(0);
+        var maxInFlight = new AtomicInteger(0);
+        List<CompletableFuture<Void>> futures = mScheduler.schedule(pkgStates, i -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            inFlight.decrementAndGet();
+            return null;
+        }, mExecutor, 4 /* maxConcurrency */);
+        futures.forEach(Utils::getFuture);
+
+        assertThat(maxInFlight.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testScheduleCappedByMaxConcurrency() throws Exception {
+        List<PackageState> pkgStates = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            pkgStates.add(createPackageState("pkg" + i, MB));
+        }
+
+        // The packages are dispatched as threads become available rather than all upfront, so
+        // that they are still subject to the concurrency limit when they are dispatched.
+        var dispatched = new AtomicInteger(0);
+        var maxDispatched = new AtomicInteger(0);
+        Executor executor = runnable -> {
+            maxDispatched.accumulateAndGet(dispatched.incrementAndGet(), Math::max);
+            mExecutor.execute(runnable);
+        };
+        List<CompletableFuture<Void>> futures = mScheduler.schedule(pkgStates, i -> {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            dispatched.decrementAndGet();
+            return null;
+        }, executor, 2 /* maxConcurrency */);
+        futures.forEach(Utils::getFuture);
+
+        assertThat(maxDispatched.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testScheduleOnCallingThread() throws Exception {
+        lenient()
+                .when(mInjector.getCurrentThermalStatus())
+                .thenReturn(PowerManager.THERMAL_STATUS_SEVERE);
+
+        // The packages share the same mocks, as creating 10000 sets of them is slow.
+        PackageState pkgState = createPackageState("pkg", MB);
+        List<PackageState> pkgStates = Collections.nCopies(10000, pkgState);
+
+        // Each package is dispatched when the previous one is done, on the same thread. This must
+        // not overflow the stack.
+        List<CompletableFuture<Integer>> futures =
+                mScheduler.schedule(pkgStates, i -> i, Runnable::run, 1 /* maxConcurrency */);
+
+        for (int i = 0; i < pkgStates.size(); i++) {
+            assertThat(futures.get(i).isDone()).isTrue();
+            assertThat(Utils.getFuture(futures.get(i))).isEqualTo(i);
+        }
+    }
+
+    /**
+     * Records the cost of a package that is not in the batch, at the default cost per MB, so that
+     * the other packages are ordered by their dex size.
+     */
+    private void recordUnrelatedHistory() {
+        mScheduler.recordResult(createPackageState("unrelated", 1 * MB),
+                createResult("unrelated", 1000 /* dex2oatWallTimeMillis */));
+    }
+
+    private List<String> getDispatchOrder(List<PackageState> pkgStates) {
+        List<String> packageNames = new ArrayList<>();
+        for (int index : mScheduler.getDispatchOrder(pkgStates)) {
+            packageNames.add(pkgStates.get(index).getPackageName());
+        }
+        return packageNames;
+    }
+
+    private PackageState createPackageState(
+            String packageName, long dexSizeBytes, SharedLibrary... deps) {
+        String dexPath = "/data/app/" + packageName + "/base.apk";
+        var baseSplit = mock(AndroidPackageSplit.class);
+        lenient().when(baseSplit.getPath()).thenReturn(dexPath);
+        lenient().when(baseSplit.isHasCode()).thenReturn(true);
+        lenient().when(mInjector.getFileSize(dexPath)).thenReturn(dexSizeBytes);
+
+        AndroidPackage pkg = mock(AndroidPackage.class);
+        lenient().when(pkg.getSplits()).thenReturn(List.of(baseSplit));
+
+        PackageState pkgState = mock(PackageState.class);
+        lenient().when(pkgState.getPackageName()).thenReturn(packageName);
+        lenient().when(pkgState.getAndroidPackage()).thenReturn(pkg);
+        lenient().when(pkgState.getSharedLibraryDependencies()).thenReturn(List.of(deps));
+        return pkgState;
+    }
+
+    private SharedLibrary createLibrary(String packageName) {
+        SharedLibrary library = mock(SharedLibrary.class);
+        lenient().when(library.getPackageName()).thenReturn(packageName);
+        return library;
+    }
+
+    private PackageDexoptResult createResult(String packageName, long dex2oatWallTimeMillis) {
+        return PackageDexoptResult.create(packageName,
+                List.of(DexContainerFileDexoptResult.create("/data/app/" + packageName + "/base.apk",
+                        true /* isPrimaryAbi */, "arm64-v8a", "speed-profile",
+                        DexoptResult.DEXOPT_PERFORMED, dex2oatWallTimeMillis,
+                        4 * dex2oatWallTimeMillis /* dex2oatCpuTimeMillis */, 0 /* sizeBytes */,
+                        0 /* sizeBeforeBytes */, false /* isSkippedDueToStorageLow */)),
+                null /* packageLevelStatus */);
+    }
+}
@@ -86,6 +86,13 @@ public class DumpHelperTest {
         lenient().when(mInjector.getArtManagerLocal()).thenReturn(mArtManagerLocal);
         lenient().when(mInjector.getDexUseManager()).thenReturn(mDexUseManagerLocal);
         lenient().when(mInjector.getArtd()).thenReturn(mArtd);
+        lenient().when(mInjector.getProfileMergeCache()).thenReturn(mock(ProfileMergeCache.class));
+        lenient()
+                .when(mInjector.getBackgroundDexoptProgress())
+                .thenReturn(mock(BackgroundDexoptProgress.class));
+        lenient()
+                .when(mInjector.getDexoptLatencyStats())
+                .thenReturn(mock(DexoptLatencyStats.class));
 
         Map<String, PackageState> pkgStates = createPackageStates();
         lenient().when(mSnapshot.getPackageStates()).thenReturn(pkgStates);
@@ -24,9 +24,11 @@ import static com.google.common.truth.Truth.assertThat;
 
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.isNull;
@@ -40,6 +42,7 @@ import static org.mockito.Mockito.when;
 
 import android.os.Process;
 import android.os.ServiceSpecificException;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 
 import androidx.test.filters.SmallTest;
@@ -57,6 +60,7 @@ import org.mockito.InOrder;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
@@ -305,14 +309,21 @@ public class PrimaryDexopterTest extends PrimaryDexopterTestBase {
                 deepEq(mRefProfile), deepEq(mPrivateOutputProfile), deepEq(List.of(mDexPath)),
                 deepEq(mMergeProfileOptions));
 
+        // Both ISAs are checked in one call to artd, before any of them is dexopted.
+        inOrder.verify(mArtd).batchGetDexoptNeeded(argThat(queries
+                -> queries.size() == 2 && queries.get(0).dexFile.equals(mDexPath)
+                        && queries.get(0).instructionSet.equals("arm64")
+                        && queries.get(1).dexFile.equals(mDexPath)
+                        && queries.get(1).instructionSet.equals("arm")));
+
         // It should use `mBetterOrSameDexoptTrigger` and the merged profile for both ISAs.
-        inOrder.verify(mArtd).getDexoptNeeded(eq(mDexPath), eq("arm64"), any(), eq("speed-profile"),
+        verify(mArtd).getDexoptNeeded(eq(mDexPath), eq("arm64"), any(), eq("speed-profile"),
                 eq(mBetterOrSameDexoptTrigger));
         checkDexoptWithProfile(inOrder.verify(mArtd), mDexPath, "arm64",
                 ProfilePath.tmpProfilePath(mPrivateOutputProfile.profilePath),
                 false /* isOtherReadable */, true /* generateAppImage */);
 
-        inOrder.verify(mArtd).getDexoptNeeded(eq(mDexPath), eq("arm"), any(), eq("speed-profile"),
+        verify(mArtd).getDexoptNeeded(eq(mDexPath), eq("arm"), any(), eq("speed-profile"),
                 eq(mBetterOrSameDexoptTrigger));
         checkDexoptWithProfile(inOrder.verify(mArtd), mDexPath, "arm",
                 ProfilePath.tmpProfilePath(mPrivateOutputProfile.profilePath),
@@ -354,6 +365,69 @@ public class PrimaryDexopterTest extends PrimaryDexopterTestBase {
         verify(mArtd, never()).commitTmpProfile(any());
     }
 
+    @Test
+    public void testDexoptRecordsNoOpMerge() throws Exception {
+        when(mPkgState.getStateForUser(eq(UserHandle.of(0)))).thenReturn(mPkgUserStateInstalled);
+        when(mPkgState.getStateForUser(eq(UserHandle.of(2)))).thenReturn(mPkgUserStateInstalled);
+
+        when(mArtd.getProfileMergeFingerprint(any(), any(), any())).thenReturn(12345l);
+        when(mArtd.mergeProfiles(any(), any(), any(), any(), any())).thenReturn(false);
+        makeProfileUsable(mRefProfile);
+
+        mPrimaryDexopter.dexopt();
+
+        verify(mArtd).getProfileMergeFingerprint(
+                deepEq(List.of(AidlUtils.buildProfilePathForPrimaryCur(
+                                       0 /* userId */, PKG_NAME, "primary"),
+                        AidlUtils.buildProfilePathForPrimaryCur(
+                                2 /* userId */, PKG_NAME, "primary"))),
+                deepEq(mRefProfile), eq(mDexPath));
+        verify(mProfileMergeCache).recordNoOpMerge(mDexPath, 12345l);
+        verify(mProfileMergeCache, never()).recordMerge(any());
+    }
+
+    @Test
+    public void testDexoptRecordsMerge() throws Exception {
+        when(mArtd.getProfileMergeFingerprint(any(), any(), any())).thenReturn(12345l);
+        when(mArtd.mergeProfiles(any(), any(), any(), any(), any())).thenReturn(true);
+        makeProfileUsable(mRefProfile);
+
+        mPrimaryDexopter.dexopt();
+
+        verify(mProfileMergeCache).recordMerge(mDexPath);
+        verify(mProfileMergeCache, never()).recordNoOpMerge(any(), anyLong());
+    }
+
+    @Test
+    public void testDexoptSkipsNoOpMerge() throws Exception {
+        when(mArtd.getProfileMergeFingerprint(any(), any(), any())).thenReturn(12345l);
+        when(mProfileMergeCache.isNoOpMerge(mDexPath, 12345l)).thenReturn(true);
+        makeProfileUsable(mRefProfile);
+
+        mPrimaryDexopter.dexopt();
+
+        verify(mArtd, never()).mergeProfiles(any(), any(), any(), deepEq(List.of(mDexPath)), any());
+
+        // It should still use "speed-profile", with the existing reference profile.
+        checkDexoptWithProfile(verify(mArtd), mDexPath, "arm64", mRefProfile,
+                true /* isOtherReadable */, true /* generateAppImage */);
+    }
+
+    @Test
+    public void testDexoptMergesProfilesFingerprintFailed() throws Exception {
+        when(mArtd.getProfileMergeFingerprint(any(), any(), any()))
+                .thenThrow(ServiceSpecificException.class);
+        when(mArtd.mergeProfiles(any(), any(), any(), any(), any())).thenReturn(false);
+        makeProfileUsable(mRefProfile);
+
+        mPrimaryDexopter.dexopt();
+
+        // The merge still happens, but the result is not cached.
+        verify(mArtd).mergeProfiles(any(), any(), any(), deepEq(List.of(mDexPath)), any());
+        verify(mProfileMergeCache, never()).isNoOpMerge(any(), anyLong());
+        verify(mProfileMergeCache, never()).recordNoOpMerge(any(), anyLong());
+    }
+
     @Test
     public void testDexoptUsesDmProfile() throws Exception {
         makeProfileNotUsable(mRefProfile);
@@ -553,6 +627,69 @@ public class PrimaryDexopterTest extends PrimaryDexopterTestBase {
                         any());
     }
 
+    @Test
+    public void testDexoptIntraPackageConcurrency() throws Exception {
+        final long TIMEOUT_SEC = 10;
+        lenient()
+                .when(SystemProperties.getInt(
+                        eq("pm.dexopt.install.intra_package_concurrency"), anyInt()))
+                .thenReturn(2);
+
+        // Each dexopt invocation waits for another one to start, so this only finishes in time if
+        // the ABIs of the same dex file are dexopted concurrently.
+        var dexoptStarted = new CountDownLatch(2);
+        doAnswer(invocation -> {
+            dexoptStarted.countDown();
+            assertThat(dexoptStarted.await(TIMEOUT_SEC, TimeUnit.SECONDS)).isTrue();
+            return mArtdDexoptResult;
+        })
+                .when(mArtd)
+                .dexopt(any(), any(), any(), any(), any(), any(), any(), any(), anyInt(), any(),
+                        any());
+
+        List<DexContainerFileDexoptResult> results = mPrimaryDexopter.dexopt();
+
+        // The results are still in order.
+        assertThat(results.stream()
+                           .map(result
+                                   -> result.getDexContainerFile() + ":" + result.isPrimaryAbi())
+                           .collect(Collectors.toList()))
+                .containsExactly(mDexPath + ":true", mDexPath + ":false", mSplit0DexPath + ":true",
+                        mSplit0DexPath + ":false")
+                .inOrder();
+        assertThat(results.stream().map(DexContainerFileDexoptResult::getStatus).distinct().collect(
+                           Collectors.toList()))
+                .containsExactly(DexoptResult.DEXOPT_PERFORMED);
+    }
+
+    @Test
+    public void testDexoptChecksAbisInOneBatch() throws Exception {
+        doThrow(new ServiceSpecificException(1 /* errorCode */, "some error message"))
+                .when(mArtd)
+                .getDexoptNeeded(eq(mDexPath), eq("arm"), any(), any(), anyInt());
+
+        List<DexContainerFileDexoptResult> results = mPrimaryDexopter.dexopt();
+
+        // One batch for each dex file, with all the ABIs of the dex file.
+        verify(mArtd, times(2)).batchGetDexoptNeeded(argThat(queries
+                -> queries.size() == 2 && queries.get(0).instructionSet.equals("arm64")
+                        && queries.get(1).instructionSet.equals("arm")));
+        verify(mArtd).batchGetDexoptNeeded(
+                argThat(queries -> queries.get(0).dexFile.equals(mDexPath)));
+        verify(mArtd).batchGetDexoptNeeded(
+                argThat(queries -> queries.get(0).dexFile.equals(mSplit0DexPath)));
+
+        // A failure to check one ABI doesn't affect the others.
+        assertThat(results.stream().map(DexContainerFileDexoptResult::getStatus).collect(
+                           Collectors.toList()))
+                .containsExactly(DexoptResult.DEXOPT_PERFORMED, DexoptResult.DEXOPT_FAILED,
+                        DexoptResult.DEXOPT_PERFORMED, DexoptResult.DEXOPT_PERFORMED)
+                .inOrder();
+        verify(mArtd, never())
+                .dexopt(any(), eq(mDexPath), eq("arm"), any(), any(), any(), any(), any(),
+                        anyInt(), any(), any());
+    }
+
     @Test
     public void testDexoptBaseApk() throws Exception {
         mDexoptParams =
@@ -34,6 +34,7 @@ import android.os.storage.StorageManager;
 
 import com.android.modules.utils.pm.PackageStateModulesUtils;
 import com.android.server.art.testing.StaticMockitoRule;
+import com.android.server.art.testing.TestingUtils;
 import com.android.server.pm.pkg.AndroidPackage;
 import com.android.server.pm.pkg.AndroidPackageSplit;
 import com.android.server.pm.pkg.PackageState;
@@ -65,6 +66,7 @@ public class PrimaryDexopterTestBase {
     @Mock protected UserManager mUserManager;
     @Mock protected DexUseManagerLocal mDexUseManager;
     @Mock protected StorageManager mStorageManager;
+    @Mock protected ProfileMergeCache mProfileMergeCache;
     protected PackageState mPkgState;
     protected AndroidPackage mPkg;
     protected PackageUserState mPkgUserStateNotInstalled;
@@ -74,12 +76,15 @@ public class PrimaryDexopterTestBase {
     @Before
     public void setUp() throws Exception {
         lenient().when(mInjector.getArtd()).thenReturn(mArtd);
+        TestingUtils.answerBatchQueriesOneByOne(mArtd);
         lenient().when(mInjector.isSystemUiPackage(any())).thenReturn(false);
         lenient().when(mInjector.isLauncherPackage(any())).thenReturn(false);
         lenient().when(mInjector.getUserManager()).thenReturn(mUserManager);
         lenient().when(mInjector.getDexUseManager()).thenReturn(mDexUseManager);
         lenient().when(mInjector.getStorageManager()).thenReturn(mStorageManager);
         lenient().when(mInjector.getArtVersion()).thenReturn(ART_VERSION);
+        lenient().when(mInjector.getProfileMergeCache()).thenReturn(mProfileMergeCache);
+        lenient().when(mInjector.getDexoptLatencyStats()).thenReturn(new DexoptLatencyStats());
 
         lenient()
                 .when(SystemProperties.get("dalvik.vm.systemuicompilerfilter"))
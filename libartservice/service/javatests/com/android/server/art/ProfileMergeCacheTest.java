@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.art;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.lenient;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.art.testing.MockClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+@RunWith(MockitoJUnitRunner.StrictStubs.class)
+public class ProfileMergeCacheTest {
+    private static final String DEX_PATH = "/data/app/foo/base.apk";
+
+    @Mock private ProfileMergeCache.Injector mInjector;
+    private MockClock mMockClock;
+    private File mTempFile;
+    private ProfileMergeCache mProfileMergeCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mMockClock = new MockClock();
+        mTempFile = File.createTempFile("package-profile-merge", ".pb");
+        mTempFile.deleteOnExit();
+
+        lenient().when(mInjector.getFilename()).thenReturn(mTempFile.getPath());
+        lenient()
+                .when(mInjector.getScheduledExecutor())
+                .thenAnswer(invocation -> mMockClock.createScheduledExecutor());
+
+        mProfileMergeCache = new ProfileMergeCache(mInjector);
+    }
+
+    @Test
+    public void testIsNoOpMerge() throws Exception {
+        assertThat(mProfileMergeCache.isNoOpMerge(DEX_PATH, 1)).isFalse();
+
+        mProfileMergeCache.recordNoOpMerge(DEX_PATH, 1);
+        assertThat(mProfileMergeCache.isNoOpMerge(DEX_PATH, 1)).isTrue();
+        assertThat(mProfileMergeCache.isNoOpMerge(DEX_PATH, 2)).isFalse();
+
+        mProfileMergeCache.recordMerge(DEX_PATH);
+        assertThat(mProfileMergeCache.isNoOpMerge(DEX_PATH, 1)).isFalse();
+    }
+
+    @Test
+    public void testPersist() throws Exception {
+        mProfileMergeCache.recordNoOpMerge(DEX_PATH, 1);
+        mProfileMergeCache.recordNoOpMerge("/data/app/bar/base.apk", 2);
+        mMockClock.advanceTime(ProfileMergeCache.INTERVAL_MS);
+
+        mProfileMergeCache = new ProfileMergeCache(mInjector);
+        assertThat(mProfileMergeCache.isNoOpMerge(DEX_PATH, 1)).isTrue();
+        assertThat(mProfileMergeCache.isNoOpMerge("/data/app/bar/base.apk", 2)).isTrue();
+
+        mProfileMergeCache.recordMerge(DEX_PATH);
+        mMockClock.advanceTime(ProfileMergeCache.INTERVAL_MS);
+
+        mProfileMergeCache = new ProfileMergeCache(mInjector);
+        assertThat(mProfileMergeCache.isNoOpMerge(DEX_PATH, 1)).isFalse();
+        assertThat(mProfileMergeCache.isNoOpMerge("/data/app/bar/base.apk", 2)).isTrue();
+    }
+
+    @Test
+    public void testDumpStats() throws Exception {
+        mProfileMergeCache.isNoOpMerge(DEX_PATH, 1);
+        mProfileMergeCache.recordNoOpMerge(DEX_PATH, 1);
+        mProfileMergeCache.isNoOpMerge(DEX_PATH, 1);
+        mProfileMergeCache.isNoOpMerge(DEX_PATH, 1);
+        mProfileMergeCache.isNoOpMerge(DEX_PATH, 2);
+        mProfileMergeCache.recordMerge(DEX_PATH);
+
+        var stringWriter = new StringWriter();
+        mProfileMergeCache.dumpStats(new PrintWriter(stringWriter));
+        assertThat(stringWriter.toString())
+                .isEqualTo("Profile merge stats:\n"
+                        + "  checked: 4\n"
+                        + "  skipped: 2 (50.0%)\n"
+                        + "  merged: 1\n"
+                        + "  merged without changes: 1\n");
+    }
+}
@@ -85,4 +85,11 @@ public class ReasonMappingTest {
                 .thenReturn(3);
         assertThat(ReasonMapping.getConcurrencyForReason("bg-dexopt")).isEqualTo(3);
     }
+
+    @Test
+    public void testGetConcurrencyForReasonDefault() {
+        when(SystemProperties.getInt(eq("pm.dexopt.first-boot.concurrency"), anyInt()))
+                .thenAnswer(invocation -> invocation.getArgument(1));
+        assertThat(ReasonMapping.getConcurrencyForReason("first-boot")).isEqualTo(1);
+    }
 }
@@ -101,6 +101,7 @@ public class SecondaryDexopterTest {
             new StaticMockitoRule(SystemProperties.class, Constants.class);
 
     @Mock private SecondaryDexopter.Injector mInjector;
+    @Mock private ProfileMergeCache mProfileMergeCache;
     @Mock private IArtd mArtd;
     @Mock private DexUseManagerLocal mDexUseManager;
     private PackageState mPkgState;
@@ -127,9 +128,12 @@ public class SecondaryDexopterTest {
         lenient().when(Constants.getNative32BitAbi()).thenReturn("armeabi-v7a");
 
         lenient().when(mInjector.getArtd()).thenReturn(mArtd);
+        TestingUtils.answerBatchQueriesOneByOne(mArtd);
         lenient().when(mInjector.isSystemUiPackage(any())).thenReturn(false);
         lenient().when(mInjector.isLauncherPackage(any())).thenReturn(false);
         lenient().when(mInjector.getDexUseManager()).thenReturn(mDexUseManager);
+        lenient().when(mInjector.getProfileMergeCache()).thenReturn(mProfileMergeCache);
+        lenient().when(mInjector.getDexoptLatencyStats()).thenReturn(new DexoptLatencyStats());
 
         List<DetailedSecondaryDexInfo> secondaryDexInfo = createSecondaryDexInfo();
         lenient()
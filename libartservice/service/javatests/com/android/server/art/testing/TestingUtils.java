@@ -16,18 +16,28 @@
 
 package com.android.server.art.testing;
 
+import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.argThat;
+import static org.mockito.Mockito.lenient;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.os.RemoteException;
+import android.os.ServiceSpecificException;
 import android.util.Log;
 
+import com.android.server.art.GetDexoptNeededResult;
+import com.android.server.art.GetDexoptStatusResult;
+import com.android.server.art.IArtd;
+
 import com.google.common.truth.Correspondence;
 import com.google.common.truth.Truth;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 public final class TestingUtils {
     private static final String TAG = "ArtServiceTesting";
@@ -173,4 +183,42 @@ public final class TestingUtils {
         }
         return true;
     };
+
+    /**
+     * Makes the batched queries on the given mock artd answered one by one by the corresponding
+     * non-batched queries, the same way as artd does, so that tests can stub and verify the
+     * queries individually.
+     */
+    public static void answerBatchQueriesOneByOne(@NonNull IArtd artd) throws RemoteException {
+        lenient().when(artd.batchGetDexoptStatus(any())).thenAnswer(invocation -> {
+            List<GetDexoptStatusResult.Query> queries = invocation.getArgument(0);
+            var results = new ArrayList<GetDexoptStatusResult>();
+            for (GetDexoptStatusResult.Query query : queries) {
+                try {
+                    results.add(artd.getDexoptStatus(
+                            query.dexFile, query.instructionSet, query.classLoaderContext));
+                } catch (ServiceSpecificException e) {
+                    var result = new GetDexoptStatusResult();
+                    result.errorMessage = Objects.requireNonNullElse(e.getMessage(), "");
+                    results.add(result);
+                }
+            }
+            return results;
+        });
+        lenient().when(artd.batchGetDexoptNeeded(any())).thenAnswer(invocation -> {
+            List<GetDexoptNeededResult.Query> queries = invocation.getArgument(0);
+            var results = new ArrayList<GetDexoptNeededResult>();
+            for (GetDexoptNeededResult.Query query : queries) {
+                try {
+                    results.add(artd.getDexoptNeeded(query.dexFile, query.instructionSet,
+                            query.classLoaderContext, query.compilerFilter, query.dexoptTrigger));
+                } catch (ServiceSpecificException e) {
+                    var result = new GetDexoptNeededResult();
+                    result.errorMessage = Objects.requireNonNullElse(e.getMessage(), "");
+                    results.add(result);
+                }
+            }
+            return results;
+        });
+    }
 }
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.dominators.Dominators;
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Diff;
+import com.android.ahat.heapdump.HprofFormatException;
+import com.android.ahat.heapdump.Parser;
+import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.heapdump.Sort;
+import com.android.ahat.progress.NullProgress;
+import com.android.ahat.progress.Progress;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of ahat's analysis phases and http handlers on synthetic heap
+ * dumps.
+ * <p>
+ * The heap dumps are written by {@link HprofGenerator} to temporary files
+ * according to the command line options. The following benchmarks are run,
+ * restricted to those matching the --filter option if given:
+ * <ul>
+ * <li> parse: parsing and analyzing a heap dump, reported as a whole and for
+ *      each of the phases reported to the Progress of the parser.
+ * <li> dominators: computing the dominators of a graph the shape of the
+ *      heap dump's reference graph, without the rest of the analysis.
+ * <li> diff: diffing the heap dump against a smaller baseline heap dump.
+ * <li> sort: sorting all instances by the default instance order.
+ * <li> handler:NAME: rendering the page of each of the main handlers.
+ * <li> footprint: the memory retained by a parsed snapshot, per instance.
+ * </ul>
+ */
+public class AhatBenchmarks {
+  private static class NullOutputStream extends OutputStream {
+    public void write(int b) throws IOException {
+    }
+  }
+
+  /**
+   * A Progress that records the time spent in each phase it is told about.
+   */
+  private static class PhaseTimer implements Progress {
+    private final Map<String, List<Long>> mTimes = new LinkedHashMap<String, List<Long>>();
+    private String mPhase;
+    private long mStart;
+
+    @Override
+    public void start(String description, long duration) {
+      mPhase = description;
+      mStart = System.nanoTime();
+    }
+
+    @Override
+    public void advance(long n) {
+    }
+
+    @Override
+    public void update(long current) {
+    }
+
+    @Override
+    public void done() {
+      long time = System.nanoTime() - mStart;
+      mTimes.computeIfAbsent(mPhase, x -> new ArrayList<Long>()).add(time);
+      mPhase = null;
+    }
+
+    /**
+     * Discards the times recorded so far.
+     */
+    void clear() {
+      mTimes.clear();
+    }
+
+    /**
+     * Records the times of each phase with the given runner.
+     */
+    void recordTo(BenchmarkRunner runner, String prefix) {
+      for (Map.Entry<String, List<Long>> entry : mTimes.entrySet()) {
+        long[] times = new long[entry.getValue().size()];
+        for (int i = 0; i < times.length; ++i) {
+          times[i] = entry.getValue().get(i);
+        }
+        runner.record(prefix + entry.getKey(), times);
+      }
+    }
+  }
+
+  private AhatBenchmarks() {
+  }
+
+  private static void help(PrintStream out) {
+    out.println("java -jar ahat-benchmarks.jar [OPTIONS]");
+    out.println("  Run the ahat benchmarks on generated heap dumps.");
+    out.println("java -jar ahat-benchmarks.jar --generate FILE [OPTIONS]");
+    out.println("  Write a generated heap dump to FILE.");
+    out.println("");
+    out.println("OPTIONS:");
+    out.println("  --objects N");
+    out.println("     The number of objects in the heap dump. Defaults to 200000.");
+    out.println("  --fanout N");
+    out.println("     The number of reference fields of each object. Defaults to 2.");
+    out.println("  --site-depth N");
+    out.println("     The depth of the stack trace of each allocation site.");
+    out.println("     Defaults to 8.");
+    out.println("  --sites N");
+    out.println("     The number of distinct allocation sites. Defaults to 64.");
+    out.println("  --seed N");
+    out.println("     The seed used to generate the heap dump. Defaults to 0.");
+    out.println("  --warmup N");
+    out.println("     The number of warmup iterations of each benchmark. Defaults to 2.");
+    out.println("  --iterations N");
+    out.println("     The number of measured iterations of each benchmark.");
+    out.println("     Defaults to 5.");
+    out.println("  --filter REGEX");
+    out.println("     Only run the benchmarks whose names contain a match for REGEX.");
+    out.println("");
+  }
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) throws Exception {
+    int objects = 200000;
+    int fanOut = 2;
+    int siteDepth = 8;
+    int sites = 64;
+    long seed = 0;
+    int warmup = 2;
+    int iterations = 5;
+    Pattern filter = Pattern.compile("");
+    File generate = null;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if ("--help".equals(args[i])) {
+          help(System.out);
+          return;
+        } else if ("--objects".equals(args[i]) && i + 1 < args.length) {
+          objects = Integer.parseInt(args[++i]);
+        } else if ("--fanout".equals(args[i]) && i + 1 < args.length) {
+          fanOut = Integer.parseInt(args[++i]);
+        } else if ("--site-depth".equals(args[i]) && i + 1 < args.length) {
+          siteDepth = Integer.parseInt(args[++i]);
+        } else if ("--sites".equals(args[i]) && i + 1 < args.length) {
+          sites = Integer.parseInt(args[++i]);
+        } else if ("--seed".equals(args[i]) && i + 1 < args.length) {
+          seed = Long.parseLong(args[++i]);
+        } else if ("--warmup".equals(args[i]) && i + 1 < args.length) {
+          warmup = Integer.parseInt(args[++i]);
+        } else if ("--iterations".equals(args[i]) && i + 1 < args.length) {
+          iterations = Integer.parseInt(args[++i]);
+        } else if ("--filter".equals(args[i]) && i + 1 < args.length) {
+          filter = Pattern.compile(args[++i]);
+        } else if ("--generate".equals(args[i]) && i + 1 < args.length) {
+          generate = new File(args[++i]);
+        } else {
+          System.err.println("Invalid argument: " + args[i]);
+          help(System.err);
+          return;
+        }
+      }
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid number: " + e.getMessage());
+      help(System.err);
+      return;
+    }
+
+    HprofGenerator generator = new HprofGenerator()
+      .objects(objects)
+      .fanOut(fanOut)
+      .siteDepth(siteDepth)
+      .sites(sites)
+      .seed(seed);
+    if (generate != null) {
+      generator.write(generate);
+      return;
+    }
+
+    File hprof = File.createTempFile("ahat-benchmark", ".hprof");
+    File baseline = File.createTempFile("ahat-benchmark-base", ".hprof");
+    try {
+      generator.write(hprof);
+      new HprofGenerator()
+        .objects(Math.max(1, objects - objects / 10))
+        .fanOut(fanOut)
+        .siteDepth(siteDepth)
+        .sites(sites)
+        .seed(seed + 1)
+        .write(baseline);
+
+      BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, filter, System.out);
+      run(runner, generator, hprof, baseline, fanOut);
+      runner.printResults();
+    } finally {
+      hprof.delete();
+      baseline.delete();
+    }
+  }
+
+  private static void run(BenchmarkRunner runner, HprofGenerator generator, File hprof,
+      File baseline, int fanOut) throws Exception {
+    // Parsing, with the time of each phase of the analysis reported
+    // separately. Only the phases of the measured iterations are recorded.
+    PhaseTimer phases = new PhaseTimer();
+    int[] parsed = new int[1];
+    runner.run("parse", () -> {
+      if (parsed[0]++ == runner.getWarmup()) {
+        phases.clear();
+      }
+      return null;
+    }, x -> parse(hprof, phases));
+    phases.recordTo(runner, "parse:");
+
+    if (runner.isEnabled("footprint")) {
+      footprint(runner, generator, hprof);
+    }
+
+    // Dominators of a graph with the shape of the heap dump's nodes: a tree
+    // with a tenth of its edges redirected to random nodes other than the
+    // root. A graph with only the root has its edges point to the root.
+    if (runner.isEnabled("dominators")) {
+      int nodes = (int)generator.getNumInstances();
+      Random random = new Random(0);
+      int[] edgeStart = new int[nodes + 1];
+      int[] edges = new int[nodes * fanOut];
+      for (int i = 0; i < nodes; ++i) {
+        edgeStart[i] = i * fanOut;
+        for (int f = 0; f < fanOut; ++f) {
+          long child = (long)i * fanOut + f + 1;
+          if (child < nodes && random.nextDouble() >= 0.1) {
+            edges[i * fanOut + f] = (int)child;
+          } else if (nodes > 1) {
+            edges[i * fanOut + f] = 1 + random.nextInt(nodes - 1);
+          }
+        }
+      }
+      edgeStart[nodes] = edges.length;
+      runner.run("dominators",
+          x -> Dominators.computeDominators(0, edgeStart, edges, new NullProgress()));
+    }
+
+    runner.run("diff", () -> {
+      AhatSnapshot[] snapshots = new AhatSnapshot[2];
+      snapshots[0] = parse(hprof, new NullProgress());
+      snapshots[1] = parse(baseline, new NullProgress());
+      return snapshots;
+    }, snapshots -> Diff.snapshots(snapshots[0], snapshots[1]));
+
+    if (!runner.isEnabled("sort") && !runner.isEnabled("handler:")) {
+      return;
+    }
+
+    AhatSnapshot snapshot = parse(hprof, new NullProgress());
+    List<AhatInstance> all = snapshot.query().run();
+    runner.run("sort", () -> {
+      List<AhatInstance> insts = new ArrayList<AhatInstance>(all);
+      Collections.shuffle(insts, new Random(0));
+      return insts;
+    }, insts -> Collections.sort(insts, Sort.defaultInstanceCompare(snapshot)));
+
+    AhatInstance largest = snapshot.query().largest(1).run().get(0);
+    handler(runner, "handler:overview", "/",
+        () -> new OverviewHandler(snapshot, hprof, null, Reachability.SOFT));
+    handler(runner, "handler:rooted", "rooted", () -> new RootedHandler(snapshot));
+    handler(runner, "handler:object", "object?id=" + largest.getId(),
+        () -> new ObjectHandler(snapshot));
+    handler(runner, "handler:objects", "objects?class=com.android.ahat.benchmark.Node",
+        () -> new ObjectsHandler(snapshot));
+    handler(runner, "handler:site", "site?id=0", () -> new SiteHandler(snapshot));
+    handler(runner, "handler:search", "search", () -> new SearchHandler(snapshot));
+    handler(runner, "handler:duplicates", "duplicates", () -> new DuplicatesHandler(snapshot));
+  }
+
+  private static AhatSnapshot parse(File hprof, Progress progress)
+      throws IOException, HprofFormatException {
+    return new Parser(hprof).progress(progress).parse();
+  }
+
+  /**
+   * Benchmarks rendering the page for the given uri with a new handler for
+   * each iteration, so that no results are cached between iterations.
+   */
+  private static void handler(BenchmarkRunner runner, String name, String uri,
+      BenchmarkRunner.Setup<AhatHandler> setup) throws Exception {
+    PrintStream ps = new PrintStream(new NullOutputStream());
+    runner.run(name, setup, handler -> {
+      HtmlDoc doc = new HtmlDoc(ps, DocString.text(name), DocString.uri("style.css"));
+      handler.handle(doc, new Query(DocString.uri(uri)));
+      doc.close();
+    });
+  }
+
+  /**
+   * Reports the memory retained by a parsed snapshot of the heap dump, in
+   * bytes per instance of the heap dump. The contents of the heap dump
+   * itself are mapped rather than read into memory, so are not included.
+   */
+  private static void footprint(BenchmarkRunner runner, HprofGenerator generator, File hprof)
+      throws IOException, HprofFormatException {
+    long before = usedMemory();
+    AhatSnapshot snapshot = parse(hprof, new NullProgress());
+    long after = usedMemory();
+    long instances = generator.getNumInstances();
+    if (snapshot.query().run().size() != instances) {
+      throw new AssertionError("Unexpected number of instances");
+    }
+    runner.report("footprint", (double)(after - before) / instances, "bytes/object");
+    runner.report("footprint:total", (after - before) / (1024.0 * 1024.0), "MB");
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 5; ++i) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+}
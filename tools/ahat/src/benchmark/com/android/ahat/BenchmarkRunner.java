@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Runs benchmarks and reports the average time of an operation, in the
+ * manner of JMH's average time mode.
+ * <p>
+ * Each benchmark is run for a number of warmup iterations, whose times are
+ * discarded, followed by a number of measured iterations. Each iteration
+ * first runs the benchmark's setup, which is not timed, then times a single
+ * operation on the state returned by the setup.
+ */
+class BenchmarkRunner {
+  /**
+   * Creates the state used by a single iteration of a benchmark.
+   */
+  public interface Setup<T> {
+    T setup() throws Exception;
+  }
+
+  /**
+   * The operation timed by a benchmark.
+   */
+  public interface Benchmark<T> {
+    void run(T state) throws Exception;
+  }
+
+  private static class Result {
+    public final String name;
+    public final int count;
+    public final double score;
+    public final double error;
+    public final String units;
+
+    Result(String name, int count, double score, double error, String units) {
+      this.name = name;
+      this.count = count;
+      this.score = score;
+      this.error = error;
+      this.units = units;
+    }
+  }
+
+  private final int mWarmup;
+  private final int mIterations;
+  private final Pattern mFilter;
+  private final PrintStream mOut;
+  private final List<Result> mResults = new ArrayList<Result>();
+
+  /**
+   * Creates a runner for the benchmarks whose names contain a match for the
+   * given filter.
+   */
+  BenchmarkRunner(int warmup, int iterations, Pattern filter, PrintStream out) {
+    mWarmup = warmup;
+    mIterations = iterations;
+    mFilter = filter;
+    mOut = out;
+  }
+
+  /**
+   * Returns true if the benchmark with the given name should be run.
+   */
+  boolean isEnabled(String name) {
+    return mFilter.matcher(name).find();
+  }
+
+  /**
+   * Returns the number of warmup iterations of each benchmark.
+   */
+  int getWarmup() {
+    return mWarmup;
+  }
+
+  /**
+   * Runs the named benchmark, if enabled, with a fresh state from the given
+   * setup for each iteration.
+   */
+  <T> void run(String name, Setup<T> setup, Benchmark<T> benchmark) throws Exception {
+    if (!isEnabled(name)) {
+      return;
+    }
+
+    mOut.println("# Benchmark: " + name);
+    for (int i = 0; i < mWarmup; ++i) {
+      T state = setup.setup();
+      long start = System.nanoTime();
+      benchmark.run(state);
+      mOut.printf("# Warmup iteration %d: %.3f ms/op%n", i + 1, (System.nanoTime() - start) / 1e6);
+    }
+
+    long[] times = new long[mIterations];
+    for (int i = 0; i < mIterations; ++i) {
+      T state = setup.setup();
+      long start = System.nanoTime();
+      benchmark.run(state);
+      times[i] = System.nanoTime() - start;
+      mOut.printf("Iteration %d: %.3f ms/op%n", i + 1, times[i] / 1e6);
+    }
+    record(name, times);
+  }
+
+  /**
+   * Runs the named benchmark, if enabled, without any setup.
+   */
+  void run(String name, Benchmark<Void> benchmark) throws Exception {
+    run(name, () -> null, benchmark);
+  }
+
+  /**
+   * Records the given times in nanoseconds of the operations of the named
+   * benchmark, for benchmarks that time their operations themselves.
+   */
+  void record(String name, long[] times) {
+    if (times.length == 0) {
+      return;
+    }
+
+    double sum = 0;
+    for (long time : times) {
+      sum += time / 1e6;
+    }
+    double mean = sum / times.length;
+    double squares = 0;
+    for (long time : times) {
+      squares += (time / 1e6 - mean) * (time / 1e6 - mean);
+    }
+    double stddev = times.length > 1 ? Math.sqrt(squares / (times.length - 1)) : Double.NaN;
+    mResults.add(new Result(name, times.length, mean, stddev, "ms/op"));
+  }
+
+  /**
+   * Records a single measured value of the named benchmark, such as a
+   * memory footprint.
+   */
+  void report(String name, double value, String units) {
+    mResults.add(new Result(name, 1, value, Double.NaN, units));
+  }
+
+  /**
+   * Prints a summary of the results of all benchmarks run so far.
+   */
+  void printResults() {
+    int width = "Benchmark".length();
+    for (Result result : mResults) {
+      width = Math.max(width, result.name.length());
+    }
+
+    mOut.println();
+    String format = "%-" + width + "s  %5s  %12s  %10s  %s%n";
+    mOut.printf(format, "Benchmark", "Cnt", "Score", "Error", "Units");
+    for (Result result : mResults) {
+      mOut.printf(format, result.name, result.count,
+          String.format("%.3f", result.score),
+          Double.isNaN(result.error) ? "" : String.format("+- %.3f", result.error),
+          result.units);
+    }
+  }
+}
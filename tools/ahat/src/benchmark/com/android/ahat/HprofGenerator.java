@@ -0,0 +1,547 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Writes synthetic Android heap dumps of configurable size and shape, for
+ * benchmarking ahat without needing a device.
+ * <p>
+ * The heap dump consists of nodes of a single class on the app heap. Each
+ * node has a configurable number of reference fields: the nodes form a tree
+ * through these fields, rooted at a JNI global, with a fraction of the
+ * fields replaced by references to random nodes so that the dominator tree
+ * differs from the reference tree. Every node also references one of a pool
+ * of strings, some nodes have a byte[] payload, and some have a weak
+ * reference to a random node. Nodes are allocated at sites whose stack
+ * traces have a configurable depth.
+ * <p>
+ * The same configuration and seed always produce the same heap dump. For
+ * example, to write a heap dump of a million nodes:
+ * <pre>
+ *   new HprofGenerator().objects(1000000).fanOut(3).siteDepth(8).write(file);
+ * </pre>
+ */
+class HprofGenerator {
+  private static final int ID_SIZE = 4;
+
+  // Hprof record tags.
+  private static final int STRING = 0x01;
+  private static final int LOAD_CLASS = 0x02;
+  private static final int STACK_FRAME = 0x04;
+  private static final int STACK_TRACE = 0x05;
+  private static final int HEAP_DUMP_SEGMENT = 0x1C;
+  private static final int HEAP_DUMP_END = 0x2C;
+
+  // Heap dump sub record tags.
+  private static final int ROOT_JNI_GLOBAL = 0x01;
+  private static final int ROOT_STICKY_CLASS = 0x05;
+  private static final int CLASS_DUMP = 0x20;
+  private static final int INSTANCE_DUMP = 0x21;
+  private static final int OBJECT_ARRAY_DUMP = 0x22;
+  private static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+  private static final int HEAP_DUMP_INFO = 0xFE;
+
+  // Hprof basic types.
+  private static final int OBJECT = 2;
+  private static final int BYTE = 8;
+  private static final int INT = 10;
+
+  // Heap dump segments are flushed once they reach this size.
+  private static final int SEGMENT_SIZE = 1024 * 1024;
+
+  // Ids of the classes, strings and nodes. Each kind of object has a range
+  // of ids to itself so the id of any object can be computed up front.
+  private static final long CLASS_IDS = 0x00001000L;
+  private static final long STRING_IDS = 0x01000000L;
+  private static final long NODE_IDS = 0x10000000L;
+  private static final int NODE_ID_STRIDE = 16;
+
+  // Classes of the heap dump, by index into CLASS_NAMES.
+  private static final int JAVA_LANG_OBJECT = 0;
+  private static final int JAVA_LANG_CLASS = 1;
+  private static final int JAVA_LANG_STRING = 2;
+  private static final int REFERENCE = 3;
+  private static final int WEAK_REFERENCE = 4;
+  private static final int BYTE_ARRAY = 5;
+  private static final int OBJECT_ARRAY = 6;
+  private static final int NODE = 7;
+  private static final String[] CLASS_NAMES = {
+    "java.lang.Object",
+    "java.lang.Class",
+    "java.lang.String",
+    "java.lang.ref.Reference",
+    "java.lang.ref.WeakReference",
+    "byte[]",
+    "java.lang.Object[]",
+    "com.android.ahat.benchmark.Node",
+  };
+
+  private int mObjects = 100000;
+  private int mFanOut = 2;
+  private int mSiteDepth = 8;
+  private int mSites = 64;
+  private int mStrings = 1000;
+  private double mCrossReferences = 0.1;
+  private long mSeed = 0;
+
+  /**
+   * Sets the number of nodes in the heap dump.
+   */
+  public HprofGenerator objects(int objects) {
+    mObjects = objects;
+    return this;
+  }
+
+  /**
+   * Sets the number of reference fields of each node.
+   */
+  public HprofGenerator fanOut(int fanOut) {
+    mFanOut = fanOut;
+    return this;
+  }
+
+  /**
+   * Sets the number of frames of the stack trace of each allocation site.
+   */
+  public HprofGenerator siteDepth(int depth) {
+    mSiteDepth = depth;
+    return this;
+  }
+
+  /**
+   * Sets the number of distinct allocation sites of the nodes.
+   */
+  public HprofGenerator sites(int sites) {
+    mSites = sites;
+    return this;
+  }
+
+  /**
+   * Sets the fraction of reference fields that refer to a random node
+   * rather than to a child in the tree of nodes.
+   */
+  public HprofGenerator crossReferences(double fraction) {
+    mCrossReferences = fraction;
+    return this;
+  }
+
+  /**
+   * Sets the seed used to generate the heap dump.
+   */
+  public HprofGenerator seed(long seed) {
+    mSeed = seed;
+    return this;
+  }
+
+  /**
+   * Returns the number of instances, including class objects, that are
+   * written to the heap dump. This is the number of instances ahat reports
+   * for the heap dump, not counting its super root.
+   */
+  public long getNumInstances() {
+    long instances = CLASS_NAMES.length + 2L * mStrings + 1;
+    for (int i = 0; i < mObjects; ++i) {
+      instances += 1 + (hasPayload(i) ? 1 : 0) + (hasWeak(i) ? 1 : 0);
+    }
+    return instances;
+  }
+
+  /**
+   * Writes the heap dump to the given file.
+   */
+  public void write(File file) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+      write(out);
+    }
+  }
+
+  /**
+   * Writes the heap dump to the given stream.
+   */
+  public void write(OutputStream stream) throws IOException {
+    if (mObjects <= 0 || mFanOut < 0 || mSiteDepth < 0 || mSites <= 0 || mStrings <= 0) {
+      throw new IllegalArgumentException("Invalid heap dump configuration");
+    }
+    if (NODE_IDS + (long)mObjects * NODE_ID_STRIDE > 0xFFFFFFFFL) {
+      throw new IllegalArgumentException("Too many objects: " + mObjects);
+    }
+
+    DataOutputStream out = new DataOutputStream(stream);
+    out.write("JAVA PROFILE 1.0.3".getBytes(StandardCharsets.US_ASCII));
+    out.write(0);
+    out.writeInt(ID_SIZE);
+    out.writeLong(0);
+
+    // Strings are given ids in the order they are written, starting after
+    // the ids of the string records for the class names.
+    Records records = new Records(out);
+    for (int i = 0; i < CLASS_NAMES.length; ++i) {
+      records.string(i + 1, CLASS_NAMES[i]);
+    }
+    long nextString = CLASS_NAMES.length + 1;
+    long appHeap = nextString++;
+    records.string(appHeap, "app");
+    long referentName = nextString++;
+    records.string(referentName, "referent");
+    long valueName = nextString++;
+    records.string(valueName, "value");
+    long nameName = nextString++;
+    records.string(nameName, "name");
+    long payloadName = nextString++;
+    records.string(payloadName, "payload");
+    long weakName = nextString++;
+    records.string(weakName, "weak");
+    long sizeName = nextString++;
+    records.string(sizeName, "size");
+    long hashName = nextString++;
+    records.string(hashName, "hash");
+    long firstRefName = nextString;
+    for (int i = 0; i < mFanOut; ++i) {
+      records.string(nextString++, "ref" + i);
+    }
+
+    for (int i = 0; i < CLASS_NAMES.length; ++i) {
+      records.loadClass(i + 1, classId(i), i + 1);
+    }
+
+    // The allocation sites form a tree: the sites share the outermost
+    // frames of their stack traces and branch out towards the innermost.
+    // Frames are numbered densely in the order they are defined.
+    long sourceFile = nextString++;
+    records.string(sourceFile, "Node.java");
+    long signature = nextString++;
+    records.string(signature, "()V");
+    int bits = 32 - Integer.numberOfLeadingZeros(mSites - 1);
+    int[][] frameIds = new int[mSiteDepth][];
+    int nextFrame = 1;
+    for (int level = 0; level < mSiteDepth; ++level) {
+      int shift = Math.max(0, bits - level);
+      int branches = ((mSites - 1) >> shift) + 1;
+      frameIds[level] = new int[branches];
+      for (int b = 0; b < branches; ++b) {
+        long method = nextString++;
+        records.string(method, "method" + level + "_" + b);
+        frameIds[level][b] = nextFrame;
+        records.stackFrame(nextFrame++, method, signature, sourceFile, NODE + 1, level + 1);
+      }
+    }
+
+    // Stack trace 1 is empty and used for everything but the nodes. The
+    // stack trace of site s is 2 + s, with the innermost frame first.
+    records.stackTrace(1, new int[0]);
+    for (int s = 0; s < mSites; ++s) {
+      int[] frames = new int[mSiteDepth];
+      for (int level = 0; level < mSiteDepth; ++level) {
+        int shift = Math.max(0, bits - level);
+        frames[mSiteDepth - 1 - level] = frameIds[level][s >> shift];
+      }
+      records.stackTrace(2 + s, frames);
+    }
+
+    HeapDump heap = new HeapDump(records);
+    heap.tag(HEAP_DUMP_INFO);
+    heap.u4(3);
+    heap.id(appHeap);
+
+    heap.tag(ROOT_JNI_GLOBAL);
+    heap.id(NODE_IDS);
+    heap.id(0);
+    for (int i = 0; i < CLASS_NAMES.length; ++i) {
+      heap.tag(ROOT_STICKY_CLASS);
+      heap.id(classId(i));
+    }
+
+    int nodeSize = ID_SIZE * (mFanOut + 3) + 4;
+    classDump(heap, JAVA_LANG_OBJECT, -1, 0);
+    classDump(heap, JAVA_LANG_CLASS, JAVA_LANG_OBJECT, 0);
+    classDump(heap, JAVA_LANG_STRING, JAVA_LANG_OBJECT, ID_SIZE + 4, valueName, OBJECT,
+        hashName, INT);
+    classDump(heap, REFERENCE, JAVA_LANG_OBJECT, ID_SIZE, referentName, OBJECT);
+    classDump(heap, WEAK_REFERENCE, REFERENCE, ID_SIZE);
+    classDump(heap, BYTE_ARRAY, JAVA_LANG_OBJECT, 0);
+    classDump(heap, OBJECT_ARRAY, JAVA_LANG_OBJECT, 0);
+    long[] nodeFields = new long[2 * (mFanOut + 4)];
+    for (int i = 0; i < mFanOut; ++i) {
+      nodeFields[2 * i] = firstRefName + i;
+      nodeFields[2 * i + 1] = OBJECT;
+    }
+    long[] otherFields = {nameName, OBJECT, payloadName, OBJECT, weakName, OBJECT, sizeName, INT};
+    System.arraycopy(otherFields, 0, nodeFields, 2 * mFanOut, otherFields.length);
+    classDump(heap, NODE, JAVA_LANG_OBJECT, nodeSize, nodeFields);
+
+    // The pool of strings, each with its own byte[] value. Some strings
+    // have the same value, so that there are duplicates to be found.
+    for (int i = 0; i < mStrings; ++i) {
+      byte[] value = ("string " + (i % (mStrings / 2 + 1))).getBytes(StandardCharsets.US_ASCII);
+      long id = STRING_IDS + 16L * i;
+      heap.tag(INSTANCE_DUMP);
+      heap.id(id);
+      heap.u4(1);
+      heap.id(classId(JAVA_LANG_STRING));
+      heap.u4(ID_SIZE + 4);
+      heap.id(id + 8);
+      heap.u4(0);
+
+      heap.tag(PRIMITIVE_ARRAY_DUMP);
+      heap.id(id + 8);
+      heap.u4(1);
+      heap.u4(value.length);
+      heap.u1(BYTE);
+      heap.bytes(value);
+    }
+
+    // An unreachable array of some nodes, so not everything is reachable.
+    heap.tag(OBJECT_ARRAY_DUMP);
+    heap.id(STRING_IDS - 16);
+    heap.u4(1);
+    heap.u4(Math.min(mObjects, 16));
+    heap.id(classId(OBJECT_ARRAY));
+    for (int i = 0; i < Math.min(mObjects, 16); ++i) {
+      heap.id(nodeId(i));
+    }
+
+    Random random = new Random(mSeed);
+    byte[] payload = new byte[16 * 8];
+    for (int i = 0; i < mObjects; ++i) {
+      long id = nodeId(i);
+      heap.tag(INSTANCE_DUMP);
+      heap.id(id);
+      heap.u4(2 + (i % mSites));
+      heap.id(classId(NODE));
+      heap.u4(nodeSize);
+      for (int f = 0; f < mFanOut; ++f) {
+        long child = (long)i * mFanOut + f + 1;
+        if (random.nextDouble() < mCrossReferences) {
+          heap.id(nodeId(random.nextInt(mObjects)));
+        } else {
+          heap.id(child < mObjects ? nodeId((int)child) : 0);
+        }
+      }
+      heap.id(STRING_IDS + 16L * random.nextInt(mStrings));
+      heap.id(hasPayload(i) ? id + 4 : 0);
+      heap.id(hasWeak(i) ? id + 8 : 0);
+      heap.u4(i);
+
+      if (hasPayload(i)) {
+        int length = 16 + (i % 8) * 16;
+        heap.tag(PRIMITIVE_ARRAY_DUMP);
+        heap.id(id + 4);
+        heap.u4(2 + (i % mSites));
+        heap.u4(length);
+        heap.u1(BYTE);
+        for (int b = 0; b < length; ++b) {
+          payload[b] = (byte)b;
+        }
+        heap.bytes(payload, length);
+      }
+
+      if (hasWeak(i)) {
+        heap.tag(INSTANCE_DUMP);
+        heap.id(id + 8);
+        heap.u4(2 + (i % mSites));
+        heap.id(classId(WEAK_REFERENCE));
+        heap.u4(ID_SIZE);
+        heap.id(nodeId(random.nextInt(mObjects)));
+      }
+    }
+    heap.flush();
+    records.record(HEAP_DUMP_END, new byte[0], 0);
+    out.flush();
+  }
+
+  private static boolean hasPayload(int node) {
+    return node % 8 == 0;
+  }
+
+  private static boolean hasWeak(int node) {
+    return node % 16 == 5;
+  }
+
+  private static long classId(int cls) {
+    return CLASS_IDS + 16L * cls;
+  }
+
+  private static long nodeId(int node) {
+    return NODE_IDS + (long)NODE_ID_STRIDE * node;
+  }
+
+  /**
+   * Writes a class dump for the given class with the given super class, or
+   * -1 for no super class, instance size and pairs of instance field name
+   * and type.
+   */
+  private static void classDump(HeapDump heap, int cls, int superClass, int instanceSize,
+      long... fields) throws IOException {
+    heap.tag(CLASS_DUMP);
+    heap.id(classId(cls));
+    heap.u4(1);
+    heap.id(superClass < 0 ? 0 : classId(superClass));
+    for (int i = 0; i < 5; ++i) {
+      heap.id(0);   // Class loader, signers, protection domain and reserved.
+    }
+    heap.u4(instanceSize);
+    heap.u2(0);     // Constant pool.
+    heap.u2(0);     // Static fields.
+    heap.u2(fields.length / 2);
+    for (int i = 0; i < fields.length; i += 2) {
+      heap.id(fields[i]);
+      heap.u1((int)fields[i + 1]);
+    }
+  }
+
+  /**
+   * Writes top level hprof records.
+   */
+  private static class Records {
+    private final DataOutputStream mOut;
+
+    Records(DataOutputStream out) {
+      mOut = out;
+    }
+
+    void record(int tag, byte[] body, int length) throws IOException {
+      mOut.write(tag);
+      mOut.writeInt(0);
+      mOut.writeInt(length);
+      mOut.write(body, 0, length);
+    }
+
+    void string(long id, String value) throws IOException {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      mOut.write(STRING);
+      mOut.writeInt(0);
+      mOut.writeInt(ID_SIZE + bytes.length);
+      mOut.writeInt((int)id);
+      mOut.write(bytes);
+    }
+
+    void loadClass(int serial, long id, long name) throws IOException {
+      mOut.write(LOAD_CLASS);
+      mOut.writeInt(0);
+      mOut.writeInt(8 + 2 * ID_SIZE);
+      mOut.writeInt(serial);
+      mOut.writeInt((int)id);
+      mOut.writeInt(1);
+      mOut.writeInt((int)name);
+    }
+
+    void stackFrame(int id, long method, long signature, long file, int classSerial, int line)
+        throws IOException {
+      mOut.write(STACK_FRAME);
+      mOut.writeInt(0);
+      mOut.writeInt(4 * ID_SIZE + 8);
+      mOut.writeInt(id);
+      mOut.writeInt((int)method);
+      mOut.writeInt((int)signature);
+      mOut.writeInt((int)file);
+      mOut.writeInt(classSerial);
+      mOut.writeInt(line);
+    }
+
+    void stackTrace(int serial, int[] frames) throws IOException {
+      mOut.write(STACK_TRACE);
+      mOut.writeInt(0);
+      mOut.writeInt(12 + frames.length * ID_SIZE);
+      mOut.writeInt(serial);
+      mOut.writeInt(1);
+      mOut.writeInt(frames.length);
+      for (int frame : frames) {
+        mOut.writeInt(frame);
+      }
+    }
+  }
+
+  /**
+   * Buffers heap dump sub records, writing them out as heap dump segment
+   * records of about SEGMENT_SIZE bytes. Sub records are never split across
+   * segments.
+   */
+  private static class HeapDump {
+    private final Records mRecords;
+    private final Buffer mBuffer = new Buffer();
+    private final DataOutputStream mOut = new DataOutputStream(mBuffer);
+
+    HeapDump(Records records) {
+      mRecords = records;
+    }
+
+    /**
+     * Starts a new sub record with the given tag, first writing out the
+     * current segment if it is full.
+     */
+    void tag(int tag) throws IOException {
+      if (mBuffer.size() >= SEGMENT_SIZE) {
+        flush();
+      }
+      mOut.write(tag);
+    }
+
+    void u1(int value) throws IOException {
+      mOut.write(value);
+    }
+
+    void u2(int value) throws IOException {
+      mOut.writeShort(value);
+    }
+
+    void u4(int value) throws IOException {
+      mOut.writeInt(value);
+    }
+
+    void id(long value) throws IOException {
+      mOut.writeInt((int)value);
+    }
+
+    void bytes(byte[] bytes) throws IOException {
+      mOut.write(bytes);
+    }
+
+    void bytes(byte[] bytes, int length) throws IOException {
+      mOut.write(bytes, 0, length);
+    }
+
+    void flush() throws IOException {
+      if (mBuffer.size() > 0) {
+        mRecords.record(HEAP_DUMP_SEGMENT, mBuffer.buffer(), mBuffer.size());
+        mBuffer.reset();
+      }
+    }
+  }
+
+  /**
+   * A ByteArrayOutputStream whose contents can be written without copying.
+   */
+  private static class Buffer extends ByteArrayOutputStream {
+    Buffer() {
+      super(SEGMENT_SIZE + 4096);
+    }
+
+    byte[] buffer() {
+      return buf;
+    }
+  }
+}
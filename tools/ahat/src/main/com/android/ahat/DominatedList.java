@@ -42,9 +42,33 @@ class DominatedList {
    */
   public static void render(final AhatSnapshot snapshot,
       Doc doc, Query query, String id, Collection<AhatInstance> instances) {
+    renderSorted(snapshot, doc, query, id, sort(snapshot, instances));
+  }
+
+  /**
+   * Render a table to the given HtmlWriter showing a pretty list of
+   * instances that have already been sorted using {@link #sort}.
+   *
+   * @param snapshot  the snapshot where the instances reside
+   * @param doc       the document to render the dominated list to
+   * @param query     the current page query
+   * @param id        a unique identifier to use for the dominated list in the current page
+   * @param instances the sorted list of instances to render
+   */
+  public static void renderSorted(final AhatSnapshot snapshot,
+      Doc doc, Query query, String id, List<AhatInstance> instances) {
+    HeapTable.render(doc, query, id, new TableConfig(), snapshot, instances);
+  }
+
+  /**
+   * Returns a new list of the given instances in the order they are shown in
+   * a dominated list.
+   */
+  public static List<AhatInstance> sort(AhatSnapshot snapshot,
+      Collection<AhatInstance> instances) {
     List<AhatInstance> insts = new ArrayList<AhatInstance>(instances);
     Collections.sort(insts, Sort.defaultInstanceCompare(snapshot));
-    HeapTable.render(doc, query, id, new TableConfig(), snapshot, insts);
+    return insts;
   }
 
   private static class TableConfig implements HeapTable.TableConfig<AhatInstance> {
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Duplicates;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Lists the groups of instances holding duplicate strings, primitive arrays
+ * or bitmap pixels, in decreasing order of wasted size. If the group
+ * parameter is given, lists the instances of the group with that rank
+ * instead.
+ */
+class DuplicatesHandler implements AhatHandler {
+  private static final String DUPLICATES_ID = "duplicates";
+  private static final String INSTANCES_ID = "instances";
+
+  private AhatSnapshot mSnapshot;
+
+  public DuplicatesHandler(AhatSnapshot snapshot) {
+    mSnapshot = snapshot;
+  }
+
+  @Override
+  public void handle(Doc doc, Query query) throws IOException {
+    Duplicates duplicates = mSnapshot.getDuplicates();
+    List<Duplicates.Group> groups = duplicates.getGroups();
+    int rank = query.getInt("group", -1);
+    if (rank >= 0 && rank < groups.size()) {
+      handleGroup(doc, query, groups.get(rank));
+      return;
+    }
+
+    doc.title("Duplicates");
+    doc.descriptions();
+    doc.description(DocString.text("Groups"), DocString.format("%,d", groups.size()));
+    doc.description(DocString.text("Wasted"),
+        DocString.size(duplicates.getTotalWastedSize(), false));
+    doc.end();
+    doc.println(DocString.text(""));
+
+    if (groups.isEmpty()) {
+      doc.println(DocString.text("(none)"));
+      return;
+    }
+
+    doc.table(
+        new Column("Wasted", Column.Align.RIGHT),
+        new Column("Count", Column.Align.RIGHT),
+        new Column("Size", Column.Align.RIGHT),
+        new Column("Kind"),
+        new Column("Example"));
+    SubsetSelector<Duplicates.Group> selector
+      = new SubsetSelector(query, DUPLICATES_ID, groups);
+    List<Duplicates.Group> selected = selector.selected();
+    for (int i = 0; i < selected.size(); ++i) {
+      Duplicates.Group group = selected.get(i);
+      DocString count = DocString.link(DocString.formattedUri("duplicates?group=%d", i),
+          DocString.format("%,d", group.getCount()));
+      doc.row(
+          DocString.size(group.getWastedSize(), false),
+          count,
+          DocString.size(group.getSize(), false),
+          DocString.text(group.getKind().name().toLowerCase()),
+          Summarizer.summarize(group.getInstances().get(0)));
+    }
+    doc.end();
+    selector.render(doc);
+  }
+
+  private void handleGroup(Doc doc, Query query, Duplicates.Group group) {
+    doc.title("Duplicates");
+    doc.descriptions();
+    doc.description(DocString.text("Kind"),
+        DocString.text(group.getKind().name().toLowerCase()));
+    doc.description(DocString.text("Count"), DocString.format("%,d", group.getCount()));
+    doc.description(DocString.text("Size"), DocString.size(group.getSize(), false));
+    doc.description(DocString.text("Wasted"), DocString.size(group.getWastedSize(), false));
+    doc.end();
+    doc.println(DocString.text(""));
+
+    doc.table(new Column("Heap"), new Column("Object"));
+    SubsetSelector<AhatInstance> selector
+      = new SubsetSelector(query, INSTANCES_ID, group.getInstances());
+    for (AhatInstance inst : selector.selected()) {
+      doc.row(DocString.text(inst.getHeap().getName()), Summarizer.summarize(inst));
+    }
+    doc.end();
+    selector.render(doc);
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A minimal streaming writer of JSON documents.
+ * <p>
+ * Values are written one at a time. Members of objects are written by
+ * calling {@link #name} followed by a method writing the value. Each member
+ * or element is written on its own line, indented by its nesting depth, so
+ * that reports can be compared with line based tools.
+ */
+class JsonWriter {
+  private final PrintStream mOut;
+
+  // For each object or array currently open, whether any member or element
+  // has been written to it yet.
+  private final Deque<Boolean> mNonEmpty = new ArrayDeque<Boolean>();
+
+  // True if a name has been written for which no value has been written yet.
+  private boolean mNamed = false;
+
+  public JsonWriter(PrintStream out) {
+    mOut = out;
+  }
+
+  /**
+   * Begins a new line for the next member or element of the current object
+   * or array, if it isn't preceded by its name.
+   */
+  private void beforeValue() {
+    if (mNamed) {
+      mNamed = false;
+      return;
+    }
+
+    if (!mNonEmpty.isEmpty()) {
+      if (mNonEmpty.pop()) {
+        mOut.print(",");
+      }
+      mNonEmpty.push(true);
+      newline();
+    }
+  }
+
+  private void newline() {
+    mOut.println();
+    for (int i = 0; i < mNonEmpty.size(); ++i) {
+      mOut.print("  ");
+    }
+  }
+
+  private JsonWriter end(String close) {
+    if (mNonEmpty.pop()) {
+      newline();
+    }
+    mOut.print(close);
+    if (mNonEmpty.isEmpty()) {
+      mOut.println();
+    }
+    return this;
+  }
+
+  public JsonWriter beginObject() {
+    beforeValue();
+    mOut.print("{");
+    mNonEmpty.push(false);
+    return this;
+  }
+
+  public JsonWriter endObject() {
+    return end("}");
+  }
+
+  public JsonWriter beginArray() {
+    beforeValue();
+    mOut.print("[");
+    mNonEmpty.push(false);
+    return this;
+  }
+
+  public JsonWriter endArray() {
+    return end("]");
+  }
+
+  /**
+   * Writes the name of the next member of the current object.
+   */
+  public JsonWriter name(String name) {
+    beforeValue();
+    string(name);
+    mOut.print(": ");
+    mNamed = true;
+    return this;
+  }
+
+  /**
+   * Writes a string value, or null if the given string is null.
+   */
+  public JsonWriter value(String value) {
+    beforeValue();
+    if (value == null) {
+      mOut.print("null");
+    } else {
+      string(value);
+    }
+    return this;
+  }
+
+  public JsonWriter value(long value) {
+    beforeValue();
+    mOut.print(value);
+    return this;
+  }
+
+  public JsonWriter value(boolean value) {
+    beforeValue();
+    mOut.print(value);
+    return this;
+  }
+
+  public JsonWriter nullValue() {
+    beforeValue();
+    mOut.print("null");
+    return this;
+  }
+
+  /**
+   * Writes the given string as a quoted and escaped JSON string.
+   */
+  private void string(String value) {
+    StringBuilder sb = new StringBuilder(value.length() + 2);
+    sb.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"': sb.append("\\\""); break;
+        case '\\': sb.append("\\\\"); break;
+        case '\n': sb.append("\\n"); break;
+        case '\r': sb.append("\\r"); break;
+        case '\t': sb.append("\\t"); break;
+        default:
+          if (c < 0x20 || (c >= 0x7f && c <= 0x9f) || Character.isSurrogate(c)) {
+            sb.append(String.format("\\u%04x", (int)c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    sb.append('"');
+    mOut.print(sb);
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.progress.Progress;
+
+/**
+ * A progress indicator that keeps track of the current phase of work, so
+ * that it can be shown to users of the http server while the heap dump is
+ * loading. Progress is also passed on to another progress indicator.
+ * <p>
+ * The phase of work is updated by the thread loading the heap dump and read
+ * by the threads handling requests.
+ */
+class LoadingProgress implements Progress {
+  private final Progress mProgress;
+
+  private volatile String mDescription;
+  private volatile long mDuration;
+  private volatile long mCurrent;
+
+  /**
+   * Constructs a progress indicator passing progress on to the given
+   * progress indicator.
+   */
+  public LoadingProgress(Progress progress) {
+    mProgress = progress;
+  }
+
+  @Override
+  public void start(String description, long duration) {
+    mCurrent = 0;
+    mDuration = duration;
+    mDescription = description;
+    mProgress.start(description, duration);
+  }
+
+  @Override
+  public void advance(long n) {
+    mCurrent += n;
+    mProgress.advance(n);
+  }
+
+  @Override
+  public void update(long current) {
+    mCurrent = current;
+    mProgress.update(current);
+  }
+
+  @Override
+  public void done() {
+    mCurrent = mDuration;
+    mProgress.done();
+  }
+
+  /**
+   * Returns a description of the current phase of work, such as
+   * "Computing dominators (42%)".
+   */
+  public String getStatus() {
+    String description = mDescription;
+    if (description == null) {
+      return "Starting";
+    }
+    long duration = mDuration;
+    long percent = duration == 0 ? 100 : Math.min(100, mCurrent * 100 / duration);
+    return String.format("%s (%d%%)", description, percent);
+  }
+}
@@ -21,16 +21,28 @@ import com.android.ahat.heapdump.Diff;
 import com.android.ahat.heapdump.HprofFormatException;
 import com.android.ahat.heapdump.Parser;
 import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.heapdump.Summary;
 import com.android.ahat.progress.Progress;
 import com.android.ahat.proguard.ProguardMap;
 import com.sun.net.httpserver.HttpServer;
+import com.android.ahat.progress.NullProgress;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 /**
  * Contains the main entry point for the ahat heap dump viewer.
@@ -42,6 +54,8 @@ public class Main {
   private static void help(PrintStream out) {
     out.println("java -jar ahat.jar [OPTIONS] FILE");
     out.println("  Launch an http server for viewing the given Android heap dump FILE.");
+    out.println("java -jar ahat.jar --report DIR [OPTIONS] FILE...");
+    out.println("  Write a JSON report for each given Android heap dump FILE to DIR.");
     out.println("");
     out.println("OPTIONS:");
     out.println("  -p <port>");
@@ -50,35 +64,252 @@ public class Main {
     out.println("     Use the proguard map FILE to deobfuscate the heap dump.");
     out.println("  --baseline FILE");
     out.println("     Diff the heap dump against the given baseline heap dump FILE.");
+    out.println("     When writing reports, FILE is parsed again for each heap dump,");
+    out.println("     unless --streaming-diff is given.");
     out.println("  --baseline-proguard-map FILE");
     out.println("     Use the proguard map FILE to deobfuscate the baseline heap dump.");
     out.println("  --retained [strong | soft | finalizer | weak | phantom | unreachable]");
     out.println("     The weakest reachability of instances to treat as retained.");
     out.println("     Defaults to soft");
+    out.println("  --cache-dir DIR");
+    out.println("     Save the results of analyzing heap dumps in DIR and reuse them");
+    out.println("     when the same heap dump is opened again.");
+    out.println("  --report DIR");
+    out.println("     Write a JSON report for each heap dump FILE to DIR instead of");
+    out.println("     launching an http server. The report for FILE is named FILE.json.");
+    out.println("  --jobs N");
+    out.println("     Process up to N heap dumps concurrently when writing reports.");
+    out.println("     Defaults to 1.");
+    out.println("  --top N");
+    out.println("     Include the N instances with the largest retained size in reports.");
+    out.println("     Defaults to 100.");
+    out.println("  --streaming-diff");
+    out.println("     Diff summaries of the heap dumps written to DIR when writing reports");
+    out.println("     against a baseline, loading only one heap dump at a time. The");
+    out.println("     baseline is parsed once and shared by all the reports.");
     out.println("");
   }
 
+  /**
+   * Parse the given heap dump file.
+   * If parsed is not null, it is called with the snapshot before dominators
+   * and retained sizes are computed.
+   */
+  private static AhatSnapshot parseHeapDump(File hprof,
+      ProguardMap map, Progress progress, Reachability retained, File cacheDir,
+      Consumer<AhatSnapshot> parsed) throws IOException, HprofFormatException {
+    System.out.println("Processing '" + hprof + "' ...");
+    Parser parser = new Parser(hprof).map(map).progress(progress).retained(retained);
+    if (cacheDir != null) {
+      parser.index(new File(cacheDir, hprof.getName() + ".ahat-index"));
+    }
+    if (parsed != null) {
+      parser.onParsed(parsed);
+    }
+    return parser.parse();
+  }
+
+  /**
+   * Prints an error message describing a failure to load the given heap
+   * dump file.
+   */
+  private static void printLoadError(File hprof, Exception e) {
+    if (e instanceof HprofFormatException) {
+      System.err.println("'" + hprof + "' does not appear to be a valid Java heap dump:");
+    } else {
+      System.err.println("Unable to load '" + hprof + "':");
+    }
+    e.printStackTrace();
+  }
+
   /**
    * Load the given heap dump file.
    * Prints an error message and exits the application on failure to load the
    * heap dump.
    */
   private static AhatSnapshot loadHeapDump(File hprof,
-      ProguardMap map, Progress progress, Reachability retained) {
-    System.out.println("Processing '" + hprof + "' ...");
+      ProguardMap map, Progress progress, Reachability retained, File cacheDir,
+      Consumer<AhatSnapshot> parsed) {
     try {
-      return new Parser(hprof).map(map).progress(progress).retained(retained).parse();
-    } catch (IOException e) {
-      System.err.println("Unable to load '" + hprof + "':");
-      e.printStackTrace();
-    } catch (HprofFormatException e) {
-      System.err.println("'" + hprof + "' does not appear to be a valid Java heap dump:");
-      e.printStackTrace();
+      return parseHeapDump(hprof, map, progress, retained, cacheDir, parsed);
+    } catch (IOException | HprofFormatException e) {
+      printLoadError(hprof, e);
     }
     System.exit(1);
     throw new AssertionError("Unreachable");
   }
 
+  /**
+   * Something that writes a report as JSON.
+   */
+  private interface JsonReport {
+    void write(JsonWriter json) throws IOException;
+  }
+
+  /**
+   * Write the given report for the given heap dump file to the report
+   * directory.
+   */
+  private static void writeJson(File hprof, File reportDir, JsonReport report)
+      throws IOException {
+    // Write to a temporary file first so that an incomplete report is never
+    // left behind.
+    File file = new File(reportDir, hprof.getName() + ".json");
+    File tmp = new File(reportDir, hprof.getName() + ".json.tmp");
+    try (PrintStream out = new PrintStream(tmp, "UTF-8")) {
+      report.write(new JsonWriter(out));
+      if (out.checkError()) {
+        throw new IOException("Error writing '" + tmp + "'");
+      }
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    System.out.println("Wrote '" + file + "'");
+  }
+
+  /**
+   * Write a report for the given heap dump file to the report directory,
+   * diffing it against the given baseline heap dump file if that is not
+   * null.
+   */
+  private static void writeReport(File hprof, ProguardMap map, File hprofbase,
+      ProguardMap mapbase, Progress progress, Reachability retained, File cacheDir,
+      File reportDir, int top) throws IOException, HprofFormatException {
+    AhatSnapshot ahat = parseHeapDump(hprof, map, progress, retained, cacheDir, null);
+    if (hprofbase != null) {
+      // Each heap dump is diffed against its own copy of the baseline,
+      // because diffing adds placeholder heaps, instances and sites to both
+      // snapshots. Streaming diffs avoid the cost by sharing a summary of
+      // the baseline instead.
+      AhatSnapshot base = parseHeapDump(hprofbase, mapbase, progress, retained, cacheDir, null);
+      Diff.snapshots(ahat, base);
+    }
+    writeJson(hprof, reportDir, json -> new Report(ahat, hprof, hprofbase, retained, top)
+        .write(json));
+  }
+
+  /**
+   * Write a summary of the given heap dump file to a new temporary file in
+   * the given directory. Returns the summary file.
+   * The snapshot of the heap dump is no longer referenced once this returns,
+   * so it can be garbage collected before the next heap dump is loaded.
+   */
+  private static File writeSummary(File hprof, ProguardMap map, Progress progress,
+      Reachability retained, File cacheDir, File dir) throws IOException, HprofFormatException {
+    AhatSnapshot ahat = parseHeapDump(hprof, map, progress, retained, cacheDir, null);
+    File summary = File.createTempFile(hprof.getName(), ".summary", dir);
+    try {
+      Summary.write(ahat, summary);
+    } catch (IOException e) {
+      summary.delete();
+      throw e;
+    }
+    return summary;
+  }
+
+  /**
+   * Write a report for the given heap dump file to the report directory,
+   * diffing its summary against the given summary of the baseline heap dump
+   * file.
+   */
+  private static void writeSummaryReport(File hprof, ProguardMap map, File hprofbase,
+      File summarybase, Progress progress, Reachability retained, File cacheDir,
+      File reportDir) throws IOException, HprofFormatException {
+    File summary = writeSummary(hprof, map, progress, retained, cacheDir, reportDir);
+    try {
+      writeJson(hprof, reportDir, json -> new SummaryReport(hprof, summary, hprofbase,
+            summarybase, retained).write(json));
+    } finally {
+      summary.delete();
+    }
+  }
+
+  /**
+   * Write reports for the given heap dump files, processing up to
+   * <code>jobs</code> of them concurrently. If streaming is true, the
+   * reports diff summaries of the heap dumps against a summary of the
+   * baseline heap dump.
+   * Returns true if all of the reports were written successfully.
+   */
+  private static boolean writeReports(List<File> hprofs, ProguardMap map, File hprofbase,
+      ProguardMap mapbase, Reachability retained, File cacheDir, File reportDir,
+      int jobs, int top, boolean streaming) {
+    // When streaming, the baseline is summarized once up front and the
+    // summary shared by all the reports.
+    File summarybase = null;
+    if (streaming) {
+      try {
+        summarybase = writeSummary(hprofbase, mapbase, new AsciiProgress(), retained, cacheDir,
+            reportDir);
+      } catch (IOException | HprofFormatException e) {
+        printLoadError(hprofbase, e);
+        return false;
+      }
+    } else if (hprofbase != null && hprofs.size() > 1) {
+      System.out.println("Parsing '" + hprofbase + "' again for each heap dump."
+          + " Use --streaming-diff to parse it once.");
+    }
+
+    try {
+      return writeReports(hprofs, map, hprofbase, mapbase, summarybase, retained, cacheDir,
+          reportDir, jobs, top);
+    } finally {
+      if (summarybase != null) {
+        summarybase.delete();
+      }
+    }
+  }
+
+  /**
+   * Write reports for the given heap dump files, processing up to
+   * <code>jobs</code> of them concurrently. If summarybase is not null, the
+   * reports diff summaries of the heap dumps against it rather than the
+   * heap dumps themselves.
+   * Returns true if all of the reports were written successfully.
+   */
+  private static boolean writeReports(List<File> hprofs, ProguardMap map, File hprofbase,
+      ProguardMap mapbase, File summarybase, Reachability retained, File cacheDir,
+      File reportDir, int jobs, int top) {
+    // The progress of concurrent jobs would be interleaved, so progress is
+    // only shown when processing one heap dump at a time.
+    ExecutorService executor = Executors.newFixedThreadPool(jobs);
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (File hprof : hprofs) {
+      futures.add(executor.submit(() -> {
+        Progress progress = jobs == 1 ? new AsciiProgress() : new NullProgress();
+        if (summarybase != null) {
+          writeSummaryReport(hprof, map, hprofbase, summarybase, progress, retained, cacheDir,
+              reportDir);
+        } else {
+          writeReport(hprof, map, hprofbase, mapbase, progress, retained, cacheDir, reportDir,
+              top);
+        }
+        return null;
+      }));
+    }
+    executor.shutdown();
+
+    boolean success = true;
+    for (int i = 0; i < hprofs.size(); ++i) {
+      try {
+        futures.get(i).get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException || cause instanceof HprofFormatException) {
+          printLoadError(hprofs.get(i), (Exception)cause);
+        } else {
+          System.err.println("Unable to write report for '" + hprofs.get(i) + "':");
+          cause.printStackTrace();
+        }
+        success = false;
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return success;
+  }
+
   /**
    * Main entry for ahat heap dump viewer.
    * Launches an http server on localhost for viewing a given heap dump.
@@ -96,11 +327,16 @@ public class Main {
       }
     }
 
-    File hprof = null;
+    List<File> hprofs = new ArrayList<File>();
     File hprofbase = null;
     ProguardMap map = new ProguardMap();
     ProguardMap mapbase = new ProguardMap();
     Reachability retained = Reachability.SOFT;
+    File cacheDir = null;
+    File reportDir = null;
+    int jobs = 1;
+    int top = 100;
+    boolean streaming = false;
     for (int i = 0; i < args.length; i++) {
       if ("-p".equals(args[i]) && i + 1 < args.length) {
         i++;
@@ -143,22 +379,78 @@ public class Main {
             help(System.err);
             return;
         }
-      } else {
-        if (hprof != null) {
-          System.err.println("multiple input files.");
+      } else if ("--cache-dir".equals(args[i]) && i + 1 < args.length) {
+        i++;
+        cacheDir = new File(args[i]);
+      } else if ("--report".equals(args[i]) && i + 1 < args.length) {
+        i++;
+        reportDir = new File(args[i]);
+      } else if ("--jobs".equals(args[i]) && i + 1 < args.length) {
+        i++;
+        jobs = Integer.parseInt(args[i]);
+        if (jobs < 1) {
+          System.err.println("Invalid number of jobs: " + args[i]);
           help(System.err);
           return;
         }
-        hprof = new File(args[i]);
+      } else if ("--top".equals(args[i]) && i + 1 < args.length) {
+        i++;
+        top = Integer.parseInt(args[i]);
+        if (top < 0) {
+          System.err.println("Invalid number of instances: " + args[i]);
+          help(System.err);
+          return;
+        }
+      } else if ("--streaming-diff".equals(args[i])) {
+        streaming = true;
+      } else {
+        hprofs.add(new File(args[i]));
       }
     }
 
-    if (hprof == null) {
+    if (hprofs.isEmpty()) {
       System.err.println("no input file.");
       help(System.err);
       return;
     }
 
+    if (cacheDir != null && !cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+      System.out.println("Unable to create cache directory '" + cacheDir + "'.");
+      System.out.println("Analysis results will not be cached.");
+      cacheDir = null;
+    }
+
+    if (streaming && (reportDir == null || hprofbase == null)) {
+      System.err.println("--streaming-diff requires --report and --baseline.");
+      help(System.err);
+      return;
+    }
+
+    if (reportDir != null) {
+      Set<String> names = new HashSet<String>();
+      for (File file : hprofs) {
+        if (!names.add(file.getName())) {
+          System.err.println("multiple input files named '" + file.getName() + "'.");
+          help(System.err);
+          return;
+        }
+      }
+      if (!reportDir.isDirectory() && !reportDir.mkdirs()) {
+        System.err.println("Unable to create report directory '" + reportDir + "'.");
+        System.exit(1);
+      }
+      boolean success = writeReports(hprofs, map, hprofbase, mapbase, retained, cacheDir,
+          reportDir, jobs, top, streaming);
+      System.exit(success ? 0 : 1);
+    }
+
+    if (hprofs.size() > 1) {
+      System.err.println("multiple input files.");
+      help(System.err);
+      return;
+    }
+    File hprof = hprofs.get(0);
+
     // Launch the server before parsing the hprof file so we get
     // BindExceptions quickly.
     InetAddress loopback = InetAddress.getLoopbackAddress();
@@ -173,26 +465,70 @@ public class Main {
       System.exit(1);
     }
 
-    AhatSnapshot ahat = loadHeapDump(hprof, map, new AsciiProgress(), retained);
+    // Start serving pages before loading the heap dump. Each page shows the
+    // progress of loading the heap dump until the heap dump has been
+    // analyzed far enough to show it.
+    LoadingProgress progress = new LoadingProgress(new AsciiProgress());
+    StagedHandler overview = new StagedHandler(progress);
+    StagedHandler rooted = new StagedHandler(progress);
+    StagedHandler object = new StagedHandler(progress);
+    StagedHandler objects = new StagedHandler(progress);
+    StagedHandler site = new StagedHandler(progress);
+    StagedHandler search = new StagedHandler(progress);
+    StagedHandler bitmap = new StagedHandler(progress);
+    StagedHandler duplicates = new StagedHandler(progress);
+    server.createContext("/", overview);
+    server.createContext("/rooted", rooted);
+    server.createContext("/object", object);
+    server.createContext("/objects", objects);
+    server.createContext("/site", site);
+    server.createContext("/search", search);
+    server.createContext("/bitmap", bitmap);
+    server.createContext("/duplicates", duplicates);
+    server.createContext("/style.css", new StaticHandler("etc/style.css", "text/css"));
+    server.setExecutor(Executors.newFixedThreadPool(
+          Math.max(2, Runtime.getRuntime().availableProcessors())));
+    server.start();
+    System.out.println("Server started on http://localhost:" + port);
+
+    // The overview and allocation sites only need the heap sizes and sites,
+    // which are known as soon as the heap dump has been parsed, so show
+    // them while dominators and retained sizes are computed. That isn't
+    // possible when diffing, which modifies the snapshot once the baseline
+    // has been loaded.
+    Consumer<AhatSnapshot> parsed = null;
+    if (hprofbase == null) {
+      Reachability reachability = retained;
+      parsed = snapshot -> {
+        overview.setHandler(new AhatHttpHandler(
+              new OverviewHandler(snapshot, hprof, null, reachability)));
+        site.setHandler(new AhatHttpHandler(new SiteHandler(snapshot)));
+      };
+    }
+
+    AhatSnapshot ahat = loadHeapDump(hprof, map, progress, retained, cacheDir, parsed);
     if (hprofbase != null) {
-      AhatSnapshot base = loadHeapDump(hprofbase, mapbase, new AsciiProgress(), retained);
+      AhatSnapshot base = loadHeapDump(hprofbase, mapbase, progress, retained, cacheDir,
+          null);
 
       System.out.println("Diffing heap dumps ...");
       Diff.snapshots(ahat, base);
     }
 
-    server.createContext("/",
+    // The snapshot is not modified once it has been loaded, so requests can
+    // be handled concurrently. Sorted lists of instances and sites are
+    // shared between requests through the cache.
+    ResultCache cache = new ResultCache();
+    overview.setHandler(
         new AhatHttpHandler(new OverviewHandler(ahat, hprof, hprofbase, retained)));
-    server.createContext("/rooted", new AhatHttpHandler(new RootedHandler(ahat)));
-    server.createContext("/object", new AhatHttpHandler(new ObjectHandler(ahat)));
-    server.createContext("/objects", new AhatHttpHandler(new ObjectsHandler(ahat)));
-    server.createContext("/site", new AhatHttpHandler(new SiteHandler(ahat)));
-    server.createContext("/bitmap", new BitmapHandler(ahat));
-    server.createContext("/style.css", new StaticHandler("etc/style.css", "text/css"));
-    server.setExecutor(Executors.newFixedThreadPool(1));
-    System.out.println("Server started on http://localhost:" + port);
-
-    server.start();
+    rooted.setHandler(new AhatHttpHandler(new RootedHandler(ahat, cache)));
+    object.setHandler(new AhatHttpHandler(new ObjectHandler(ahat, cache)));
+    objects.setHandler(new AhatHttpHandler(new ObjectsHandler(ahat, cache)));
+    site.setHandler(new AhatHttpHandler(new SiteHandler(ahat, cache)));
+    search.setHandler(new AhatHttpHandler(new SearchHandler(ahat, cache)));
+    bitmap.setHandler(new BitmapHandler(ahat));
+    duplicates.setHandler(new AhatHttpHandler(new DuplicatesHandler(ahat)));
+    System.out.println("Heap dump loaded");
   }
 }
 
@@ -25,7 +25,11 @@ class Menu {
       .append(" - ")
       .appendLink(DocString.uri("rooted"), DocString.text("rooted"))
       .append(" - ")
-      .appendLink(DocString.uri("sites"), DocString.text("allocations"));
+      .appendLink(DocString.uri("sites"), DocString.text("allocations"))
+      .append(" - ")
+      .appendLink(DocString.uri("search"), DocString.text("largest"))
+      .append(" - ")
+      .appendLink(DocString.uri("duplicates"), DocString.text("duplicates"));
 
   /**
    * Returns the menu as a DocString.
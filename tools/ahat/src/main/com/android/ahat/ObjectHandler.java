@@ -47,9 +47,15 @@ class ObjectHandler implements AhatHandler {
   private static final String REFS_ID = "refs";
 
   private AhatSnapshot mSnapshot;
+  private ResultCache mCache;
 
   public ObjectHandler(AhatSnapshot snapshot) {
+    this(snapshot, new ResultCache());
+  }
+
+  public ObjectHandler(AhatSnapshot snapshot, ResultCache cache) {
     mSnapshot = snapshot;
+    mCache = cache;
   }
 
   @Override
@@ -302,7 +308,10 @@ class ObjectHandler implements AhatHandler {
     doc.section("Immediately Dominated Objects");
     List<AhatInstance> instances = inst.getDominated();
     if (instances != null) {
-      DominatedList.render(mSnapshot, doc, query, DOMINATED_OBJECTS_ID, instances);
+      List<AhatInstance> sorted = mCache.get(
+          String.format("object?id=0x%x&dominated", inst.getId()),
+          () -> DominatedList.sort(mSnapshot, instances));
+      DominatedList.renderSorted(mSnapshot, doc, query, DOMINATED_OBJECTS_ID, sorted);
     } else {
       doc.println(DocString.text("(none)"));
     }
@@ -31,9 +31,15 @@ class ObjectsHandler implements AhatHandler {
   private static final String OBJECTS_ID = "objects";
 
   private AhatSnapshot mSnapshot;
+  private ResultCache mCache;
 
   public ObjectsHandler(AhatSnapshot snapshot) {
+    this(snapshot, new ResultCache());
+  }
+
+  public ObjectsHandler(AhatSnapshot snapshot, ResultCache cache) {
     mSnapshot = snapshot;
+    mCache = cache;
   }
 
   /**
@@ -67,8 +73,15 @@ class ObjectsHandler implements AhatHandler {
     boolean subclass = (query.getInt("subclass", 0) != 0);
     Site site = mSnapshot.getSite(id);
 
-    List<AhatInstance> insts = getObjects(site, className, subclass, heapName);
-    Collections.sort(insts, Sort.defaultInstanceCompare(mSnapshot));
+    // Collecting and sorting the instances is expensive for large sites, so
+    // the sorted list is cached for when the user asks to see more of it.
+    String key = String.format("objects?id=%d&class=%s&subclass=%d&heap=%s",
+        site.getId(), className, subclass ? 1 : 0, heapName);
+    List<AhatInstance> insts = mCache.get(key, () -> {
+      List<AhatInstance> objects = getObjects(site, className, subclass, heapName);
+      Collections.sort(objects, Sort.defaultInstanceCompare(mSnapshot));
+      return objects;
+    });
 
     doc.title("Instances");
 
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatHeap;
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.heapdump.Site;
+import com.android.ahat.heapdump.Size;
+import com.android.ahat.heapdump.Sort;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Writes a machine readable summary of a heap dump as JSON, for use when
+ * ahat is run without its http server.
+ * <p>
+ * The report covers the sizes of the heaps, the instances with the largest
+ * retained sizes and the total size of objects allocated at each site. If
+ * the snapshot has been diffed, the corresponding sizes from the baseline
+ * are included alongside.
+ */
+class Report {
+  // For string values of instances, we limit the number of characters we
+  // include to kMaxChars in case the string is really long.
+  private static final int kMaxChars = 200;
+
+  private AhatSnapshot mSnapshot;
+  private File mHprof;
+  private File mBaseHprof;
+  private Reachability mRetained;
+  private int mNumInstances;
+
+  /**
+   * Constructs a report for the given snapshot.
+   *
+   * @param numInstances the number of instances with the largest retained
+   *                     sizes to include in the report
+   */
+  public Report(AhatSnapshot snapshot, File hprof, File basehprof, Reachability retained,
+      int numInstances) {
+    mSnapshot = snapshot;
+    mHprof = hprof;
+    mBaseHprof = basehprof;
+    mRetained = retained;
+    mNumInstances = numInstances;
+  }
+
+  public void write(JsonWriter json) {
+    json.beginObject();
+    json.name("version")
+        .value("ahat-" + Report.class.getPackage().getImplementationVersion());
+    json.name("retained").value(mRetained.toString());
+    json.name("hprof").value(mHprof.toString());
+    if (mBaseHprof != null) {
+      json.name("baseline").value(mBaseHprof.toString());
+    }
+
+    json.name("heaps");
+    writeHeaps(json);
+    json.name("instances");
+    writeInstances(json);
+    json.name("sites");
+    writeSites(json);
+    json.endObject();
+  }
+
+  private static void writeSize(JsonWriter json, Size size) {
+    json.beginObject();
+    json.name("java").value(size.getJavaSize());
+    json.name("native").value(size.getRegisteredNativeSize());
+    json.endObject();
+  }
+
+  private void writeHeaps(JsonWriter json) {
+    json.beginArray();
+    for (AhatHeap heap : mSnapshot.getHeaps()) {
+      Size size = heap.getSize();
+      Size base = heap.getBaseline().getSize();
+      if (!size.isZero() || !base.isZero()) {
+        json.beginObject();
+        json.name("name").value(heap.getName());
+        json.name("size");
+        writeSize(json, size);
+        if (mSnapshot.isDiffed()) {
+          json.name("baseline");
+          writeSize(json, base);
+        }
+        json.endObject();
+      }
+    }
+    json.endArray();
+  }
+
+  /**
+   * Writes the sizes of the given instance retained on each heap, omitting
+   * heaps on which it retains nothing. If baseline is true, the instance is
+   * from the baseline snapshot, and the heaps are taken from the baseline
+   * snapshot too.
+   */
+  private void writeRetainedSizes(JsonWriter json, AhatInstance inst, boolean baseline) {
+    json.beginObject();
+    for (AhatHeap heap : mSnapshot.getHeaps()) {
+      Size size = inst.getRetainedSize(baseline ? heap.getBaseline() : heap);
+      if (!size.isZero()) {
+        json.name(heap.getName());
+        writeSize(json, size);
+      }
+    }
+    json.endObject();
+  }
+
+  private void writeInstances(JsonWriter json) {
+    // Keep the instances with the largest retained sizes, in the same order
+    // they are shown in the ui, using a heap whose head is the smallest of
+    // those kept.
+    Comparator<AhatInstance> compare = Sort.defaultInstanceCompare(mSnapshot);
+    PriorityQueue<AhatInstance> largest = new PriorityQueue<>(compare.reversed());
+    mSnapshot.getRootSite().getObjects(x -> true, inst -> {
+      if (largest.size() < mNumInstances) {
+        largest.add(inst);
+      } else if (mNumInstances > 0 && compare.compare(inst, largest.peek()) < 0) {
+        largest.poll();
+        largest.add(inst);
+      }
+    });
+    List<AhatInstance> insts = new ArrayList<>(largest);
+    Collections.sort(insts, compare);
+
+    json.beginArray();
+    for (AhatInstance inst : insts) {
+      json.beginObject();
+      json.name("id").value(String.format("0x%x", inst.getId()));
+      json.name("class").value(inst.getClassName());
+      json.name("heap").value(inst.getHeap().getName());
+      json.name("reachability").value(inst.getReachability().toString());
+      json.name("root").value(inst.isRoot());
+      String str = inst.asString(kMaxChars);
+      if (str != null) {
+        json.name("string").value(str);
+      }
+      json.name("site").value(inst.getSite().getId());
+      json.name("retained");
+      writeRetainedSizes(json, inst, false);
+      if (mSnapshot.isDiffed()) {
+        AhatInstance base = inst.getBaseline();
+        json.name("baseline");
+        if (base.isPlaceHolder()) {
+          json.nullValue();
+        } else {
+          json.beginObject();
+          json.name("id").value(String.format("0x%x", base.getId()));
+          json.name("retained");
+          writeRetainedSizes(json, base, true);
+          json.endObject();
+        }
+      }
+      json.endObject();
+    }
+    json.endArray();
+  }
+
+  private void writeSites(JsonWriter json) {
+    json.beginArray();
+    List<Site> sites = new ArrayList<>();
+    sites.add(mSnapshot.getRootSite());
+    while (!sites.isEmpty()) {
+      Site site = sites.remove(sites.size() - 1);
+      Site base = site.getBaseline();
+      boolean matched = base.getBaseline() == site;
+      if (site.getTotalSize().isZero() && (!matched || base.getTotalSize().isZero())) {
+        // The sizes of sites include the sizes of their children, so there
+        // is nothing to report for this site or its children.
+        continue;
+      }
+
+      json.beginObject();
+      json.name("id").value(site.getId());
+      Site parent = site.getParent();
+      if (parent == null) {
+        json.name("parent").nullValue();
+      } else {
+        json.name("parent").value(parent.getId());
+      }
+      json.name("method").value(site.getMethodName());
+      json.name("signature").value(site.getSignature());
+      json.name("file").value(site.getFilename());
+      json.name("line").value(site.getLineNumber());
+      json.name("sizes");
+      writeSiteSizes(json, site, false);
+      if (mSnapshot.isDiffed()) {
+        json.name("baseline");
+        if (matched) {
+          writeSiteSizes(json, base, true);
+        } else {
+          json.nullValue();
+        }
+      }
+      json.endObject();
+
+      // Visit the children in order of id after this site, which is the
+      // order the ids were assigned in.
+      List<Site> children = site.getChildren();
+      for (int i = children.size() - 1; i >= 0; --i) {
+        sites.add(children.get(i));
+      }
+    }
+    json.endArray();
+  }
+
+  /**
+   * Writes the size of objects allocated at the given site on each heap,
+   * omitting heaps with nothing allocated at the site. If baseline is true,
+   * the site is from the baseline snapshot, and the heaps are taken from
+   * the baseline snapshot too.
+   */
+  private void writeSiteSizes(JsonWriter json, Site site, boolean baseline) {
+    json.beginObject();
+    for (AhatHeap heap : mSnapshot.getHeaps()) {
+      AhatHeap siteHeap = baseline ? heap.getBaseline() : heap;
+      if (!siteHeap.isPlaceHolder()) {
+        Size size = site.getSize(siteHeap);
+        if (!size.isZero()) {
+          json.name(heap.getName());
+          writeSize(json, size);
+        }
+      }
+    }
+    json.endObject();
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+
+/**
+ * A cache of the sorted lists of elements shown by handlers, so that paging
+ * through a large list doesn't require collecting and sorting the elements
+ * again for every request.
+ * <p>
+ * The cache is safe to use from multiple threads. A list requested by
+ * several threads at once is only computed once. The least recently used
+ * lists are evicted when the total number of elements in cached lists
+ * exceeds the capacity of the cache.
+ */
+class ResultCache {
+  // The default capacity of a cache, in elements.
+  private static final long kDefaultCapacity = 1 << 24;
+
+  private static class Entry {
+    public final FutureTask<List<?>> task;
+
+    // The number of elements in the list, or -1 if the list is still being
+    // computed.
+    public long size = -1;
+
+    Entry(FutureTask<List<?>> task) {
+      this.task = task;
+    }
+  }
+
+  private final long mCapacity;
+
+  // The total number of elements in the computed lists in the cache.
+  private long mSize = 0;
+
+  // Entries of the cache, from least to most recently used.
+  private final LinkedHashMap<String, Entry> mEntries
+    = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  public ResultCache() {
+    this(kDefaultCapacity);
+  }
+
+  /**
+   * Constructs a cache holding lists with at most the given total number of
+   * elements.
+   */
+  public ResultCache(long capacity) {
+    mCapacity = capacity;
+  }
+
+  /**
+   * Returns the list cached with the given key, computing and caching it
+   * using the given supplier if it is not already cached.
+   * The returned list is unmodifiable. The key must identify the contents
+   * and order of the list.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> List<T> get(String key, Supplier<List<T>> supplier) {
+    Entry entry;
+    boolean compute = false;
+    synchronized (this) {
+      entry = mEntries.get(key);
+      if (entry == null) {
+        entry = new Entry(new FutureTask<List<?>>(
+              () -> Collections.unmodifiableList(supplier.get())));
+        mEntries.put(key, entry);
+        compute = true;
+      }
+    }
+
+    // Compute the list outside of the lock, so other lists can be looked up
+    // in the meantime. Other threads requesting the same list wait for it.
+    if (compute) {
+      entry.task.run();
+    }
+
+    List<?> list;
+    try {
+      list = getUninterruptibly(entry.task);
+    } catch (ExecutionException e) {
+      synchronized (this) {
+        if (mEntries.get(key) == entry) {
+          mEntries.remove(key);
+        }
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw (RuntimeException)cause;
+    }
+
+    if (compute) {
+      synchronized (this) {
+        entry.size = list.size();
+        mSize += entry.size;
+        evict();
+      }
+    }
+    return (List<T>)list;
+  }
+
+  /**
+   * Evicts the least recently used lists until the total size of the
+   * cached lists is within the capacity of the cache.
+   */
+  private void evict() {
+    Iterator<Map.Entry<String, Entry>> iter = mEntries.entrySet().iterator();
+    while (mSize > mCapacity && iter.hasNext()) {
+      Entry entry = iter.next().getValue();
+      if (entry.size >= 0) {
+        mSize -= entry.size;
+        iter.remove();
+      }
+    }
+  }
+
+  private static <T> T getUninterruptibly(FutureTask<T> task) throws ExecutionException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -16,22 +16,32 @@
 
 package com.android.ahat;
 
+import com.android.ahat.heapdump.AhatInstance;
 import com.android.ahat.heapdump.AhatSnapshot;
 import java.io.IOException;
+import java.util.List;
 
 class RootedHandler implements AhatHandler {
 
   private static final String ROOTED_ID = "rooted";
 
   private AhatSnapshot mSnapshot;
+  private ResultCache mCache;
 
   public RootedHandler(AhatSnapshot snapshot) {
+    this(snapshot, new ResultCache());
+  }
+
+  public RootedHandler(AhatSnapshot snapshot, ResultCache cache) {
     mSnapshot = snapshot;
+    mCache = cache;
   }
 
   @Override
   public void handle(Doc doc, Query query) throws IOException {
     doc.title("Rooted");
-    DominatedList.render(mSnapshot, doc, query, ROOTED_ID, mSnapshot.getRooted());
+    List<AhatInstance> rooted = mCache.get("rooted",
+        () -> DominatedList.sort(mSnapshot, mSnapshot.getRooted()));
+    DominatedList.renderSorted(mSnapshot, doc, query, ROOTED_ID, rooted);
   }
 }
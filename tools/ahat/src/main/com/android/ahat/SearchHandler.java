@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.InstanceQuery;
+import com.android.ahat.heapdump.Sort;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lists the instances matching a query given by the following parameters,
+ * all of which are optional:
+ * <ul>
+ * <li> class: the name of the class of the instances.
+ * <li> subclass: if non-zero, include instances of subclasses of the class.
+ * <li> heap: the name of the heap the instances are allocated on.
+ * <li> field, value: the name and value of a field of the instances, with
+ *      the value given as for {@link InstanceQuery#withField}.
+ * <li> prefix: a prefix of the value of java.lang.String instances.
+ * <li> top: list only this many instances with the largest retained size.
+ * </ul>
+ * The 100 instances with the largest retained size are listed if no
+ * parameters are given.
+ */
+class SearchHandler implements AhatHandler {
+  private static final String SEARCH_ID = "search";
+  private static final int kDefaultTop = 100;
+
+  private AhatSnapshot mSnapshot;
+  private ResultCache mCache;
+
+  public SearchHandler(AhatSnapshot snapshot) {
+    this(snapshot, new ResultCache());
+  }
+
+  public SearchHandler(AhatSnapshot snapshot, ResultCache cache) {
+    mSnapshot = snapshot;
+    mCache = cache;
+  }
+
+  @Override
+  public void handle(Doc doc, Query query) throws IOException {
+    String className = query.get("class", null);
+    boolean subclass = (query.getInt("subclass", 0) != 0);
+    String heapName = query.get("heap", null);
+    String fieldName = query.get("field", null);
+    String value = query.get("value", "null");
+    String prefix = query.get("prefix", null);
+    boolean any = className != null || heapName != null || fieldName != null || prefix != null;
+    int top = query.getInt("top", any ? -1 : kDefaultTop);
+
+    String key = String.format("search?class=%s&subclass=%d&heap=%s&field=%s&value=%s"
+        + "&prefix=%s&top=%d",
+        className, subclass ? 1 : 0, heapName, fieldName, value, prefix, top);
+    List<AhatInstance> insts = mCache.get(key, () -> {
+      InstanceQuery search = mSnapshot.query();
+      if (className != null) {
+        search.ofClass(className, subclass);
+      }
+      if (heapName != null) {
+        search.onHeap(heapName);
+      }
+      if (fieldName != null) {
+        search.withField(fieldName, value);
+      }
+      if (prefix != null) {
+        search.withStringPrefix(prefix);
+      }
+      if (top >= 0) {
+        // The instances are already in decreasing order of retained size.
+        return search.largest(top).run();
+      }
+      List<AhatInstance> results = new ArrayList<AhatInstance>(search.run());
+      Collections.sort(results, Sort.defaultInstanceCompare(mSnapshot));
+      return results;
+    });
+
+    doc.title("Search");
+    doc.descriptions();
+    if (className != null) {
+      doc.description(DocString.text("Class"), DocString.text(className));
+      DocString subclassChoice = DocString.text(subclass ? "included" : "excluded");
+      subclassChoice.append(" (switch to ");
+      subclassChoice.appendLink(query.with("subclass", subclass ? 0 : 1),
+        DocString.text(subclass ? "excluded" : "included"));
+      subclassChoice.append(")");
+      doc.description(DocString.text("Subclasses"), subclassChoice);
+    }
+    if (heapName != null) {
+      doc.description(DocString.text("Heap"), DocString.text(heapName));
+    }
+    if (fieldName != null) {
+      doc.description(DocString.text("Field"), DocString.format("%s = %s", fieldName, value));
+    }
+    if (prefix != null) {
+      doc.description(DocString.text("String prefix"), DocString.text(prefix));
+    }
+    if (top >= 0) {
+      doc.description(DocString.text("Largest"), DocString.format("%,d", top));
+    }
+    doc.description(DocString.text("Count"), DocString.format("%,d", insts.size()));
+    doc.end();
+    doc.println(DocString.text(""));
+
+    if (insts.isEmpty()) {
+      doc.println(DocString.text("(none)"));
+    } else {
+      SizeTable.table(doc, mSnapshot.isDiffed(),
+          new Column("Heap"),
+          new Column("Object"));
+
+      SubsetSelector<AhatInstance> selector = new SubsetSelector(query, SEARCH_ID, insts);
+      for (AhatInstance inst : selector.selected()) {
+        AhatInstance base = inst.getBaseline();
+        SizeTable.row(doc, inst.getTotalRetainedSize(), base.getTotalRetainedSize(),
+            DocString.text(inst.getHeap().getName()),
+            Summarizer.summarize(inst));
+      }
+      SizeTable.end(doc);
+      selector.render(doc);
+    }
+  }
+}
@@ -32,9 +32,15 @@ class SiteHandler implements AhatHandler {
   private static final String OBJECTS_ALLOCATED_ID = "objects";
 
   private AhatSnapshot mSnapshot;
+  private ResultCache mCache;
 
   public SiteHandler(AhatSnapshot snapshot) {
+    this(snapshot, new ResultCache());
+  }
+
+  public SiteHandler(AhatSnapshot snapshot, ResultCache cache) {
     mSnapshot = snapshot;
+    mCache = cache;
   }
 
   @Override
@@ -49,12 +55,15 @@ class SiteHandler implements AhatHandler {
     SitePrinter.printSite(mSnapshot, doc, query, ALLOCATION_SITE_ID, site);
 
     doc.section("Sites Called from Here");
-    List<Site> children = new ArrayList<Site>(site.getChildren());
+    List<Site> children = mCache.get(String.format("site?id=%d&called", site.getId()), () -> {
+      List<Site> sorted = new ArrayList<Site>(site.getChildren());
+      Collections.sort(sorted, Sort.defaultSiteCompare(mSnapshot));
+      return sorted;
+    });
 
     if (children.isEmpty()) {
       doc.println(DocString.text("(none)"));
     } else {
-      Collections.sort(children, Sort.defaultSiteCompare(mSnapshot));
       HeapTable.TableConfig<Site> table = new HeapTable.TableConfig<Site>() {
         public String getHeapsDescription() {
           return "Reachable Bytes Allocated on Heap";
@@ -87,12 +96,8 @@ class SiteHandler implements AhatHandler {
         new Column("Heap"),
         new Column("Class"));
 
-    List<Site.ObjectsInfo> infos = site.getObjectsInfos();
-    Comparator<Site.ObjectsInfo> compare = Sort.withPriority(
-        Sort.OBJECTS_INFO_BY_HEAP_NAME,
-        Sort.OBJECTS_INFO_BY_SIZE,
-        Sort.OBJECTS_INFO_BY_CLASS_NAME);
-    Collections.sort(infos, compare);
+    List<Site.ObjectsInfo> infos = mCache.get(String.format("site?id=%d&objects", site.getId()),
+        () -> sortObjectsInfos(site));
     SubsetSelector<Site.ObjectsInfo> selector
       = new SubsetSelector(query, OBJECTS_ALLOCATED_ID, infos);
     for (Site.ObjectsInfo info : selector.selected()) {
@@ -110,5 +115,19 @@ class SiteHandler implements AhatHandler {
     SizeTable.end(doc);
     selector.render(doc);
   }
-}
 
+  /**
+   * Returns a new list of the objects infos of the given site in the order
+   * they are shown. The site's own list is not sorted in place, because the
+   * site may be shown by several requests at once.
+   */
+  private static List<Site.ObjectsInfo> sortObjectsInfos(Site site) {
+    List<Site.ObjectsInfo> infos = new ArrayList<Site.ObjectsInfo>(site.getObjectsInfos());
+    Comparator<Site.ObjectsInfo> compare = Sort.withPriority(
+        Sort.OBJECTS_INFO_BY_HEAP_NAME,
+        Sort.OBJECTS_INFO_BY_SIZE,
+        Sort.OBJECTS_INFO_BY_CLASS_NAME);
+    Collections.sort(infos, compare);
+    return infos;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+
+/**
+ * HttpHandler for a page that is available once the heap dump has been
+ * loaded far enough to show it.
+ * <p>
+ * Until a handler for the page is set, requests are answered with the
+ * progress of loading the heap dump, and browsers are asked to reload the
+ * page periodically.
+ */
+class StagedHandler implements HttpHandler {
+  // How often to reload a page that is not yet available, in seconds.
+  private static final int kRefreshSeconds = 2;
+
+  private final AhatHttpHandler mLoading;
+  private volatile HttpHandler mHandler;
+
+  /**
+   * Constructs a handler showing the given progress until a handler is set.
+   */
+  public StagedHandler(LoadingProgress progress) {
+    mLoading = new AhatHttpHandler((doc, query) -> {
+      doc.title("Loading");
+      doc.println(DocString.text(progress.getStatus()));
+      doc.println(DocString.text(""));
+      doc.println(DocString.text(
+            "This page will be shown when the heap dump has been analyzed far enough."));
+    });
+  }
+
+  /**
+   * Sets the handler to use for requests from now on.
+   */
+  public void setHandler(HttpHandler handler) {
+    mHandler = handler;
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    HttpHandler handler = mHandler;
+    if (handler == null) {
+      exchange.getResponseHeaders().add("Refresh", Integer.toString(kRefreshSeconds));
+      handler = mLoading;
+    }
+    handler.handle(exchange);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.heapdump.Size;
+import com.android.ahat.heapdump.Summary;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the diff of the summaries of two heap dumps as JSON.
+ * <p>
+ * The report lists the entries of the summaries grouped by kind, in the
+ * order they are read from the summaries. Each entry gives the count and
+ * size from the heap dump and from the baseline heap dump, with zeros for
+ * groups with no instances in one of them.
+ */
+class SummaryReport {
+  // The names of the lists of entries of each kind in the report, indexed
+  // by the ordinal of the kind.
+  private static final String[] kNames = { "classes", "sites", "paths" };
+
+  private File mHprof;
+  private File mBaseHprof;
+  private File mSummary;
+  private File mBaseSummary;
+  private Reachability mRetained;
+
+  // The number of lists of entries that have been started.
+  private int mStarted;
+
+  /**
+   * Constructs a report diffing the given summaries of the given heap
+   * dumps.
+   */
+  public SummaryReport(File hprof, File summary, File basehprof, File basesummary,
+      Reachability retained) {
+    mHprof = hprof;
+    mSummary = summary;
+    mBaseHprof = basehprof;
+    mBaseSummary = basesummary;
+    mRetained = retained;
+  }
+
+  public void write(JsonWriter json) throws IOException {
+    json.beginObject();
+    json.name("version")
+        .value("ahat-" + SummaryReport.class.getPackage().getImplementationVersion());
+    json.name("retained").value(mRetained.toString());
+    json.name("hprof").value(mHprof.toString());
+    json.name("baseline").value(mBaseHprof.toString());
+
+    mStarted = 0;
+    Summary.diff(mSummary, mBaseSummary, (a, b) -> {
+      Summary.Entry entry = a != null ? a : b;
+      startList(json, entry.getKind().ordinal() + 1);
+      json.beginObject();
+      json.name("key").beginArray();
+      for (String element : entry.getKey()) {
+        json.value(element);
+      }
+      json.endArray();
+      json.name("heap").value(entry.getHeapName());
+      writeCounts(json, a);
+      json.name("baseline").beginObject();
+      writeCounts(json, b);
+      json.endObject();
+      json.endObject();
+    });
+    startList(json, kNames.length + 1);
+    json.endObject();
+  }
+
+  /**
+   * Ends the current list of entries, if any, and starts lists until the
+   * given number of lists have been started. Lists of kinds without entries
+   * are left empty.
+   */
+  private void startList(JsonWriter json, int started) {
+    while (mStarted < started) {
+      if (mStarted > 0) {
+        json.endArray();
+      }
+      if (mStarted < kNames.length) {
+        json.name(kNames[mStarted]).beginArray();
+      }
+      mStarted++;
+    }
+  }
+
+  private static void writeCounts(JsonWriter json, Summary.Entry entry) {
+    Size size = entry == null ? Size.ZERO : entry.getSize();
+    json.name("count").value(entry == null ? 0 : entry.getCount());
+    json.name("size").beginObject();
+    json.name("java").value(size.getJavaSize());
+    json.name("native").value(size.getRegisteredNativeSize());
+    json.endObject();
+  }
+}
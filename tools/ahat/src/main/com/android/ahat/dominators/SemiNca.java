@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.dominators;
+
+import com.android.ahat.progress.Progress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the immediate dominators of a graph whose nodes are numbered
+ * densely from 0 and whose edges are given in compressed sparse row form:
+ * the targets of the edges from node v are edges[edgeStart[v]] to
+ * edges[edgeStart[v + 1] - 1].
+ * <p>
+ * This uses the Semi-NCA algorithm: semidominators are computed as in the
+ * Lengauer-Tarjan algorithm, after which the immediate dominator of each
+ * node is the nearest common ancestor in the dominator tree of its
+ * semidominator and its parent in the depth first search tree. All state is
+ * kept in int arrays indexed by depth first search preorder number. The
+ * construction of the predecessor lists and the translation between node
+ * numbers and preorder numbers are done in parallel.
+ */
+class SemiNca {
+  private SemiNca() {
+  }
+
+  /**
+   * Returns the immediate dominator of every node in the graph, indexed by
+   * node. The root node and nodes not reachable from the root are given a
+   * dominator of -1.
+   */
+  static int[] computeDominators(int root, int[] edgeStart, int[] edges, Progress progress) {
+    int numNodes = edgeStart.length - 1;
+    progress.start("Resolving dominators", 3L * numNodes);
+
+    // Number the nodes reachable from the root in depth first search
+    // preorder. From here on nodes are referred to by their preorder number,
+    // apart from the final translation of the results.
+    int[] pre = new int[numNodes];
+    int[] vertex = new int[numNodes];
+    int[] parent = new int[numNodes];
+    int count = 0;
+    {
+      Arrays.fill(pre, -1);
+      int[] stack = new int[numNodes];
+      int[] cursor = new int[numNodes];
+      int size = 0;
+      pre[root] = count++;
+      vertex[0] = root;
+      stack[size] = root;
+      cursor[size++] = edgeStart[root];
+      while (size > 0) {
+        int v = stack[size - 1];
+        if (cursor[size - 1] < edgeStart[v + 1]) {
+          int t = edges[cursor[size - 1]++];
+          if (pre[t] < 0) {
+            pre[t] = count;
+            vertex[count] = t;
+            parent[count] = pre[v];
+            count++;
+            stack[size] = t;
+            cursor[size++] = edgeStart[t];
+          }
+        } else {
+          size--;
+          progress.advance();
+        }
+      }
+    }
+
+    // Build the predecessor lists, ignoring edges from unreachable nodes.
+    // The order of nodes in each list does not affect the result.
+    int[] predStart = new int[count + 1];
+    int[] preds;
+    {
+      AtomicIntegerArray counts = new AtomicIntegerArray(count + 1);
+      IntStream.range(0, numNodes).parallel().forEach(v -> {
+        if (pre[v] >= 0) {
+          for (int i = edgeStart[v]; i < edgeStart[v + 1]; ++i) {
+            counts.incrementAndGet(pre[edges[i]] + 1);
+          }
+        }
+      });
+      for (int w = 0; w < count; ++w) {
+        predStart[w + 1] = predStart[w] + counts.get(w + 1);
+      }
+
+      int[] predsBuffer = new int[predStart[count]];
+      AtomicIntegerArray next = new AtomicIntegerArray(predStart);
+      IntStream.range(0, numNodes).parallel().forEach(v -> {
+        int p = pre[v];
+        if (p >= 0) {
+          for (int i = edgeStart[v]; i < edgeStart[v + 1]; ++i) {
+            predsBuffer[next.getAndIncrement(pre[edges[i]])] = p;
+          }
+        }
+      });
+      preds = predsBuffer;
+    }
+
+    // Compute the semidominators in reverse preorder, linking each node to
+    // its parent in a forest of the nodes processed so far. The label of a
+    // linked node is the node with the smallest semidominator on the path
+    // from it up towards its root in the forest, kept up to date with path
+    // compression.
+    int[] semi = new int[count];
+    int[] label = new int[count];
+    int[] ancestor = new int[count];
+    int[] path = new int[count];
+    Arrays.setAll(semi, i -> i);
+    Arrays.setAll(label, i -> i);
+    Arrays.fill(ancestor, -1);
+    for (int w = count - 1; w > 0; --w) {
+      int s = semi[w];
+      for (int i = predStart[w]; i < predStart[w + 1]; ++i) {
+        int v = preds[i];
+        int u = v;
+        if (ancestor[v] >= 0) {
+          compress(v, ancestor, label, semi, path);
+          u = label[v];
+        }
+        if (semi[u] < s) {
+          s = semi[u];
+        }
+      }
+      semi[w] = s;
+      ancestor[w] = parent[w];
+      progress.advance();
+    }
+
+    // The immediate dominator of each node is the nearest common ancestor in
+    // the dominator tree of its parent and its semidominator. Processing
+    // nodes in preorder ensures the dominators of all its ancestors are
+    // known by the time a node is processed.
+    int[] idom = parent;
+    for (int w = 1; w < count; ++w) {
+      int d = idom[w];
+      while (d > semi[w]) {
+        d = idom[d];
+      }
+      idom[w] = d;
+      progress.advance();
+    }
+
+    // Translate the results back to node numbers.
+    int[] dominators = new int[numNodes];
+    IntStream.range(0, numNodes).parallel().forEach(v -> {
+      dominators[v] = pre[v] <= 0 ? -1 : vertex[idom[pre[v]]];
+    });
+    progress.done();
+    return dominators;
+  }
+
+  /**
+   * Compress the path from v up towards its root in the forest, so that
+   * ancestor[v] is a child of the root and label[v] is the node with the
+   * smallest semidominator on the original path, excluding the root.
+   * Must only be called for v with ancestor[v] &gt;= 0. Uses the given path
+   * array as scratch space.
+   */
+  private static void compress(int v, int[] ancestor, int[] label, int[] semi, int[] path) {
+    int length = 0;
+    int x = v;
+    while (ancestor[ancestor[x]] >= 0) {
+      path[length++] = x;
+      x = ancestor[x];
+    }
+
+    for (int i = length - 1; i >= 0; --i) {
+      int y = path[i];
+      int a = ancestor[y];
+      if (semi[label[a]] < semi[label[y]]) {
+        label[y] = label[a];
+      }
+      ancestor[y] = ancestor[a];
+    }
+  }
+}
@@ -28,17 +28,19 @@ import java.util.List;
  * methods inherited from {@link AhatInstance}.
  */
 public class AhatArrayInstance extends AhatInstance {
-  // To save space, we store arrays as primitive arrays or AhatInstance arrays
-  // and provide a wrapper over the arrays to expose a list of Values.
-  // This is especially important for large byte arrays, such as bitmaps.
-  // We keep a separate pointer to the underlying array in the case of byte or
-  // char arrays because they are sometimes useful to have.
+  // To save space, we store object arrays as AhatInstance arrays and provide
+  // a wrapper over the arrays to expose a list of Values. The elements of
+  // primitive arrays are not stored at all: they are read on demand from the
+  // heap dump, which is especially important for large byte arrays, such as
+  // bitmaps.
   // TODO: Have different subtypes of AhatArrayInstance to avoid the overhead
-  // of these extra pointers and cost in getReferences when the array type is
+  // of these extra fields and cost in getReferences when the array type is
   // not relevant?
-  private List<Value> mValues;
-  private byte[] mByteArray;    // null if not a byte array.
-  private char[] mCharArray;    // null if not a char array.
+  private List<Value> mValues;  // null if a primitive array.
+  private Type mPrimitiveType;  // null if not a primitive array.
+  private int mLength;
+  private HprofBytes mData;     // null if not a primitive array.
+  private long mDataPosition;   // Position of the first element in mData.
   private final int mRefSize;
 
   AhatArrayInstance(long id, int refSize) {
@@ -47,131 +49,21 @@ public class AhatArrayInstance extends AhatInstance {
   }
 
   /**
-   * Initialize the array elements for a primitive boolean array.
+   * Initialize the array elements for a primitive array whose elements are
+   * stored in the heap dump at the given position.
    */
-  void initialize(final boolean[] bools) {
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return bools.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(bools[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive char array.
-   */
-  void initialize(final char[] chars) {
-    mCharArray = chars;
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return chars.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(chars[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive float array.
-   */
-  void initialize(final float[] floats) {
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return floats.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(floats[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive double array.
-   */
-  void initialize(final double[] doubles) {
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return doubles.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(doubles[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive byte array.
-   */
-  void initialize(final byte[] bytes) {
-    mByteArray = bytes;
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return bytes.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(bytes[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive short array.
-   */
-  void initialize(final short[] shorts) {
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return shorts.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(shorts[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive int array.
-   */
-  void initialize(final int[] ints) {
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return ints.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(ints[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive long array.
-   */
-  void initialize(final long[] longs) {
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return longs.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(longs[index]);
-      }
-    };
+  void initialize(Type type, int length, HprofBytes data, long position) {
+    mPrimitiveType = type;
+    mLength = length;
+    mData = data;
+    mDataPosition = position;
   }
 
   /**
    * Initialize the array elements for an instance array.
    */
   void initialize(final AhatInstance[] insts) {
+    mLength = insts.length;
     mValues = new AbstractList<Value>() {
       @Override public int size() {
         return insts.length;
@@ -190,7 +82,8 @@ public class AhatArrayInstance extends AhatInstance {
       return 0;
     }
 
-    return Value.getType(mValues.get(0)).size(mRefSize) * getLength();
+    Type type = mPrimitiveType != null ? mPrimitiveType : Type.OBJECT;
+    return type.size(mRefSize) * getLength();
   }
 
   /**
@@ -199,7 +92,7 @@ public class AhatArrayInstance extends AhatInstance {
    * @return number of elements in the array.
    */
   public int getLength() {
-    return mValues.size();
+    return mLength;
   }
 
   /**
@@ -209,7 +102,19 @@ public class AhatArrayInstance extends AhatInstance {
    * @return list of the array's elements.
    */
   public List<Value> getValues() {
-    return mValues;
+    if (mPrimitiveType == null) {
+      return mValues;
+    }
+
+    return new AbstractList<Value>() {
+      @Override public int size() {
+        return mLength;
+      }
+
+      @Override public Value get(int index) {
+        return getValue(index);
+      }
+    };
   }
 
   /**
@@ -220,14 +125,23 @@ public class AhatArrayInstance extends AhatInstance {
    * @throws IndexOutOfBoundsException if the index is out of range
    */
   public Value getValue(int index) {
-    return mValues.get(index);
+    if (mPrimitiveType == null) {
+      return mValues.get(index);
+    }
+
+    if (index < 0 || index >= mLength) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + mLength);
+    }
+
+    long position = mDataPosition + (long)index * mPrimitiveType.size(mRefSize);
+    return mData.getValue(mPrimitiveType, position);
   }
 
   @Override
   Iterable<Reference> getReferences() {
     // The list of references will be empty if this is a primitive array.
     List<Reference> refs = Collections.emptyList();
-    if (!mValues.isEmpty()) {
+    if (mPrimitiveType == null && !mValues.isEmpty()) {
       Value first = mValues.get(0);
       if (first == null || first.isAhatInstance()) {
         refs = new AbstractList<Reference>() {
@@ -272,21 +186,26 @@ public class AhatArrayInstance extends AhatInstance {
    * Only char arrays are considered as having an associated String value.
    */
   String asString(int offset, int count, int maxChars) {
-    if (mCharArray == null) {
+    if (mPrimitiveType != Type.CHAR) {
       return null;
     }
 
     if (count == 0) {
       return "";
     }
-    int numChars = mCharArray.length;
+    int numChars = getLength();
     if (0 <= maxChars && maxChars < count) {
       count = maxChars;
     }
 
     int end = offset + count - 1;
     if (offset >= 0 && offset < numChars && end >= 0 && end < numChars) {
-      return new String(mCharArray, offset, count);
+      char[] chars = new char[count];
+      long position = mDataPosition + 2L * offset;
+      for (int i = 0; i < count; ++i) {
+        chars[i] = mData.getChar(position + 2L * i);
+      }
+      return new String(chars);
     }
     return null;
   }
@@ -296,21 +215,23 @@ public class AhatArrayInstance extends AhatInstance {
    * Only byte arrays are considered as having an associated ascii String value.
    */
   String asAsciiString(int offset, int count, int maxChars) {
-    if (mByteArray == null) {
+    if (mPrimitiveType != Type.BYTE) {
       return null;
     }
 
     if (count == 0) {
       return "";
     }
-    int numChars = mByteArray.length;
+    int numChars = getLength();
     if (0 <= maxChars && maxChars < count) {
       count = maxChars;
     }
 
     int end = offset + count - 1;
     if (offset >= 0 && offset < numChars && end >= 0 && end < numChars) {
-      return new String(mByteArray, offset, count, StandardCharsets.US_ASCII);
+      byte[] bytes = new byte[count];
+      mData.getBytes(mDataPosition + offset, bytes);
+      return new String(bytes, StandardCharsets.US_ASCII);
     }
     return null;
   }
@@ -328,7 +249,7 @@ public class AhatArrayInstance extends AhatInstance {
   }
 
   @Override public AhatInstance getAssociatedBitmapInstance() {
-    if (mByteArray != null) {
+    if (isByteArray()) {
       List<AhatInstance> refs = getReverseReferences();
       if (refs.size() == 1) {
         AhatInstance ref = refs.get(0);
@@ -339,7 +260,7 @@ public class AhatArrayInstance extends AhatInstance {
   }
 
   @Override public AhatClassObj getAssociatedClassForOverhead() {
-    if (mByteArray != null) {
+    if (isByteArray()) {
       List<AhatInstance> refs = getHardReverseReferences();
       if (refs.size() == 1) {
         AhatClassObj ref = refs.get(0).asClassObj();
@@ -363,10 +284,86 @@ public class AhatArrayInstance extends AhatInstance {
     if (className.endsWith("[]")) {
       className = className.substring(0, className.length() - 2);
     }
-    return String.format("%s[%d]@%08x", className, mValues.size(), getId());
+    return String.format("%s[%d]@%08x", className, mLength, getId());
+  }
+
+  /**
+   * Returns true if this is a primitive byte array.
+   */
+  boolean isByteArray() {
+    return mPrimitiveType == Type.BYTE;
   }
 
+  /**
+   * Reads the contents of this array into a newly allocated byte[].
+   * Returns null if this is not a byte array.
+   */
   byte[] asByteArray() {
-    return mByteArray;
+    if (!isByteArray()) {
+      return null;
+    }
+
+    byte[] bytes = new byte[getLength()];
+    mData.getBytes(mDataPosition, bytes);
+    return bytes;
+  }
+
+  /**
+   * Returns true if this is an array of a primitive type.
+   */
+  boolean isPrimitiveArray() {
+    return mPrimitiveType != null;
+  }
+
+  /**
+   * Returns a hash of the element type, length and elements of this
+   * primitive array, read directly from the heap dump without copying the
+   * elements. Returns 0 if this is not a primitive array.
+   */
+  long hashElements() {
+    if (mPrimitiveType == null) {
+      return 0;
+    }
+
+    long hash = mix(mPrimitiveType.ordinal() * 31L + mLength);
+    long size = (long)mLength * mPrimitiveType.size(mRefSize);
+    long i = 0;
+    for (; i + 8 <= size; i += 8) {
+      hash = mix(hash ^ mData.getLong(mDataPosition + i));
+    }
+    for (; i < size; ++i) {
+      hash = mix(hash ^ (mData.getByte(mDataPosition + i) & 0xFF));
+    }
+    return hash;
+  }
+
+  private static long mix(long x) {
+    x *= 0x9E3779B97F4A7C15L;
+    return x ^ (x >>> 29);
+  }
+
+  /**
+   * Returns true if this and the given array are primitive arrays with the
+   * same element type and elements.
+   */
+  boolean elementsEqual(AhatArrayInstance other) {
+    if (mPrimitiveType == null || mPrimitiveType != other.mPrimitiveType
+        || mLength != other.mLength) {
+      return false;
+    }
+
+    long size = (long)mLength * mPrimitiveType.size(mRefSize);
+    long i = 0;
+    for (; i + 8 <= size; i += 8) {
+      if (mData.getLong(mDataPosition + i) != other.mData.getLong(other.mDataPosition + i)) {
+        return false;
+      }
+    }
+    for (; i < size; ++i) {
+      if (mData.getByte(mDataPosition + i) != other.mData.getByte(other.mDataPosition + i)) {
+        return false;
+      }
+    }
+    return true;
   }
 }
@@ -30,18 +30,45 @@ import java.util.NoSuchElementException;
  * object in addition to those methods inherited from {@link AhatInstance}.
  */
 public class AhatClassInstance extends AhatInstance {
-  // Instance fields of the object. These are stored in order of the instance
-  // field descriptors from the class object, starting with this class first,
-  // followed by the super class, and so on. We store the values separate from
-  // the field types and names to save memory.
-  private Value[] mFields;
-
-  AhatClassInstance(long id) {
+  // Instance fields of the object. To save memory, the values of primitive
+  // fields are not stored at all: they are read on demand from the heap
+  // dump, where the values of all the fields are stored starting at
+  // mDataPosition in order of the instance field descriptors from the class
+  // object, starting with this class first, followed by the super class, and
+  // so on. The values of reference fields are resolved once the heap dump
+  // has been parsed and stored in mRefs in the same order, including null
+  // values.
+  private HprofBytes mData;
+  private long mDataPosition;
+  private AhatInstance[] mRefs;
+  private final int mRefSize;
+
+  AhatClassInstance(long id, int refSize) {
     super(id);
+    mRefSize = refSize;
+  }
+
+  /**
+   * Initialize the instance fields for an instance whose field values are
+   * stored in the heap dump at the given position.
+   */
+  void initialize(HprofBytes data, long position) {
+    mData = data;
+    mDataPosition = position;
   }
 
-  void initialize(Value[] fields) {
-    mFields = fields;
+  /**
+   * Initialize the values of the reference fields of the instance.
+   */
+  void initialize(AhatInstance[] refs) {
+    mRefs = refs;
+  }
+
+  /**
+   * Returns the position in the heap dump of the instance field values.
+   */
+  long getDataPosition() {
+    return mDataPosition;
   }
 
   @Override
@@ -99,7 +126,7 @@ public class AhatClassInstance extends AhatInstance {
    * @return Iterable over the instance field values.
    */
   public Iterable<FieldValue> getInstanceFields() {
-    return new InstanceFieldIterator(mFields, getClassObj());
+    return new InstanceFieldIterator();
   }
 
   @Override
@@ -229,19 +256,20 @@ public class AhatClassInstance extends AhatInstance {
   /**
    * Read the given field from the given instance.
    * The field is assumed to be a byte[] field.
-   * Returns null if the field value is null, not a byte[] or could not be read.
+   * Returns null if the field value is null or not a byte[].
    */
-  private byte[] getByteArrayField(String fieldName) {
+  private AhatArrayInstance getByteArrayField(String fieldName) {
     AhatInstance field = getRefField(fieldName);
-    return field == null ? null : field.asByteArray();
+    AhatArrayInstance array = field == null ? null : field.asArrayInstance();
+    return array == null || !array.isByteArray() ? null : array;
   }
 
   private static class BitmapInfo {
     public final int width;
     public final int height;
-    public final byte[] buffer;
+    public final AhatArrayInstance buffer;
 
-    public BitmapInfo(int width, int height, byte[] buffer) {
+    public BitmapInfo(int width, int height, AhatArrayInstance buffer) {
       this.width = width;
       this.height = height;
       this.buffer = buffer;
@@ -267,12 +295,12 @@ public class AhatClassInstance extends AhatInstance {
       return null;
     }
 
-    byte[] buffer = getByteArrayField("mBuffer");
+    AhatArrayInstance buffer = getByteArrayField("mBuffer");
     if (buffer == null) {
       return null;
     }
 
-    if (buffer.length < 4 * height * width) {
+    if (buffer.getLength() < 4 * height * width) {
       return null;
     }
 
@@ -280,6 +308,35 @@ public class AhatClassInstance extends AhatInstance {
 
   }
 
+  /**
+   * Returns the buffer holding the pixels of this android.graphics.Bitmap,
+   * or null if this is not a bitmap with an appropriate buffer.
+   */
+  AhatArrayInstance getBitmapBuffer() {
+    BitmapInfo info = getBitmapInfo();
+    return info == null ? null : info.buffer;
+  }
+
+  /**
+   * Returns the array holding the characters of this java.lang.String, or
+   * null if this is not a string.
+   */
+  AhatArrayInstance getStringChars() {
+    if (!isInstanceOfClass("java.lang.String")) {
+      return null;
+    }
+    AhatInstance value = getRefField("value");
+    return value == null ? null : value.asArrayInstance();
+  }
+
+  /**
+   * Returns the count and offset fields of this java.lang.String packed into
+   * a single long, for comparing strings that share the same characters.
+   */
+  long getStringExtent() {
+    return ((long)getIntField("count", -1) << 32) | (getIntField("offset", 0) & 0xFFFFFFFFL);
+  }
+
   @Override public BufferedImage asBitmap() {
     BitmapInfo info = getBitmapInfo();
     if (info == null) {
@@ -288,13 +345,14 @@ public class AhatClassInstance extends AhatInstance {
 
     // Convert the raw data to an image
     // Convert BGRA to ABGR
+    byte[] buffer = info.buffer.asByteArray();
     int[] abgr = new int[info.height * info.width];
     for (int i = 0; i < abgr.length; i++) {
       abgr[i] = (
-          (((int) info.buffer[i * 4 + 3] & 0xFF) << 24)
-          + (((int) info.buffer[i * 4 + 0] & 0xFF) << 16)
-          + (((int) info.buffer[i * 4 + 1] & 0xFF) << 8)
-          + ((int) info.buffer[i * 4 + 2] & 0xFF));
+          (((int) buffer[i * 4 + 3] & 0xFF) << 24)
+          + (((int) buffer[i * 4 + 0] & 0xFF) << 16)
+          + (((int) buffer[i * 4 + 1] & 0xFF) << 8)
+          + ((int) buffer[i * 4 + 2] & 0xFF));
     }
 
     BufferedImage bitmap = new BufferedImage(
@@ -346,12 +404,12 @@ public class AhatClassInstance extends AhatInstance {
     return rna;
   }
 
-  private static class InstanceFieldIterator implements Iterable<FieldValue>,
-                                                        Iterator<FieldValue> {
-    // The complete list of instance field values to iterate over, including
-    // superclass field values.
-    private Value[] mValues;
-    private int mValueIndex;
+  private class InstanceFieldIterator implements Iterable<FieldValue>,
+                                                 Iterator<FieldValue> {
+    // The positions of the next field value in the heap dump and in mRefs,
+    // used for primitive and reference fields respectively.
+    private long mPosition = mDataPosition;
+    private int mRefIndex = 0;
 
     // The list of field descriptors specific to the current class in the
     // class hierarchy, not including superclass field descriptors.
@@ -361,10 +419,9 @@ public class AhatClassInstance extends AhatInstance {
     private int mFieldIndex;
     private AhatClassObj mNextClassObj;
 
-    public InstanceFieldIterator(Value[] values, AhatClassObj classObj) {
-      mValues = values;
+    public InstanceFieldIterator() {
+      AhatClassObj classObj = getClassObj();
       mFields = classObj.getInstanceFields();
-      mValueIndex = 0;
       mFieldIndex = 0;
       mNextClassObj = classObj.getSuperClassObj();
     }
@@ -388,7 +445,13 @@ public class AhatClassInstance extends AhatInstance {
         throw new NoSuchElementException();
       }
       Field field = mFields[mFieldIndex++];
-      Value value = mValues[mValueIndex++];
+      Value value;
+      if (field.type == Type.OBJECT) {
+        value = Value.pack(mRefs[mRefIndex++]);
+      } else {
+        value = mData.getValue(field.type, mPosition);
+      }
+      mPosition += field.type.size(mRefSize);
       return new FieldValue(field.name, field.type, value);
     }
 
@@ -423,7 +486,13 @@ public class AhatClassInstance extends AhatInstance {
    */
   private class ReferenceIterator implements Iterable<Reference>,
                                              Iterator<Reference> {
-    private final Iterator<FieldValue> mIter = getInstanceFields().iterator();
+    // The field descriptors are walked in the same order as the values of
+    // the reference fields in mRefs, as for InstanceFieldIterator, without
+    // reading the values of primitive fields.
+    private Field[] mFields;
+    private int mFieldIndex = 0;
+    private AhatClassObj mNextClassObj;
+    private int mRefIndex = 0;
     private Reference mNext = null;
 
     // If we are iterating over a subclass of java.lang.ref.Reference, the
@@ -431,20 +500,37 @@ public class AhatClassInstance extends AhatInstance {
     // describes what type of java.lang.ref.Reference subinstance this is.
     private final Reachability mJavaLangRefType = getJavaLangRefType();
 
+    ReferenceIterator() {
+      AhatClassObj classObj = getClassObj();
+      mFields = classObj.getInstanceFields();
+      mNextClassObj = classObj.getSuperClassObj();
+    }
+
     @Override
     public boolean hasNext() {
-      while (mNext == null && mIter.hasNext()) {
-        FieldValue field = mIter.next();
-        if (field.value != null && field.value.isAhatInstance()) {
-          Reachability reachability = Reachability.STRONG;
-          if (mJavaLangRefType != Reachability.STRONG && "referent".equals(field.name)) {
-            reachability = mJavaLangRefType;
+      while (mNext == null) {
+        while (mFieldIndex == mFields.length && mNextClassObj != null) {
+          mFields = mNextClassObj.getInstanceFields();
+          mFieldIndex = 0;
+          mNextClassObj = mNextClassObj.getSuperClassObj();
+        }
+        if (mFieldIndex == mFields.length) {
+          return false;
+        }
+
+        Field field = mFields[mFieldIndex++];
+        if (field.type == Type.OBJECT) {
+          AhatInstance ref = mRefs[mRefIndex++];
+          if (ref != null) {
+            Reachability reachability = Reachability.STRONG;
+            if (mJavaLangRefType != Reachability.STRONG && "referent".equals(field.name)) {
+              reachability = mJavaLangRefType;
+            }
+            mNext = new Reference(AhatClassInstance.this, "." + field.name, ref, reachability);
           }
-          AhatInstance ref = field.value.asAhatInstance();
-          mNext = new Reference(AhatClassInstance.this, "." + field.name, ref, reachability);
         }
       }
-      return mNext != null;
+      return true;
     }
 
     @Override
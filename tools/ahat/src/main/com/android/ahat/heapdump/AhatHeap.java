@@ -25,7 +25,8 @@ package com.android.ahat.heapdump;
  */
 public class AhatHeap implements Diffable<AhatHeap> {
   private String mName;
-  private Size mSize = Size.ZERO;
+  private long mJavaSize = 0;
+  private long mRegisteredNativeSize = 0;
   private int mIndex;
   private AhatHeap mBaseline;
   private boolean mIsPlaceHolder = false;
@@ -54,8 +55,9 @@ public class AhatHeap implements Diffable<AhatHeap> {
     return new AhatHeap(name, baseline);
   }
 
-  void addToSize(Size size) {
-    mSize = mSize.plus(size);
+  void addToSize(long javaSize, long registeredNativeSize) {
+    mJavaSize += javaSize;
+    mRegisteredNativeSize += registeredNativeSize;
   }
 
   /**
@@ -82,7 +84,7 @@ public class AhatHeap implements Diffable<AhatHeap> {
    * @return the total number of bytes allocated on this heap.
    */
   public Size getSize() {
-    return mSize;
+    return new Size(mJavaSize, mRegisteredNativeSize);
   }
 
   void setBaseline(AhatHeap baseline) {
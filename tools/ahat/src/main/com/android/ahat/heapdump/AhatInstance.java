@@ -16,16 +16,11 @@
 
 package com.android.ahat.heapdump;
 
-import com.android.ahat.progress.Progress;
 import java.awt.image.BufferedImage;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Deque;
-import java.util.EnumMap;
 import java.util.List;
-import java.util.Queue;
 
 /**
  * A Java instance from a parsed heap dump. It is the base class used for all
@@ -47,26 +42,17 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
   // Field initialized via addRegisterednativeSize.
   private long mRegisteredNativeSize = 0;
 
-  // Fields initialized in computeReachability().
-  private Reachability mReachability = Reachability.UNREACHABLE;
-  private AhatInstance mNextInstanceToGcRoot;
-  private String mNextInstanceToGcRootField;
-  private ArrayList<AhatInstance> mReverseReferences;
-
-  // Fields initialized in DominatorsComputation.computeDominators().
-  // mDominated - the list of instances immediately dominated by this instance.
-  // mRetainedSizes - retained size indexed by heap index.
-  private AhatInstance mImmediateDominator;
-  private List<AhatInstance> mDominated = new ArrayList<AhatInstance>();
-  private Size[] mRetainedSizes;
+  // The store holding the results of analyzing this instance, such as its
+  // reachability, dominator and retained sizes, and the index of this
+  // instance in that store. mStore is null for placeholder instances.
+  private InstanceStore mStore;
+  private int mIndex = -1;
 
   // The baseline instance for purposes of diff.
   private AhatInstance mBaseline;
 
-  // temporary user data associated with this instance. This is used for a
-  // couple different purposes:
-  // 1. During parsing of instances, to store temporary field data.
-  // 2. During dominators computation, to store the dominators computation state.
+  // temporary user data associated with this instance. This is used during
+  // parsing of instances, to store temporary field data.
   private Object mTemporaryUserData;
 
   AhatInstance(long id) {
@@ -100,7 +86,23 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return the shallow size of the object
    */
   public Size getSize() {
-    return new Size(mClassObj.getInstanceSize() + getExtraJavaSize(), mRegisteredNativeSize);
+    return new Size(getJavaSize(), getRegisteredNativeSize());
+  }
+
+  /**
+   * Returns the Java size of this object, as included in its shallow size.
+   * Unlike getSize, this does not allocate.
+   */
+  long getJavaSize() {
+    return mClassObj.getInstanceSize() + getExtraJavaSize();
+  }
+
+  /**
+   * Returns the registered native size of this object, as included in its
+   * shallow size. Unlike getSize, this does not allocate.
+   */
+  long getRegisteredNativeSize() {
+    return mRegisteredNativeSize;
   }
 
   /**
@@ -123,11 +125,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return the retained size of the object
    */
   public Size getRetainedSize(AhatHeap heap) {
-    int index = heap.getIndex();
-    if (mRetainedSizes != null && 0 <= index && index < mRetainedSizes.length) {
-      return mRetainedSizes[heap.getIndex()];
+    if (mStore == null) {
+      return Size.ZERO;
     }
-    return Size.ZERO;
+    return mStore.getRetainedSize(mIndex, heap.getIndex());
   }
 
   /**
@@ -138,13 +139,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return the total retained size of the object
    */
   public Size getTotalRetainedSize() {
-    Size size = Size.ZERO;
-    if (mRetainedSizes != null) {
-      for (int i = 0; i < mRetainedSizes.length; i++) {
-        size = size.plus(mRetainedSizes[i]);
-      }
+    if (mStore == null) {
+      return Size.ZERO;
     }
-    return size;
+    return mStore.getTotalRetainedSize(mIndex);
   }
 
   /**
@@ -160,7 +158,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return the reachability of the instance.
    */
   public Reachability getReachability() {
-    return mReachability;
+    if (mStore == null) {
+      return Reachability.UNREACHABLE;
+    }
+    return mStore.getReachability(mIndex);
   }
 
   /**
@@ -171,7 +172,7 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return true if the object is strongly reachable
    */
   public boolean isStronglyReachable() {
-    return mReachability == Reachability.STRONG;
+    return getReachability() == Reachability.STRONG;
   }
 
   /**
@@ -203,7 +204,7 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return true if the object is completely unreachable
    */
   public boolean isUnreachable() {
-    return mReachability == Reachability.UNREACHABLE;
+    return getReachability() == Reachability.UNREACHABLE;
   }
 
   /**
@@ -264,10 +265,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return the immediate dominator of this instance
    */
   public AhatInstance getImmediateDominator() {
-    if (mImmediateDominator instanceof SuperRoot) {
+    if (mStore == null) {
       return null;
     }
-    return mImmediateDominator;
+    return mStore.getImmediateDominator(mIndex);
   }
 
   /**
@@ -276,7 +277,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return list of immediately dominated objects
    */
   public List<AhatInstance> getDominated() {
-    return mDominated;
+    if (mStore == null) {
+      return new ArrayList<AhatInstance>();
+    }
+    return mStore.getDominated(mIndex);
   }
 
   /**
@@ -410,10 +414,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return the objects referencing this object
    */
   public List<AhatInstance> getReverseReferences() {
-    if (mReverseReferences != null) {
-      return mReverseReferences;
+    if (mStore == null) {
+      return Collections.emptyList();
     }
-    return Collections.emptyList();
+    return mStore.getReverseReferences(mIndex);
   }
 
   /**
@@ -650,7 +654,7 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
     if (inst.isRoot()) {
       return null;
     }
-    return new PathElement(inst.mNextInstanceToGcRoot, inst.mNextInstanceToGcRootField);
+    return inst.mStore.getNextPathElementToGcRoot(inst.mIndex);
   }
 
   /**
@@ -665,14 +669,6 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    */
   @Override public abstract String toString();
 
-  /**
-   * Read the byte[] value from an hprof Instance.
-   * Returns null if the instance is not a byte array.
-   */
-  byte[] asByteArray() {
-    return null;
-  }
-
   void setBaseline(AhatInstance baseline) {
     mBaseline = baseline;
   }
@@ -701,108 +697,19 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
   }
 
   /**
-   * Determine the reachability of the all instances reachable from the given
-   * root instance. Initializes the following fields:
-   *   mReachability
-   *   mNextInstanceToGcRoot
-   *   mNextInstanceToGcRootField
-   *   mReverseReferences
-   *
-   * @param progress used to track progress of the traversal.
-   * @param numInsts upper bound on the total number of instances reachable
-   *                 from the root, solely used for the purposes of tracking
-   *                 progress.
+   * Associates this instance with the store holding the results of its
+   * analysis, at the given index in that store.
    */
-  static void computeReachability(SuperRoot root, Progress progress, long numInsts) {
-    // Start by doing a breadth first search through strong references.
-    // Then continue the breadth first through each weaker kind of reference.
-    progress.start("Computing reachability", numInsts);
-    EnumMap<Reachability, Queue<Reference>> queues = new EnumMap<>(Reachability.class);
-    for (Reachability reachability : Reachability.values()) {
-      queues.put(reachability, new ArrayDeque<Reference>());
-    }
-
-    for (Reference ref : root.getReferences()) {
-      queues.get(Reachability.STRONG).add(ref);
-    }
-
-    for (Reachability reachability : Reachability.values()) {
-      Queue<Reference> queue = queues.get(reachability);
-      while (!queue.isEmpty()) {
-        Reference ref = queue.poll();
-        if (ref.ref.mReachability == Reachability.UNREACHABLE) {
-          // This is the first time we have seen ref.ref.
-          progress.advance();
-          ref.ref.mReachability = reachability;
-          ref.ref.mNextInstanceToGcRoot = ref.src;
-          ref.ref.mNextInstanceToGcRootField = ref.field;
-          ref.ref.mReverseReferences = new ArrayList<AhatInstance>();
-
-          for (Reference childRef : ref.ref.getReferences()) {
-            if (childRef.reachability.notWeakerThan(reachability)) {
-              queue.add(childRef);
-            } else {
-              queues.get(childRef.reachability).add(childRef);
-            }
-          }
-        }
-
-        // Note: We specifically exclude 'root' from the reverse references
-        // because it is a fake SuperRoot instance not present in the original
-        // heap dump.
-        if (ref.src != root) {
-          ref.ref.mReverseReferences.add(ref.src);
-        }
-      }
-    }
-    progress.done();
-  }
-
-  /**
-   * Recursively compute the retained size of the given instance and all
-   * other instances it dominates.
-   */
-  static void computeRetainedSize(AhatInstance inst, int numHeaps) {
-    // Note: We can't use a recursive implementation because it can lead to
-    // stack overflow. Use an iterative implementation instead.
-    //
-    // Objects not yet processed will have mRetainedSizes set to null.
-    // Once prepared, an object will have mRetaiedSizes set to an array of 0
-    // sizes.
-    Deque<AhatInstance> deque = new ArrayDeque<AhatInstance>();
-    deque.push(inst);
-
-    while (!deque.isEmpty()) {
-      inst = deque.pop();
-      if (inst.mRetainedSizes == null) {
-        inst.mRetainedSizes = new Size[numHeaps];
-        for (int i = 0; i < numHeaps; i++) {
-          inst.mRetainedSizes[i] = Size.ZERO;
-        }
-        if (!(inst instanceof SuperRoot)) {
-          inst.mRetainedSizes[inst.mHeap.getIndex()] =
-            inst.mRetainedSizes[inst.mHeap.getIndex()].plus(inst.getSize());
-        }
-        deque.push(inst);
-        for (AhatInstance dominated : inst.mDominated) {
-          deque.push(dominated);
-        }
-      } else {
-        for (AhatInstance dominated : inst.mDominated) {
-          for (int i = 0; i < numHeaps; i++) {
-            inst.mRetainedSizes[i] = inst.mRetainedSizes[i].plus(dominated.mRetainedSizes[i]);
-          }
-        }
-      }
-    }
+  void setStore(InstanceStore store, int index) {
+    mStore = store;
+    mIndex = index;
   }
 
-  Iterable<AhatInstance> getReferencesForDominators(Reachability retained) {
-    return new DominatorReferenceIterator(retained, getReferences());
-  }
-
-  void setDominator(AhatInstance dominator) {
-    mImmediateDominator = dominator;
-    mImmediateDominator.mDominated.add(this);
+  /**
+   * Returns the index of this instance in its InstanceStore, or -1 if the
+   * instance does not belong to a store.
+   */
+  int getIndex() {
+    return mIndex;
   }
 }
@@ -16,7 +16,6 @@
 
 package com.android.ahat.heapdump;
 
-import com.android.ahat.dominators.Dominators;
 import com.android.ahat.progress.Progress;
 import java.util.List;
 
@@ -33,6 +32,18 @@ public class AhatSnapshot implements Diffable<AhatSnapshot> {
   // List of all ahat instances.
   private final Instances<AhatInstance> mInstances;
 
+  // Results of analyzing the instances.
+  private final InstanceStore mStore;
+
+  // Whether dominators and retained sizes have been computed.
+  private boolean mAnalyzed = false;
+
+  // Indexes of the instances for queries, built as needed.
+  private final InstanceIndex mInstanceIndex;
+
+  // Groups of instances with duplicate contents, found when first needed.
+  private Duplicates mDuplicates;
+
   private List<AhatHeap> mHeaps;
 
   private AhatSnapshot mBaseline = this;
@@ -42,13 +53,25 @@ public class AhatSnapshot implements Diffable<AhatSnapshot> {
                List<AhatHeap> heaps,
                Site rootSite,
                Progress progress,
-               Reachability retained) {
+               Reachability retained,
+               AnalysisIndex index) {
     mSuperRoot = root;
     mInstances = instances;
     mHeaps = heaps;
     mRootSite = rootSite;
 
-    AhatInstance.computeReachability(mSuperRoot, progress, mInstances.size());
+    // Use the results of a previous analysis of this heap dump if they are
+    // available in the index.
+    mStore = new InstanceStore(mInstances, mSuperRoot, mHeaps.size());
+    if (index != null) {
+      progress.start("Reading analysis index", 1);
+      mAnalyzed = index.read(mStore);
+      progress.done();
+    }
+
+    if (!mAnalyzed) {
+      mStore.computeReachability(progress);
+    }
 
     for (AhatInstance inst : mInstances) {
       // Add this instance to its site.
@@ -65,36 +88,35 @@ public class AhatSnapshot implements Diffable<AhatSnapshot> {
       }
     }
 
-    Dominators.Graph<AhatInstance> graph = new Dominators.Graph<AhatInstance>() {
-      @Override
-      public void setDominatorsComputationState(AhatInstance node, Object state) {
-        node.setTemporaryUserData(state);
-      }
+    mRootSite.prepareForUse(0, mHeaps.size(), retained);
 
-      @Override
-      public Object getDominatorsComputationState(AhatInstance node) {
-        return node.getTemporaryUserData();
-      }
+    // The instances retained by the super root are exactly those counted by
+    // the root site, so the size of each heap is known before dominators
+    // are computed.
+    for (AhatHeap heap : mHeaps) {
+      Size size = mRootSite.getSize(heap);
+      heap.addToSize(size.getJavaSize(), size.getRegisteredNativeSize());
+    }
 
-      @Override
-      public Iterable<AhatInstance> getReferencesForDominators(AhatInstance node) {
-        return node.getReferencesForDominators(retained);
-      }
+    mInstanceIndex = new InstanceIndex(mInstances, mStore, mHeaps);
+  }
 
-      @Override
-      public void setDominator(AhatInstance node, AhatInstance dominator) {
-        node.setDominator(dominator);
+  /**
+   * Computes the dominators and retained sizes of the instances, unless
+   * they were read from the analysis index, in which case they are already
+   * available. Results are written to the analysis index, if any.
+   */
+  void computeDominators(Progress progress, Reachability retained, AnalysisIndex index) {
+    if (!mAnalyzed) {
+      mStore.computeDominators(progress, retained);
+      mStore.computeRetainedSizes();
+      if (index != null) {
+        progress.start("Writing analysis index", 1);
+        index.write(mStore);
+        progress.done();
       }
-    };
-    new Dominators(graph).progress(progress, mInstances.size()).computeDominators(mSuperRoot);
-
-    AhatInstance.computeRetainedSize(mSuperRoot, mHeaps.size());
-
-    for (AhatHeap heap : mHeaps) {
-      heap.addToSize(mSuperRoot.getRetainedSize(heap));
+      mAnalyzed = true;
     }
-
-    mRootSite.prepareForUse(0, mHeaps.size(), retained);
   }
 
   /**
@@ -187,6 +209,31 @@ public class AhatSnapshot implements Diffable<AhatSnapshot> {
     return site == null ? mRootSite : site;
   }
 
+  /**
+   * Returns a new query for the instances of this snapshot.
+   * Queries use indexes of the instances that are built as needed and
+   * shared by all queries of the snapshot.
+   *
+   * @return a new query matching all instances of the snapshot
+   */
+  public InstanceQuery query() {
+    return new InstanceQuery(mInstanceIndex);
+  }
+
+  /**
+   * Returns the groups of instances of this snapshot holding identical
+   * strings, primitive arrays or bitmap pixels. The groups are found the
+   * first time this method is called.
+   *
+   * @return the groups of duplicate instances
+   */
+  public synchronized Duplicates getDuplicates() {
+    if (mDuplicates == null) {
+      mDuplicates = Duplicates.find(mStore);
+    }
+    return mDuplicates;
+  }
+
   void setBaseline(AhatSnapshot baseline) {
     mBaseline = baseline;
   }
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A file caching the results of analyzing a heap dump, so they need not be
+ * recomputed the next time the same heap dump is opened.
+ * <p>
+ * The index holds the columns of an {@link InstanceStore}. It starts with a
+ * header identifying the version of the index format, the heap dump it was
+ * computed for (by size and checksum) and the analysis options used. The
+ * index is only used if all of these match. It ends with a checksum of its
+ * own contents to detect truncated or corrupted index files.
+ * <p>
+ * The index is only an optimization: failure to read or write it is not an
+ * error, the results are computed from the heap dump instead.
+ */
+class AnalysisIndex {
+  // "AHATIDX" followed by a zero byte.
+  private static final long MAGIC = 0x4148415449445800L;
+
+  // The version of the index format. This must be incremented whenever the
+  // format of the index or the way any of the results stored in it are
+  // computed changes.
+  private static final int VERSION = 2;
+
+  // The size of the buffer used to read and write the index.
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  private final File mFile;
+  private final long mHprofSize;
+  private final long mHprofChecksum;
+  private final Reachability mRetained;
+
+  /**
+   * Creates an AnalysisIndex stored in the given file for a heap dump of the
+   * given size and checksum analyzed with the given retained option.
+   */
+  AnalysisIndex(File file, long hprofSize, long hprofChecksum, Reachability retained) {
+    mFile = file;
+    mHprofSize = hprofSize;
+    mHprofChecksum = hprofChecksum;
+    mRetained = retained;
+  }
+
+  /**
+   * Reads the results of analysis from the index into the given store.
+   * Returns false, leaving the store without results, if the index does not
+   * exist, is for a different heap dump or analysis options, or could not be
+   * read.
+   */
+  boolean read(InstanceStore store) {
+    if (!mFile.isFile()) {
+      return false;
+    }
+
+    try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ)) {
+      Reader in = new Reader(channel);
+      if (in.readLong() != MAGIC
+          || in.readInt() != VERSION
+          || in.readLong() != mHprofSize
+          || in.readLong() != mHprofChecksum
+          || in.readInt() != mRetained.ordinal()
+          || in.readInt() != store.size()
+          || in.readInt() != store.getNumHeaps()) {
+        return false;
+      }
+      store.readFrom(in);
+      long checksum = in.getChecksum();
+      if (in.readLong() == checksum) {
+        return true;
+      }
+    } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException
+        | NegativeArraySizeException e) {
+      // Fall through to discard anything read from the index.
+    }
+    store.clearAnalysis();
+    return false;
+  }
+
+  /**
+   * Writes the results of analysis in the given store to the index.
+   * The index is written to a temporary file which then replaces any
+   * existing index, so a partially written index is never observed.
+   * Returns false if the index could not be written.
+   */
+  boolean write(InstanceStore store) {
+    File tmp = null;
+    try {
+      // Use a uniquely named temporary file, in case the same heap dump is
+      // being analyzed concurrently.
+      tmp = File.createTempFile(mFile.getName(), ".tmp", mFile.getAbsoluteFile().getParentFile());
+      try (FileChannel channel = FileChannel.open(tmp.toPath(),
+            StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+        Writer out = new Writer(channel);
+        out.writeLong(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(mHprofSize);
+        out.writeLong(mHprofChecksum);
+        out.writeInt(mRetained.ordinal());
+        out.writeInt(store.size());
+        out.writeInt(store.getNumHeaps());
+        store.writeTo(out);
+        out.writeLong(out.getChecksum());
+        out.flush();
+      }
+      Files.move(tmp.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      return true;
+    } catch (IOException e) {
+      if (tmp != null) {
+        tmp.delete();
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Reads primitive values and arrays from an index, computing the checksum
+   * of everything read.
+   */
+  static class Reader {
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CRC32 mChecksum = new CRC32();
+
+    // The number of bytes at the start of the buffer that have been added to
+    // the checksum.
+    private int mChecked = 0;
+
+    private Reader(FileChannel channel) {
+      mChannel = channel;
+      mBuffer.limit(0);
+    }
+
+    /**
+     * Adds the bytes read from the buffer since the last update to the
+     * checksum.
+     */
+    private void updateChecksum() {
+      ByteBuffer read = mBuffer.duplicate();
+      read.limit(mBuffer.position());
+      read.position(mChecked);
+      mChecksum.update(read);
+      mChecked = mBuffer.position();
+    }
+
+    /**
+     * Ensures at least the given number of bytes, at most BUFFER_SIZE, are
+     * available in the buffer.
+     */
+    private void fill(int numBytes) throws IOException {
+      if (mBuffer.remaining() >= numBytes) {
+        return;
+      }
+
+      updateChecksum();
+      mBuffer.compact();
+      while (mBuffer.position() < numBytes) {
+        if (mChannel.read(mBuffer) < 0) {
+          throw new EOFException();
+        }
+      }
+      mBuffer.flip();
+      mChecked = 0;
+    }
+
+    /**
+     * Returns the checksum of everything read so far.
+     */
+    long getChecksum() {
+      updateChecksum();
+      return mChecksum.getValue();
+    }
+
+    int readInt() throws IOException {
+      fill(4);
+      return mBuffer.getInt();
+    }
+
+    long readLong() throws IOException {
+      fill(8);
+      return mBuffer.getLong();
+    }
+
+    void readBytes(byte[] values) throws IOException {
+      for (int i = 0; i < values.length; ) {
+        fill(1);
+        int n = Math.min(values.length - i, mBuffer.remaining());
+        mBuffer.get(values, i, n);
+        i += n;
+      }
+    }
+
+    /**
+     * Throws an IOException if the given length, read from the index, is
+     * negative or more than the number of ints left in the index. Lengths
+     * must be checked before allocating arrays for them, because the checksum
+     * is only verified at the end, so a corrupt length could otherwise cause
+     * an OutOfMemoryError.
+     */
+    void checkIntsLength(int length) throws IOException {
+      long remaining = mBuffer.remaining() + mChannel.size() - mChannel.position();
+      if (length < 0 || 4L * length > remaining) {
+        throw new IOException("Invalid length in index: " + length);
+      }
+    }
+
+    void readInts(int[] values) throws IOException {
+      for (int i = 0; i < values.length; ) {
+        fill(4);
+        int n = Math.min(values.length - i, mBuffer.remaining() / 4);
+        mBuffer.asIntBuffer().get(values, i, n);
+        mBuffer.position(mBuffer.position() + 4 * n);
+        i += n;
+      }
+    }
+
+    void readLongs(long[] values) throws IOException {
+      for (int i = 0; i < values.length; ) {
+        fill(8);
+        int n = Math.min(values.length - i, mBuffer.remaining() / 8);
+        mBuffer.asLongBuffer().get(values, i, n);
+        mBuffer.position(mBuffer.position() + 8 * n);
+        i += n;
+      }
+    }
+  }
+
+  /**
+   * Writes primitive values and arrays to an index, computing the checksum
+   * of everything written.
+   */
+  static class Writer {
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CRC32 mChecksum = new CRC32();
+
+    // The number of bytes at the start of the buffer that have been added to
+    // the checksum.
+    private int mChecked = 0;
+
+    private Writer(FileChannel channel) {
+      mChannel = channel;
+    }
+
+    /**
+     * Adds the bytes written to the buffer since the last update to the
+     * checksum.
+     */
+    private void updateChecksum() {
+      ByteBuffer written = mBuffer.duplicate();
+      written.flip();
+      written.position(mChecked);
+      mChecksum.update(written);
+      mChecked = mBuffer.position();
+    }
+
+    /**
+     * Ensures there is space for at least the given number of bytes, at most
+     * BUFFER_SIZE, in the buffer.
+     */
+    private void ensure(int numBytes) throws IOException {
+      if (mBuffer.remaining() < numBytes) {
+        flush();
+      }
+    }
+
+    /**
+     * Writes everything in the buffer out to the file.
+     */
+    void flush() throws IOException {
+      updateChecksum();
+      mBuffer.flip();
+      while (mBuffer.hasRemaining()) {
+        mChannel.write(mBuffer);
+      }
+      mBuffer.clear();
+      mChecked = 0;
+    }
+
+    /**
+     * Returns the checksum of everything written so far.
+     */
+    long getChecksum() {
+      updateChecksum();
+      return mChecksum.getValue();
+    }
+
+    void writeInt(int value) throws IOException {
+      ensure(4);
+      mBuffer.putInt(value);
+    }
+
+    void writeLong(long value) throws IOException {
+      ensure(8);
+      mBuffer.putLong(value);
+    }
+
+    void writeBytes(byte[] values) throws IOException {
+      for (int i = 0; i < values.length; ) {
+        ensure(1);
+        int n = Math.min(values.length - i, mBuffer.remaining());
+        mBuffer.put(values, i, n);
+        i += n;
+      }
+    }
+
+    void writeInts(int[] values) throws IOException {
+      for (int i = 0; i < values.length; ) {
+        ensure(4);
+        int n = Math.min(values.length - i, mBuffer.remaining() / 4);
+        mBuffer.asIntBuffer().put(values, i, n);
+        mBuffer.position(mBuffer.position() + 4 * n);
+        i += n;
+      }
+    }
+
+    void writeLongs(long[] values) throws IOException {
+      for (int i = 0; i < values.length; ) {
+        ensure(8);
+        int n = Math.min(values.length - i, mBuffer.remaining() / 8);
+        mBuffer.asLongBuffer().put(values, i, n);
+        mBuffer.position(mBuffer.position() + 8 * n);
+        i += n;
+      }
+    }
+  }
+}
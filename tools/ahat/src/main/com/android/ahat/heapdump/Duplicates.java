@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Groups of instances of a snapshot holding identical copies of the same
+ * data, and the memory that could be saved by sharing a single copy.
+ * <p>
+ * Three kinds of data are compared: the values of java.lang.String
+ * instances, the pixel buffers of android.graphics.Bitmap instances, and
+ * the contents of any other arrays of primitive type. Groups are ranked by
+ * the number of bytes wasted on the redundant copies.
+ * <p>
+ * The contents are hashed in parallel directly from the heap dump, and only
+ * instances with equal hashes are compared element by element, so the
+ * memory used to find the groups is a few bytes per candidate instance
+ * regardless of the size of the arrays.
+ */
+public class Duplicates {
+  /**
+   * The kind of data shared by the instances of a group.
+   */
+  public static enum Kind {
+    /**
+     * java.lang.String instances with the same value.
+     */
+    STRING,
+
+    /**
+     * Arrays of primitive type with the same elements, excluding the arrays
+     * of strings and bitmaps.
+     */
+    ARRAY,
+
+    /**
+     * android.graphics.Bitmap instances with the same pixel buffer.
+     */
+    BITMAP
+  }
+
+  private static final Kind[] KINDS = Kind.values();
+  private static final byte NONE = -1;
+
+  // The number of candidates hashed by each parallel task.
+  private static final int CANDIDATES_PER_TASK = 64 * 1024;
+
+  private final InstanceStore mStore;
+
+  // The indices of the instances of each group, group by group in rank
+  // order. The instances of group i are those in the range
+  // [mStarts[i], mStarts[i+1]).
+  private final int[] mInstances;
+  private final int[] mStarts;
+  private final byte[] mKinds;
+  private final long[] mSizes;
+  private final long[] mWasted;
+  private final long mTotalWasted;
+
+  /**
+   * A group of instances holding identical copies of the same data.
+   */
+  public class Group {
+    private final int mGroup;
+
+    private Group(int group) {
+      mGroup = group;
+    }
+
+    /**
+     * Returns the kind of data shared by the instances of this group.
+     *
+     * @return the kind of data of this group
+     */
+    public Kind getKind() {
+      return KINDS[mKinds[mGroup]];
+    }
+
+    /**
+     * Returns the instances of this group, in order of id. For strings and
+     * bitmaps these are the java.lang.String and android.graphics.Bitmap
+     * instances rather than the arrays holding their data.
+     *
+     * @return the instances of this group
+     */
+    public List<AhatInstance> getInstances() {
+      return mStore.getInstances(mInstances, mStarts[mGroup], mStarts[mGroup + 1]);
+    }
+
+    /**
+     * Returns the number of instances in this group.
+     *
+     * @return the number of instances in this group
+     */
+    public int getCount() {
+      return mStarts[mGroup + 1] - mStarts[mGroup];
+    }
+
+    /**
+     * Returns the number of bytes used by a single copy of the data,
+     * including the instance owning the data for strings and bitmaps.
+     *
+     * @return the size of a single copy in bytes
+     */
+    public long getSize() {
+      return mSizes[mGroup];
+    }
+
+    /**
+     * Returns the number of bytes used by all but one of the copies of the
+     * data. Arrays shared by more than one instance of the group are counted
+     * only once.
+     *
+     * @return the number of bytes wasted on redundant copies
+     */
+    public long getWastedSize() {
+      return mWasted[mGroup];
+    }
+  }
+
+  private Duplicates(InstanceStore store, int[] instances, int[] starts, byte[] kinds,
+      long[] sizes, long[] wasted) {
+    mStore = store;
+    mInstances = instances;
+    mStarts = starts;
+    mKinds = kinds;
+    mSizes = sizes;
+    mWasted = wasted;
+    long total = 0;
+    for (long w : wasted) {
+      total += w;
+    }
+    mTotalWasted = total;
+  }
+
+  /**
+   * Returns the groups of duplicate instances, in decreasing order of
+   * wasted size. Groups with the same wasted size are ordered by the id of
+   * their first instance.
+   *
+   * @return the groups of duplicate instances
+   */
+  public List<Group> getGroups() {
+    return new AbstractList<Group>() {
+      @Override
+      public int size() {
+        return mKinds.length;
+      }
+
+      @Override
+      public Group get(int index) {
+        if (index < 0 || index >= size()) {
+          throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return new Group(index);
+      }
+    };
+  }
+
+  /**
+   * Returns the total number of bytes wasted on redundant copies across all
+   * groups.
+   *
+   * @return the total wasted size in bytes
+   */
+  public long getTotalWastedSize() {
+    return mTotalWasted;
+  }
+
+  /**
+   * Finds the groups of duplicate instances of the given store.
+   */
+  static Duplicates find(InstanceStore store) {
+    // Find the candidate instances and the kind of data of each. Arrays
+    // holding the data of strings and bitmaps are compared as part of
+    // their owners rather than on their own.
+    int size = store.size();
+    BitSet owned = new BitSet(size);
+    Map<AhatClassObj, Byte> classKinds = new HashMap<AhatClassObj, Byte>();
+    int[] candidates = new int[1024];
+    byte[] candidateKinds = new byte[1024];
+    int numCandidates = 0;
+    for (int i = 0; i < size; ++i) {
+      AhatInstance inst = store.getInstance(i);
+      AhatClassInstance cls = inst.asClassInstance();
+      if (cls == null) {
+        continue;
+      }
+
+      byte kind = classKinds.computeIfAbsent(inst.getClassObj(), c -> {
+        if (inst.isInstanceOfClass("java.lang.String")) {
+          return (byte)Kind.STRING.ordinal();
+        }
+        if (inst.isInstanceOfClass("android.graphics.Bitmap")) {
+          return (byte)Kind.BITMAP.ordinal();
+        }
+        return NONE;
+      });
+      AhatArrayInstance data = kind == NONE ? null : getData(inst, kind);
+      if (data != null) {
+        owned.set(data.getIndex());
+        if (numCandidates == candidates.length) {
+          candidates = Arrays.copyOf(candidates, numCandidates * 2);
+          candidateKinds = Arrays.copyOf(candidateKinds, numCandidates * 2);
+        }
+        candidates[numCandidates] = i;
+        candidateKinds[numCandidates] = kind;
+        numCandidates++;
+      }
+    }
+
+    for (int i = 0; i < size; ++i) {
+      AhatArrayInstance array = store.getInstance(i).asArrayInstance();
+      if (array != null && array.isPrimitiveArray() && !owned.get(i)) {
+        if (numCandidates == candidates.length) {
+          candidates = Arrays.copyOf(candidates, numCandidates * 2);
+          candidateKinds = Arrays.copyOf(candidateKinds, numCandidates * 2);
+        }
+        candidates[numCandidates] = i;
+        candidateKinds[numCandidates] = (byte)Kind.ARRAY.ordinal();
+        numCandidates++;
+      }
+    }
+    owned = null;
+
+    // Hash the data of the candidates in parallel, packing the upper 32
+    // bits of the hash with the candidate number so that sorting the keys
+    // brings together the candidates that may be equal.
+    long[] keys = new long[numCandidates];
+    int numTasks = (numCandidates + CANDIDATES_PER_TASK - 1) / CANDIDATES_PER_TASK;
+    List<ForkJoinTask<?>> tasks = new ArrayList<>(numTasks);
+    final int[] cands = candidates;
+    final byte[] kinds = candidateKinds;
+    for (int t = 0; t < numTasks; ++t) {
+      int start = t * CANDIDATES_PER_TASK;
+      int end = Math.min(start + CANDIDATES_PER_TASK, numCandidates);
+      tasks.add(ForkJoinPool.commonPool().submit(() -> {
+        for (int c = start; c < end; ++c) {
+          long hash = hash(store.getInstance(cands[c]), kinds[c]);
+          keys[c] = (hash & 0xFFFFFFFF00000000L) | c;
+        }
+      }));
+    }
+    try {
+      for (ForkJoinTask<?> task : tasks) {
+        task.join();
+      }
+    } finally {
+      for (ForkJoinTask<?> task : tasks) {
+        task.cancel(false);
+      }
+    }
+    Arrays.parallelSort(keys);
+
+    // Split each run of candidates with the same hash into groups with
+    // exactly the same data, keeping only groups of more than one instance.
+    GroupBuilder groups = new GroupBuilder(store);
+    int[] run = new int[16];
+    int[] rest = new int[16];
+    for (int k = 0; k < numCandidates; ) {
+      int end = k + 1;
+      while (end < numCandidates && (keys[end] >>> 32) == (keys[k] >>> 32)) {
+        end++;
+      }
+      int runSize = end - k;
+      if (runSize > 1) {
+        if (run.length < runSize) {
+          run = new int[runSize];
+          rest = new int[runSize];
+        }
+        for (int j = 0; j < runSize; ++j) {
+          run[j] = (int)keys[k + j];
+        }
+        while (runSize > 1) {
+          int rep = run[0];
+          AhatInstance repInst = store.getInstance(cands[rep]);
+          int groupStart = groups.size();
+          groups.add(cands[rep]);
+          int numRest = 0;
+          for (int j = 1; j < runSize; ++j) {
+            int c = run[j];
+            if (kinds[c] == kinds[rep] && equal(repInst, store.getInstance(cands[c]), kinds[c])) {
+              groups.add(cands[c]);
+            } else {
+              rest[numRest++] = c;
+            }
+          }
+          groups.finish(groupStart, kinds[rep]);
+          int[] tmp = run;
+          run = rest;
+          rest = tmp;
+          runSize = numRest;
+        }
+      }
+      k = end;
+    }
+    return groups.build();
+  }
+
+  /**
+   * Returns the array holding the data of the given candidate instance of
+   * the given kind.
+   */
+  private static AhatArrayInstance getData(AhatInstance inst, byte kind) {
+    switch (KINDS[kind]) {
+      case STRING: {
+        AhatArrayInstance chars = inst.asClassInstance().getStringChars();
+        return chars == null || !chars.isPrimitiveArray() ? null : chars;
+      }
+      case BITMAP: return inst.asClassInstance().getBitmapBuffer();
+      default: return inst.asArrayInstance();
+    }
+  }
+
+  private static long hash(AhatInstance inst, byte kind) {
+    long hash = getData(inst, kind).hashElements() ^ kind;
+    if (kind == Kind.STRING.ordinal()) {
+      hash = (hash ^ inst.asClassInstance().getStringExtent()) * 0x9E3779B97F4A7C15L;
+    }
+    return hash;
+  }
+
+  private static boolean equal(AhatInstance a, AhatInstance b, byte kind) {
+    if (kind == Kind.STRING.ordinal()
+        && a.asClassInstance().getStringExtent() != b.asClassInstance().getStringExtent()) {
+      return false;
+    }
+    AhatArrayInstance dataA = getData(a, kind);
+    AhatArrayInstance dataB = getData(b, kind);
+    return dataA == dataB || dataA.elementsEqual(dataB);
+  }
+
+  /**
+   * Accumulates the groups of duplicate instances as they are found, then
+   * ranks them by wasted size.
+   */
+  private static class GroupBuilder {
+    private final InstanceStore mStore;
+    private int[] mInstances = new int[1024];
+    private int mSize = 0;
+    private int[] mStarts = new int[1024];
+    private byte[] mKinds = new byte[1024];
+    private long[] mSizes = new long[1024];
+    private long[] mWasted = new long[1024];
+    private int mNumGroups = 0;
+
+    GroupBuilder(InstanceStore store) {
+      mStore = store;
+    }
+
+    int size() {
+      return mSize;
+    }
+
+    void add(int index) {
+      if (mSize == mInstances.length) {
+        mInstances = Arrays.copyOf(mInstances, mSize * 2);
+      }
+      mInstances[mSize++] = index;
+    }
+
+    /**
+     * Records the instances added since the given start as a group of the
+     * given kind, or drops them if there is only one.
+     */
+    void finish(int start, byte kind) {
+      int count = mSize - start;
+      if (count < 2) {
+        mSize = start;
+        return;
+      }
+
+      // Instances are found in hash order: restore the order of id.
+      Arrays.sort(mInstances, start, mSize);
+
+      // The owners of the data are always duplicated, but the same array
+      // may be shared by several of them and is then counted only once.
+      long ownerSize = 0;
+      long dataSize = 0;
+      int[] data = new int[count];
+      for (int i = 0; i < count; ++i) {
+        AhatInstance inst = mStore.getInstance(mInstances[start + i]);
+        AhatArrayInstance array = getData(inst, kind);
+        data[i] = array.getIndex();
+        dataSize = array.getSize().getSize();
+        if (array != inst) {
+          ownerSize = inst.getSize().getSize();
+        }
+      }
+      Arrays.sort(data);
+      int distinct = 1;
+      for (int i = 1; i < count; ++i) {
+        if (data[i] != data[i - 1]) {
+          distinct++;
+        }
+      }
+
+      if (mNumGroups == mKinds.length) {
+        int n = mNumGroups * 2;
+        mStarts = Arrays.copyOf(mStarts, n + 1);
+        mKinds = Arrays.copyOf(mKinds, n);
+        mSizes = Arrays.copyOf(mSizes, n);
+        mWasted = Arrays.copyOf(mWasted, n);
+      }
+      mStarts[mNumGroups] = start;
+      mKinds[mNumGroups] = kind;
+      mSizes[mNumGroups] = ownerSize + dataSize;
+      mWasted[mNumGroups] = (count - 1) * ownerSize + (distinct - 1) * dataSize;
+      mNumGroups++;
+    }
+
+    Duplicates build() {
+      // Sort the groups by packing the wasted size and the group number into
+      // a single long whose natural order is the desired order. Groups are
+      // found in hash order, so order groups with the same wasted size by
+      // the index of their first instance.
+      int n = mNumGroups;
+      int indexBits = 32 - Integer.numberOfLeadingZeros(Math.max(n, 1));
+      long maxSize = (1L << (63 - indexBits)) - 1;
+      long[] keys = new long[n];
+      for (int g = 0; g < n; ++g) {
+        keys[g] = ((maxSize - Math.min(mWasted[g], maxSize)) << indexBits) | g;
+      }
+      Arrays.parallelSort(keys);
+      long mask = (1L << indexBits) - 1;
+      int[] order = new int[n];
+      for (int k = 0; k < n; ) {
+        int end = k + 1;
+        while (end < n && (keys[end] >>> indexBits) == (keys[k] >>> indexBits)) {
+          end++;
+        }
+        for (int j = k; j < end; ++j) {
+          int g = (int)(keys[j] & mask);
+          keys[j] = ((long)mInstances[mStarts[g]] << 32) | g;
+        }
+        Arrays.sort(keys, k, end);
+        for (int j = k; j < end; ++j) {
+          order[j] = (int)keys[j];
+        }
+        k = end;
+      }
+
+      int[] instances = new int[mSize];
+      int[] starts = new int[n + 1];
+      byte[] kinds = new byte[n];
+      long[] sizes = new long[n];
+      long[] wasted = new long[n];
+      int position = 0;
+      for (int i = 0; i < n; ++i) {
+        int g = order[i];
+        int start = mStarts[g];
+        int end = g + 1 < n ? mStarts[g + 1] : mSize;
+        System.arraycopy(mInstances, start, instances, position, end - start);
+        starts[i] = position;
+        position += end - start;
+        kinds[i] = mKinds[g];
+        sizes[i] = mSizes[g];
+        wasted[i] = mWasted[g];
+      }
+      starts[n] = position;
+      return new Duplicates(mStore, instances, starts, kinds, sizes, wasted);
+    }
+  }
+}
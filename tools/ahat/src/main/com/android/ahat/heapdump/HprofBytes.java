@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the contents of a heap dump after it has been parsed.
+ * <p>
+ * This is used to read the elements of primitive arrays on demand rather
+ * than keeping a copy of every primitive array in memory. The contents are
+ * read using absolute positions only, so a single HprofBytes may be shared
+ * by any number of threads.
+ */
+class HprofBytes {
+  private final ByteBuffer[] mSegments;
+  private final int mSegmentShift;
+
+  /**
+   * Constructs an HprofBytes for a heap dump split into the given segments.
+   * Every segment except the last must be exactly 2^segmentShift bytes.
+   */
+  HprofBytes(ByteBuffer[] segments, int segmentShift) {
+    mSegments = segments;
+    mSegmentShift = segmentShift;
+  }
+
+  private int segmentIndex(long position) {
+    return (int)Math.min(position >>> mSegmentShift, mSegments.length - 1);
+  }
+
+  /**
+   * Reads a big endian value of the given number of bytes, at most 8, that
+   * may straddle a segment boundary.
+   */
+  private long getSlow(long position, int numBytes) {
+    long value = 0;
+    for (int i = 0; i < numBytes; ++i) {
+      value = (value << 8) | (getByte(position + i) & 0xFF);
+    }
+    return value;
+  }
+
+  public byte getByte(long position) {
+    int index = segmentIndex(position);
+    return mSegments[index].get((int)(position - ((long)index << mSegmentShift)));
+  }
+
+  public boolean getBool(long position) {
+    return getByte(position) != 0;
+  }
+
+  public char getChar(long position) {
+    int index = segmentIndex(position);
+    ByteBuffer segment = mSegments[index];
+    int offset = (int)(position - ((long)index << mSegmentShift));
+    return offset + 2 <= segment.limit() ? segment.getChar(offset) : (char)getSlow(position, 2);
+  }
+
+  public short getShort(long position) {
+    int index = segmentIndex(position);
+    ByteBuffer segment = mSegments[index];
+    int offset = (int)(position - ((long)index << mSegmentShift));
+    return offset + 2 <= segment.limit() ? segment.getShort(offset) : (short)getSlow(position, 2);
+  }
+
+  public int getInt(long position) {
+    int index = segmentIndex(position);
+    ByteBuffer segment = mSegments[index];
+    int offset = (int)(position - ((long)index << mSegmentShift));
+    return offset + 4 <= segment.limit() ? segment.getInt(offset) : (int)getSlow(position, 4);
+  }
+
+  public long getLong(long position) {
+    int index = segmentIndex(position);
+    ByteBuffer segment = mSegments[index];
+    int offset = (int)(position - ((long)index << mSegmentShift));
+    return offset + 8 <= segment.limit() ? segment.getLong(offset) : getSlow(position, 8);
+  }
+
+  public float getFloat(long position) {
+    return Float.intBitsToFloat(getInt(position));
+  }
+
+  public double getDouble(long position) {
+    return Double.longBitsToDouble(getLong(position));
+  }
+
+  /**
+   * Reads a primitive value of the given type at the given position.
+   */
+  public Value getValue(Type type, long position) {
+    switch (type) {
+      case BOOLEAN: return Value.pack(getBool(position));
+      case CHAR: return Value.pack(getChar(position));
+      case FLOAT: return Value.pack(getFloat(position));
+      case DOUBLE: return Value.pack(getDouble(position));
+      case BYTE: return Value.pack(getByte(position));
+      case SHORT: return Value.pack(getShort(position));
+      case INT: return Value.pack(getInt(position));
+      case LONG: return Value.pack(getLong(position));
+      default: throw new AssertionError("unsupported enum member");
+    }
+  }
+
+  /**
+   * Reads bytes.length bytes starting at the given position.
+   */
+  public void getBytes(long position, byte[] bytes) {
+    int offset = 0;
+    while (offset < bytes.length) {
+      long pos = position + offset;
+      int index = segmentIndex(pos);
+      ByteBuffer segment = mSegments[index];
+      int start = (int)(pos - ((long)index << mSegmentShift));
+      int count = Math.min(bytes.length - offset, segment.limit() - start);
+      if (count <= 0) {
+        throw new IndexOutOfBoundsException("position " + pos + " is past the end of the file");
+      }
+
+      // Use a duplicate of the segment so reads from different threads
+      // don't interfere with each other.
+      ByteBuffer view = segment.duplicate();
+      view.position(start);
+      view.get(bytes, offset, count);
+      offset += count;
+    }
+  }
+}
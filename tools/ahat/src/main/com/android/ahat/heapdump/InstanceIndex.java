@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Indexes of the instances of a snapshot, used to answer an
+ * {@link InstanceQuery} without scanning every instance.
+ * <p>
+ * Each index is built the first time it is needed and kept for the life of
+ * the snapshot:
+ * <ul>
+ * <li> The instances of each class, in order of id.
+ * <li> For a class and the name of one of its fields, the instances of the
+ *      class in order of the value of the field, built only for fields that
+ *      are queried.
+ * <li> The java.lang.String instances in order of their value.
+ * <li> For each heap, the instances in decreasing order of the size they
+ *      retain on the heap.
+ * </ul>
+ * The index is safe to use from multiple threads.
+ */
+class InstanceIndex {
+  private final Instances<AhatInstance> mInstances;
+  private final InstanceStore mStore;
+  private final List<AhatHeap> mHeaps;
+
+  // The classes of all instances, in order of name then id, and the
+  // instances of each of those classes in order of id.
+  private final Object mClassLock = new Object();
+  private AhatClassObj[] mClasses;
+  private AhatInstance[][] mClassInstances;
+
+  // The java.lang.String instances in order of value.
+  private final Object mStringLock = new Object();
+  private AhatInstance[] mStrings;
+
+  // The instances of each class in order of the value of each of its fields
+  // that has been queried, by class and field name.
+  private final Map<AhatClassObj, Map<String, AhatInstance[]>> mFieldIndexes
+    = new HashMap<AhatClassObj, Map<String, AhatInstance[]>>();
+
+  // The instances in decreasing order of retained size, by heap name. The
+  // null key is used for the order by total retained size.
+  private final Map<String, List<AhatInstance>> mByRetainedSize
+    = new HashMap<String, List<AhatInstance>>();
+
+  InstanceIndex(Instances<AhatInstance> instances, InstanceStore store, List<AhatHeap> heaps) {
+    mInstances = instances;
+    mStore = store;
+    mHeaps = heaps;
+  }
+
+  /**
+   * Returns the key used to compare and index the given value of a field.
+   * References to strings are keyed by the quoted value of the string and
+   * references to other instances by their id in hex.
+   */
+  static String valueKey(Value value) {
+    if (value == null) {
+      return "null";
+    }
+    if (value.isAhatInstance()) {
+      AhatInstance inst = value.asAhatInstance();
+      String str = inst.asString();
+      return str == null ? String.format("0x%x", inst.getId()) : "\"" + str + "\"";
+    }
+    return value.toString();
+  }
+
+  /**
+   * Returns true if instances of the given class have a field with the
+   * given name.
+   */
+  static boolean hasField(AhatClassObj cls, String fieldName) {
+    for (; cls != null; cls = cls.getSuperClassObj()) {
+      for (Field field : cls.getInstanceFields()) {
+        if (field.name.equals(fieldName)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the given class is named className, or, if subclasses
+   * is true, if any of its super classes is.
+   */
+  private static boolean matches(AhatClassObj cls, String className, boolean subclasses) {
+    if (!subclasses) {
+      return cls.getName().equals(className);
+    }
+    for (; cls != null; cls = cls.getSuperClassObj()) {
+      if (cls.getName().equals(className)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Builds the index of instances by class, if it has not already been
+   * built.
+   */
+  private void buildClassIndex() {
+    synchronized (mClassLock) {
+      if (mClasses != null) {
+        return;
+      }
+
+      // Count the instances of each class first, so the instances can be
+      // stored in exactly sized arrays.
+      Map<AhatClassObj, int[]> counts = new HashMap<AhatClassObj, int[]>();
+      for (AhatInstance inst : mInstances) {
+        AhatClassObj cls = inst.getClassObj();
+        if (cls != null) {
+          counts.computeIfAbsent(cls, x -> new int[1])[0]++;
+        }
+      }
+
+      AhatClassObj[] classes = counts.keySet().toArray(new AhatClassObj[0]);
+      Arrays.sort(classes, Comparator.comparing(AhatClassObj::getName)
+          .thenComparingLong(AhatClassObj::getId));
+      Map<AhatClassObj, AhatInstance[]> byClass = new HashMap<AhatClassObj, AhatInstance[]>();
+      AhatInstance[][] classInstances = new AhatInstance[classes.length][];
+      for (int i = 0; i < classes.length; ++i) {
+        classInstances[i] = new AhatInstance[counts.get(classes[i])[0]];
+        byClass.put(classes[i], classInstances[i]);
+        counts.get(classes[i])[0] = 0;
+      }
+      for (AhatInstance inst : mInstances) {
+        AhatClassObj cls = inst.getClassObj();
+        if (cls != null) {
+          byClass.get(cls)[counts.get(cls)[0]++] = inst;
+        }
+      }
+
+      mClassInstances = classInstances;
+      mClasses = classes;
+    }
+  }
+
+  /**
+   * Returns the instances of the given class. If subclasses is true,
+   * instances of subclasses of the class are included. Instances of each
+   * class are listed in order of id.
+   */
+  List<AhatInstance> getInstances(String className, boolean subclasses) {
+    buildClassIndex();
+    List<AhatInstance[]> arrays = new ArrayList<AhatInstance[]>();
+    for (int i = 0; i < mClasses.length; ++i) {
+      if (matches(mClasses[i], className, subclasses)) {
+        arrays.add(mClassInstances[i]);
+      }
+    }
+    return concat(arrays);
+  }
+
+  /**
+   * Returns the instances of the given class with a field of the given name
+   * whose value has the given key, as computed by valueKey. If subclasses is
+   * true, instances of subclasses of the class are included.
+   */
+  List<AhatInstance> getInstancesWithField(String className, boolean subclasses,
+      String fieldName, String value) {
+    buildClassIndex();
+    List<AhatInstance[]> arrays = new ArrayList<AhatInstance[]>();
+    for (int i = 0; i < mClasses.length; ++i) {
+      AhatClassObj cls = mClasses[i];
+      if (matches(cls, className, subclasses) && hasField(cls, fieldName)) {
+        AhatInstance[] sorted = getFieldIndex(cls, mClassInstances[i], fieldName);
+        int start = lowerBound(sorted, x -> valueKey(x.getField(fieldName)), value);
+        int end = start;
+        while (end < sorted.length && valueKey(sorted[end].getField(fieldName)).equals(value)) {
+          end++;
+        }
+        arrays.add(Arrays.copyOfRange(sorted, start, end));
+      }
+    }
+    return concat(arrays);
+  }
+
+  /**
+   * Returns the instances of the given class in order of the key of the
+   * value of the given field, building the index if needed.
+   */
+  private AhatInstance[] getFieldIndex(AhatClassObj cls, AhatInstance[] insts, String fieldName) {
+    synchronized (mFieldIndexes) {
+      Map<String, AhatInstance[]> byField = mFieldIndexes.get(cls);
+      if (byField == null) {
+        byField = new HashMap<String, AhatInstance[]>();
+        mFieldIndexes.put(cls, byField);
+      }
+
+      AhatInstance[] sorted = byField.get(fieldName);
+      if (sorted == null) {
+        sorted = sortByKey(insts, x -> valueKey(x.getField(fieldName)));
+        byField.put(fieldName, sorted);
+      }
+      return sorted;
+    }
+  }
+
+  /**
+   * Returns the java.lang.String instances whose value starts with the
+   * given prefix, in order of value.
+   */
+  List<AhatInstance> getStringsWithPrefix(String prefix) {
+    AhatInstance[] strings;
+    synchronized (mStringLock) {
+      if (mStrings == null) {
+        List<AhatInstance> insts = new ArrayList<AhatInstance>();
+        for (AhatInstance inst : getInstances("java.lang.String", false)) {
+          if (inst.asString() != null) {
+            insts.add(inst);
+          }
+        }
+        mStrings = sortByKey(insts.toArray(new AhatInstance[0]), AhatInstance::asString);
+      }
+      strings = mStrings;
+    }
+
+    // The strings starting with the prefix are those from the first string
+    // not less than the prefix up to the first that doesn't start with it.
+    int start = lowerBound(strings, AhatInstance::asString, prefix);
+    int end = start;
+    while (end < strings.length && strings[end].asString().startsWith(prefix)) {
+      end++;
+    }
+    return Collections.unmodifiableList(Arrays.asList(strings).subList(start, end));
+  }
+
+  /**
+   * Returns the instances with a non-zero retained size on the named heap,
+   * or on any heap if heapName is null, in decreasing order of retained
+   * size on that heap, or of total retained size if heapName is null.
+   */
+  List<AhatInstance> getLargest(String heapName) {
+    synchronized (mByRetainedSize) {
+      List<AhatInstance> largest = mByRetainedSize.get(heapName);
+      if (largest == null) {
+        int heap = -1;
+        if (heapName != null) {
+          for (AhatHeap h : mHeaps) {
+            if (h.getName().equals(heapName)) {
+              heap = h.getIndex();
+            }
+          }
+          if (heap < 0) {
+            return Collections.emptyList();
+          }
+        }
+        largest = mStore.getInstances(mStore.orderByRetainedSize(heap));
+        mByRetainedSize.put(heapName, largest);
+      }
+      return largest;
+    }
+  }
+
+  /**
+   * Returns the heaps of the snapshot.
+   */
+  List<AhatHeap> getHeaps() {
+    return mHeaps;
+  }
+
+  /**
+   * Returns all instances, in order of id.
+   */
+  Iterable<AhatInstance> getAll() {
+    return mInstances;
+  }
+
+  /**
+   * Returns a copy of the given instances sorted by the given key.
+   * The key of each instance is computed once.
+   */
+  private static AhatInstance[] sortByKey(AhatInstance[] insts,
+      Function<AhatInstance, String> key) {
+    String[] keys = new String[insts.length];
+    Integer[] order = new Integer[insts.length];
+    for (int i = 0; i < insts.length; ++i) {
+      keys[i] = key.apply(insts[i]);
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> keys[a].compareTo(keys[b]));
+
+    AhatInstance[] sorted = new AhatInstance[insts.length];
+    for (int i = 0; i < insts.length; ++i) {
+      sorted[i] = insts[order[i]];
+    }
+    return sorted;
+  }
+
+  /**
+   * Returns the index of the first of the given instances, sorted by the
+   * given key, whose key is not less than the given value.
+   */
+  private static int lowerBound(AhatInstance[] sorted,
+      Function<AhatInstance, String> key, String value) {
+    int start = 0;
+    int end = sorted.length;
+    while (start < end) {
+      int mid = start + ((end - start) / 2);
+      if (key.apply(sorted[mid]).compareTo(value) < 0) {
+        start = mid + 1;
+      } else {
+        end = mid;
+      }
+    }
+    return start;
+  }
+
+  /**
+   * Returns an unmodifiable list of the elements of the given arrays, in
+   * order.
+   */
+  private static List<AhatInstance> concat(List<AhatInstance[]> arrays) {
+    if (arrays.size() == 1) {
+      return Collections.unmodifiableList(Arrays.asList(arrays.get(0)));
+    }
+
+    int[] starts = new int[arrays.size() + 1];
+    for (int i = 0; i < arrays.size(); ++i) {
+      starts[i + 1] = starts[i] + arrays.get(i).length;
+    }
+    return new AbstractList<AhatInstance>() {
+      @Override
+      public int size() {
+        return starts[arrays.size()];
+      }
+
+      @Override
+      public AhatInstance get(int index) {
+        if (index < 0 || index >= size()) {
+          throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        int i = Arrays.binarySearch(starts, index);
+        if (i < 0) {
+          i = -i - 2;
+        } else {
+          // Skip over any empty arrays starting at the same index.
+          while (starts[i + 1] == index) {
+            i++;
+          }
+        }
+        return arrays.get(i)[index - starts[i]];
+      }
+    };
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A query for the instances of a heap dump matching a set of predicates.
+ * <p>
+ * Queries are created with {@link AhatSnapshot#query}, refined by calling
+ * the builder methods, and evaluated with {@link #run}. For example, to
+ * find the 10 instances of android.graphics.Bitmap or its subclasses that
+ * retain the most memory on the app heap:
+ * <pre>
+ *   snapshot.query()
+ *       .ofClass("android.graphics.Bitmap", true)
+ *       .onHeap("app")
+ *       .largest(10)
+ *       .run();
+ * </pre>
+ * Queries are evaluated using indexes of the snapshot's instances that are
+ * built when first needed, so that repeated queries need not scan every
+ * instance of the heap dump.
+ */
+public class InstanceQuery {
+  private final InstanceIndex mIndex;
+
+  private String mClassName;
+  private boolean mSubclasses;
+  private String mHeapName;
+  private String mFieldName;
+  private String mFieldValue;
+  private String mStringPrefix;
+  private int mLargest = -1;
+
+  InstanceQuery(InstanceIndex index) {
+    mIndex = index;
+  }
+
+  /**
+   * Restricts the query to instances of the named class.
+   *
+   * @param className the name of the class, such as "java.lang.String"
+   * @param subclasses whether to include instances of subclasses of the class
+   * @return this query
+   */
+  public InstanceQuery ofClass(String className, boolean subclasses) {
+    mClassName = className;
+    mSubclasses = subclasses;
+    return this;
+  }
+
+  /**
+   * Restricts the query to instances allocated on the named heap. If
+   * combined with {@link #largest}, instances are ranked by the size they
+   * retain on the named heap.
+   *
+   * @param heapName the name of the heap, such as "app"
+   * @return this query
+   */
+  public InstanceQuery onHeap(String heapName) {
+    mHeapName = heapName;
+    return this;
+  }
+
+  /**
+   * Restricts the query to instances with a field of the given name and
+   * value. The value is given as the string "null" for a null reference, a
+   * quoted string such as "\"hello\"" for a reference to a java.lang.String,
+   * the id of the instance in hex such as "0x12c01230" for a reference to
+   * any other instance, or the value itself such as "42" or "true" for a
+   * primitive.
+   *
+   * @param fieldName the name of the field
+   * @param value the value of the field
+   * @return this query
+   */
+  public InstanceQuery withField(String fieldName, String value) {
+    mFieldName = fieldName;
+    mFieldValue = value;
+    return this;
+  }
+
+  /**
+   * Restricts the query to java.lang.String instances whose value starts
+   * with the given prefix.
+   *
+   * @param prefix the prefix of the string values
+   * @return this query
+   */
+  public InstanceQuery withStringPrefix(String prefix) {
+    mStringPrefix = prefix;
+    return this;
+  }
+
+  /**
+   * Restricts the query to the n matching instances that retain the most
+   * memory, in decreasing order of retained size. Instances with no retained
+   * size are excluded.
+   *
+   * @param n the maximum number of instances to return
+   * @return this query
+   */
+  public InstanceQuery largest(int n) {
+    mLargest = n;
+    return this;
+  }
+
+  /**
+   * Evaluates the query.
+   * <p>
+   * Instances are returned in decreasing order of retained size if
+   * {@link #largest} was used, otherwise in an unspecified order.
+   *
+   * @return the instances matching the query
+   */
+  public List<AhatInstance> run() {
+    // Start from the index that most narrows down the instances to consider,
+    // then check the remaining predicates on each of those instances.
+    Iterable<AhatInstance> candidates;
+    boolean ordered = false;
+    boolean checkClass = mClassName != null;
+    boolean checkField = mFieldName != null;
+    if (mStringPrefix != null) {
+      candidates = mIndex.getStringsWithPrefix(mStringPrefix);
+    } else if (mClassName != null && mFieldName != null) {
+      candidates = mIndex.getInstancesWithField(mClassName, mSubclasses, mFieldName, mFieldValue);
+      checkClass = false;
+      checkField = false;
+    } else if (mClassName != null) {
+      candidates = mIndex.getInstances(mClassName, mSubclasses);
+      checkClass = false;
+    } else if (mLargest >= 0) {
+      candidates = mIndex.getLargest(mHeapName);
+      ordered = true;
+    } else {
+      candidates = mIndex.getAll();
+    }
+
+    List<AhatInstance> results = new ArrayList<AhatInstance>();
+    PriorityQueue<AhatInstance> largest = null;
+    Comparator<AhatInstance> bySize = null;
+    if (mLargest >= 0 && !ordered) {
+      // Keep the largest instances seen so far with the smallest at the
+      // head of the queue, so it can be replaced by larger instances.
+      bySize = Comparator.comparingLong(this::getRetainedSize)
+          .thenComparing(Comparator.comparingLong(AhatInstance::getId).reversed());
+      largest = new PriorityQueue<AhatInstance>(bySize);
+    }
+
+    for (AhatInstance inst : candidates) {
+      if (mLargest >= 0 && ordered && results.size() >= mLargest) {
+        break;
+      }
+
+      if ((checkClass && !matchesClass(inst))
+          || (mHeapName != null && !inst.getHeap().getName().equals(mHeapName))
+          || (checkField && !matchesField(inst))) {
+        continue;
+      }
+
+      if (largest == null) {
+        results.add(inst);
+      } else if (mLargest > 0 && getRetainedSize(inst) > 0) {
+        if (largest.size() < mLargest) {
+          largest.add(inst);
+        } else if (bySize.compare(inst, largest.peek()) > 0) {
+          largest.poll();
+          largest.add(inst);
+        }
+      }
+    }
+
+    if (largest != null) {
+      results.addAll(largest);
+      results.sort(bySize.reversed());
+    }
+    return Collections.unmodifiableList(results);
+  }
+
+  private boolean matchesClass(AhatInstance inst) {
+    return mSubclasses
+      ? inst.isInstanceOfClass(mClassName)
+      : mClassName.equals(inst.getClassName());
+  }
+
+  private boolean matchesField(AhatInstance inst) {
+    return inst.isClassInstance()
+      && InstanceIndex.hasField(inst.getClassObj(), mFieldName)
+      && InstanceIndex.valueKey(inst.getField(mFieldName)).equals(mFieldValue);
+  }
+
+  /**
+   * Returns the size retained by the given instance that is used to rank
+   * instances for {@link #largest}.
+   */
+  private long getRetainedSize(AhatInstance inst) {
+    if (mHeapName == null) {
+      return inst.getTotalRetainedSize().getSize();
+    }
+    long size = 0;
+    for (AhatHeap heap : mIndex.getHeaps()) {
+      if (heap.getName().equals(mHeapName)) {
+        size += inst.getRetainedSize(heap).getSize();
+      }
+    }
+    return size;
+  }
+}
@@ -0,0 +1,757 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import com.android.ahat.dominators.Dominators;
+import com.android.ahat.progress.Progress;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Column-oriented storage for the results of analyzing the instances of a
+ * heap dump: reachability, sample paths from GC roots, reverse references,
+ * immediate dominators and retained sizes.
+ * <p>
+ * Each instance is assigned a dense integer index, which is its position in
+ * the id-sorted list of instances of the snapshot. The super root is given
+ * the index after the last instance. Per-instance results are kept in
+ * primitive arrays indexed by that index rather than in fields of each
+ * AhatInstance. Lists of related instances are kept in compressed sparse row
+ * form: the entries for the instance with index i are found at positions
+ * [start[i], start[i+1]) of a single shared int array.
+ * <p>
+ * The references between instances are also kept in compressed sparse row
+ * form while the instances are being analyzed, so that the reachability and
+ * dominators computations can traverse the graph of instances without
+ * visiting the fields of every instance again.
+ */
+class InstanceStore {
+  private static final Reachability[] REACHABILITIES = Reachability.values();
+
+  // The number of instances whose references are collected by a single
+  // task when building the reference graph.
+  private static final int INSTANCES_PER_TASK = 1 << 14;
+
+  // All instances by index. The super root is the last element.
+  private final AhatInstance[] mInstances;
+  private final int mSuperRoot;
+  private final int mNumHeaps;
+
+  // The Reachability.ordinal() of each instance.
+  private final byte[] mReachability;
+
+  // The index of the next instance on a sample path from a GC root to each
+  // instance, or -1 if there is none.
+  private final int[] mNextToGcRoot;
+
+  // The position of the reference followed on the sample path from a GC
+  // root to each instance among the references of the next instance on the
+  // path, or -1 if there is none.
+  private final int[] mNextToGcRootRef;
+
+  // The references of each instance in compressed sparse row form, in the
+  // order they are returned by AhatInstance.getReferences, with the
+  // Reachability.ordinal() of each reference. Only needed until the
+  // dominators have been computed.
+  private int[] mRefStart;
+  private int[] mRefs;
+  private byte[] mRefReachability;
+
+  // Reverse references in compressed sparse row form.
+  private int[] mReverseStart;
+  private int[] mReverseRefs;
+
+  // The index of the immediate dominator of each instance, or -1 if the
+  // instance is not retained.
+  private final int[] mDominator;
+
+  // Immediately dominated instances in compressed sparse row form.
+  private int[] mDominatedStart;
+  private int[] mDominated;
+
+  // Placeholder instances added to the list of dominated instances by diff,
+  // keyed by the index of the instance whose list they were added to.
+  private final Map<Integer, List<AhatInstance>> mExtraDominated = new HashMap<>();
+
+  // Retained sizes, indexed by heap index and then instance index. The
+  // registered native size column for a heap is only allocated once some
+  // instance is found to retain registered native bytes on that heap.
+  private final long[][] mRetainedJavaSizes;
+  private final long[][] mRetainedNativeSizes;
+
+  /**
+   * Creates a store for the given instances and assigns each of them an
+   * index into the store.
+   */
+  InstanceStore(Instances<AhatInstance> instances, SuperRoot root, int numHeaps) {
+    int size = instances.size() + 1;
+    mInstances = new AhatInstance[size];
+    int index = 0;
+    for (AhatInstance inst : instances) {
+      inst.setStore(this, index);
+      mInstances[index++] = inst;
+    }
+    mSuperRoot = index;
+    root.setStore(this, mSuperRoot);
+    mInstances[mSuperRoot] = root;
+    mNumHeaps = numHeaps;
+
+    mReachability = new byte[size];
+    mNextToGcRoot = new int[size];
+    mNextToGcRootRef = new int[size];
+    mDominator = new int[size];
+    mRetainedJavaSizes = new long[numHeaps][];
+    mRetainedNativeSizes = new long[numHeaps][];
+    clearAnalysis();
+  }
+
+  /**
+   * Discards any results of analysis, returning the store to the state it
+   * was in when constructed.
+   */
+  void clearAnalysis() {
+    Arrays.fill(mReachability, (byte)Reachability.UNREACHABLE.ordinal());
+    Arrays.fill(mNextToGcRoot, -1);
+    Arrays.fill(mNextToGcRootRef, -1);
+    mRefStart = null;
+    mRefs = null;
+    mRefReachability = null;
+    mReverseStart = null;
+    mReverseRefs = null;
+    Arrays.fill(mDominator, -1);
+    mDominatedStart = null;
+    mDominated = null;
+    Arrays.fill(mRetainedJavaSizes, null);
+    Arrays.fill(mRetainedNativeSizes, null);
+  }
+
+  /**
+   * Collect the references of every instance into the reference graph.
+   * The references of separate ranges of instances are collected in
+   * parallel.
+   *
+   * @param progress used to track progress of building the graph.
+   */
+  private void buildReferenceGraph(Progress progress) {
+    int numTasks = (mInstances.length + INSTANCES_PER_TASK - 1) / INSTANCES_PER_TASK;
+    progress.start("Building reference graph", numTasks);
+    int[] numRefs = new int[mInstances.length];
+    List<ForkJoinTask<RefChunk>> tasks = new ArrayList<>(numTasks);
+    for (int i = 0; i < numTasks; ++i) {
+      int start = i * INSTANCES_PER_TASK;
+      int end = Math.min(start + INSTANCES_PER_TASK, mInstances.length);
+      tasks.add(ForkJoinPool.commonPool().submit(() -> collectReferences(start, end, numRefs)));
+    }
+
+    List<RefChunk> chunks = new ArrayList<>(numTasks);
+    try {
+      for (ForkJoinTask<RefChunk> task : tasks) {
+        chunks.add(task.join());
+        progress.advance();
+      }
+    } finally {
+      for (ForkJoinTask<RefChunk> task : tasks) {
+        task.cancel(false);
+      }
+    }
+    progress.done();
+
+    mRefStart = toStarts(numRefs);
+    mRefs = new int[mRefStart[mInstances.length]];
+    mRefReachability = new byte[mRefs.length];
+    int position = 0;
+    for (RefChunk chunk : chunks) {
+      System.arraycopy(chunk.refs, 0, mRefs, position, chunk.size);
+      System.arraycopy(chunk.reachability, 0, mRefReachability, position, chunk.size);
+      position += chunk.size;
+    }
+  }
+
+  /**
+   * The references of a range of instances, collected by a single task.
+   */
+  private static class RefChunk {
+    public int[] refs = new int[1024];
+    public byte[] reachability = new byte[1024];
+    public int size = 0;
+
+    void add(int ref, Reachability reachability) {
+      if (size == refs.length) {
+        refs = Arrays.copyOf(refs, size * 2);
+        this.reachability = Arrays.copyOf(this.reachability, size * 2);
+      }
+      refs[size] = ref;
+      this.reachability[size] = (byte)reachability.ordinal();
+      size++;
+    }
+  }
+
+  /**
+   * Collect the references of the instances with indices in the range
+   * [start, end), recording the number of references of each instance in
+   * numRefs.
+   */
+  private RefChunk collectReferences(int start, int end, int[] numRefs) {
+    RefChunk chunk = new RefChunk();
+    for (int i = start; i < end; ++i) {
+      int before = chunk.size;
+      for (Reference ref : mInstances[i].getReferences()) {
+        chunk.add(ref.ref.getIndex(), ref.reachability);
+      }
+      numRefs[i] = chunk.size - before;
+    }
+    return chunk;
+  }
+
+  /**
+   * A first in first out queue of references in the reference graph. Each
+   * entry holds the index of the instance the reference is from in its upper
+   * 32 bits and the position of the reference in the graph in its lower 32
+   * bits.
+   */
+  private static class RefQueue {
+    private long[] mEntries = new long[16];
+    private int mHead = 0;
+    private int mTail = 0;
+
+    boolean isEmpty() {
+      return mHead == mTail;
+    }
+
+    void add(int src, int ref) {
+      if (mTail == mEntries.length) {
+        // Reuse the space of polled entries if that frees up at least half
+        // of the queue, otherwise grow the queue.
+        if (mHead < mEntries.length / 2) {
+          mEntries = Arrays.copyOf(mEntries, mEntries.length * 2);
+        }
+        System.arraycopy(mEntries, mHead, mEntries, 0, mTail - mHead);
+        mTail -= mHead;
+        mHead = 0;
+      }
+      mEntries[mTail++] = ((long)src << 32) | (ref & 0xFFFFFFFFL);
+    }
+
+    long poll() {
+      return mEntries[mHead++];
+    }
+  }
+
+  /**
+   * Determine the reachability of all instances reachable from the super
+   * root, a sample path to each from a GC root, and the reverse references
+   * of every reachable instance.
+   *
+   * @param progress used to track progress of the traversal.
+   */
+  void computeReachability(Progress progress) {
+    buildReferenceGraph(progress);
+
+    // Start by doing a breadth first search through strong references.
+    // Then continue the breadth first through each weaker kind of reference.
+    // Count the reverse references of each instance as we go, so that we
+    // can allocate the reverse reference lists exactly afterwards.
+    int[] numReverseRefs = new int[mInstances.length];
+    progress.start("Computing reachability", mInstances.length - 1);
+    RefQueue[] queues = new RefQueue[REACHABILITIES.length];
+    for (int r = 0; r < queues.length; ++r) {
+      queues[r] = new RefQueue();
+    }
+
+    for (int j = mRefStart[mSuperRoot]; j < mRefStart[mSuperRoot + 1]; ++j) {
+      queues[Reachability.STRONG.ordinal()].add(mSuperRoot, j);
+    }
+
+    byte unreachable = (byte)Reachability.UNREACHABLE.ordinal();
+    for (int r = 0; r < queues.length; ++r) {
+      RefQueue queue = queues[r];
+      while (!queue.isEmpty()) {
+        long entry = queue.poll();
+        int src = (int)(entry >>> 32);
+        int ref = (int)entry;
+        int index = mRefs[ref];
+        if (mReachability[index] == unreachable) {
+          // This is the first time we have seen this instance.
+          progress.advance();
+          mReachability[index] = (byte)r;
+          mNextToGcRoot[index] = src;
+          mNextToGcRootRef[index] = ref - mRefStart[src];
+
+          for (int j = mRefStart[index]; j < mRefStart[index + 1]; ++j) {
+            // References no weaker than the current reachability are visited
+            // at the current reachability, others at their own.
+            queues[Math.max(r, mRefReachability[j])].add(index, j);
+          }
+        }
+
+        // Note: We specifically exclude the super root from the reverse
+        // references because it is a fake instance not present in the
+        // original heap dump.
+        if (src != mSuperRoot) {
+          numReverseRefs[index]++;
+        }
+      }
+    }
+    progress.done();
+
+    // Every reference from a reachable instance was visited exactly once
+    // above, so we can fill in the reverse references by walking the
+    // references of the reachable instances again.
+    mReverseStart = toStarts(numReverseRefs);
+    mReverseRefs = new int[mReverseStart[mInstances.length]];
+    int[] next = Arrays.copyOf(mReverseStart, mInstances.length);
+    for (int i = 0; i < mSuperRoot; ++i) {
+      if (mReachability[i] != unreachable) {
+        for (int j = mRefStart[i]; j < mRefStart[i + 1]; ++j) {
+          mReverseRefs[next[mRefs[j]]++] = i;
+        }
+      }
+    }
+  }
+
+  /**
+   * Compute the immediate dominators of all retained instances. Must be
+   * called after computeReachability, once any unreachable instances to be
+   * retained have been added as roots to the super root. Releases the
+   * reference graph.
+   *
+   * @param progress used to track progress of the computation.
+   * @param retained the weakest reachability of references to follow.
+   */
+  void computeDominators(Progress progress, Reachability retained) {
+    // Only the references no weaker than the retained reachability are
+    // followed. The roots of the super root are taken afresh, because they
+    // may have changed since the reference graph was built.
+    progress.start("Initializing dominators", mInstances.length);
+    int[] edgeStart = new int[mInstances.length + 1];
+    int numEdges = 0;
+    for (int i = 0; i < mSuperRoot; ++i) {
+      edgeStart[i] = numEdges;
+      for (int j = mRefStart[i]; j < mRefStart[i + 1]; ++j) {
+        if (mRefReachability[j] <= retained.ordinal()) {
+          numEdges++;
+        }
+      }
+    }
+    edgeStart[mSuperRoot] = numEdges;
+    List<AhatInstance> roots = new ArrayList<>();
+    for (Reference ref : mInstances[mSuperRoot].getReferences()) {
+      roots.add(ref.ref);
+    }
+    edgeStart[mSuperRoot + 1] = numEdges + roots.size();
+
+    int[] edges = new int[edgeStart[mSuperRoot + 1]];
+    int edge = 0;
+    for (int i = 0; i < mSuperRoot; ++i) {
+      for (int j = mRefStart[i]; j < mRefStart[i + 1]; ++j) {
+        if (mRefReachability[j] <= retained.ordinal()) {
+          edges[edge++] = mRefs[j];
+        }
+      }
+      progress.advance();
+    }
+    for (AhatInstance root : roots) {
+      edges[edge++] = root.getIndex();
+    }
+    progress.done();
+
+    mRefStart = null;
+    mRefs = null;
+    mRefReachability = null;
+
+    int[] dominators = Dominators.computeDominators(mSuperRoot, edgeStart, edges, progress);
+    System.arraycopy(dominators, 0, mDominator, 0, mDominator.length);
+  }
+
+  /**
+   * Compute the lists of immediately dominated instances and the retained
+   * sizes of all instances. Must be called after computeDominators.
+   */
+  void computeRetainedSizes() {
+    int[] numDominated = new int[mInstances.length];
+    for (int i = 0; i < mInstances.length; ++i) {
+      if (mDominator[i] >= 0) {
+        numDominated[mDominator[i]]++;
+      }
+    }
+    mDominatedStart = toStarts(numDominated);
+    mDominated = new int[mDominatedStart[mInstances.length]];
+    int[] next = Arrays.copyOf(mDominatedStart, mInstances.length);
+    for (int i = 0; i < mInstances.length; ++i) {
+      if (mDominator[i] >= 0) {
+        mDominated[next[mDominator[i]]++] = i;
+      }
+    }
+
+    for (int h = 0; h < mNumHeaps; ++h) {
+      mRetainedJavaSizes[h] = new long[mInstances.length];
+    }
+
+    // Order the retained instances so that each instance comes before all
+    // of the instances it dominates. Visiting the instances in the reverse
+    // of that order lets us accumulate retained sizes without recursion.
+    int[] order = new int[mDominated.length + 1];
+    int size = 0;
+    order[size++] = mSuperRoot;
+    for (int k = 0; k < size; ++k) {
+      int index = order[k];
+      for (int j = mDominatedStart[index]; j < mDominatedStart[index + 1]; ++j) {
+        order[size++] = mDominated[j];
+      }
+    }
+
+    for (int k = size - 1; k >= 0; --k) {
+      int index = order[k];
+      if (index != mSuperRoot) {
+        AhatInstance inst = mInstances[index];
+        int heap = inst.getHeap().getIndex();
+        mRetainedJavaSizes[heap][index] += inst.getJavaSize();
+        addRetainedNativeSize(heap, index, inst.getRegisteredNativeSize());
+
+        int dominator = mDominator[index];
+        for (int h = 0; h < mNumHeaps; ++h) {
+          mRetainedJavaSizes[h][dominator] += mRetainedJavaSizes[h][index];
+          if (mRetainedNativeSizes[h] != null) {
+            mRetainedNativeSizes[h][dominator] += mRetainedNativeSizes[h][index];
+          }
+        }
+      }
+    }
+  }
+
+  private void addRetainedNativeSize(int heap, int index, long size) {
+    if (size != 0) {
+      if (mRetainedNativeSizes[heap] == null) {
+        mRetainedNativeSizes[heap] = new long[mInstances.length];
+      }
+      mRetainedNativeSizes[heap][index] += size;
+    }
+  }
+
+  /**
+   * Returns the number of entries in the store, including the super root.
+   */
+  int size() {
+    return mInstances.length;
+  }
+
+  int getNumHeaps() {
+    return mNumHeaps;
+  }
+
+  /**
+   * Writes the results of analysis to an index. Must only be called after
+   * the retained sizes have been computed.
+   */
+  void writeTo(AnalysisIndex.Writer out) throws IOException {
+    out.writeBytes(mReachability);
+    out.writeInts(mNextToGcRoot);
+    out.writeInts(mNextToGcRootRef);
+    out.writeInts(mReverseStart);
+    out.writeInts(mReverseRefs);
+    out.writeInts(mDominator);
+    out.writeInts(mDominatedStart);
+    out.writeInts(mDominated);
+    for (int h = 0; h < mNumHeaps; ++h) {
+      out.writeLongs(mRetainedJavaSizes[h]);
+      out.writeInt(mRetainedNativeSizes[h] == null ? 0 : 1);
+      if (mRetainedNativeSizes[h] != null) {
+        out.writeLongs(mRetainedNativeSizes[h]);
+      }
+    }
+  }
+
+  /**
+   * Reads the results of analysis previously written to an index with
+   * writeTo, in place of computing reachability, dominators and retained
+   * sizes.
+   */
+  void readFrom(AnalysisIndex.Reader in) throws IOException {
+    in.readBytes(mReachability);
+    in.readInts(mNextToGcRoot);
+    in.readInts(mNextToGcRootRef);
+    mReverseStart = new int[mInstances.length + 1];
+    in.readInts(mReverseStart);
+    in.checkIntsLength(mReverseStart[mInstances.length]);
+    mReverseRefs = new int[mReverseStart[mInstances.length]];
+    in.readInts(mReverseRefs);
+    in.readInts(mDominator);
+    mDominatedStart = new int[mInstances.length + 1];
+    in.readInts(mDominatedStart);
+    in.checkIntsLength(mDominatedStart[mInstances.length]);
+    mDominated = new int[mDominatedStart[mInstances.length]];
+    in.readInts(mDominated);
+    for (int h = 0; h < mNumHeaps; ++h) {
+      mRetainedJavaSizes[h] = new long[mInstances.length];
+      in.readLongs(mRetainedJavaSizes[h]);
+      if (in.readInt() != 0) {
+        mRetainedNativeSizes[h] = new long[mInstances.length];
+        in.readLongs(mRetainedNativeSizes[h]);
+      }
+    }
+  }
+
+  /**
+   * Convert a list of counts into compressed sparse row start positions.
+   * The returned array has one more element than the given counts.
+   */
+  private static int[] toStarts(int[] counts) {
+    int[] starts = new int[counts.length + 1];
+    for (int i = 0; i < counts.length; ++i) {
+      starts[i + 1] = starts[i] + counts[i];
+    }
+    return starts;
+  }
+
+  Reachability getReachability(int index) {
+    return REACHABILITIES[mReachability[index]];
+  }
+
+  AhatInstance getImmediateDominator(int index) {
+    int dominator = mDominator[index];
+    return dominator < 0 || dominator == mSuperRoot ? null : mInstances[dominator];
+  }
+
+  long getRetainedJavaSize(int index, int heap) {
+    if (heap < 0 || heap >= mNumHeaps || mRetainedJavaSizes[heap] == null) {
+      return 0;
+    }
+    return mRetainedJavaSizes[heap][index];
+  }
+
+  long getRetainedNativeSize(int index, int heap) {
+    if (heap < 0 || heap >= mNumHeaps || mRetainedNativeSizes[heap] == null) {
+      return 0;
+    }
+    return mRetainedNativeSizes[heap][index];
+  }
+
+  Size getRetainedSize(int index, int heap) {
+    long javaSize = getRetainedJavaSize(index, heap);
+    long nativeSize = getRetainedNativeSize(index, heap);
+    return javaSize == 0 && nativeSize == 0 ? Size.ZERO : new Size(javaSize, nativeSize);
+  }
+
+  /**
+   * Returns the indices of the instances with a non-zero retained size on
+   * the given heap, or on all heaps combined if heap is -1, in decreasing
+   * order of retained size. Instances with the same retained size are
+   * ordered by index. The super root is not included.
+   */
+  int[] orderByRetainedSize(int heap) {
+    // Pack the retained size and index of each instance into a single long
+    // whose natural order is the desired order, to sort without allocating
+    // an object per instance. Sizes too large to fit, which would need a
+    // heap of hundreds of gigabytes, are treated as equal.
+    int indexBits = 32 - Integer.numberOfLeadingZeros(mInstances.length);
+    long maxSize = (1L << (63 - indexBits)) - 1;
+    long[] keys = new long[mInstances.length];
+    int count = 0;
+    for (int i = 0; i < mInstances.length; ++i) {
+      if (i == mSuperRoot) {
+        continue;
+      }
+
+      long size = 0;
+      for (int h = 0; h < mNumHeaps; ++h) {
+        if (heap < 0 || heap == h) {
+          size += getRetainedJavaSize(i, h) + getRetainedNativeSize(i, h);
+        }
+      }
+      if (size > 0) {
+        keys[count++] = ((maxSize - Math.min(size, maxSize)) << indexBits) | i;
+      }
+    }
+    Arrays.parallelSort(keys, 0, count);
+
+    long mask = (1L << indexBits) - 1;
+    int[] order = new int[count];
+    for (int k = 0; k < count; ++k) {
+      order[k] = (int)(keys[k] & mask);
+    }
+    return order;
+  }
+
+  /**
+   * Returns the list of instances with the given indices.
+   */
+  List<AhatInstance> getInstances(int[] indices) {
+    return new InstanceList(indices, 0, indices.length);
+  }
+
+  /**
+   * Returns the list of instances with the indices in the range [start, end)
+   * of the given array of indices.
+   */
+  List<AhatInstance> getInstances(int[] indices, int start, int end) {
+    return new InstanceList(indices, start, end);
+  }
+
+  /**
+   * Returns the instance with the given index.
+   */
+  AhatInstance getInstance(int index) {
+    return mInstances[index];
+  }
+
+  Size getTotalRetainedSize(int index) {
+    long javaSize = 0;
+    long nativeSize = 0;
+    for (int h = 0; h < mNumHeaps; ++h) {
+      javaSize += getRetainedJavaSize(index, h);
+      nativeSize += getRetainedNativeSize(index, h);
+    }
+    return javaSize == 0 && nativeSize == 0 ? Size.ZERO : new Size(javaSize, nativeSize);
+  }
+
+  /**
+   * Returns the list of instances referencing the instance with the given
+   * index.
+   */
+  List<AhatInstance> getReverseReferences(int index) {
+    if (mReverseStart == null) {
+      return Collections.emptyList();
+    }
+    return new InstanceList(mReverseRefs, mReverseStart[index], mReverseStart[index + 1]);
+  }
+
+  /**
+   * Returns the list of instances immediately dominated by the instance with
+   * the given index. Diff appends placeholder instances to the returned list,
+   * so it supports adding elements to the end of the list.
+   */
+  List<AhatInstance> getDominated(int index) {
+    if (mDominatedStart == null) {
+      return new ArrayList<AhatInstance>();
+    }
+    return new DominatedList(index);
+  }
+
+  /**
+   * Returns the next element on the sample path from a GC root to the
+   * instance with the given index, or null if there is none.
+   * <p>
+   * The name of the field followed is not stored. Instead it is recovered
+   * from the position of the reference followed among the references of the
+   * next instance.
+   */
+  PathElement getNextPathElementToGcRoot(int index) {
+    int next = mNextToGcRoot[index];
+    if (next < 0) {
+      return null;
+    }
+
+    AhatInstance src = mInstances[next];
+    int position = mNextToGcRootRef[index];
+    AhatArrayInstance array = src.asArrayInstance();
+    if (array != null) {
+      // The references of an array are its non-null elements. Look for the
+      // element directly to avoid creating a Reference for every element of
+      // what may be a very large array.
+      List<Value> values = array.getValues();
+      for (int i = 0; i < values.size(); ++i) {
+        if (values.get(i) != null && position-- == 0) {
+          return new PathElement(src, "[" + Integer.toString(i) + "]");
+        }
+      }
+    }
+
+    for (Reference ref : src.getReferences()) {
+      if (position-- == 0) {
+        return new PathElement(src, ref.field);
+      }
+    }
+    throw new AssertionError("No reference found from " + src + " to " + mInstances[index]);
+  }
+
+  /**
+   * An unmodifiable list of instances backed by a range of indices in an
+   * int array.
+   */
+  private class InstanceList extends AbstractList<AhatInstance> {
+    private final int[] mIndices;
+    private final int mStart;
+    private final int mEnd;
+
+    InstanceList(int[] indices, int start, int end) {
+      mIndices = indices;
+      mStart = start;
+      mEnd = end;
+    }
+
+    @Override
+    public int size() {
+      return mEnd - mStart;
+    }
+
+    @Override
+    public AhatInstance get(int index) {
+      if (index < 0 || index >= size()) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+      }
+      return mInstances[mIndices[mStart + index]];
+    }
+  }
+
+  /**
+   * The list of instances dominated by an instance, including any
+   * placeholders appended to it by diff.
+   */
+  private class DominatedList extends AbstractList<AhatInstance> {
+    private final int mIndex;
+    private final InstanceList mDominatedInstances;
+
+    DominatedList(int index) {
+      mIndex = index;
+      mDominatedInstances = new InstanceList(
+          mDominated, mDominatedStart[index], mDominatedStart[index + 1]);
+    }
+
+    private List<AhatInstance> extras() {
+      List<AhatInstance> extras = mExtraDominated.get(mIndex);
+      return extras == null ? Collections.<AhatInstance>emptyList() : extras;
+    }
+
+    @Override
+    public int size() {
+      return mDominatedInstances.size() + extras().size();
+    }
+
+    @Override
+    public AhatInstance get(int index) {
+      int numDominated = mDominatedInstances.size();
+      return index < numDominated ? mDominatedInstances.get(index)
+                                  : extras().get(index - numDominated);
+    }
+
+    @Override
+    public void add(int index, AhatInstance inst) {
+      if (index != size()) {
+        throw new UnsupportedOperationException("Elements may only be added to the end");
+      }
+      mExtraDominated.computeIfAbsent(mIndex, x -> new ArrayList<AhatInstance>()).add(inst);
+    }
+  }
+}
@@ -21,6 +21,7 @@ import com.android.ahat.progress.Progress;
 import com.android.ahat.proguard.ProguardMap;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -33,6 +34,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 /**
  * Provides methods for parsing heap dumps.
@@ -54,10 +61,17 @@ import java.util.Objects;
  * </ul>
  */
 public class Parser {
+  // The number of instances read or resolved by a single task on one of the
+  // parser's worker threads.
+  private static final int INSTANCES_PER_TASK = 1 << 14;
+
   private HprofBuffer hprof = null;
   private ProguardMap map = new ProguardMap();
   private Progress progress = new NullProgress();
   private Reachability retained = Reachability.SOFT;
+  private File index = null;
+  private Consumer<AhatSnapshot> parsed = null;
+  private ExecutorService executor = null;
 
   /**
    * Creates an hprof Parser that parses a heap dump from a byte buffer.
@@ -78,6 +92,24 @@ public class Parser {
     this.hprof = new HprofBuffer(hprof);
   }
 
+  /**
+   * Creates an hprof Parser that parses a heap dump from a byte buffer,
+   * reading it in segments of the given size the way a heap dump file too
+   * large for a single byte buffer is read. This is meant for testing the
+   * reading of values that straddle the boundaries between segments.
+   *
+   * @param hprof byte buffer to parse the heap dump from.
+   * @param segmentShift the size of the segments as a power of two, at most
+   *                     30.
+   * @throws IllegalArgumentException if segmentShift is out of range.
+   */
+  public Parser(ByteBuffer hprof, int segmentShift) {
+    if (segmentShift < 0 || segmentShift > HprofBuffer.SEGMENT_SHIFT) {
+      throw new IllegalArgumentException("Invalid segment shift: " + segmentShift);
+    }
+    this.hprof = new HprofBuffer(hprof, segmentShift);
+  }
+
   /**
    * Sets the proguard map to use for deobfuscating the heap.
    *
@@ -117,6 +149,45 @@ public class Parser {
     return this;
   }
 
+  /**
+   * Sets a file in which to keep the results of analyzing the heap dump.
+   * If the file holds results for the same heap dump, analyzed with the same
+   * options, they are used instead of analyzing the heap dump again.
+   * Otherwise the heap dump is analyzed and the results are written to the
+   * file for future use. Failure to read or write the file is not treated as
+   * an error.
+   *
+   * @param index file to keep the results of analyzing the heap dump in.
+   * @return this Parser instance.
+   */
+  public Parser index(File index) {
+    if (index == null) {
+      throw new NullPointerException("index == null");
+    }
+    this.index = index;
+    return this;
+  }
+
+  /**
+   * Sets a listener to be called with the snapshot as soon as the heap dump
+   * has been read and the reachability of its instances computed, before
+   * dominators and retained sizes are computed.
+   * <p>
+   * The listener is called on the thread calling {@link #parse}. Until
+   * <code>parse</code> returns, only the heaps, sites, instances, fields and
+   * reachability of the snapshot may be used, which lets a user interface
+   * show those while the rest of the heap dump is analyzed. Retained sizes,
+   * dominators and queries are not available until <code>parse</code>
+   * returns.
+   *
+   * @param parsed listener to call with the partially analyzed snapshot.
+   * @return this Parser instance.
+   */
+  public Parser onParsed(Consumer<AhatSnapshot> parsed) {
+    this.parsed = parsed;
+    return this;
+  }
+
   /**
    * Parse the heap dump.
    *
@@ -125,10 +196,18 @@ public class Parser {
    * @return the parsed heap dump
    */
   public AhatSnapshot parse() throws IOException, HprofFormatException {
+    executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+      Thread thread = new Thread(r, "ahat-parser");
+      thread.setDaemon(true);
+      return thread;
+    });
     try {
       return parseInternal();
     } catch (BufferUnderflowException e) {
       throw new HprofFormatException("Unexpected end of file", e);
+    } finally {
+      executor.shutdownNow();
+      executor = null;
     }
   }
 
@@ -201,17 +280,18 @@ public class Parser {
       AhatClassObj[] primArrayClasses = new AhatClassObj[Type.values().length];
       ArrayList<AhatClassObj> classes = new ArrayList<AhatClassObj>();
       Instances<AhatClassObj> classById = null;
+      List<InstanceChunk> chunks = new ArrayList<InstanceChunk>();
 
       progress.start("Reading hprof", hprof.size());
       while (hprof.hasRemaining()) {
         progress.update(hprof.tell());
         int tag = hprof.getU1();
         int time = hprof.getU4();
-        int recordLength = hprof.getU4();
+        long recordLength = hprof.getU4() & 0xFFFFFFFFL;
         switch (tag) {
           case 0x01: { // STRING
             long id = hprof.getId();
-            byte[] bytes = new byte[recordLength - idSize];
+            byte[] bytes = new byte[(int)(recordLength - idSize)];
             hprof.getBytes(bytes);
             String str = new String(bytes, StandardCharsets.UTF_8);
             strings.put(id, str);
@@ -277,13 +357,18 @@ public class Parser {
 
           case 0x0C:   // HEAP DUMP
           case 0x1C: { // HEAP DUMP SEGMENT
-            int endOfRecord = hprof.tell() + recordLength;
+            long endOfRecord = hprof.tell() + recordLength;
             if (classById == null) {
               classById = new Instances<AhatClassObj>(classes);
             }
+            InstanceChunk chunk = null;
             while (hprof.tell() < endOfRecord) {
-              progress.update(hprof.tell());
+              long position = hprof.tell();
+              progress.update(position);
               int subtag = hprof.getU1();
+              if (subtag < 0x21 || subtag > 0x23) {
+                chunk = null;
+              }
               switch (subtag) {
                 case 0x01: { // ROOT JNI GLOBAL
                   long objectId = hprof.getId();
@@ -390,127 +475,19 @@ public class Parser {
                   break;
                 }
 
-                case 0x21: { // INSTANCE DUMP
-                  long objectId = hprof.getId();
-                  int stackSerialNumber = hprof.getU4();
-                  long classId = hprof.getId();
-                  int numBytes = hprof.getU4();
-                  ClassInstData data = new ClassInstData(hprof.tell());
-                  hprof.skip(numBytes);
-
-                  Site site = sites.get(stackSerialNumber);
-                  AhatClassObj classObj = classById.get(classId);
-                  AhatClassInstance obj = new AhatClassInstance(objectId);
-                  obj.initialize(heaps.getCurrentHeap(), site, classObj);
-                  obj.setTemporaryUserData(data);
-                  instances.add(obj);
-                  break;
-                }
-
-                case 0x22: { // OBJECT ARRAY DUMP
-                  long objectId = hprof.getId();
-                  int stackSerialNumber = hprof.getU4();
-                  int length = hprof.getU4();
-                  long classId = hprof.getId();
-                  ObjArrayData data = new ObjArrayData(length, hprof.tell());
-                  hprof.skip(length * idSize);
-
-                  Site site = sites.get(stackSerialNumber);
-                  AhatClassObj classObj = classById.get(classId);
-                  AhatArrayInstance obj = new AhatArrayInstance(objectId, idSize);
-                  obj.initialize(heaps.getCurrentHeap(), site, classObj);
-                  obj.setTemporaryUserData(data);
-                  instances.add(obj);
-                  break;
-                }
-
+                case 0x21:   // INSTANCE DUMP
+                case 0x22:   // OBJECT ARRAY DUMP
                 case 0x23: { // PRIMITIVE ARRAY DUMP
-                  long objectId = hprof.getId();
-                  int stackSerialNumber = hprof.getU4();
-                  int length = hprof.getU4();
-                  Type type = hprof.getPrimitiveType();
-                  Site site = sites.get(stackSerialNumber);
-
-                  AhatClassObj classObj = primArrayClasses[type.ordinal()];
-                  if (classObj == null) {
-                    throw new HprofFormatException(
-                        "No class definition found for " + type.name + "[]");
+                  // Instance dumps make up the bulk of the heap dump. For
+                  // now only note where they are so they can be read in
+                  // parallel once the rest of the heap dump has been read.
+                  if (chunk == null) {
+                    chunk = new InstanceChunk(position, heaps.getCurrentHeap());
+                    chunks.add(chunk);
                   }
-
-                  AhatArrayInstance obj = new AhatArrayInstance(objectId, idSize);
-                  obj.initialize(heaps.getCurrentHeap(), site, classObj);
-                  instances.add(obj);
-                  switch (type) {
-                    case BOOLEAN: {
-                      boolean[] data = new boolean[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getBool();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case CHAR: {
-                      char[] data = new char[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getChar();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case FLOAT: {
-                      float[] data = new float[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getFloat();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case DOUBLE: {
-                      double[] data = new double[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getDouble();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case BYTE: {
-                      byte[] data = new byte[length];
-                      hprof.getBytes(data);
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case SHORT: {
-                      short[] data = new short[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getShort();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case INT: {
-                      int[] data = new int[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getInt();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case LONG: {
-                      long[] data = new long[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getLong();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-                    default: throw new AssertionError("unsupported enum member");
+                  skipInstanceDump(subtag, idSize);
+                  if (++chunk.count == INSTANCES_PER_TASK) {
+                    chunk = null;
                   }
                   break;
                 }
@@ -577,6 +554,26 @@ public class Parser {
       }
       progress.done();
 
+      // Read the instance dumps noted above. Each chunk is read using its
+      // own view of the hprof file, and the resulting instances are
+      // collected in file order.
+      progress.start("Reading instances", chunks.size());
+      // The contents of primitive arrays are not copied out of the heap
+      // dump; they are read from the heap dump when needed.
+      Instances<AhatClassObj> classesById = classById;
+      HprofBytes contents = hprof.bytes();
+      List<Task> tasks = new ArrayList<Task>(chunks.size());
+      for (InstanceChunk c : chunks) {
+        HprofBuffer view = hprof.duplicate();
+        tasks.add(() -> readInstances(view, contents, idSize, c, sites, classesById,
+              primArrayClasses));
+      }
+      runInParallel(tasks);
+      progress.done();
+
+      for (InstanceChunk c : chunks) {
+        instances.addAll(c.instances);
+      }
       instances.addAll(classes);
     }
 
@@ -594,11 +591,9 @@ public class Parser {
     // that we couldn't previously resolve.
     SuperRoot superRoot = new SuperRoot();
     {
-      progress.start("Resolving references", mInstances.size());
       Iterator<RootData> ri = roots.iterator();
       RootData root = ri.next();
       for (AhatInstance inst : mInstances) {
-        progress.advance();
         long id = inst.getId();
 
         // Skip past any roots that don't have associated instances.
@@ -617,62 +612,275 @@ public class Parser {
             root = ri.next();
           }
         }
+      }
 
-        // Fixup the instance based on its type using the temporary data we
-        // saved during the first pass over the heap dump.
-        if (inst instanceof AhatClassInstance) {
-          ClassInstData data = (ClassInstData)inst.getTemporaryUserData();
-          inst.setTemporaryUserData(null);
-
-          // Compute the size of the fields array in advance to avoid
-          // extra allocations and copies that would come from using an array
-          // list to collect the field values.
-          int numFields = 0;
-          for (AhatClassObj cls = inst.getClassObj(); cls != null; cls = cls.getSuperClassObj()) {
-            numFields += cls.getInstanceFields().length;
+      // Resolving references only reads from the (now sorted) instances, so
+      // the instances can be fixed up independently of one another.
+      // Note: the instances list is the one sorted and deduplicated by
+      // mInstances.
+      int numTasks = (instances.size() + INSTANCES_PER_TASK - 1) / INSTANCES_PER_TASK;
+      progress.start("Resolving references", numTasks);
+      List<Task> tasks = new ArrayList<Task>(numTasks);
+      for (int i = 0; i < instances.size(); i += INSTANCES_PER_TASK) {
+        List<AhatInstance> range = instances.subList(i,
+            Math.min(i + INSTANCES_PER_TASK, instances.size()));
+        HprofBuffer view = hprof.duplicate();
+        tasks.add(() -> resolveReferences(view, range, mInstances));
+      }
+      runInParallel(tasks);
+      progress.done();
+    }
+
+    AnalysisIndex analysisIndex = null;
+    if (index != null) {
+      progress.start("Computing checksum", 1);
+      analysisIndex = new AnalysisIndex(index, hprof.size(), hprof.checksum(), retained);
+      progress.done();
+    }
+
+    hprof = null;
+    roots = null;
+    AhatSnapshot snapshot = new AhatSnapshot(superRoot, mInstances, heaps.heaps, rootSite,
+        progress, retained, analysisIndex);
+    if (parsed != null) {
+      parsed.accept(snapshot);
+    }
+    snapshot.computeDominators(progress, retained, analysisIndex);
+    return snapshot;
+  }
+
+  /**
+   * Skips over the body of an INSTANCE DUMP, OBJECT ARRAY DUMP or PRIMITIVE
+   * ARRAY DUMP heap dump subrecord, assuming the subtag has already been read.
+   */
+  private void skipInstanceDump(int subtag, int idSize) throws HprofFormatException {
+    long objectId = hprof.getId();
+    int stackSerialNumber = hprof.getU4();
+    switch (subtag) {
+      case 0x21: { // INSTANCE DUMP
+        long classId = hprof.getId();
+        int numBytes = hprof.getU4();
+        hprof.skip(numBytes);
+        break;
+      }
+
+      case 0x22: { // OBJECT ARRAY DUMP
+        int length = hprof.getU4();
+        long classId = hprof.getId();
+        hprof.skip((long)length * idSize);
+        break;
+      }
+
+      case 0x23: { // PRIMITIVE ARRAY DUMP
+        int length = hprof.getU4();
+        Type type = hprof.getPrimitiveType();
+        hprof.skip((long)length * type.size(idSize));
+        break;
+      }
+
+      default: throw new AssertionError("unexpected instance dump sub tag");
+    }
+  }
+
+  /**
+   * Constructs the instances for the instance dump subrecords in the given
+   * chunk of the heap dump, initializing them as much as possible and saving
+   * any additional temporary data we need to complete their initialization
+   * in the fixup pass.
+   */
+  private static void readInstances(HprofBuffer hprof, HprofBytes contents, int idSize,
+      InstanceChunk chunk, DenseMap<Site> sites, Instances<AhatClassObj> classById,
+      AhatClassObj[] primArrayClasses) throws HprofFormatException {
+    chunk.instances = new ArrayList<AhatInstance>(chunk.count);
+    hprof.seek(chunk.start);
+    for (int n = 0; n < chunk.count; ++n) {
+      int subtag = hprof.getU1();
+      switch (subtag) {
+        case 0x21: { // INSTANCE DUMP
+          long objectId = hprof.getId();
+          int stackSerialNumber = hprof.getU4();
+          long classId = hprof.getId();
+          int numBytes = hprof.getU4();
+          Site site = sites.get(stackSerialNumber);
+          AhatClassObj classObj = classById.get(classId);
+          AhatClassInstance obj = new AhatClassInstance(objectId, idSize);
+          obj.initialize(chunk.heap, site, classObj);
+          obj.initialize(contents, hprof.tell());
+          chunk.instances.add(obj);
+          hprof.skip(numBytes);
+          break;
+        }
+
+        case 0x22: { // OBJECT ARRAY DUMP
+          long objectId = hprof.getId();
+          int stackSerialNumber = hprof.getU4();
+          int length = hprof.getU4();
+          long classId = hprof.getId();
+          ObjArrayData data = new ObjArrayData(length, hprof.tell());
+          hprof.skip((long)length * idSize);
+
+          Site site = sites.get(stackSerialNumber);
+          AhatClassObj classObj = classById.get(classId);
+          AhatArrayInstance obj = new AhatArrayInstance(objectId, idSize);
+          obj.initialize(chunk.heap, site, classObj);
+          obj.setTemporaryUserData(data);
+          chunk.instances.add(obj);
+          break;
+        }
+
+        case 0x23: { // PRIMITIVE ARRAY DUMP
+          long objectId = hprof.getId();
+          int stackSerialNumber = hprof.getU4();
+          int length = hprof.getU4();
+          Type type = hprof.getPrimitiveType();
+          Site site = sites.get(stackSerialNumber);
+
+          AhatClassObj classObj = primArrayClasses[type.ordinal()];
+          if (classObj == null) {
+            throw new HprofFormatException(
+                "No class definition found for " + type.name + "[]");
           }
 
-          Value[] fields = new Value[numFields];
-          int i = 0;
-          hprof.seek(data.position);
-          for (AhatClassObj cls = inst.getClassObj(); cls != null; cls = cls.getSuperClassObj()) {
-            for (Field field : cls.getInstanceFields()) {
-              fields[i++] = hprof.getValue(field.type, mInstances);
+          AhatArrayInstance obj = new AhatArrayInstance(objectId, idSize);
+          obj.initialize(chunk.heap, site, classObj);
+          obj.initialize(type, length, contents, hprof.tell());
+          chunk.instances.add(obj);
+          hprof.skip((long)length * type.size(idSize));
+          break;
+        }
+
+        default: throw new AssertionError("unexpected instance dump sub tag");
+      }
+    }
+  }
+
+  /**
+   * Fixes up the given instances based on their type using the temporary
+   * data saved during the first pass over the heap dump.
+   */
+  private static void resolveReferences(HprofBuffer hprof, List<AhatInstance> range,
+      Instances<AhatInstance> instances) {
+    for (AhatInstance inst : range) {
+      if (inst instanceof AhatClassInstance) {
+        // Only the values of reference fields are resolved here. The values
+        // of primitive fields are read from the heap dump on demand.
+        // Compute the number of reference fields in advance to avoid
+        // extra allocations and copies that would come from using an array
+        // list to collect the field values.
+        AhatClassInstance obj = (AhatClassInstance)inst;
+        int numRefs = 0;
+        for (AhatClassObj cls = inst.getClassObj(); cls != null; cls = cls.getSuperClassObj()) {
+          for (Field field : cls.getInstanceFields()) {
+            if (field.type == Type.OBJECT) {
+              numRefs++;
             }
           }
-          ((AhatClassInstance)inst).initialize(fields);
-        } else if (inst instanceof AhatClassObj) {
-          ClassObjData data = (ClassObjData)inst.getTemporaryUserData();
-          inst.setTemporaryUserData(null);
-          AhatInstance loader = mInstances.get(data.classLoaderId);
-          for (int i = 0; i < data.staticFields.length; ++i) {
-            FieldValue field = data.staticFields[i];
-            if (field.value instanceof DeferredInstanceValue) {
-              DeferredInstanceValue deferred = (DeferredInstanceValue)field.value;
-              data.staticFields[i] = new FieldValue(
-                  field.name, field.type, Value.pack(mInstances.get(deferred.getId())));
+        }
+
+        AhatInstance[] refs = new AhatInstance[numRefs];
+        int i = 0;
+        hprof.seek(obj.getDataPosition());
+        for (AhatClassObj cls = inst.getClassObj(); cls != null; cls = cls.getSuperClassObj()) {
+          for (Field field : cls.getInstanceFields()) {
+            if (field.type == Type.OBJECT) {
+              refs[i++] = instances.get(hprof.getId());
+            } else {
+              hprof.skip(field.type.size(hprof.getIdSize()));
             }
           }
-          ((AhatClassObj)inst).initialize(loader, data.staticFields);
-        } else if (inst instanceof AhatArrayInstance && inst.getTemporaryUserData() != null) {
-          // TODO: Have specialized object array instance and check for that
-          // rather than checking for the presence of user data?
-          ObjArrayData data = (ObjArrayData)inst.getTemporaryUserData();
-          inst.setTemporaryUserData(null);
-          AhatInstance[] array = new AhatInstance[data.length];
-          hprof.seek(data.position);
-          for (int i = 0; i < data.length; i++) {
-            array[i] = mInstances.get(hprof.getId());
+        }
+        obj.initialize(refs);
+      } else if (inst instanceof AhatClassObj) {
+        ClassObjData data = (ClassObjData)inst.getTemporaryUserData();
+        inst.setTemporaryUserData(null);
+        AhatInstance loader = instances.get(data.classLoaderId);
+        for (int i = 0; i < data.staticFields.length; ++i) {
+          FieldValue field = data.staticFields[i];
+          if (field.value instanceof DeferredInstanceValue) {
+            DeferredInstanceValue deferred = (DeferredInstanceValue)field.value;
+            data.staticFields[i] = new FieldValue(
+                field.name, field.type, Value.pack(instances.get(deferred.getId())));
           }
-          ((AhatArrayInstance)inst).initialize(array);
         }
+        ((AhatClassObj)inst).initialize(loader, data.staticFields);
+      } else if (inst instanceof AhatArrayInstance && inst.getTemporaryUserData() != null) {
+        // TODO: Have specialized object array instance and check for that
+        // rather than checking for the presence of user data?
+        ObjArrayData data = (ObjArrayData)inst.getTemporaryUserData();
+        inst.setTemporaryUserData(null);
+        AhatInstance[] array = new AhatInstance[data.length];
+        hprof.seek(data.position);
+        for (int i = 0; i < data.length; i++) {
+          array[i] = instances.get(hprof.getId());
+        }
+        ((AhatArrayInstance)inst).initialize(array);
       }
-      progress.done();
     }
+  }
 
-    hprof = null;
-    roots = null;
-    return new AhatSnapshot(superRoot, mInstances, heaps.heaps, rootSite, progress, retained);
+  /**
+   * Runs the given tasks using the parser's worker threads, advancing the
+   * progress once for each task completed. Returns once all tasks have
+   * completed. If any task fails, the remaining tasks are cancelled and the
+   * failure is rethrown.
+   */
+  private void runInParallel(List<Task> tasks) throws IOException, HprofFormatException {
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+    for (Task task : tasks) {
+      futures.add(executor.submit(() -> {
+        task.run();
+        return null;
+      }));
+    }
+
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+        progress.advance();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while parsing heap dump");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof HprofFormatException) {
+        throw (HprofFormatException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new AssertionError(cause);
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * A unit of work run on one of the parser's worker threads.
+   */
+  private interface Task {
+    void run() throws HprofFormatException;
+  }
+
+  /**
+   * A run of consecutive INSTANCE DUMP, OBJECT ARRAY DUMP and PRIMITIVE
+   * ARRAY DUMP subrecords belonging to the same heap.
+   */
+  private static class InstanceChunk {
+    public long start;        // Position in hprof file of the first subrecord.
+    public AhatHeap heap;
+    public int count;         // Number of subrecords in the chunk.
+    public List<AhatInstance> instances;
+
+    public InstanceChunk(long start, AhatHeap heap) {
+      this.start = start;
+      this.heap = heap;
+    }
   }
 
   private static class RootData {
@@ -685,20 +893,11 @@ public class Parser {
     }
   }
 
-  private static class ClassInstData {
-    // The byte position in the hprof file where instance field data starts.
-    public int position;
-
-    public ClassInstData(int position) {
-      this.position = position;
-    }
-  }
-
   private static class ObjArrayData {
     public int length;          // Number of array elements.
-    public int position;        // Position in hprof file containing element data.
+    public long position;       // Position in hprof file containing element data.
 
-    public ObjArrayData(int length, int position) {
+    public ObjArrayData(int length, long position) {
       this.length = length;
       this.position = position;
     }
@@ -901,114 +1100,269 @@ public class Parser {
   }
 
   /**
-   * Wrapper around a ByteBuffer that presents a uniform interface for
-   * accessing data from an hprof file.
+   * Wrapper around one or more ByteBuffers that presents a uniform interface
+   * for accessing data from an hprof file.
+   * <p>
+   * A single ByteBuffer can address at most 2 GiB, so heap dump files are
+   * mapped as a sequence of fixed size segments. Positions in the file are
+   * represented as longs. Reads are served directly from the current segment
+   * in the common case; values that straddle a segment boundary are
+   * assembled a byte at a time.
    */
   private static class HprofBuffer {
+    // Heap dump files are mapped in segments of 2^SEGMENT_SHIFT bytes.
+    static final int SEGMENT_SHIFT = 30;
+
     private boolean mIdSize8;
-    private final ByteBuffer mBuffer;
+    private final ByteBuffer[] mSegments;
+    private final long mSize;
+
+    // Every segment except the last is 2^mSegmentShift bytes.
+    private final int mSegmentShift;
+    private final long mSegmentSize;
+
+    // The segment containing the current position in the file, its index in
+    // mSegments and the absolute file position of the start of the segment.
+    private ByteBuffer mBuffer;
+    private int mSegmentIndex;
+    private long mSegmentStart;
 
     public HprofBuffer(File path) throws IOException {
-      FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ);
-      mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
-      channel.close();
+      mSegmentShift = SEGMENT_SHIFT;
+      mSegmentSize = 1L << SEGMENT_SHIFT;
+      try (FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ)) {
+        mSize = channel.size();
+        int numSegments = (int)Math.max(1, (mSize + mSegmentSize - 1) / mSegmentSize);
+        mSegments = new ByteBuffer[numSegments];
+        for (int i = 0; i < numSegments; ++i) {
+          long start = i * mSegmentSize;
+          long length = Math.min(mSegmentSize, mSize - start);
+          mSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+      }
+      mBuffer = mSegments[0];
     }
 
     public HprofBuffer(ByteBuffer buffer) {
+      mSegmentShift = SEGMENT_SHIFT;
+      mSegmentSize = 1L << SEGMENT_SHIFT;
+      mSegments = new ByteBuffer[] { buffer };
+      mSize = buffer.capacity();
       mBuffer = buffer;
     }
 
+    public HprofBuffer(ByteBuffer buffer, int segmentShift) {
+      mSegmentShift = segmentShift;
+      mSegmentSize = 1L << segmentShift;
+      mSize = buffer.capacity();
+      int numSegments = (int)Math.max(1, (mSize + mSegmentSize - 1) / mSegmentSize);
+      mSegments = new ByteBuffer[numSegments];
+      for (int i = 0; i < numSegments; ++i) {
+        ByteBuffer segment = buffer.duplicate();
+        segment.limit((int)Math.min(mSize, (i + 1) * mSegmentSize));
+        segment.position((int)(i * mSegmentSize));
+        mSegments[i] = segment.slice().order(buffer.order());
+      }
+      mBuffer = mSegments[0];
+    }
+
+    private HprofBuffer(ByteBuffer[] segments, long size, int segmentShift, boolean idSize8) {
+      mSegments = segments;
+      mSize = size;
+      mSegmentShift = segmentShift;
+      mSegmentSize = 1L << segmentShift;
+      mBuffer = segments[0];
+      mIdSize8 = idSize8;
+    }
+
+    /**
+     * Returns a checksum of the entire contents of the file.
+     */
+    public long checksum() {
+      CRC32 crc = new CRC32();
+      for (ByteBuffer segment : mSegments) {
+        ByteBuffer contents = segment.duplicate();
+        contents.position(0);
+        crc.update(contents);
+      }
+      return crc.getValue();
+    }
+
+    /**
+     * Returns an HprofBytes for reading the contents of the file after
+     * parsing has finished.
+     */
+    public HprofBytes bytes() {
+      ByteBuffer[] segments = new ByteBuffer[mSegments.length];
+      for (int i = 0; i < segments.length; ++i) {
+        segments[i] = mSegments[i].duplicate().order(mSegments[i].order());
+      }
+      return new HprofBytes(segments, mSegmentShift);
+    }
+
+    /**
+     * Returns a new HprofBuffer sharing the contents of this one, but with
+     * its own position in the file. This allows different threads to read
+     * different parts of the file at the same time.
+     */
+    public HprofBuffer duplicate() {
+      ByteBuffer[] segments = new ByteBuffer[mSegments.length];
+      for (int i = 0; i < segments.length; ++i) {
+        segments[i] = mSegments[i].duplicate().order(mSegments[i].order());
+      }
+      return new HprofBuffer(segments, mSize, mSegmentShift, mIdSize8);
+    }
+
     public void setIdSize8() {
       mIdSize8 = true;
     }
 
     public boolean hasRemaining() {
-      return mBuffer.hasRemaining();
+      return mBuffer.hasRemaining() || mSegmentIndex + 1 < mSegments.length;
     }
 
     /**
      * Returns the size of the file in bytes.
      */
-    public int size() {
-      return mBuffer.capacity();
+    public long size() {
+      return mSize;
     }
 
     /**
      * Return the current absolution position in the file.
      */
-    public int tell() {
-      return mBuffer.position();
+    public long tell() {
+      return mSegmentStart + mBuffer.position();
     }
 
     /**
      * Seek to the given absolution position in the file.
+     * @throws BufferUnderflowException if the position is past the end of
+     *         the file.
      */
-    public void seek(int position) {
-      mBuffer.position(position);
+    public void seek(long position) {
+      if (position > mSize) {
+        throw new BufferUnderflowException();
+      }
+      // Positions at the very end of a segment are treated as belonging to
+      // that segment rather than the next, so that seeking to the end of the
+      // file works when the file size is a multiple of the segment size.
+      int index = (int)Math.min(position >>> mSegmentShift, mSegments.length - 1);
+      if (index > 0 && position == index * mSegmentSize) {
+        index--;
+      }
+      mSegmentIndex = index;
+      mSegmentStart = index * mSegmentSize;
+      mBuffer = mSegments[index];
+      mBuffer.position((int)(position - mSegmentStart));
     }
 
     /**
      * Skip ahead in the file by the given delta bytes. Delta may be negative
      * to skip backwards in the file.
      */
-    public void skip(int delta) {
+    public void skip(long delta) {
       seek(tell() + delta);
     }
 
+    /**
+     * Advance to the start of the next segment of the file.
+     * @throws BufferUnderflowException if there are no more segments.
+     */
+    private void nextSegment() {
+      if (mSegmentIndex + 1 >= mSegments.length) {
+        throw new BufferUnderflowException();
+      }
+      mSegmentIndex++;
+      mSegmentStart += mSegmentSize;
+      mBuffer = mSegments[mSegmentIndex];
+      mBuffer.position(0);
+    }
+
+    /**
+     * Read a big endian value of the given number of bytes, at most 8, that
+     * may straddle a segment boundary.
+     */
+    private long getSlow(int numBytes) {
+      long value = 0;
+      for (int i = 0; i < numBytes; ++i) {
+        if (!mBuffer.hasRemaining()) {
+          nextSegment();
+        }
+        value = (value << 8) | (mBuffer.get() & 0xFF);
+      }
+      return value;
+    }
+
     public int getU1() {
+      if (!mBuffer.hasRemaining()) {
+        nextSegment();
+      }
       return mBuffer.get() & 0xFF;
     }
 
     public int getU2() {
-      return mBuffer.getShort() & 0xFFFF;
+      return getShort() & 0xFFFF;
     }
 
     public int getU4() {
-      return mBuffer.getInt();
+      return getInt();
+    }
+
+    public int getIdSize() {
+      return mIdSize8 ? 8 : 4;
     }
 
     public long getId() {
       if (mIdSize8) {
-        return mBuffer.getLong();
+        return getLong();
       } else {
-        return mBuffer.getInt() & 0xFFFFFFFFL;
+        return getInt() & 0xFFFFFFFFL;
       }
     }
 
     public boolean getBool() {
-      return mBuffer.get() != 0;
+      return getU1() != 0;
     }
 
     public char getChar() {
-      return mBuffer.getChar();
+      return mBuffer.remaining() >= 2 ? mBuffer.getChar() : (char)getSlow(2);
     }
 
     public float getFloat() {
-      return mBuffer.getFloat();
+      return Float.intBitsToFloat(getInt());
     }
 
     public double getDouble() {
-      return mBuffer.getDouble();
+      return Double.longBitsToDouble(getLong());
     }
 
     public byte getByte() {
-      return mBuffer.get();
+      return (byte)getU1();
     }
 
     public void getBytes(byte[] bytes) {
-      mBuffer.get(bytes);
+      int offset = 0;
+      while (offset < bytes.length) {
+        if (!mBuffer.hasRemaining()) {
+          nextSegment();
+        }
+        int count = Math.min(bytes.length - offset, mBuffer.remaining());
+        mBuffer.get(bytes, offset, count);
+        offset += count;
+      }
     }
 
     public short getShort() {
-      return mBuffer.getShort();
+      return mBuffer.remaining() >= 2 ? mBuffer.getShort() : (short)getSlow(2);
     }
 
     public int getInt() {
-      return mBuffer.getInt();
+      return mBuffer.remaining() >= 4 ? mBuffer.getInt() : (int)getSlow(4);
     }
 
     public long getLong() {
-      return mBuffer.getLong();
+      return mBuffer.remaining() >= 8 ? mBuffer.getLong() : getSlow(8);
     }
 
     private static Type[] TYPES = new Type[] {
@@ -1034,25 +1388,6 @@ public class Parser {
       return type;
     }
 
-    /**
-     * Get a value from the hprof file, using the given instances map to
-     * convert instance ids to their corresponding AhatInstance objects.
-     */
-    public Value getValue(Type type, Instances instances) {
-      switch (type) {
-        case OBJECT:  return Value.pack(instances.get(getId()));
-        case BOOLEAN: return Value.pack(getBool());
-        case CHAR: return Value.pack(getChar());
-        case FLOAT: return Value.pack(getFloat());
-        case DOUBLE: return Value.pack(getDouble());
-        case BYTE: return Value.pack(getByte());
-        case SHORT: return Value.pack(getShort());
-        case INT: return Value.pack(getInt());
-        case LONG: return Value.pack(getLong());
-        default: throw new AssertionError("unsupported enum member");
-      }
-    }
-
     /**
      * Get a value from the hprof file. AhatInstance values are returned as
      * DefferredInstanceValues rather than their corresponding AhatInstance
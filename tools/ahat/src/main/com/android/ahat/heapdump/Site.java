@@ -54,7 +54,8 @@ public class Site implements Diffable<Site> {
 
   // The total size of objects allocated in this site (including child sites),
   // organized by heap index. Computed as part of prepareForUse.
-  private Size[] mSizesByHeap;
+  private long[] mJavaSizesByHeap;
+  private long[] mNativeSizesByHeap;
 
   // List of child sites.
   private List<Site> mChildren;
@@ -93,6 +94,12 @@ public class Site implements Diffable<Site> {
      */
     public Size numBytes;
 
+    // The sizes of the summarized instances, accumulated in prepareForUse
+    // before being stored in numBytes, to avoid allocating a Size for each
+    // instance.
+    private long javaSize;
+    private long nativeSize;
+
     private ObjectsInfo baseline;
 
     /**
@@ -209,20 +216,21 @@ public class Site implements Diffable<Site> {
     mId = id++;
 
     // Count up the total sizes by heap.
-    mSizesByHeap = new Size[numHeaps];
-    for (int i = 0; i < numHeaps; ++i) {
-      mSizesByHeap[i] = Size.ZERO;
-    }
+    mJavaSizesByHeap = new long[numHeaps];
+    mNativeSizesByHeap = new long[numHeaps];
 
     // Add all retained objects allocated at this site.
     for (AhatInstance inst : mObjects) {
       if (inst.getReachability().notWeakerThan(retained)) {
         AhatHeap heap = inst.getHeap();
-        Size size = inst.getSize();
+        long javaSize = inst.getJavaSize();
+        long nativeSize = inst.getRegisteredNativeSize();
         ObjectsInfo info = getObjectsInfo(heap, inst.getClassObj());
         info.numInstances++;
-        info.numBytes = info.numBytes.plus(size);
-        mSizesByHeap[heap.getIndex()] = mSizesByHeap[heap.getIndex()].plus(size);
+        info.javaSize += javaSize;
+        info.nativeSize += nativeSize;
+        mJavaSizesByHeap[heap.getIndex()] += javaSize;
+        mNativeSizesByHeap[heap.getIndex()] += nativeSize;
       }
     }
 
@@ -232,12 +240,18 @@ public class Site implements Diffable<Site> {
       for (ObjectsInfo childInfo : child.mObjectsInfos) {
         ObjectsInfo info = getObjectsInfo(childInfo.heap, childInfo.classObj);
         info.numInstances += childInfo.numInstances;
-        info.numBytes = info.numBytes.plus(childInfo.numBytes);
+        info.javaSize += childInfo.javaSize;
+        info.nativeSize += childInfo.nativeSize;
       }
       for (int i = 0; i < numHeaps; ++i) {
-        mSizesByHeap[i] = mSizesByHeap[i].plus(child.mSizesByHeap[i]);
+        mJavaSizesByHeap[i] += child.mJavaSizesByHeap[i];
+        mNativeSizesByHeap[i] += child.mNativeSizesByHeap[i];
       }
     }
+
+    for (ObjectsInfo info : mObjectsInfos) {
+      info.numBytes = new Size(info.javaSize, info.nativeSize);
+    }
     return id;
   }
 
@@ -250,7 +264,8 @@ public class Site implements Diffable<Site> {
    * @return the total shallow size of objects in this site
    */
   public Size getSize(AhatHeap heap) {
-    return mSizesByHeap[heap.getIndex()];
+    int index = heap.getIndex();
+    return new Size(mJavaSizesByHeap[index], mNativeSizesByHeap[index]);
   }
 
   /**
@@ -334,11 +349,13 @@ public class Site implements Diffable<Site> {
    * @return total shallow size of objects in this site
    */
   public Size getTotalSize() {
-    Size total = Size.ZERO;
-    for (Size size : mSizesByHeap) {
-      total = total.plus(size);
+    long javaSize = 0;
+    long nativeSize = 0;
+    for (int i = 0; i < mJavaSizesByHeap.length; ++i) {
+      javaSize += mJavaSizesByHeap[i];
+      nativeSize += mNativeSizesByHeap[i];
     }
-    return total;
+    return new Size(javaSize, nativeSize);
   }
 
   /**
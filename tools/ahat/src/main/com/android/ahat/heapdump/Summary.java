@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Provides static methods to diff heap dumps by way of compact summaries
+ * written to disk.
+ * <p>
+ * A summary aggregates the instances of a snapshot by class, by allocation
+ * site and by path in the dominator tree, giving the number and size of the
+ * instances in each group on each heap. Summaries are much smaller than the
+ * heap dumps they are computed from, and are written and read a single entry
+ * at a time. Diffing two heap dumps by way of their summaries only requires
+ * one of the heap dumps to be loaded at a time.
+ * <p>
+ * Unlike {@link Diff#snapshots}, diffing summaries does not match individual
+ * instances, only groups of instances with the same key.
+ */
+public class Summary {
+  // "AHATSUM" followed by a zero byte.
+  private static final long MAGIC = 0x4148415453554d00L;
+
+  // The version of the summary format. This must be incremented whenever the
+  // format of summaries or the way entries are computed changes.
+  private static final int VERSION = 2;
+
+  // Written in place of the kind of an entry to mark the end of a summary.
+  private static final int END = 0xff;
+
+  // The number of class names in the longest paths summarized.
+  private static final int kMaxPathLength = 4;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private Summary() {
+  }
+
+  /**
+   * The kinds of groups instances are aggregated into.
+   */
+  public enum Kind {
+    /**
+     * Instances of the same class. The key of an entry is a list holding the
+     * name of the class. The size of an entry is the total shallow size of
+     * the instances.
+     */
+    CLASS,
+
+    /**
+     * Instances allocated at the same site, not including instances
+     * allocated at its child sites. The key of an entry is the list of
+     * frames from the root site to the site. The size of an entry is
+     * the total shallow size of the instances.
+     */
+    SITE,
+
+    /**
+     * Instances at the same path in the dominator tree. The key of an entry
+     * is the list of class names of the instances on the path, starting from
+     * an instance immediately dominated by the roots, up to a limited depth.
+     * The size of an entry is the total retained size of the instances.
+     */
+    PATH
+  }
+
+  /**
+   * The number and size of the instances in a group on a heap.
+   */
+  public static class Entry {
+    private final Kind mKind;
+    private final List<String> mKey;
+    private final String mHeapName;
+    private final long mCount;
+    private final Size mSize;
+
+    private Entry(Kind kind, List<String> key, String heapName, long count, Size size) {
+      mKind = kind;
+      mKey = key;
+      mHeapName = heapName;
+      mCount = count;
+      mSize = size;
+    }
+
+    /**
+     * Returns the kind of group this entry summarizes.
+     *
+     * @return the kind of the entry
+     */
+    public Kind getKind() {
+      return mKind;
+    }
+
+    /**
+     * Returns the key identifying the group this entry summarizes among
+     * groups of the same kind. See {@link Kind} for what the key of each
+     * kind of entry holds.
+     *
+     * @return an unmodifiable list of the elements of the key
+     */
+    public List<String> getKey() {
+      return mKey;
+    }
+
+    /**
+     * Returns the name of the heap the summarized instances belong to.
+     *
+     * @return the name of the heap
+     */
+    public String getHeapName() {
+      return mHeapName;
+    }
+
+    /**
+     * Returns the number of summarized instances.
+     *
+     * @return the number of instances
+     */
+    public long getCount() {
+      return mCount;
+    }
+
+    /**
+     * Returns the total size of the summarized instances. See {@link Kind}
+     * for which size of the instances is summed for each kind of entry.
+     *
+     * @return the size of the instances
+     */
+    public Size getSize() {
+      return mSize;
+    }
+  }
+
+  /**
+   * Compares entries by kind, then key, then heap name. Entries of a summary
+   * are written in this order.
+   */
+  private static int compare(Kind kind, List<String> key, String heapName, Entry entry) {
+    int cmp = kind.compareTo(entry.mKind);
+    if (cmp != 0) {
+      return cmp;
+    }
+
+    int common = Math.min(key.size(), entry.mKey.size());
+    for (int i = 0; i < common; ++i) {
+      cmp = key.get(i).compareTo(entry.mKey.get(i));
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    cmp = Integer.compare(key.size(), entry.mKey.size());
+    return cmp != 0 ? cmp : heapName.compareTo(entry.mHeapName);
+  }
+
+  /**
+   * Writes entries to a summary. Keys are written as the number of leading
+   * elements shared with the key of the previous entry followed by the
+   * remaining elements, because the keys of consecutive sites and paths
+   * mostly share long prefixes.
+   */
+  private static class Writer {
+    private final DataOutputStream mOut;
+    private List<String> mPrevKey = Collections.emptyList();
+
+    Writer(DataOutputStream out) {
+      mOut = out;
+    }
+
+    void write(Kind kind, List<String> key, String heapName, long[] totals) throws IOException {
+      int shared = 0;
+      int common = Math.min(key.size(), mPrevKey.size());
+      while (shared < common && key.get(shared).equals(mPrevKey.get(shared))) {
+        shared++;
+      }
+
+      mOut.writeByte(kind.ordinal());
+      mOut.writeInt(shared);
+      mOut.writeInt(key.size() - shared);
+      for (int i = shared; i < key.size(); ++i) {
+        writeString(key.get(i));
+      }
+      writeString(heapName);
+      mOut.writeLong(totals[0]);
+      mOut.writeLong(totals[1]);
+      mOut.writeLong(totals[2]);
+      mPrevKey = new ArrayList<String>(key);
+    }
+
+    /**
+     * Writes a string as its length in bytes followed by its UTF-8 encoding.
+     * DataOutputStream.writeUTF is not used because it is limited to strings
+     * of 64KB, which the names in keys are not.
+     */
+    private void writeString(String str) throws IOException {
+      byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+      mOut.writeInt(bytes.length);
+      mOut.write(bytes);
+    }
+  }
+
+  /**
+   * Reads the entries of a summary one at a time, checking they are in
+   * order.
+   */
+  private static class Reader implements AutoCloseable {
+    private final File mFile;
+    private final DataInputStream mIn;
+    private Entry mEntry;
+
+    Reader(File file) throws IOException {
+      mFile = file;
+      mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+      try {
+        if (mIn.readLong() != MAGIC || mIn.readInt() != VERSION) {
+          throw new IOException("'" + file + "' is not a summary of this version");
+        }
+        next();
+      } catch (IOException e) {
+        mIn.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Returns the current entry, or null if all entries have been read.
+     */
+    Entry peek() {
+      return mEntry;
+    }
+
+    /**
+     * Advances to the next entry.
+     */
+    void next() throws IOException {
+      try {
+        int kind = mIn.readUnsignedByte();
+        if (kind == END) {
+          mEntry = null;
+          return;
+        }
+        if (kind >= Kind.values().length) {
+          throw new IOException("Malformed summary '" + mFile + "'");
+        }
+
+        List<String> prevKey = mEntry == null ? Collections.emptyList() : mEntry.mKey;
+        int shared = mIn.readInt();
+        int added = mIn.readInt();
+        if (shared < 0 || shared > prevKey.size() || added < 0) {
+          throw new IOException("Malformed summary '" + mFile + "'");
+        }
+        List<String> key = new ArrayList<String>(shared + added);
+        key.addAll(prevKey.subList(0, shared));
+        for (int i = 0; i < added; ++i) {
+          key.add(readString());
+        }
+        String heapName = readString();
+        long count = mIn.readLong();
+        Size size = new Size(mIn.readLong(), mIn.readLong());
+
+        Kind k = Kind.values()[kind];
+        if (mEntry != null && compare(k, key, heapName, mEntry) <= 0) {
+          throw new IOException("Malformed summary '" + mFile + "': entries out of order");
+        }
+        mEntry = new Entry(k, Collections.unmodifiableList(key), heapName, count, size);
+      } catch (EOFException e) {
+        throw new IOException("Truncated summary '" + mFile + "'", e);
+      }
+    }
+
+    /**
+     * Reads a string written by Writer.writeString.
+     */
+    private String readString() throws IOException {
+      int length = mIn.readInt();
+      if (length < 0 || length > mFile.length()) {
+        throw new IOException("Malformed summary '" + mFile + "'");
+      }
+      byte[] bytes = new byte[length];
+      mIn.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+      mIn.close();
+    }
+  }
+
+  /**
+   * Adds the given count and size to the totals for the given heap.
+   */
+  private static void add(Map<String, long[]> totals, String heapName, long count, Size size) {
+    long[] total = totals.computeIfAbsent(heapName, x -> new long[3]);
+    total[0] += count;
+    total[1] += size.getJavaSize();
+    total[2] += size.getRegisteredNativeSize();
+  }
+
+  /**
+   * Subtracts the given count and size from the totals for the given heap.
+   */
+  private static void subtract(Map<String, long[]> totals, String heapName, long count,
+      Size size) {
+    long[] total = totals.computeIfAbsent(heapName, x -> new long[3]);
+    total[0] -= count;
+    total[1] -= size.getJavaSize();
+    total[2] -= size.getRegisteredNativeSize();
+  }
+
+  /**
+   * Writes an entry for each heap with totals for a group.
+   */
+  private static void writeTotals(Writer out, Kind kind, List<String> key,
+      Map<String, long[]> totals) throws IOException {
+    for (Map.Entry<String, long[]> total : totals.entrySet()) {
+      long[] values = total.getValue();
+      if (values[0] != 0 || values[1] != 0 || values[2] != 0) {
+        out.write(kind, key, total.getKey(), values);
+      }
+    }
+  }
+
+  /**
+   * Groups the given nodes by name, in order of name.
+   */
+  private static <T> Iterator<Map.Entry<String, List<T>>> groupByName(Iterable<T> nodes,
+      Function<T, String> name) {
+    TreeMap<String, List<T>> groups = new TreeMap<String, List<T>>();
+    for (T node : nodes) {
+      groups.computeIfAbsent(name.apply(node), x -> new ArrayList<T>()).add(node);
+    }
+    return groups.entrySet().iterator();
+  }
+
+  /**
+   * Writes entries for the nodes of a tree, grouping nodes whose paths from
+   * the roots of the tree have the same names. Groups are visited in
+   * preorder with children in order of name, which is the order of their
+   * keys.
+   *
+   * @param roots the roots of the tree
+   * @param name returns the name of a node
+   * @param children returns the children of a node
+   * @param accumulate adds the counts and sizes for a node to the totals
+   * @param maxDepth the maximum number of nodes on the paths to write
+   *                 entries for
+   */
+  private static <T> void writeTree(Writer out, Kind kind, List<T> roots,
+      Function<T, String> name, Function<T, List<T>> children,
+      BiConsumer<T, Map<String, long[]>> accumulate, int maxDepth) throws IOException {
+    // Don't actually use recursion, because we could easily smash the stack.
+    // Instead we iterate. There is an element of the key for each group
+    // being visited, with one fewer than the number of iterators on the
+    // stack.
+    List<String> key = new ArrayList<String>();
+    Deque<Iterator<Map.Entry<String, List<T>>>> stack
+      = new ArrayDeque<Iterator<Map.Entry<String, List<T>>>>();
+    stack.push(groupByName(roots, name));
+    while (!stack.isEmpty()) {
+      Iterator<Map.Entry<String, List<T>>> iter = stack.peek();
+      if (!iter.hasNext()) {
+        stack.pop();
+        if (!key.isEmpty()) {
+          key.remove(key.size() - 1);
+        }
+        continue;
+      }
+
+      Map.Entry<String, List<T>> group = iter.next();
+      key.add(group.getKey());
+      Map<String, long[]> totals = new TreeMap<String, long[]>();
+      for (T node : group.getValue()) {
+        accumulate.accept(node, totals);
+      }
+      writeTotals(out, kind, key, totals);
+
+      List<T> next = new ArrayList<T>();
+      if (key.size() < maxDepth) {
+        for (T node : group.getValue()) {
+          next.addAll(children.apply(node));
+        }
+      }
+      stack.push(groupByName(next, name));
+    }
+  }
+
+  /**
+   * Returns the name of the frame of the given site.
+   */
+  private static String frame(Site site) {
+    return site.getMethodName() + site.getSignature()
+      + " " + site.getFilename() + ":" + site.getLineNumber();
+  }
+
+  /**
+   * Writes a summary of the given snapshot to the given file.
+   *
+   * @param snapshot the snapshot to summarize
+   * @param file the file to write the summary to
+   * @throws IOException if the summary could not be written
+   */
+  public static void write(AhatSnapshot snapshot, File file) throws IOException {
+    try (DataOutputStream stream = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+      stream.writeLong(MAGIC);
+      stream.writeInt(VERSION);
+      Writer out = new Writer(stream);
+
+      // The instances of each class are counted from the objects infos of
+      // the root site, which already group all instances by class and heap,
+      // including the instances allocated at its child sites.
+      TreeMap<String, Map<String, long[]>> classes = new TreeMap<String, Map<String, long[]>>();
+      for (Site.ObjectsInfo info : snapshot.getRootSite().getObjectsInfos()) {
+        Map<String, long[]> totals
+          = classes.computeIfAbsent(info.getClassName(), x -> new TreeMap<String, long[]>());
+        add(totals, info.heap.getName(), info.numInstances, info.numBytes);
+      }
+      for (Map.Entry<String, Map<String, long[]>> cls : classes.entrySet()) {
+        writeTotals(out, Kind.CLASS, Collections.singletonList(cls.getKey()), cls.getValue());
+      }
+      classes = null;
+
+      // The objects infos of a site include the instances allocated at its
+      // child sites, which are subtracted to count only the instances
+      // allocated at the site itself.
+      writeTree(out, Kind.SITE, Collections.singletonList(snapshot.getRootSite()),
+          Summary::frame, Site::getChildren,
+          (site, totals) -> {
+            for (Site.ObjectsInfo info : site.getObjectsInfos()) {
+              add(totals, info.heap.getName(), info.numInstances, info.numBytes);
+            }
+            for (Site child : site.getChildren()) {
+              for (Site.ObjectsInfo info : child.getObjectsInfos()) {
+                subtract(totals, info.heap.getName(), info.numInstances, info.numBytes);
+              }
+            }
+          }, Integer.MAX_VALUE);
+
+      writeTree(out, Kind.PATH, snapshot.getRooted(),
+          AhatInstance::getClassName, AhatInstance::getDominated,
+          (inst, totals) -> add(totals, inst.getHeap().getName(), 1, inst.getTotalRetainedSize()),
+          kMaxPathLength);
+
+      stream.writeByte(END);
+    }
+  }
+
+  /**
+   * Diffs the summaries in the given files.
+   * <p>
+   * The visitor is called for each entry in either summary, in order of
+   * kind, key and heap name. It is passed the entry from summary
+   * <code>a</code> and the entry with the same kind, key and heap name from
+   * summary <code>b</code>. Either entry is null if there is no such entry
+   * in the corresponding summary. Only one entry from each summary is held
+   * in memory at a time.
+   *
+   * @param a the file holding one of the summaries to diff
+   * @param b the file holding the other of the summaries to diff
+   * @param visitor called with each pair of corresponding entries
+   * @throws IOException if either summary could not be read
+   */
+  public static void diff(File a, File b, BiConsumer<Entry, Entry> visitor) throws IOException {
+    try (Reader ra = new Reader(a); Reader rb = new Reader(b)) {
+      while (ra.peek() != null || rb.peek() != null) {
+        Entry ea = ra.peek();
+        Entry eb = rb.peek();
+        int cmp = ea == null ? 1
+          : eb == null ? -1
+          : compare(ea.mKind, ea.mKey, ea.mHeapName, eb);
+        visitor.accept(cmp <= 0 ? ea : null, cmp >= 0 ? eb : null);
+        if (cmp <= 0) {
+          ra.next();
+        }
+        if (cmp >= 0) {
+          rb.next();
+        }
+      }
+    }
+  }
+}
@@ -16,13 +16,19 @@
 
 package com.android.ahat.proguard;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
@@ -32,6 +38,12 @@ import java.util.regex.Pattern;
 /**
  * A representation of a proguard mapping for deobfuscating class names,
  * field names, and stack frames.
+ * <p>
+ * Proguard mapping files for large apps can be hundreds of megabytes, most of
+ * which describes the fields and methods of classes that do not appear in a
+ * given heap dump. Only the class lines of a mapping are decoded when it is
+ * read. The field and method lines of a class are decoded the first time a
+ * field or stack frame of the class is deobfuscated.
  */
 public class ProguardMap {
 
@@ -39,21 +51,82 @@ public class ProguardMap {
   private static final Version LINE_MAPPING_BEHAVIOR_CHANGE_VERSION = new Version(3, 1, 4);
 
   private static class FrameData {
+    private static final int[] NO_LINES = new int[0];
+
     public FrameData(String clearMethodName) {
       this.clearMethodName = clearMethodName;
     }
 
     private final String clearMethodName;
-    private final TreeMap<Integer, LineNumberMapping> lineNumbers = new TreeMap<>();
+
+    // Line number mappings of the method, four ints per mapping: the start
+    // and end of the obfuscated line range followed by the start and end of
+    // the clear line range. Once all mappings have been added, they are
+    // sorted by the start of the obfuscated line range.
+    private int[] mLines = NO_LINES;
+    private int mCount = 0;
+
+    public void addLines(LineRange obfuscatedRange, LineRange clearRange) {
+      if (4 * mCount == mLines.length) {
+        mLines = Arrays.copyOf(mLines, Math.max(4, 2 * mLines.length));
+      }
+      mLines[4 * mCount] = obfuscatedRange.start;
+      mLines[4 * mCount + 1] = obfuscatedRange.end;
+      mLines[4 * mCount + 2] = clearRange.start;
+      mLines[4 * mCount + 3] = clearRange.end;
+      mCount++;
+    }
+
+    // Sorts the line number mappings by the start of their obfuscated line
+    // range. Of mappings with the same start, only the last one added is
+    // kept.
+    public void sortLines() {
+      long[] order = new long[mCount];
+      for (int i = 0; i < mCount; ++i) {
+        order[i] = ((long) mLines[4 * i] << 32) | i;
+      }
+      Arrays.sort(order);
+
+      int[] lines = new int[4 * mCount];
+      int count = 0;
+      for (int k = 0; k < mCount; ++k) {
+        if (k + 1 < mCount && (order[k + 1] >> 32) == (order[k] >> 32)) {
+          continue;
+        }
+        System.arraycopy(mLines, 4 * (int) order[k], lines, 4 * count, 4);
+        count++;
+      }
+      mLines = count == mCount ? lines : Arrays.copyOf(lines, 4 * count);
+      mCount = count;
+    }
 
     public int getClearLine(int obfuscatedLine) {
-      var lineNumberEntry = lineNumbers.floorEntry(obfuscatedLine);
-      LineNumberMapping mapping = lineNumberEntry == null ? null : lineNumberEntry.getValue();
-      if (mapping != null && mapping.hasObfuscatedLine(obfuscatedLine)) {
-        return mapping.mapObfuscatedLine(obfuscatedLine);
-      } else {
-        return obfuscatedLine;
+      // Find the last mapping whose obfuscated line range starts at or
+      // before the line.
+      int start = 0;
+      int end = mCount;
+      while (start < end) {
+        int mid = start + ((end - start) / 2);
+        if (mLines[4 * mid] <= obfuscatedLine) {
+          start = mid + 1;
+        } else {
+          end = mid;
+        }
       }
+
+      int i = 4 * (start - 1);
+      if (i >= 0 && obfuscatedLine <= mLines[i + 1]) {
+        int clearStart = mLines[i + 2];
+        int clearEnd = mLines[i + 3];
+        int mappedLine = clearStart + obfuscatedLine - mLines[i];
+        if (mappedLine < clearStart || mappedLine > clearEnd) {
+          // If the mapped line ends out outside of range, it would be past the end, so just limit it
+          // to the end line
+          return clearEnd;
+        }
+        return mappedLine;
+      }
+      return obfuscatedLine;
     }
   }
 
@@ -63,50 +136,35 @@ public class ProguardMap {
       this.end = end;
     }
 
-    public boolean hasLine(int lineNumber) {
-      return (lineNumber >= start && lineNumber <= end);
-    }
-
     public final int start;
     public final int end;
   }
 
-  private static class LineNumberMapping {
-    public LineNumberMapping(LineRange obfuscatedRange, LineRange clearRange) {
-      this.obfuscatedRange = obfuscatedRange;
-      this.clearRange = clearRange;
-    }
-
-    public boolean hasObfuscatedLine(int lineNumber) {
-      return obfuscatedRange.hasLine(lineNumber);
-    }
-
-    public int mapObfuscatedLine(int lineNumber) {
-      int mappedLine = clearRange.start + lineNumber - obfuscatedRange.start;
-      if (!clearRange.hasLine(mappedLine)) {
-        // If the mapped line ends out outside of range, it would be past the end, so just limit it
-        // to the end line
-        return clearRange.end;
-      }
-      return mappedLine;
-    }
+  private class ClassData {
+    private final String mClearName;
 
-    public final LineRange obfuscatedRange;
-    public final LineRange clearRange;
-  }
+    // The version of the compiler that generated the mapping for the class.
+    private final Version mCompilerVersion;
 
-  private static class ClassData {
-    private final String mClearName;
+    // The field and method lines for the class, as read from the mapping.
+    // These are decoded the first time a field or frame of the class is
+    // looked up, after which this is set to null.
+    private ByteBuffer mMembers;
 
-    // Mapping from obfuscated field name to clear field name.
-    private final Map<String, String> mFields = new HashMap<String, String>();
+    // Obfuscated field names in sorted order, and the corresponding clear
+    // field names.
+    private String[] mObfuscatedFields;
+    private String[] mClearFields;
 
     // obfuscatedMethodName + clearSignature -> FrameData
-    private final Map<String, FrameData> mFrames = new HashMap<String, FrameData>();
+    private Map<String, FrameData> mFrames;
 
-    // Constructs a ClassData object for a class with the given clear name.
-    public ClassData(String clearName) {
+    // Constructs a ClassData object for a class with the given clear name
+    // and field and method lines.
+    public ClassData(String clearName, ByteBuffer members, Version compilerVersion) {
       mClearName = clearName;
+      mMembers = members;
+      mCompilerVersion = compilerVersion;
     }
 
     // Returns the clear name of the class.
@@ -114,8 +172,112 @@ public class ProguardMap {
       return mClearName;
     }
 
-    public void addField(String obfuscatedName, String clearName) {
-      mFields.put(obfuscatedName, clearName);
+    // Decodes the field and method lines of the class, if they have not
+    // been decoded already.
+    private synchronized void decode() {
+      if (mMembers == null) {
+        return;
+      }
+
+      Map<String, String> fields = new TreeMap<String, String>();
+      mFrames = new HashMap<String, FrameData>();
+      Lines lines = new Lines(mMembers);
+      while (lines.next()) {
+        if (!lines.isComment()) {
+          try {
+            decodeMember(lines.text().trim(), fields);
+          } catch (ParseException | RuntimeException e) {
+            // The syntax of the line, including its line numbers, was
+            // checked when the mapping was read.
+            throw new AssertionError("Unexpected malformed line: " + lines.text(), e);
+          }
+        }
+      }
+      mMembers = null;
+
+      mObfuscatedFields = fields.keySet().toArray(new String[fields.size()]);
+      mClearFields = fields.values().toArray(new String[fields.size()]);
+      for (FrameData frame : mFrames.values()) {
+        frame.sortLines();
+      }
+    }
+
+    // Decodes a field or method line of the form:
+    //   'type clearName -> obfuscatedName'
+    // with leading and trailing whitespace removed.
+    private void decodeMember(String trimmed, Map<String, String> fields)
+        throws ParseException {
+      int ws = trimmed.indexOf(' ');
+      int sep = trimmed.indexOf(" -> ");
+      String type = trimmed.substring(0, ws);
+      String clearName = trimmed.substring(ws + 1, sep);
+      String obfuscatedName = trimmed.substring(sep + 4, trimmed.length());
+
+      // If the clearName contains '(', then this is for a method instead of a
+      // field.
+      if (clearName.indexOf('(') == -1) {
+        fields.put(obfuscatedName, intern(clearName));
+        return;
+      }
+
+      // For methods, the type is of the form: [#:[#:]]<returnType>
+      int obfuscatedLineStart = 0;
+      // The end of the obfuscated line range.
+      // If line does not contain explicit end range, e.g #:, it is equivalent to #:#:
+      int obfuscatedLineEnd = 0;
+      int colon = type.indexOf(':');
+      if (colon != -1) {
+        obfuscatedLineStart = Integer.parseInt(type.substring(0, colon));
+        obfuscatedLineEnd = obfuscatedLineStart;
+        type = type.substring(colon + 1);
+      }
+      colon = type.indexOf(':');
+      if (colon != -1) {
+        obfuscatedLineEnd = Integer.parseInt(type.substring(0, colon));
+        type = type.substring(colon + 1);
+      }
+      LineRange obfuscatedRange = new LineRange(obfuscatedLineStart, obfuscatedLineEnd);
+
+      // For methods, the clearName is of the form: <clearName><sig>[:#[:#]]
+      int op = clearName.indexOf('(');
+      int cp = clearName.indexOf(')');
+      String sig = clearName.substring(op, cp + 1);
+
+      int clearLineStart = obfuscatedRange.start;
+      int clearLineEnd = obfuscatedRange.end;
+      colon = clearName.lastIndexOf(':');
+      if (colon != -1) {
+        if (mCompilerVersion.compareTo(LINE_MAPPING_BEHAVIOR_CHANGE_VERSION) < 0) {
+          // Before v3.1.4 if only one clear line was present, that implied a range equal to the
+          // obfuscated line range
+          clearLineStart = Integer.parseInt(clearName.substring(colon + 1));
+          clearLineEnd = clearLineStart + obfuscatedRange.end - obfuscatedRange.start;
+        } else {
+          // From v3.1.4 if only one clear line was present, that implies that all lines map to
+          // a single clear line
+          clearLineEnd = Integer.parseInt(clearName.substring(colon + 1));
+          clearLineStart = clearLineEnd;
+        }
+        clearName = clearName.substring(0, colon);
+      }
+
+      colon = clearName.lastIndexOf(':');
+      if (colon != -1) {
+        clearLineStart = Integer.parseInt(clearName.substring(colon + 1));
+        clearName = clearName.substring(0, colon);
+      }
+      LineRange clearRange = new LineRange(clearLineStart, clearLineEnd);
+
+      clearName = clearName.substring(0, op);
+
+      String clearSig = intern(fromProguardSignature(sig + type));
+      String key = obfuscatedName + clearSig;
+      FrameData data = mFrames.get(key);
+      if (data == null) {
+        data = new FrameData(intern(clearName));
+        mFrames.put(key, data);
+      }
+      data.addLines(obfuscatedRange, clearRange);
     }
 
     // Get the clear name for the field in this class with the given
@@ -124,24 +286,14 @@ public class ProguardMap {
     // TODO: Do we need to take into account the type of the field to
     // propery determine the clear name?
     public String getField(String obfuscatedName) {
-      String clearField = mFields.get(obfuscatedName);
-      return clearField == null ? obfuscatedName : clearField;
-    }
-
-    public void addFrame(String obfuscatedMethodName, String clearMethodName,
-            String clearSignature, LineRange obfuscatedLine, LineRange clearRange) {
-        String key = obfuscatedMethodName + clearSignature;
-        FrameData data = mFrames.get(key);
-        if (data == null) {
-          data = new FrameData(clearMethodName);
-        }
-        data.lineNumbers.put(
-            obfuscatedLine.start, new LineNumberMapping(obfuscatedLine, clearRange));
-        mFrames.put(key, data);
+      decode();
+      int index = Arrays.binarySearch(mObfuscatedFields, obfuscatedName);
+      return index < 0 ? obfuscatedName : mClearFields[index];
     }
 
     public Frame getFrame(String clearClassName, String obfuscatedMethodName,
         String clearSignature, String obfuscatedFilename, int obfuscatedLine) {
+      decode();
       String key = obfuscatedMethodName + clearSignature;
       FrameData frame = mFrames.get(key);
       if (frame == null) {
@@ -152,9 +304,223 @@ public class ProguardMap {
     }
   }
 
+  // Iterates over the lines of a proguard mapping encoded as UTF-8.
+  private static class Lines {
+    private final ByteBuffer mBuffer;
+
+    // The start and end of the current line, not including the line
+    // terminator, and the start of the next line.
+    private int mStart = 0;
+    private int mEnd = 0;
+    private int mNext = 0;
+
+    private byte[] mChars = new byte[256];
+
+    public Lines(ByteBuffer buffer) {
+      mBuffer = buffer;
+    }
+
+    // Advances to the next line. Returns false if there are no more lines.
+    public boolean next() {
+      int limit = mBuffer.limit();
+      if (mNext >= limit) {
+        mStart = mEnd = limit;
+        return false;
+      }
+
+      mStart = mNext;
+      mEnd = mStart;
+      while (mEnd < limit && mBuffer.get(mEnd) != '\n') {
+        mEnd++;
+      }
+      mNext = mEnd < limit ? mEnd + 1 : mEnd;
+      if (mEnd > mStart && mBuffer.get(mEnd - 1) == '\r') {
+        mEnd--;
+      }
+      return true;
+    }
+
+    // Returns the offset of the start of the current line.
+    public int start() {
+      return mStart;
+    }
+
+    // Returns the offset of the start of the line after the current line.
+    public int end() {
+      return mNext;
+    }
+
+    // Returns true if the current line is a comment line, which starts with
+    // '#' after any leading whitespace.
+    public boolean isComment() {
+      int i = skipWhitespace(mStart);
+      return i < mEnd && mBuffer.get(i) == '#';
+    }
+
+    // Returns true if the current line starts with four spaces, as field and
+    // method lines do.
+    public boolean isIndented() {
+      if (mEnd - mStart < 4) {
+        return false;
+      }
+      for (int i = mStart; i < mStart + 4; ++i) {
+        if (mBuffer.get(i) != ' ') {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // Checks the syntax of the current line as a field or method line,
+    // without decoding it. A line that passes the check can be decoded by
+    // decodeMember without error.
+    public boolean isMember() {
+      int start = skipWhitespace(mStart);
+      int end = mEnd;
+      while (end > start && isWhitespace(mBuffer.get(end - 1))) {
+        end--;
+      }
+
+      int ws = indexOf(start, end, " ");
+      int sep = indexOf(start, end, " -> ");
+      if (ws == -1 || sep == -1 || ws == sep) {
+        return false;
+      }
+
+      // Fields have no '(' in the clear name.
+      int op = indexOf(ws + 1, sep, "(");
+      if (op == -1) {
+        return true;
+      }
+
+      // For methods, the type is of the form: [#:[#:]]<returnType>
+      int type = start;
+      for (int k = 0; k < 2; ++k) {
+        int colon = indexOf(type, ws, ":");
+        if (colon == -1) {
+          break;
+        }
+        if (!isInt(type, colon)) {
+          return false;
+        }
+        type = colon + 1;
+      }
+      if (indexOf(type, ws, "(") != -1) {
+        return false;
+      }
+
+      // For methods, the clear name is of the form: <clearName><sig>[:#[:#]]
+      // where the signature has no nested parentheses.
+      int cp = indexOf(ws + 1, sep, ")");
+      if (cp < op || indexOf(op + 1, cp, "(") != -1) {
+        return false;
+      }
+      int clearEnd = sep;
+      for (int k = 0; k < 2; ++k) {
+        int colon = lastIndexOf(ws + 1, clearEnd, ':');
+        if (colon == -1) {
+          break;
+        }
+        if (!isInt(colon + 1, clearEnd)) {
+          return false;
+        }
+        clearEnd = colon;
+      }
+      return op < clearEnd;
+    }
+
+    // Returns the current line.
+    public String text() {
+      int length = mEnd - mStart;
+      if (mChars.length < length) {
+        mChars = new byte[Math.max(length, 2 * mChars.length)];
+      }
+      for (int i = 0; i < length; ++i) {
+        mChars[i] = mBuffer.get(mStart + i);
+      }
+      return new String(mChars, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isWhitespace(byte b) {
+      // Matches the characters removed by String.trim. Bytes of multi-byte
+      // UTF-8 characters are all negative.
+      return b >= 0 && b <= ' ';
+    }
+
+    private int skipWhitespace(int i) {
+      while (i < mEnd && isWhitespace(mBuffer.get(i))) {
+        i++;
+      }
+      return i;
+    }
+
+    // Returns the offset of the last occurrence of the given ASCII character
+    // at or after start and before end, or -1 if there is none.
+    private int lastIndexOf(int start, int end, char c) {
+      for (int i = end - 1; i >= start; --i) {
+        if (mBuffer.get(i) == c) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    // Returns true if the bytes from start to end can be parsed with
+    // Integer.parseInt.
+    private boolean isInt(int start, int end) {
+      int i = start;
+      boolean negative = false;
+      if (i < end && (mBuffer.get(i) == '-' || mBuffer.get(i) == '+')) {
+        negative = mBuffer.get(i) == '-';
+        i++;
+      }
+      if (i == end) {
+        return false;
+      }
+      long value = 0;
+      for (; i < end; ++i) {
+        byte b = mBuffer.get(i);
+        if (b < '0' || b > '9') {
+          return false;
+        }
+        value = 10 * value + (b - '0');
+        if (value > (negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // Returns the offset of the first occurrence of the given ASCII string
+    // at or after start that ends before end, or -1 if there is none.
+    private int indexOf(int start, int end, String str) {
+      for (int i = start; i + str.length() <= end; ++i) {
+        boolean match = true;
+        for (int j = 0; match && j < str.length(); ++j) {
+          match = mBuffer.get(i + j) == str.charAt(j);
+        }
+        if (match) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  // A ByteArrayOutputStream whose contents can be accessed without copying.
+  private static class Bytes extends ByteArrayOutputStream {
+    public ByteBuffer asByteBuffer() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+  }
+
   private Map<String, ClassData> mClassesFromClearName = new HashMap<String, ClassData>();
   private Map<String, ClassData> mClassesFromObfuscatedName = new HashMap<String, ClassData>();
 
+  // Clear names and signatures of fields and methods, which are shared by
+  // many classes.
+  private final Map<String, String> mStrings = new HashMap<String, String>();
+
   /**
    * Information associated with a stack frame that identifies a particular
    * line of source code.
@@ -220,7 +586,15 @@ public class ProguardMap {
    */
   public void readFromFile(File mapFile)
     throws FileNotFoundException, IOException, ParseException {
-    readFromReader(new FileReader(mapFile));
+    // Map the file rather than reading it, so that the field and method
+    // lines of classes that are never looked up need not be read at all.
+    try (RandomAccessFile file = new RandomAccessFile(mapFile, "r")) {
+      FileChannel channel = file.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Proguard map " + mapFile + " is too large");
+      }
+      read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
   }
 
   /**
@@ -235,19 +609,34 @@ public class ProguardMap {
    *                        formatted proguard mapping file.
    */
   public void readFromReader(Reader mapReader) throws IOException, ParseException {
+    // Keep the mapping encoded as UTF-8, which takes half the memory of the
+    // chars read for the mostly ASCII contents of mappings.
+    Bytes bytes = new Bytes();
+    Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+    mapReader.transferTo(writer);
+    writer.close();
+    mapReader.close();
+    read(bytes.asByteBuffer());
+  }
+
+  // Reads the class lines of a proguard mapping file encoded as UTF-8,
+  // checking the syntax of the field and method lines of each class and
+  // saving them to be decoded when first needed.
+  private void read(ByteBuffer buffer) throws ParseException {
     Version compilerVersion = new Version(0, 0, 0);
-    BufferedReader reader = new BufferedReader(mapReader);
-    String line = reader.readLine();
-    while (line != null) {
+    Lines lines = new Lines(buffer);
+    boolean more = lines.next();
+    while (more) {
       // Skip comment lines.
-      if (isCommentLine(line)) {
-        compilerVersion = tryParseVersion(line, compilerVersion);
-        line = reader.readLine();
+      if (lines.isComment()) {
+        compilerVersion = tryParseVersion(lines.text(), compilerVersion);
+        more = lines.next();
         continue;
       }
 
       // Class lines are of the form:
       //   'clear.class.name -> obfuscated_class_name:'
+      String line = lines.text();
       int sep = line.indexOf(" -> ");
       if (sep == -1 || sep + 5 >= line.length()) {
         parseException("Error parsing class line: '" + line + "'");
@@ -255,99 +644,27 @@ public class ProguardMap {
       String clearClassName = line.substring(0, sep);
       String obfuscatedClassName = line.substring(sep + 4, line.length() - 1);
 
-      ClassData classData = new ClassData(clearClassName);
-      mClassesFromClearName.put(clearClassName, classData);
-      mClassesFromObfuscatedName.put(obfuscatedClassName, classData);
-
       // After the class line comes zero or more field/method lines of the form:
       //   '    type clearName -> obfuscatedName'
       //   '# comment line'
-      line = reader.readLine();
-      while (line != null && (line.startsWith("    ") || isCommentLine(line))) {
-        String trimmed = line.trim();
+      more = lines.next();
+      int start = lines.start();
+      int end = start;
+      while (more && (lines.isIndented() || lines.isComment())) {
         // Comment lines may occur anywhere in the file.
-        // Skip over them.
-        if (isCommentLine(trimmed)) {
-          line = reader.readLine();
-          continue;
-        }
-        int ws = trimmed.indexOf(' ');
-        sep = trimmed.indexOf(" -> ");
-        if (ws == -1 || sep == -1) {
-          parseException("Error parse field/method line: '" + line + "'");
-        }
-
-        String type = trimmed.substring(0, ws);
-        String clearName = trimmed.substring(ws + 1, sep);
-        String obfuscatedName = trimmed.substring(sep + 4, trimmed.length());
-
-        // If the clearName contains '(', then this is for a method instead of a
-        // field.
-        if (clearName.indexOf('(') == -1) {
-          classData.addField(obfuscatedName, clearName);
-        } else {
-          // For methods, the type is of the form: [#:[#:]]<returnType>
-          int obfuscatedLineStart = 0;
-          // The end of the obfuscated line range.
-          // If line does not contain explicit end range, e.g #:, it is equivalent to #:#:
-          int obfuscatedLineEnd = 0;
-          int colon = type.indexOf(':');
-          if (colon != -1) {
-            obfuscatedLineStart = Integer.parseInt(type.substring(0, colon));
-            obfuscatedLineEnd = obfuscatedLineStart;
-            type = type.substring(colon + 1);
-          }
-          colon = type.indexOf(':');
-          if (colon != -1) {
-            obfuscatedLineEnd = Integer.parseInt(type.substring(0, colon));
-            type = type.substring(colon + 1);
-          }
-          LineRange obfuscatedRange = new LineRange(obfuscatedLineStart, obfuscatedLineEnd);
-
-          // For methods, the clearName is of the form: <clearName><sig>[:#[:#]]
-          int op = clearName.indexOf('(');
-          int cp = clearName.indexOf(')');
-          if (op == -1 || cp == -1) {
-            parseException("Error parse method line: '" + line + "'");
-          }
-
-          String sig = clearName.substring(op, cp + 1);
-
-          int clearLineStart = obfuscatedRange.start;
-          int clearLineEnd = obfuscatedRange.end;
-          colon = clearName.lastIndexOf(':');
-          if (colon != -1) {
-            if (compilerVersion.compareTo(LINE_MAPPING_BEHAVIOR_CHANGE_VERSION) < 0) {
-              // Before v3.1.4 if only one clear line was present, that implied a range equal to the
-              // obfuscated line range
-              clearLineStart = Integer.parseInt(clearName.substring(colon + 1));
-              clearLineEnd = clearLineStart + obfuscatedRange.end - obfuscatedRange.start;
-            } else {
-              // From v3.1.4 if only one clear line was present, that implies that all lines map to
-              // a single clear line
-              clearLineEnd = Integer.parseInt(clearName.substring(colon + 1));
-              clearLineStart = clearLineEnd;
-            }
-            clearName = clearName.substring(0, colon);
-          }
-
-          colon = clearName.lastIndexOf(':');
-          if (colon != -1) {
-            clearLineStart = Integer.parseInt(clearName.substring(colon + 1));
-            clearName = clearName.substring(0, colon);
-          }
-          LineRange clearRange = new LineRange(clearLineStart, clearLineEnd);
-
-          clearName = clearName.substring(0, op);
-
-          String clearSig = fromProguardSignature(sig + type);
-          classData.addFrame(obfuscatedName, clearName, clearSig, obfuscatedRange, clearRange);
+        if (!lines.isComment() && !lines.isMember()) {
+          parseException("Error parse field/method line: '" + lines.text() + "'");
         }
-
-        line = reader.readLine();
+        end = lines.end();
+        more = lines.next();
       }
+
+      ByteBuffer members = buffer.duplicate();
+      members.limit(end).position(start);
+      ClassData classData = new ClassData(clearClassName, members.slice(), compilerVersion);
+      mClassesFromClearName.put(clearClassName, classData);
+      mClassesFromObfuscatedName.put(obfuscatedClassName, classData);
     }
-    reader.close();
   }
 
   private static class Version implements Comparable<Version> {
@@ -374,14 +691,11 @@ public class ProguardMap {
     }
   }
 
-  private boolean isCommentLine(String line) {
-    // Comment lines start with '#' and my have leading whitespaces.
-    return line.trim().startsWith("#");
-  }
+  private static final Pattern VERSION_PATTERN
+    = Pattern.compile("#\\s*compiler_version:\\s*(\\d+).(\\d+).(?:(\\d+))?");
 
   private Version tryParseVersion(String line, Version old) {
-    Pattern pattern = Pattern.compile("#\\s*compiler_version:\\s*(\\d+).(\\d+).(?:(\\d+))?");
-    Matcher matcher = pattern.matcher(line);
+    Matcher matcher = VERSION_PATTERN.matcher(line);
     if (matcher.find()) {
       String buildStr = matcher.group(3);
       if (buildStr == null) {
@@ -465,6 +779,13 @@ public class ProguardMap {
         obfuscatedFilename, obfuscatedLine);
   }
 
+  // Returns a string equal to the given string, shared with other users of
+  // equal strings.
+  private synchronized String intern(String str) {
+    String interned = mStrings.putIfAbsent(str, str);
+    return interned == null ? str : interned;
+  }
+
   // Converts a proguard-formatted method signature into a Java formatted
   // method signature.
   private static String fromProguardSignature(String sig) throws ParseException {
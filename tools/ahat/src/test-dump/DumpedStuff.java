@@ -169,6 +169,10 @@ public class DumpedStuff extends SuperDumpedStuff {
   public String nonAscii = "Sigma (Ʃ) is not ASCII";
   public String embeddedZero = "embedded\0...";  // Non-ASCII for string compression purposes.
   public char[] charArray = "char thing".toCharArray();
+  public String duplicateString = new String("duplicate thing".toCharArray());
+  public String duplicateStringCopy = new String("duplicate thing".toCharArray());
+  public long[] duplicateArray = new long[]{3, 1, 4, 1, 5, 9, 2, 6};
+  public long[] duplicateArrayCopy = new long[]{3, 1, 4, 1, 5, 9, 2, 6};
   public String nullString = null;
   public Object anObject = new Object();
   public Reference aReference = new Reference(anObject);
@@ -22,22 +22,31 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+  AnalysisIndexTest.class,
   DiffFieldsTest.class,
   DiffTest.class,
   DominatorsTest.class,
+  DuplicatesTest.class,
   HtmlEscaperTest.class,
+  InstanceQueryTest.class,
   InstanceTest.class,
+  JsonWriterTest.class,
   NativeAllocationTest.class,
   ObjectHandlerTest.class,
   ObjectsHandlerTest.class,
   OverviewHandlerTest.class,
+  ParserTest.class,
   PerformanceTest.class,
   ProguardMapTest.class,
   RootedHandlerTest.class,
   QueryTest.class,
+  ReportTest.class,
+  ResultCacheTest.class,
   RiTest.class,
+  SearchHandlerTest.class,
   SiteHandlerTest.class,
-  SiteTest.class
+  SiteTest.class,
+  SummaryTest.class
 })
 
 public class AhatTestSuite {
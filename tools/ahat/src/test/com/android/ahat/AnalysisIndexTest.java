@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatHeap;
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.HprofFormatException;
+import com.android.ahat.heapdump.Parser;
+import com.android.ahat.heapdump.PathElement;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class AnalysisIndexTest {
+  private static AhatSnapshot parse(File index) throws IOException, HprofFormatException {
+    Parser parser = new Parser(TestDump.dataBufferFromResource("test-dump.hprof"));
+    if (index != null) {
+      parser.index(index);
+    }
+    return parser.parse();
+  }
+
+  private static long idOf(AhatInstance inst) {
+    return inst == null ? -1 : inst.getId();
+  }
+
+  /**
+   * Asserts that the results of analysis for the two snapshots of the same
+   * heap dump are the same.
+   */
+  private static void assertSameAnalysis(AhatSnapshot expected, AhatSnapshot actual) {
+    List<AhatInstance> instances = new ArrayList<AhatInstance>();
+    expected.getRootSite().getObjects(x -> true, x -> instances.add(x));
+    assertTrue(instances.size() > 0);
+    assertEquals(expected.getRooted().size(), actual.getRooted().size());
+
+    for (AhatInstance e : instances) {
+      AhatInstance a = actual.findInstance(e.getId());
+      assertNotNull(a);
+      assertEquals(e.getReachability(), a.getReachability());
+      assertEquals(idOf(e.getImmediateDominator()), idOf(a.getImmediateDominator()));
+      assertEquals(e.getDominated().size(), a.getDominated().size());
+      assertEquals(e.getReverseReferences().size(), a.getReverseReferences().size());
+      for (AhatHeap heap : expected.getHeaps()) {
+        assertEquals(e.getRetainedSize(heap), a.getRetainedSize(actual.getHeap(heap.getName())));
+      }
+
+      List<PathElement> ePath = e.getPathFromGcRoot();
+      List<PathElement> aPath = a.getPathFromGcRoot();
+      assertEquals(ePath == null, aPath == null);
+      if (ePath != null) {
+        assertEquals(ePath.size(), aPath.size());
+        for (int i = 0; i < ePath.size(); ++i) {
+          assertEquals(ePath.get(i).instance.getId(), aPath.get(i).instance.getId());
+          assertEquals(ePath.get(i).field, aPath.get(i).field);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void indexReused() throws IOException, HprofFormatException {
+    File index = File.createTempFile("ahat", ".ahat-index");
+    try {
+      index.delete();
+      AhatSnapshot expected = parse(null);
+      AhatSnapshot written = parse(index);
+      assertTrue(index.length() > 0);
+      assertSameAnalysis(expected, written);
+
+      AhatSnapshot read = parse(index);
+      assertSameAnalysis(expected, read);
+    } finally {
+      index.delete();
+    }
+  }
+
+  @Test
+  public void corruptIndexIgnored() throws IOException, HprofFormatException {
+    File index = File.createTempFile("ahat", ".ahat-index");
+    try {
+      AhatSnapshot expected = parse(null);
+      parse(index);
+
+      // Corrupt a byte in the middle of the index.
+      byte[] contents = Files.readAllBytes(index.toPath());
+      contents[contents.length / 2] ^= 0x5a;
+      try (FileOutputStream out = new FileOutputStream(index)) {
+        out.write(contents);
+      }
+      assertSameAnalysis(expected, parse(index));
+
+      // Truncate the index.
+      try (FileOutputStream out = new FileOutputStream(index)) {
+        out.write(contents, 0, contents.length / 2);
+      }
+      assertSameAnalysis(expected, parse(index));
+    } finally {
+      index.delete();
+    }
+  }
+
+  @Test
+  public void corruptIndexLengthIgnored() throws IOException, HprofFormatException {
+    File index = File.createTempFile("ahat", ".ahat-index");
+    try {
+      AhatSnapshot expected = parse(null);
+      parse(index);
+
+      // Replace the number of reverse references, which is the last of the
+      // reverse reference start positions, with a length too large to
+      // allocate. It comes after the 40 byte header, the reachability byte
+      // and the two ints of GC root path for each instance, and the start
+      // positions of the instances.
+      ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(index.toPath()));
+      int size = contents.getInt(32);
+      contents.putInt(40 + size + 4 * size + 4 * size + 4 * size, Integer.MAX_VALUE);
+      try (FileOutputStream out = new FileOutputStream(index)) {
+        out.write(contents.array());
+      }
+      assertSameAnalysis(expected, parse(index));
+    } finally {
+      index.delete();
+    }
+  }
+}
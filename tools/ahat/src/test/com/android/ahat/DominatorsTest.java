@@ -18,6 +18,7 @@ package com.android.ahat;
 
 import com.android.ahat.dominators.Dominators;
 import com.android.ahat.dominators.DominatorsComputation;
+import com.android.ahat.progress.NullProgress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -25,6 +26,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class DominatorsTest {
@@ -374,4 +376,50 @@ public class DominatorsTest {
     assertEquals(a, d.dominator);
     assertEquals(a, f.dominator);
   }
+
+  @Test
+  public void twiceRevisitCompressedGraph() {
+    //       /---->---\
+    //      /     /--> f -->-\
+    // --> a --> b -->--x---> c --> d    u --> c
+    //            \----------->----/
+    // Run the twiceRevisit test using the compressed sparse row version of
+    // computing dominators, with the root not numbered first and an
+    // unreachable node u referring into the graph.
+    int a = 3;
+    int b = 0;
+    int x = 5;
+    int c = 2;
+    int d = 6;
+    int f = 4;
+    int u = 1;
+    int[][] depends = new int[7][];
+    depends[a] = new int[] { f, b };
+    depends[b] = new int[] { f, d, x };
+    depends[x] = new int[] { c };
+    depends[c] = new int[] { d };
+    depends[d] = new int[] { };
+    depends[f] = new int[] { c };
+    depends[u] = new int[] { c };
+
+    int[] edgeStart = new int[depends.length + 1];
+    for (int i = 0; i < depends.length; ++i) {
+      edgeStart[i + 1] = edgeStart[i] + depends[i].length;
+    }
+    int[] edges = new int[edgeStart[depends.length]];
+    for (int i = 0; i < depends.length; ++i) {
+      System.arraycopy(depends[i], 0, edges, edgeStart[i], depends[i].length);
+    }
+
+    int[] dominators = Dominators.computeDominators(a, edgeStart, edges, new NullProgress());
+    int[] expected = new int[7];
+    expected[a] = -1;
+    expected[b] = a;
+    expected[x] = b;
+    expected[c] = a;
+    expected[d] = a;
+    expected[f] = a;
+    expected[u] = -1;
+    assertArrayEquals(expected, dominators);
+  }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.Duplicates;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicatesTest {
+  /**
+   * Returns the group containing the given instance, or null if the instance
+   * is not duplicated.
+   */
+  private static Duplicates.Group findGroup(Duplicates duplicates, AhatInstance inst) {
+    for (Duplicates.Group group : duplicates.getGroups()) {
+      if (group.getInstances().contains(inst)) {
+        return group;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void strings() throws IOException {
+    TestDump dump = TestDump.getTestDump();
+    Duplicates duplicates = dump.getAhatSnapshot().getDuplicates();
+    AhatInstance str = dump.getDumpedAhatInstance("duplicateString");
+    AhatInstance copy = dump.getDumpedAhatInstance("duplicateStringCopy");
+
+    Duplicates.Group group = findGroup(duplicates, str);
+    assertNotNull(group);
+    assertEquals(Duplicates.Kind.STRING, group.getKind());
+    assertTrue(group.getInstances().contains(copy));
+    for (AhatInstance inst : group.getInstances()) {
+      assertEquals("duplicate thing", inst.asString());
+    }
+
+    // Each redundant copy wastes a string and its array of characters.
+    long size = str.getSize().getSize() + str.getRefField("value").getSize().getSize();
+    assertEquals(size, group.getSize());
+    assertEquals((group.getCount() - 1) * size, group.getWastedSize());
+  }
+
+  @Test
+  public void arrays() throws IOException {
+    TestDump dump = TestDump.getTestDump();
+    Duplicates duplicates = dump.getAhatSnapshot().getDuplicates();
+    AhatInstance array = dump.getDumpedAhatInstance("duplicateArray");
+    AhatInstance copy = dump.getDumpedAhatInstance("duplicateArrayCopy");
+
+    Duplicates.Group group = findGroup(duplicates, array);
+    assertNotNull(group);
+    assertEquals(Duplicates.Kind.ARRAY, group.getKind());
+    assertEquals(2, group.getCount());
+    assertTrue(group.getInstances().contains(copy));
+    assertEquals(array.getSize().getSize(), group.getSize());
+    assertEquals(array.getSize().getSize(), group.getWastedSize());
+  }
+
+  @Test
+  public void stringArraysNotCountedSeparately() throws IOException {
+    TestDump dump = TestDump.getTestDump();
+    Duplicates duplicates = dump.getAhatSnapshot().getDuplicates();
+    AhatInstance chars = dump.getDumpedAhatInstance("duplicateString").getRefField("value");
+    assertNull(findGroup(duplicates, chars));
+  }
+
+  @Test
+  public void rankedByWastedSize() throws IOException {
+    TestDump dump = TestDump.getTestDump();
+    Duplicates duplicates = dump.getAhatSnapshot().getDuplicates();
+    List<Duplicates.Group> groups = duplicates.getGroups();
+    assertFalse(groups.isEmpty());
+
+    long total = 0;
+    for (int i = 0; i < groups.size(); ++i) {
+      Duplicates.Group group = groups.get(i);
+      assertTrue(group.getCount() > 1);
+      if (i > 0) {
+        assertTrue(groups.get(i - 1).getWastedSize() >= group.getWastedSize());
+      }
+      total += group.getWastedSize();
+    }
+    assertEquals(total, duplicates.getTotalWastedSize());
+  }
+}
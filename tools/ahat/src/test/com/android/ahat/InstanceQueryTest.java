@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatHeap;
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InstanceQueryTest {
+  @Test
+  public void ofClass() throws IOException {
+    TestDump dump = TestDump.getTestDump();
+    AhatSnapshot snapshot = dump.getAhatSnapshot();
+
+    List<AhatInstance> insts = snapshot.query().ofClass("DumpedStuff", false).run();
+    assertEquals(1, insts.size());
+    assertEquals("DumpedStuff", insts.get(0).getClassName());
+
+    assertTrue(snapshot.query().ofClass("SuperDumpedStuff", false).run().isEmpty());
+
+    List<AhatInstance> subclass = snapshot.query().ofClass("SuperDumpedStuff", true).run();
+    assertEquals(1, subclass.size());
+    assertEquals(insts.get(0), subclass.get(0));
+  }
+
+  @Test
+  public void withField() throws IOException {
+    TestDump dump = TestDump.getTestDump();
+    AhatSnapshot snapshot = dump.getAhatSnapshot();
+    AhatInstance modified = dump.getDumpedAhatInstance("modifiedObject");
+
+    List<AhatInstance> insts = snapshot.query()
+        .ofClass("DumpedStuff$ModifiedObject", false)
+        .withField("value", "8")
+        .run();
+    assertEquals(1, insts.size());
+    assertEquals(modified, insts.get(0));
+
+    insts = snapshot.query()
+        .ofClass("DumpedStuff$ModifiedObject", false)
+        .withField("modifiedRefField", "\"A2\"")
+        .run();
+    assertEquals(1, insts.size());
+    assertEquals(modified, insts.get(0));
+
+    assertTrue(snapshot.query()
+        .ofClass("DumpedStuff$ModifiedObject", false)
+        .withField("value", "5")
+        .run().isEmpty());
+
+    // The same field predicate without a class predicate.
+    insts = snapshot.query().withField("modifiedRefField", "\"A2\"").run();
+    assertEquals(1, insts.size());
+    assertEquals(modified, insts.get(0));
+
+    // Instances without the field never match.
+    assertTrue(snapshot.query().ofClass("DumpedStuff", false).withField("noSuchField", "null")
+        .run().isEmpty());
+  }
+
+  @Test
+  public void withStringPrefix() throws IOException {
+    TestDump dump = TestDump.getTestDump();
+    AhatSnapshot snapshot = dump.getAhatSnapshot();
+    AhatInstance str = dump.getDumpedAhatInstance("basicString");
+
+    List<AhatInstance> insts = snapshot.query().withStringPrefix("hello, wor").run();
+    assertTrue(insts.contains(str));
+    for (AhatInstance inst : insts) {
+      assertTrue(inst.asString().startsWith("hello, wor"));
+    }
+
+    assertTrue(snapshot.query().withStringPrefix("no string starts with this").run().isEmpty());
+  }
+
+  @Test
+  public void largest() throws IOException {
+    TestDump dump = TestDump.getTestDump();
+    AhatSnapshot snapshot = dump.getAhatSnapshot();
+    AhatHeap app = snapshot.getHeap("app");
+
+    List<AhatInstance> insts = snapshot.query().largest(10).run();
+    assertEquals(10, insts.size());
+    for (int i = 1; i < insts.size(); ++i) {
+      assertTrue(insts.get(i - 1).getTotalRetainedSize().getSize()
+          >= insts.get(i).getTotalRetainedSize().getSize());
+    }
+
+    insts = snapshot.query().onHeap("app").largest(10).run();
+    assertEquals(10, insts.size());
+    for (int i = 0; i < insts.size(); ++i) {
+      assertEquals(app, insts.get(i).getHeap());
+      if (i > 0) {
+        assertTrue(insts.get(i - 1).getRetainedSize(app).getSize()
+            >= insts.get(i).getRetainedSize(app).getSize());
+      }
+    }
+
+    // The largest instances of a class are ranked without the index of all
+    // instances by retained size, and should match the instances of the
+    // class in that index.
+    List<AhatInstance> strings = snapshot.query().ofClass("java.lang.String", false)
+        .largest(5).run();
+    assertEquals(5, strings.size());
+    int found = 0;
+    for (AhatInstance inst : snapshot.query().largest(Integer.MAX_VALUE).run()) {
+      if (found < strings.size() && inst.getClassName().equals("java.lang.String")) {
+        assertEquals(strings.get(found++), inst);
+      }
+    }
+    assertEquals(5, found);
+  }
+}
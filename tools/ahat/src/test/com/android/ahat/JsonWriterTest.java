@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonWriterTest {
+  @Test
+  public void nested() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    JsonWriter json = new JsonWriter(out);
+    json.beginObject();
+    json.name("name").value("ahat");
+    json.name("empty").beginArray().endArray();
+    json.name("values").beginArray().value(42).value(true).nullValue().endArray();
+    json.name("object").beginObject().name("size").value(-1).endObject();
+    json.endObject();
+    out.flush();
+    assertEquals("{\n"
+        + "  \"name\": \"ahat\",\n"
+        + "  \"empty\": [],\n"
+        + "  \"values\": [\n"
+        + "    42,\n"
+        + "    true,\n"
+        + "    null\n"
+        + "  ],\n"
+        + "  \"object\": {\n"
+        + "    \"size\": -1\n"
+        + "  }\n"
+        + "}\n", bytes.toString().replace(System.lineSeparator(), "\n"));
+  }
+
+  @Test
+  public void escaped() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    JsonWriter json = new JsonWriter(out);
+    json.beginArray();
+    json.value("\"quoted\" \\ back\tslash\n\u0001 \ud800");
+    json.value((String)null);
+    json.endArray();
+    out.flush();
+    assertEquals("[\n"
+        + "  \"\\\"quoted\\\" \\\\ back\\tslash\\n\\u0001 \\ud800\",\n"
+        + "  null\n"
+        + "]\n", bytes.toString().replace(System.lineSeparator(), "\n"));
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatHeap;
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.FieldValue;
+import com.android.ahat.heapdump.HprofFormatException;
+import com.android.ahat.heapdump.Parser;
+import com.android.ahat.heapdump.Size;
+import com.android.ahat.heapdump.Value;
+import com.android.ahat.proguard.ProguardMap;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ParserTest {
+  @Test
+  public void onParsed() throws IOException, HprofFormatException {
+    List<AhatSnapshot> parsed = new ArrayList<AhatSnapshot>();
+    Map<String, Size> sizes = new HashMap<String, Size>();
+    AhatSnapshot snapshot = new Parser(TestDump.dataBufferFromResource("test-dump.hprof"))
+      .onParsed(x -> {
+        parsed.add(x);
+        for (AhatHeap heap : x.getHeaps()) {
+          sizes.put(heap.getName(), heap.getSize());
+        }
+      })
+      .parse();
+
+    assertEquals(1, parsed.size());
+    assertSame(snapshot, parsed.get(0));
+
+    // The heap sizes known before dominators are computed should be the
+    // total retained sizes of the rooted instances.
+    for (AhatHeap heap : snapshot.getHeaps()) {
+      long size = 0;
+      for (AhatInstance inst : snapshot.getRooted()) {
+        size += inst.getRetainedSize(heap).getSize();
+      }
+      assertEquals(size, sizes.get(heap.getName()).getSize());
+      assertEquals(size, heap.getSize().getSize());
+    }
+  }
+
+  /**
+   * Returns a description of the given instance covering everything read
+   * from the heap dump for it.
+   */
+  private static String describe(AhatInstance inst) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(inst.toString()).append(' ').append(inst.getClassName());
+    sb.append(' ').append(inst.getSize().getJavaSize());
+    sb.append(' ').append(inst.getSize().getRegisteredNativeSize());
+    if (inst.isClassObj()) {
+      for (FieldValue field : inst.asClassObj().getStaticFieldValues()) {
+        sb.append(' ').append(field.name).append('=').append(field.value);
+      }
+    }
+    if (inst.isClassInstance()) {
+      for (FieldValue field : inst.asClassInstance().getInstanceFields()) {
+        sb.append(' ').append(field.name).append('=').append(field.value);
+      }
+    }
+    if (inst.isArrayInstance()) {
+      for (Value value : inst.asArrayInstance().getValues()) {
+        sb.append(' ').append(value);
+      }
+    }
+    String str = inst.asString();
+    if (str != null) {
+      sb.append(" \"").append(str).append('"');
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void smallSegments() throws IOException, HprofFormatException, ParseException {
+    ProguardMap map = new ProguardMap();
+    map.readFromReader(new InputStreamReader(
+        ParserTest.class.getClassLoader().getResourceAsStream("test-dump.map")));
+    ByteBuffer hprof = TestDump.dataBufferFromResource("test-dump.hprof");
+    AhatSnapshot expected = new Parser(hprof.duplicate()).map(map).parse();
+
+    // Segments of 64 bytes, so that many values straddle the boundaries
+    // between segments, including primitive array elements and the names of
+    // classes and fields to deobfuscate.
+    AhatSnapshot snapshot = new Parser(hprof.duplicate(), 6).map(map).parse();
+
+    List<AhatInstance> insts = expected.query().run();
+    assertTrue(insts.size() > 0);
+    assertEquals(insts.size(), snapshot.query().run().size());
+    for (AhatInstance inst : insts) {
+      AhatInstance actual = snapshot.findInstance(inst.getId());
+      assertNotNull(actual);
+      assertEquals(describe(inst), describe(actual));
+    }
+  }
+}
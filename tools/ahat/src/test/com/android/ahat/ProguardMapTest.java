@@ -22,6 +22,7 @@ import java.io.StringReader;
 import java.text.ParseException;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class ProguardMapTest {
   private static final String TEST_MAP_FORMAT =
@@ -314,4 +315,24 @@ public class ProguardMapTest {
         "()V", "SourceFile.java", 0);
     assertEquals("Methods.java", frame.filename);
   }
+
+  @Test
+  public void malformedMemberLines() throws IOException {
+    String[] members = {
+      "    void misorderedParens)( -> a\n",
+      "    void nestedParens((int) -> a\n",
+      "    1x:2:void badObfuscatedLine() -> a\n",
+      "    99999999999:2:void obfuscatedLineOutOfRange() -> a\n",
+      "    1:2:void badClearLine():1y -> a\n",
+    };
+    for (String member : members) {
+      ProguardMap map = new ProguardMap();
+      try {
+        map.readFromReader(new StringReader("class.with.Methods -> d:\n" + member));
+        fail("Expected ParseException for: " + member);
+      } catch (ParseException e) {
+        // Expected.
+      }
+    }
+  }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Reachability;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class ReportTest {
+  private static String report(AhatSnapshot snapshot, File basehprof) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    Report report = new Report(snapshot, new File("my.hprof.file"), basehprof,
+        Reachability.SOFT, 10);
+    report.write(new JsonWriter(out));
+    out.flush();
+    return bytes.toString();
+  }
+
+  @Test
+  public void diffed() throws IOException {
+    AhatSnapshot snapshot = TestDump.getTestDump().getAhatSnapshot();
+    String json = report(snapshot, new File("my.base.hprof.file"));
+    assertTrue(json.startsWith("{"));
+    assertTrue(json.contains("\"hprof\": \"my.hprof.file\""));
+    assertTrue(json.contains("\"baseline\": \"my.base.hprof.file\""));
+    assertTrue(json.contains("\"heaps\": ["));
+    assertTrue(json.contains("\"instances\": ["));
+    assertTrue(json.contains("\"sites\": ["));
+  }
+}
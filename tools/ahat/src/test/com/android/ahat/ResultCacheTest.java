@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ResultCacheTest {
+  @Test
+  public void cached() {
+    ResultCache cache = new ResultCache();
+    AtomicInteger computed = new AtomicInteger();
+    List<String> a = cache.get("a", () -> {
+      computed.incrementAndGet();
+      return Arrays.asList("x", "y");
+    });
+    List<String> b = cache.get("a", () -> {
+      computed.incrementAndGet();
+      return Arrays.asList("z");
+    });
+    assertSame(a, b);
+    assertEquals(Arrays.asList("x", "y"), b);
+    assertEquals(1, computed.get());
+  }
+
+  @Test
+  public void leastRecentlyUsedEvicted() {
+    ResultCache cache = new ResultCache(4);
+    AtomicInteger computed = new AtomicInteger();
+    cache.get("a", () -> {
+      computed.incrementAndGet();
+      return Arrays.asList(1, 2);
+    });
+    cache.get("b", () -> {
+      computed.incrementAndGet();
+      return Arrays.asList(3, 4);
+    });
+
+    // Use "a" so that "b" is the least recently used.
+    cache.get("a", () -> Arrays.asList(0));
+    cache.get("c", () -> {
+      computed.incrementAndGet();
+      return Arrays.asList(5);
+    });
+    assertEquals(3, computed.get());
+
+    assertEquals(Arrays.asList(1, 2), cache.get("a", () -> Arrays.asList(0)));
+    assertEquals(Arrays.asList(5), cache.get("c", () -> Arrays.asList(0)));
+    assertEquals(Arrays.asList(0), cache.get("b", () -> Arrays.asList(0)));
+  }
+
+  @Test
+  public void computedOnceConcurrently() throws InterruptedException {
+    ResultCache cache = new ResultCache();
+    AtomicInteger computed = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread thread = new Thread(() -> {
+      cache.get("a", () -> {
+        computed.incrementAndGet();
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        return Arrays.asList("x");
+      });
+    });
+    thread.start();
+    started.await();
+
+    // Release the first computation once this thread has had a chance to
+    // start waiting for it.
+    new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        // Release the computation anyway.
+      }
+      release.countDown();
+    }).start();
+    List<String> list = cache.get("a", () -> {
+      computed.incrementAndGet();
+      return Arrays.asList("y");
+    });
+    thread.join();
+    assertEquals(Arrays.asList("x"), list);
+    assertEquals(1, computed.get());
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatSnapshot;
+import java.io.IOException;
+import org.junit.Test;
+
+public class SearchHandlerTest {
+  @Test
+  public void noCrash() throws IOException {
+    AhatSnapshot snapshot = TestDump.getTestDump().getAhatSnapshot();
+    AhatHandler handler = new SearchHandler(snapshot);
+    TestHandler.testNoCrash(handler, "http://localhost:7100/search");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/search?class=java.lang.String");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/search?prefix=hello&top=5");
+    TestHandler.testNoCrash(handler,
+        "http://localhost:7100/search?class=DumpedStuff&field=nullString&value=null");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/search?heap=app&top=10");
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.heapdump.Site;
+import com.android.ahat.heapdump.Summary;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SummaryTest {
+  private static class Pair {
+    public final Summary.Entry a;
+    public final Summary.Entry b;
+
+    Pair(Summary.Entry a, Summary.Entry b) {
+      this.a = a;
+      this.b = b;
+    }
+  }
+
+  private static List<Pair> diff(TestDump dump) throws IOException {
+    File a = File.createTempFile("ahat", ".summary");
+    File b = File.createTempFile("ahat", ".summary");
+    try {
+      Summary.write(dump.getAhatSnapshot(), a);
+      Summary.write(dump.getBaselineAhatSnapshot(), b);
+      List<Pair> pairs = new ArrayList<Pair>();
+      Summary.diff(a, b, (ea, eb) -> pairs.add(new Pair(ea, eb)));
+      return pairs;
+    } finally {
+      a.delete();
+      b.delete();
+    }
+  }
+
+  private static Pair find(List<Pair> pairs, Summary.Kind kind, List<String> key,
+      String heapName) {
+    for (Pair pair : pairs) {
+      Summary.Entry entry = pair.a != null ? pair.a : pair.b;
+      if (entry.getKind() == kind && entry.getKey().equals(key)
+          && entry.getHeapName().equals(heapName)) {
+        return pair;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void diffClasses() throws IOException {
+    List<Pair> pairs = diff(TestDump.getTestDump());
+    Pair pair = find(pairs, Summary.Kind.CLASS, Arrays.asList("DumpedStuff"), "app");
+    assertNotNull(pair);
+    assertEquals(1, pair.a.getCount());
+    assertEquals(1, pair.b.getCount());
+  }
+
+  @Test
+  public void classTotals() throws IOException {
+    // java.lang.Object is allocated at sites below the root site, so its
+    // instances are counted in the objects infos of several sites.
+    TestDump dump = TestDump.getTestDump();
+    AhatInstance obj = dump.getDumpedAhatInstance("objectAllocatedAtKnownSubSite");
+    assertTrue(obj.getSite().getParent() != dump.getAhatSnapshot().getRootSite());
+    String heapName = obj.getHeap().getName();
+
+    long count = 0;
+    long javaSize = 0;
+    long nativeSize = 0;
+    List<AhatInstance> insts = dump.getAhatSnapshot().query()
+      .ofClass("java.lang.Object", false).onHeap(heapName).run();
+    for (AhatInstance inst : insts) {
+      if (inst.getReachability().notWeakerThan(Reachability.STRONG)) {
+        count++;
+        javaSize += inst.getSize().getJavaSize();
+        nativeSize += inst.getSize().getRegisteredNativeSize();
+      }
+    }
+
+    List<Pair> pairs = diff(dump);
+    Pair pair = find(pairs, Summary.Kind.CLASS, Arrays.asList("java.lang.Object"), heapName);
+    assertNotNull(pair);
+    assertEquals(count, pair.a.getCount());
+    assertEquals(javaSize, pair.a.getSize().getJavaSize());
+    assertEquals(nativeSize, pair.a.getSize().getRegisteredNativeSize());
+  }
+
+  @Test
+  public void siteTotals() throws IOException {
+    // Each instance is counted at the one site it was allocated at, so the
+    // entries of all the sites add up to the objects infos of the root site.
+    TestDump dump = TestDump.getTestDump();
+    Site root = dump.getAhatSnapshot().getRootSite();
+    long count = 0;
+    long javaSize = 0;
+    for (Site.ObjectsInfo info : root.getObjectsInfos()) {
+      count += info.numInstances;
+      javaSize += info.numBytes.getJavaSize();
+    }
+
+    long siteCount = 0;
+    long siteJavaSize = 0;
+    for (Pair pair : diff(dump)) {
+      if (pair.a != null && pair.a.getKind() == Summary.Kind.SITE) {
+        siteCount += pair.a.getCount();
+        siteJavaSize += pair.a.getSize().getJavaSize();
+      }
+    }
+    assertEquals(count, siteCount);
+    assertEquals(javaSize, siteJavaSize);
+  }
+
+  @Test
+  public void diffInOrder() throws IOException {
+    List<Pair> pairs = diff(TestDump.getTestDump());
+    assertTrue(pairs.size() > 0);
+    Summary.Kind kind = Summary.Kind.CLASS;
+    for (Pair pair : pairs) {
+      assertTrue(pair.a != null || pair.b != null);
+      if (pair.a != null && pair.b != null) {
+        assertEquals(pair.a.getKind(), pair.b.getKind());
+        assertEquals(pair.a.getKey(), pair.b.getKey());
+        assertEquals(pair.a.getHeapName(), pair.b.getHeapName());
+      }
+      Summary.Entry entry = pair.a != null ? pair.a : pair.b;
+      assertTrue(entry.getKind().compareTo(kind) >= 0);
+      kind = entry.getKind();
+    }
+  }
+
+  @Test
+  public void malformed() throws IOException {
+    File a = File.createTempFile("ahat", ".summary");
+    try {
+      try (FileOutputStream out = new FileOutputStream(a)) {
+        out.write(new byte[] { 0x41, 0x48, 0x41, 0x54 });
+      }
+      Summary.diff(a, a, (ea, eb) -> fail());
+      fail("Expected IOException");
+    } catch (IOException e) {
+      // This is expected.
+    } finally {
+      a.delete();
+    }
+  }
+}